@@ -0,0 +1,75 @@
+package com.finra.fileupload.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Wires storage beans the way the application context does, without starting Spring,
+ * so benchmarks measure the storage code alone. Lives in the service package to reach
+ * the package private fields beans are injected into.
+ * @author akadam
+ * @since 1.0
+ */
+final class BenchmarkStorage {
+
+	private BenchmarkStorage() {
+	}
+
+	/**
+	 * @return helper with properties metadata store, hierarchical layout, dedup and compression disabled
+	 */
+	static FileManagerHelper newHelper() {
+		FileManagerHelper helper = new FileManagerHelper();
+		helper.uploadIdGenerator = new UploadIdGenerator();
+		helper.metaDataIndex = new FileMetaDataIndex();
+		helper.metaDataJournal = new MetaDataJournal();
+		helper.storageLayout = new StorageLayout();
+		helper.blobStore = new BlobStore();
+		helper.storageMetrics = new StorageMetrics();
+		helper.usageStats = new UsageStats();
+		helper.payloadCompressor = new PayloadCompressor();
+		helper.payloadCompressor.codec = Codec.NONE.getName();
+		helper.payloadCompressor.init();
+		helper.segmentStore = new SegmentStore();
+		helper.metaDataScanner = new MetaDataScanner();
+		helper.metaDataScanner.init();
+		GroupCommitter groupCommitter = new GroupCommitter();
+		groupCommitter.metaDataJournal = helper.metaDataJournal;
+		groupCommitter.storageMetrics = helper.storageMetrics;
+		groupCommitter.batchWindowMillis = 5;
+		groupCommitter.maxBatchSize = 64;
+		groupCommitter.commitTimeoutMillis = 30000;
+		groupCommitter.defaultDurability = Durability.NONE.name();
+		groupCommitter.init();
+		helper.groupCommitter = groupCommitter;
+		return helper;
+	}
+
+	/**
+	 * Removes directory with everything under it.
+	 * @param directory directory to remove, nothing happens if it doesn't exist
+	 */
+	static void delete(File directory) throws IOException {
+		if(!directory.exists()) {
+			return;
+		}
+		Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,100 @@
+package com.finra.fileupload.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link FileManagerHelper#storeFileToUniqueLocation(FileContainer, String)}
+ * across payload sizes, durability levels and thread counts. Storage root is emptied
+ * between iterations so disk usage stays bounded.
+ * @author akadam
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveBenchmark {
+
+	/**Payload size in bytes*/
+	@Param({"1024", "65536", "1048576"})
+	int fileSize;
+
+	/**Durability asked for by every upload*/
+	@Param({"NONE", "BATCH"})
+	Durability durability;
+
+	private FileManagerHelper helper;
+
+	private File root;
+
+	private byte[] payload;
+
+	private final Date creationDate = new Date();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		helper = BenchmarkStorage.newHelper();
+		root = Files.createTempDirectory("save-benchmark").toFile();
+		payload = new byte[fileSize];
+		new Random(fileSize).nextBytes(payload);
+	}
+
+	@TearDown(Level.Iteration)
+	public void clean() throws IOException {
+		BenchmarkStorage.delete(root);
+		root.mkdirs();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		helper.groupCommitter.shutdown();
+		BenchmarkStorage.delete(root);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public String save1Thread() {
+		return save();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String save4Threads() {
+		return save();
+	}
+
+	@Benchmark
+	@Threads(16)
+	public String save16Threads() {
+		return save();
+	}
+
+	private String save() {
+		FileContainer container = new FileContainer("Benchmark-User", payload, "payload.bin", creationDate);
+		container.setDurability(durability);
+		helper.storeFileToUniqueLocation(container, root.getPath());
+		return container.getUploadId();
+	}
+}
@@ -0,0 +1,154 @@
+package com.finra.fileupload.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of metadata searches against generated storage trees, scanning candidate
+ * directories on disk compared with index lookups.
+ *
+ * Trees are written with the hierarchical layout and properties metadata, uploads spread
+ * over {@value #USERS} users and {@value #DAYS} days. Generating the larger trees takes a
+ * while so each tree is kept under {@code target/trees/{size}} of the working directory and
+ * reused by later runs, delete it to regenerate.
+ * @author akadam
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SearchBenchmark {
+
+	/**Number of distinct users in generated tree*/
+	private static final int USERS = 1000;
+
+	/**Number of distinct creation days in generated tree*/
+	private static final int DAYS = 365;
+
+	/**First creation day of generated tree*/
+	private static final int FIRST_DAY = DayFormat.parseEpochDay("2016-01-01");
+
+	/**Marks a fully generated tree*/
+	private static final String COMPLETE_MARKER = ".complete";
+
+	/**Uploads in generated tree*/
+	@Param({"10000", "100000", "1000000"})
+	int treeSize;
+
+	private FileManagerHelper helper;
+
+	private String root;
+
+	private Random random;
+
+	/**(user, creation day) of some generated uploads, searches pick from these so they hit*/
+	private final List<Object[]> targets = new ArrayList<Object[]>();
+
+	/**Some generated properties files*/
+	private final List<String> propertiesFiles = new ArrayList<String>();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		helper = BenchmarkStorage.newHelper();
+		File directory = new File(new File("target", "trees"), String.valueOf(treeSize));
+		root = directory.getPath();
+		generate(directory);
+		helper.buildMetaDataIndex(root);
+		random = new Random(treeSize);
+	}
+
+	@Benchmark
+	public MetaDataScanner.Result searchByUserAndDate() {
+		Object[] target = targets.get(random.nextInt(targets.size()));
+		Date date = (Date) target[1];
+		return helper.metaDataScanner.scan(helper.storageLayout.searchDirectories(root, (String) target[0], date),
+				(String) target[0], DayFormat.toEpochDay(date));
+	}
+
+	@Benchmark
+	public MetaDataScanner.Result searchByUser() {
+		Object[] target = targets.get(random.nextInt(targets.size()));
+		return helper.metaDataScanner.scan(helper.storageLayout.searchDirectories(root, (String) target[0], null),
+				(String) target[0], null);
+	}
+
+	@Benchmark
+	public Object readPropertiesFile() {
+		Object[] target = targets.get(random.nextInt(targets.size()));
+		return helper.getMetaDataFromPropertiesFiles(propertiesFiles.get(random.nextInt(propertiesFiles.size())),
+				(String) target[0], null);
+	}
+
+	@Benchmark
+	public List<FileMetaData> indexByUserAndDate() {
+		Object[] target = targets.get(random.nextInt(targets.size()));
+		return helper.metaDataIndex.find((String) target[0], DayFormat.toEpochDay((Date) target[1]));
+	}
+
+	/**
+	 * Writes upload directories with properties files the same way uploads are saved,
+	 * payloads are left out as searches never read them.
+	 */
+	private void generate(File directory) throws IOException {
+		boolean complete = new File(directory, COMPLETE_MARKER).exists();
+		if(!complete) {
+			BenchmarkStorage.delete(directory);
+			directory.mkdirs();
+		}
+		//Same seed and ids derived from position, so a reused tree matches what would be generated.
+		Random generator = new Random(42);
+		long firstUploadMillis = DayFormat.toDate(FIRST_DAY).getTime();
+		for(int i = 0; i < treeSize; i++) {
+			String user = "User-" + generator.nextInt(USERS);
+			int day = FIRST_DAY + generator.nextInt(DAYS);
+			Date creationDate = DayFormat.toDate(day);
+			String uploadId = UploadIdGenerator.lowerBound(firstUploadMillis + i);
+			File uploadDirectory = new File(helper.storageLayout.resolve(root, user, creationDate, uploadId));
+			File propertiesFile = new File(uploadDirectory, "payload.bin.properties");
+			if(i % Math.max(1, treeSize / 1000) == 0) {
+				targets.add(new Object[] {user, creationDate});
+				propertiesFiles.add(propertiesFile.getPath());
+			}
+			if(complete) {
+				continue;
+			}
+			uploadDirectory.mkdirs();
+			FileMetaData metadata = new FileMetaData(uploadId, user, "payload.bin", day, day, 1024, null);
+			Properties prop = new Properties();
+			prop.putAll(metadata.toMap());
+			OutputStream output = new FileOutputStream(propertiesFile);
+			try {
+				prop.store(output, "=============================File Metadata=============================");
+			} finally {
+				output.close();
+			}
+		}
+		if(!complete) {
+			new File(directory, COMPLETE_MARKER).createNewFile();
+		}
+	}
+}
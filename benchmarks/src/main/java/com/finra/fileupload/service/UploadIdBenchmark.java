@@ -0,0 +1,59 @@
+package com.finra.fileupload.service;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time ordered upload ids against the former shared SecureRandom ids, single threaded
+ * and under contention.
+ * @author akadam
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadIdBenchmark {
+
+	private final SecureRandom secureRandom = new SecureRandom();
+
+	private final UploadIdGenerator generator = new UploadIdGenerator();
+
+	@Benchmark
+	@Threads(1)
+	public String secureRandom1Thread() {
+		return new BigInteger(130, secureRandom).toString(32);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public String secureRandom8Threads() {
+		return new BigInteger(130, secureRandom).toString(32);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public String timeOrdered1Thread() {
+		return generator.nextId();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public String timeOrdered8Threads() {
+		return generator.nextId();
+	}
+}
@@ -1,16 +1,42 @@
 package com.finra.fileupload;
+import java.io.File;
 import java.security.SecureRandom;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
 
+import javax.servlet.MultipartConfigElement;
+
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.web.MultipartProperties;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+import com.finra.fileupload.controller.ClusterRoutingInterceptor;
 
+import com.finra.fileupload.service.AsyncIngestService;
+import com.finra.fileupload.service.BatchUploadService;
+import com.finra.fileupload.service.BlobStore;
+import com.finra.fileupload.service.ChunkedUploadManager;
+import com.finra.fileupload.service.ClusterClient;
+import com.finra.fileupload.service.ClusterRebalancer;
+import com.finra.fileupload.service.ClusterRing;
 import com.finra.fileupload.service.FileManagerHelper;
+import com.finra.fileupload.service.FileMetaDataIndex;
+import com.finra.fileupload.service.GroupCommitter;
+import com.finra.fileupload.service.MetaDataJournal;
+import com.finra.fileupload.service.MetaDataQueryCache;
+import com.finra.fileupload.service.MetaDataScanner;
+import com.finra.fileupload.service.MetaDataWatcher;
+import com.finra.fileupload.service.PayloadCompressor;
+import com.finra.fileupload.service.SegmentStore;
+import com.finra.fileupload.service.StorageLayout;
+import com.finra.fileupload.service.StorageMetrics;
+import com.finra.fileupload.service.StorageVolumes;
+import com.finra.fileupload.service.UploadIdGenerator;
+import com.finra.fileupload.service.UsageStats;
 
 /**
  * Main class OR entry point for spring boot application.
@@ -38,20 +64,229 @@ public class Application {
     }
     
     /**
-     * SecureRandom bean
+     * Multipart config bean, parts are spooled under first storage root unless
+     * spring.http.multipart.location is set, so staging an async upload is a rename.
      * @return
      */
     @Bean
-    public SecureRandom getSecureRandom() {
-    	return new SecureRandom();
+    public MultipartConfigElement getMultipartConfigElement(MultipartProperties multipartProperties, StorageVolumes storageVolumes) {
+    	if(multipartProperties.getLocation() == null || multipartProperties.getLocation().isEmpty()) {
+    		File spool = new File(storageVolumes.getPrimaryRoot(), AsyncIngestService.SPOOL_DIRECTORY).getAbsoluteFile();
+    		spool.mkdirs();
+    		multipartProperties.setLocation(spool.getPath());
+    	}
+    	return multipartProperties.createMultipartConfig();
+    }
+    
+    /**
+     * FileMetaDataIndex bean
+     * @return
+     */
+    @Bean
+    public FileMetaDataIndex getFileMetaDataIndex() {
+    	return new FileMetaDataIndex();
+    }
+    
+    /**
+     * MetaDataJournal bean
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    public MetaDataJournal getMetaDataJournal() {
+    	return new MetaDataJournal();
+    }
+    
+    /**
+     * MetaDataQueryCache bean
+     * @return
+     */
+    @Bean
+    public MetaDataQueryCache getMetaDataQueryCache() {
+    	return new MetaDataQueryCache();
+    }
+    
+    /**
+     * StorageLayout bean
+     * @return
+     */
+    @Bean
+    public StorageLayout getStorageLayout() {
+    	return new StorageLayout();
+    }
+    
+    /**
+     * AsyncIngestService bean
+     * @return
+     */
+    @Bean
+    public AsyncIngestService getAsyncIngestService() {
+    	return new AsyncIngestService();
+    }
+    
+    /**
+     * BatchUploadService bean
+     * @return
+     */
+    @Bean
+    public BatchUploadService getBatchUploadService() {
+    	return new BatchUploadService();
+    }
+    
+    /**
+     * BlobStore bean
+     * @return
+     */
+    @Bean
+    public BlobStore getBlobStore() {
+    	return new BlobStore();
+    }
+    
+    /**
+     * PayloadCompressor bean
+     * @return
+     */
+    @Bean
+    public PayloadCompressor getPayloadCompressor() {
+    	return new PayloadCompressor();
+    }
+    
+    /**
+     * MetaDataScanner bean
+     * @return
+     */
+    @Bean
+    public MetaDataScanner getMetaDataScanner() {
+    	return new MetaDataScanner();
+    }
+    
+    /**
+     * MetaDataWatcher bean
+     * @return
+     */
+    @Bean
+    public MetaDataWatcher getMetaDataWatcher() {
+    	return new MetaDataWatcher();
+    }
+    
+    /**
+     * UsageStats bean
+     * @return
+     */
+    @Bean
+    public UsageStats getUsageStats() {
+    	return new UsageStats();
     }
     
     /**
-     * SimpleDataFormat bean
+     * SegmentStore bean
      * @return
      */
     @Bean
-    public DateFormat getSimpleDateFormat() {
-    	return new SimpleDateFormat("yyyy-MM-dd");
+    public SegmentStore getSegmentStore() {
+    	return new SegmentStore();
+    }
+    
+    /**
+     * GroupCommitter bean
+     * @return
+     */
+    @Bean
+    public GroupCommitter getGroupCommitter() {
+    	return new GroupCommitter();
+    }
+    
+    /**
+     * ChunkedUploadManager bean
+     * @return
+     */
+    @Bean
+    public ChunkedUploadManager getChunkedUploadManager() {
+    	return new ChunkedUploadManager();
+    }
+    
+    /**
+     * UploadIdGenerator bean
+     * @return
+     */
+    @Bean
+    public UploadIdGenerator getUploadIdGenerator() {
+    	return new UploadIdGenerator();
+    }
+    
+    /**
+     * StorageVolumes bean
+     * @return
+     */
+    @Bean
+    public StorageVolumes getStorageVolumes() {
+    	return new StorageVolumes();
+    }
+    
+    /**
+     * ClusterRing bean
+     * @return
+     */
+    @Bean
+    public ClusterRing getClusterRing() {
+    	return new ClusterRing();
+    }
+    
+    /**
+     * ClusterClient bean
+     * @return
+     */
+    @Bean
+    public ClusterClient getClusterClient() {
+    	return new ClusterClient();
+    }
+    
+    /**
+     * ClusterRebalancer bean
+     * @return
+     */
+    @Bean
+    public ClusterRebalancer getClusterRebalancer() {
+    	return new ClusterRebalancer();
+    }
+    
+    /**
+     * ClusterRoutingInterceptor bean
+     * @return
+     */
+    @Bean
+    public ClusterRoutingInterceptor getClusterRoutingInterceptor() {
+    	return new ClusterRoutingInterceptor();
+    }
+    
+    /**
+     * Registers cluster routing for services partitioned by user or upload
+     * @return
+     */
+    @Bean
+    public WebMvcConfigurerAdapter getClusterRoutingConfigurer(final ClusterRoutingInterceptor interceptor) {
+    	return new WebMvcConfigurerAdapter() {
+    		@Override
+    		public void addInterceptors(InterceptorRegistry registry) {
+    			registry.addInterceptor(interceptor).addPathPatterns("/upload", "/metadata", "/metadata/query", "/stats/usage", "/files/*");
+    		}
+    	};
+    }
+    
+    /**
+     * StorageMetrics bean
+     * @return
+     */
+    @Bean
+    public StorageMetrics getStorageMetrics() {
+    	return new StorageMetrics();
+    }
+    
+    /**
+     * SecureRandom bean
+     * @return
+     */
+    @Bean
+    public SecureRandom getSecureRandom() {
+    	return new SecureRandom();
     }
 }
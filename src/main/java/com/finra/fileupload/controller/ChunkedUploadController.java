@@ -0,0 +1,187 @@
+package com.finra.fileupload.controller;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.finra.fileupload.service.ChunkedUploadManager;
+import com.finra.fileupload.service.UploadSession;
+
+/**
+ * Chunked upload controller, for large files sent over unreliable links. A failed
+ * chunk is simply sent again instead of restarting the whole upload.
+ *
+ *
+ * Service :- 1
+ * POST /uploads?user={user}&fileCreationDate={fileCreationDate}&fileName={fileName}&fileSize={fileSize}&chunkSize={chunkSize}
+ * Starts upload session and returns its id, chunk size and chunk count. chunkSize is optional.
+ *
+ * Service :- 2
+ * PUT /uploads/{sessionId}/chunks/{chunkNumber}
+ * Request body is the raw chunk, chunks are numbered from 0 and can be sent in any order or in parallel.
+ *
+ * Service :- 3
+ * GET /uploads/{sessionId}
+ * Returns session details along with chunks still missing, used to resume.
+ *
+ * Service :- 4
+ * POST /uploads/{sessionId}/commit
+ * Saves the assembled file along with its metadata, same as /upload.
+ *
+ * Service :- 5
+ * DELETE /uploads/{sessionId}
+ * Aborts the session.
+ *
+ * @author akadam
+ * @since 1.0
+ */
+@RestController
+public class ChunkedUploadController {
+
+	/**Logger*/
+	private static final Logger logger =
+			Logger.getLogger(ChunkedUploadController.class.getCanonicalName());
+
+	@Autowired
+	ChunkedUploadManager chunkedUploadManager;
+
+	/**
+	 * Starts chunked upload session.
+	 * @param user user who is trying to upload a file
+	 * @param fileCreationDate file creation date
+	 * @param fileName name of the file
+	 * @param fileSize total size of file in bytes
+	 * @param chunkSize optional chunk size in bytes
+	 * @return session details
+	 */
+	@RequestMapping(value = "/uploads", method = RequestMethod.POST)
+	public ResponseEntity<Map<String, Object>> startSession(@RequestParam(value="user", required=true) String user,
+			@RequestParam(value="fileCreationDate", required=true) @DateTimeFormat(pattern="yyyy-MM-dd") Date fileCreationDate,
+			@RequestParam(value="fileName", required=true) String fileName,
+			@RequestParam(value="fileSize", required=true) long fileSize,
+			@RequestParam(value="chunkSize", required=false) Long chunkSize) {
+		try {
+			UploadSession session = chunkedUploadManager.start(user, fileName, fileCreationDate, fileSize, chunkSize);
+			return new ResponseEntity<Map<String, Object>>(describe(session, false), HttpStatus.CREATED);
+		}catch(IllegalArgumentException e) {
+			return message(e.getMessage(), HttpStatus.BAD_REQUEST);
+		}
+	}
+
+	/**
+	 * Receives one chunk.
+	 * @param sessionId id of upload session
+	 * @param chunkNumber zero based chunk number
+	 * @param request request whose body is the chunk
+	 * @return message if chunk is received
+	 */
+	@RequestMapping(value = "/uploads/{sessionId}/chunks/{chunkNumber}", method = RequestMethod.PUT)
+	public ResponseEntity<Map<String, Object>> uploadChunk(@PathVariable("sessionId") String sessionId,
+			@PathVariable("chunkNumber") int chunkNumber, HttpServletRequest request) {
+		UploadSession session = chunkedUploadManager.find(sessionId);
+		if(session == null) {
+			return message("Upload session not found", HttpStatus.NOT_FOUND);
+		}
+		try {
+			session.writeChunk(chunkNumber, Channels.newChannel(request.getInputStream()));
+		}catch(IllegalArgumentException e) {
+			return message(e.getMessage(), HttpStatus.BAD_REQUEST);
+		}catch(IllegalStateException e) {
+			return message(e.getMessage(), HttpStatus.CONFLICT);
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while receiving chunk", e);
+			throw new RuntimeException(e);
+		}
+		return message("Chunk successfully uploaded", HttpStatus.OK);
+	}
+
+	/**
+	 * Describes the session along with missing chunks.
+	 * @param sessionId id of upload session
+	 * @return session details
+	 */
+	@RequestMapping(value = "/uploads/{sessionId}", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> getSession(@PathVariable("sessionId") String sessionId) {
+		UploadSession session = chunkedUploadManager.find(sessionId);
+		if(session == null) {
+			return message("Upload session not found", HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<Map<String, Object>>(describe(session, true), HttpStatus.OK);
+	}
+
+	/**
+	 * Commits the session once all chunks are received.
+	 * @param sessionId id of upload session
+	 * @return message if file is uploaded successfully
+	 */
+	@RequestMapping(value = "/uploads/{sessionId}/commit", method = RequestMethod.POST)
+	public ResponseEntity<Map<String, Object>> commit(@PathVariable("sessionId") String sessionId) {
+		UploadSession session = chunkedUploadManager.find(sessionId);
+		if(session == null) {
+			return message("Upload session not found", HttpStatus.NOT_FOUND);
+		}
+		try {
+			chunkedUploadManager.commit(session);
+		}catch(IllegalStateException e) {
+			return message(e.getMessage(), HttpStatus.CONFLICT);
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while committing upload session", e);
+			throw new RuntimeException(e);
+		}
+		return message("File successfully uploaded", HttpStatus.OK);
+	}
+
+	/**
+	 * Aborts the session.
+	 * @param sessionId id of upload session
+	 * @return message if session is aborted
+	 */
+	@RequestMapping(value = "/uploads/{sessionId}", method = RequestMethod.DELETE)
+	public ResponseEntity<Map<String, Object>> abort(@PathVariable("sessionId") String sessionId) {
+		UploadSession session = chunkedUploadManager.find(sessionId);
+		if(session == null) {
+			return message("Upload session not found", HttpStatus.NOT_FOUND);
+		}
+		chunkedUploadManager.abort(session);
+		return message("Upload session aborted", HttpStatus.OK);
+	}
+
+	private Map<String, Object> describe(UploadSession session, boolean withMissingChunks) {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("Session_Id", session.getSessionId());
+		map.put("File_Size", session.getFileSize());
+		map.put("Chunk_Size", session.getChunkSize());
+		map.put("Chunk_Count", session.getChunkCount());
+		if(withMissingChunks) {
+			try {
+				map.put("Missing_Chunks", session.getMissingChunks());
+			}catch(IOException e) {
+				logger.log(Level.SEVERE, "Failed while reading upload session", e);
+				throw new RuntimeException(e);
+			}
+		}
+		return map;
+	}
+
+	private ResponseEntity<Map<String, Object>> message(String message, HttpStatus status) {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("Message", message);
+		return new ResponseEntity<Map<String, Object>>(map, status);
+	}
+}
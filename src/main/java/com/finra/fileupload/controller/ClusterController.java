@@ -0,0 +1,164 @@
+package com.finra.fileupload.controller;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.finra.fileupload.service.ClusterClient;
+import com.finra.fileupload.service.ClusterRebalancer;
+import com.finra.fileupload.service.ClusterRing;
+import com.finra.fileupload.service.FileContainer;
+import com.finra.fileupload.service.FileService;
+import com.finra.fileupload.service.UploadIdGenerator;
+
+/**
+ * Cluster controller, for nodes partitioning users between them through a consistent
+ * hash ring configured with fileupload.cluster.nodes. Requests of other services are
+ * routed to the owning node by {@link ClusterRoutingInterceptor}.
+ *
+ *
+ * Service :- 1
+ * GET /cluster?user={user}
+ * Returns this node and all nodes of the cluster, along with node owning the user when given.
+ *
+ * Service :- 2
+ * POST /cluster/rebalance
+ * Moves uploads of users owned by other nodes to their owner and returns how many were moved.
+ * Also runs fileupload.cluster.rebalance-delay-seconds after startup. Not mapped (404) unless
+ * clustered and refused with 403 unless sent by a node of the cluster, same as transfer, so
+ * operators present the cluster secret or call from a node host.
+ *
+ * Service :- 3
+ * POST /cluster/transfer?uploadId={uploadId}&user={user}&fileName={fileName}&fileCreationDate={date}&uploadedDate={date}
+ * Request body is the raw file. Used between nodes to move an upload to its owner, stored
+ * under the given upload id and dates. Not mapped (404) unless clustered, refused with 403
+ * unless sent by a node of the cluster, see {@link ClusterRing#isPeer}, with 400 for upload
+ * ids not generated by a node and with 409 unless this node owns the user.
+ *
+ * @author akadam
+ * @since 1.0
+ */
+@RestController
+public class ClusterController {
+
+	/**Logger*/
+	private static final Logger logger =
+			Logger.getLogger(ClusterController.class.getCanonicalName());
+
+	@Autowired
+	ClusterRing clusterRing;
+
+	@Autowired
+	ClusterRebalancer clusterRebalancer;
+
+	@Autowired
+	FileService fileService;
+
+	/**
+	 * Describes the cluster.
+	 * @param user optional user to find owner of
+	 * @return this node, all nodes and owner of the user
+	 */
+	@RequestMapping(value = "/cluster", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> describe(@RequestParam(value="user", required=false) String user) {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("Enabled", clusterRing.isEnabled());
+		map.put("Self", clusterRing.getSelf());
+		map.put("Nodes", clusterRing.getNodes());
+		if(user != null) {
+			map.put("Owner", clusterRing.ownerOf(user));
+		}
+		return new ResponseEntity<Map<String, Object>>(map, HttpStatus.OK);
+	}
+
+	/**
+	 * Moves uploads of users owned by other nodes to their owner.
+	 * @param request request which has to come from a node
+	 * @return number of uploads moved, 404 when not clustered and 403 if not sent by a node
+	 */
+	@RequestMapping(value = "/cluster/rebalance", method = RequestMethod.POST)
+	public ResponseEntity<Map<String, Object>> rebalance(HttpServletRequest request) {
+		if(!clusterRing.isEnabled()) {
+			return new ResponseEntity<Map<String, Object>>(HttpStatus.NOT_FOUND);
+		}
+		if(!clusterRing.isPeer(request.getHeader(ClusterClient.SECRET), request.getRemoteAddr())) {
+			logger.warning("Refusing rebalance from ["+request.getRemoteAddr()+"], not a cluster node");
+			return message("Not a cluster node", HttpStatus.FORBIDDEN);
+		}
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("Moved", clusterRebalancer.rebalance());
+		return new ResponseEntity<Map<String, Object>>(map, HttpStatus.OK);
+	}
+
+	/**
+	 * Stores an upload moved from another node.
+	 * @param uploadId upload id kept by the upload
+	 * @param user user who uploaded the file
+	 * @param fileName name of the file
+	 * @param fileCreationDate file creation date
+	 * @param uploadedDate date file was originally uploaded, today when not given
+	 * @param request request whose body is the file
+	 * @return 201 when stored, 200 if this node already has the upload, 409 if it doesn't own the user,
+	 * 404 when not clustered, 403 if not sent by a node and 400 for invalid upload id or file name
+	 */
+	@RequestMapping(value = "/cluster/transfer", method = RequestMethod.POST)
+	public ResponseEntity<Map<String, Object>> transfer(@RequestParam(value="uploadId", required=true) String uploadId,
+			@RequestParam(value="user", required=true) String user,
+			@RequestParam(value="fileName", required=true) String fileName,
+			@RequestParam(value="fileCreationDate", required=true) @DateTimeFormat(pattern="yyyy-MM-dd") Date fileCreationDate,
+			@RequestParam(value="uploadedDate", required=false) @DateTimeFormat(pattern="yyyy-MM-dd") Date uploadedDate,
+			HttpServletRequest request) {
+		if(!clusterRing.isEnabled()) {
+			return new ResponseEntity<Map<String, Object>>(HttpStatus.NOT_FOUND);
+		}
+		if(!clusterRing.isPeer(request.getHeader(ClusterClient.SECRET), request.getRemoteAddr())) {
+			logger.warning("Refusing transfer from ["+request.getRemoteAddr()+"], not a cluster node");
+			return message("Not a cluster node", HttpStatus.FORBIDDEN);
+		}
+		if(!UploadIdGenerator.isWellFormed(uploadId)) {
+			return message("Invalid upload id ["+uploadId+"]", HttpStatus.BAD_REQUEST);
+		}
+		try {
+			fileName = FileContainer.toFileName(fileName);
+		}catch(IllegalArgumentException e) {
+			return message(e.getMessage(), HttpStatus.BAD_REQUEST);
+		}
+		if(!clusterRing.isLocal(user)) {
+			return message("User is owned by ["+clusterRing.ownerOf(user)+"]", HttpStatus.CONFLICT);
+		}
+		if(fileService.findByUploadId(uploadId) != null) {
+			return message("Upload already stored", HttpStatus.OK);
+		}
+		try {
+			FileContainer continer = new FileContainer(user, request.getInputStream(), fileName, fileCreationDate);
+			continer.setUploadId(uploadId);
+			continer.setUploadedDate(uploadedDate);
+			continer.setContentLength(request.getContentLengthLong());
+			fileService.save(continer);
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while receiving transferred upload", e);
+			throw new RuntimeException(e);
+		}
+		return message("Upload successfully transferred", HttpStatus.CREATED);
+	}
+
+	private ResponseEntity<Map<String, Object>> message(String message, HttpStatus status) {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("Message", message);
+		return new ResponseEntity<Map<String, Object>>(map, status);
+	}
+}
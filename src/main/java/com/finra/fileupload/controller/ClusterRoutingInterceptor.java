@@ -0,0 +1,193 @@
+package com.finra.fileupload.controller;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.converter.FormHttpMessageConverter;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import com.finra.fileupload.service.ClusterClient;
+import com.finra.fileupload.service.ClusterRing;
+import com.finra.fileupload.service.FileService;
+
+/**
+ * Routes requests to the node of the cluster owning their user, registered for /upload,
+ * /metadata, /metadata/query, /stats/usage and /files/{uploadId}.
+ *
+ * A request with a user param owned by another node is forwarded there and its answer
+ * relayed back, Location headers of the answer point to the owner. A request for an upload
+ * this node doesn't hold is redirected with 307 to the node which does. Requests from other
+ * nodes and requests without a user are handled here, /metadata/query without a user gathers
+ * results of every node itself. Answers 503 when the owner can't be reached.
+ * @author akadam
+ * @since 1.0
+ */
+public class ClusterRoutingInterceptor extends HandlerInterceptorAdapter {
+
+	/**Logger*/
+	private static final Logger logger =
+			Logger.getLogger(ClusterRoutingInterceptor.class.getCanonicalName());
+
+	/**Headers which apply to one connection and are not relayed*/
+	private static final Set<String> HOP_BY_HOP = new HashSet<String>(Arrays.asList("connection", "keep-alive", "transfer-encoding"));
+
+	/**Writes forwarded multipart uploads*/
+	private static final FormHttpMessageConverter FORM_CONVERTER = new FormHttpMessageConverter();
+
+	/**Path of uploads, followed by upload id*/
+	private static final String FILES_PATH = "/files/";
+
+	@Autowired
+	ClusterRing clusterRing;
+
+	@Autowired
+	ClusterClient clusterClient;
+
+	@Autowired
+	FileService fileService;
+
+	/** (non-Javadoc)
+	 * @see org.springframework.web.servlet.handler.HandlerInterceptorAdapter#preHandle(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, java.lang.Object)
+	 */
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws IOException {
+		if(!clusterRing.isEnabled() || request.getHeader(ClusterClient.FORWARDED_BY) != null) {
+			return true;
+		}
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+		if(path.startsWith(FILES_PATH)) {
+			return !redirectToHolder(path, request, response);
+		}
+		String user = request.getParameter("user");
+		if(user == null || clusterRing.isLocal(user)) {
+			return true;
+		}
+		forward(clusterRing.ownerOf(user), path, request, response);
+		return false;
+	}
+
+	/**
+	 * Redirects request for an upload not held here to the node holding it.
+	 * @return true if redirected, false if request is to be handled here
+	 */
+	private boolean redirectToHolder(String path, HttpServletRequest request, HttpServletResponse response) {
+		@SuppressWarnings("unchecked")
+		Map<String, String> variables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+		String uploadId = variables == null ? null : variables.get("uploadId");
+		if(uploadId == null || fileService.findByUploadId(uploadId) != null) {
+			return false;
+		}
+		String holder = clusterClient.locate(path);
+		if(holder == null) {
+			return false;
+		}
+		String query = request.getQueryString();
+		response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+		response.setHeader(HttpHeaders.LOCATION, holder + path + (query == null ? "" : "?" + query));
+		return true;
+	}
+
+	/**
+	 * Sends request to owner and relays its answer. Multipart uploads are sent again as
+	 * multipart with every param as a part, other requests keep their query string.
+	 */
+	private void forward(final String owner, String path, final HttpServletRequest request,
+			final HttpServletResponse response) throws IOException {
+		final boolean multipart = request instanceof MultipartHttpServletRequest;
+		String query = request.getQueryString();
+		URI uri = URI.create(owner + path + (multipart || query == null ? "" : "?" + query));
+		try {
+			clusterClient.execute(uri, HttpMethod.resolve(request.getMethod()), new RequestCallback() {
+				@Override
+				public void doWithRequest(ClientHttpRequest forwarded) throws IOException {
+					if(multipart) {
+						FORM_CONVERTER.write(parts((MultipartHttpServletRequest) request), MediaType.MULTIPART_FORM_DATA, forwarded);
+					}
+				}
+			}, new ResponseExtractor<Void>() {
+				@Override
+				public Void extractData(ClientHttpResponse answer) throws IOException {
+					response.setStatus(answer.getRawStatusCode());
+					for(Map.Entry<String, List<String>> header : answer.getHeaders().entrySet()) {
+						if(HOP_BY_HOP.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+							continue;
+						}
+						for(String value : header.getValue()) {
+							if(HttpHeaders.LOCATION.equalsIgnoreCase(header.getKey()) && value.startsWith("/")) {
+								value = owner + value;
+							}
+							response.addHeader(header.getKey(), value);
+						}
+					}
+					StreamUtils.copy(answer.getBody(), response.getOutputStream());
+					return null;
+				}
+			});
+		} catch (RestClientException e) {
+			logger.log(Level.WARNING, "Failed while forwarding ["+path+"] to owner ["+owner+"]", e);
+			if(!response.isCommitted()) {
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
+		}
+	}
+
+	/**
+	 * @return params and files of a multipart request, files are streamed from where container keeps them
+	 */
+	private MultiValueMap<String, Object> parts(MultipartHttpServletRequest request) throws IOException {
+		MultiValueMap<String, Object> parts = new LinkedMultiValueMap<String, Object>();
+		HttpHeaders text = new HttpHeaders();
+		text.setContentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8));
+		for(Map.Entry<String, String[]> param : request.getParameterMap().entrySet()) {
+			for(String value : param.getValue()) {
+				parts.add(param.getKey(), new HttpEntity<String>(value, text));
+			}
+		}
+		for(Map.Entry<String, List<MultipartFile>> part : request.getMultiFileMap().entrySet()) {
+			for(final MultipartFile file : part.getValue()) {
+				parts.add(part.getKey(), new InputStreamResource(file.getInputStream()) {
+					@Override
+					public String getFilename() {
+						return file.getOriginalFilename() == null || file.getOriginalFilename().isEmpty() ?
+								file.getName() : file.getOriginalFilename();
+					}
+
+					@Override
+					public long contentLength() {
+						return file.getSize();
+					}
+				});
+			}
+		}
+		return parts;
+	}
+}
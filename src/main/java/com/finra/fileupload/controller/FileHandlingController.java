@@ -1,24 +1,64 @@
 package com.finra.fileupload.controller;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.format.annotation.DateTimeFormat;
-import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.finra.fileupload.service.AsyncIngestService;
+import com.finra.fileupload.service.BatchUploadService;
+import com.finra.fileupload.service.ClusterClient;
+import com.finra.fileupload.service.ClusterRing;
+import com.finra.fileupload.service.Codec;
+import com.finra.fileupload.service.DayFormat;
+import com.finra.fileupload.service.Durability;
 import com.finra.fileupload.service.FileContainer;
+import com.finra.fileupload.service.FileMetaData;
 import com.finra.fileupload.service.FileService;
+import com.finra.fileupload.service.IngestStatus;
+import com.finra.fileupload.service.MetaDataPage;
+import com.finra.fileupload.service.MetaDataQuery;
+import com.finra.fileupload.service.UsageStats;
 
 /**
  * Filehandling controller hosts the functionality of
@@ -27,18 +67,77 @@ import com.finra.fileupload.service.FileService;
  * 
  * 
  * Service :- 1
- * /upload?file={file}&user={user}&fileCreationDate={fileCreationDate}
+ * /upload?file={file}&user={user}&fileCreationDate={fileCreationDate}&async={async}&durability={durability}
  * file :- File to be uploaded,
  * user :- user who is uploading this file
  * fileCreationDate :- file creation date, Format has to be yyyy-MM-dd
+ * async :- optional, when true file is accepted with 202 and upload id and written in background,
+ * defaults to fileupload.ingest.async. Responds 503 with Retry-After when staging area is full.
+ * durability :- optional, none, batch or sync, defaults to fileupload.durability.default. With batch
+ * the file is fsynced together with other concurrent uploads, with sync on its own, before it is reported written.
  * This service will upload the file and will also save meatadata associated with this file.
  * 
  * Service :- 2
- * /metadata?user={user}&fileCreationDate={fileCreationDate}
+ * /metadata?user={user}&fileCreationDate={fileCreationDate}&limit={limit}&cursor={cursor}&stream={stream}
  * user :- metata that belongs to this user, mandatory param
  * fileCreationDate :- file creation date, Format has to be yyyy-MM-dd, optional param
+ * limit :- optional page size, capped by fileupload.metadata.max-page-size. When more entries remain
+ * X-Next-Cursor response header carries the cursor of next page.
+ * cursor :- optional, cursor of the page to return as received in X-Next-Cursor
+ * stream :- optional, json or ndjson, entries are written as they are found instead of collected first.
+ * Starts after cursor when given, limit doesn't apply.
  * This service will search all the metadata for a given user and optinal file creation date
  * 
+ * Service :- 3
+ * /upload/{uploadId}/status
+ * uploadId :- upload id returned by an asynchronous upload
+ * This service will report whether the upload is queued, being written, completed or failed.
+ * 
+ * Service :- 4
+ * /files/{uploadId}
+ * uploadId :- upload id of the file
+ * This service will stream the stored file. A single byte range can be asked for with Range header
+ * (and If-Range), ETag is derived from stored metadata so If-None-Match answers 304 when unchanged.
+ * Files stored compressed are decompressed while sent, small files packed into segments are sent
+ * from memory mapped segments.
+ * 
+ * Service :- 5
+ * /upload/batch?user={user}&fileCreationDate={fileCreationDate}&durability={durability}
+ * body :- multipart request with any number of file parts, or a zip archive sent as application/zip
+ * user, fileCreationDate :- apply to every file, a multipart part sent under field N may override
+ * them with fields N.user and N.fileCreationDate. Required for zip archives.
+ * durability :- optional, same as for /upload
+ * This service will upload every file in parallel and report upload id and status of each,
+ * with 207 if any of them failed. Zip archives whose entries inflate past fileupload.batch
+ * max-entry-size each or max-batch-size in total are stopped there and answered 413.
+ * 
+ * Service :- 6
+ * /metadata/query?user={user}&createdFrom={date}&createdTo={date}&uploadedFrom={date}&uploadedTo={date}
+ *                &namePrefix={prefix}&minSize={bytes}&maxSize={bytes}&sort={sort}&order={order}&limit={limit}
+ * every param is optional, dates are inclusive and formatted yyyy-MM-dd, sizes are inclusive bytes
+ * namePrefix :- start of file name, case sensitive
+ * sort :- creationDate (default), uploadedDate, fileName or fileSize, order :- asc (default) or desc
+ * limit :- most entries returned, capped by fileupload.metadata.max-page-size which is also the default
+ * This service will find metadata meeting every given criterion from in memory indexes.
+ * 
+ * Service :- 7
+ * DELETE /files/{uploadId}
+ * uploadId :- upload id of the file
+ * This service will delete the file and its metadata, 204 when deleted and 404 if no such upload exists.
+ * 
+ * Service :- 8
+ * /stats/usage?user={user}&createdFrom={date}&createdTo={date}
+ * user :- optional, without it number of files, total bytes and first and last upload time of every user
+ * are listed
+ * createdFrom, createdTo :- optional inclusive creation dates, formatted yyyy-MM-dd, bounding the
+ * per creation date usage returned along with totals of the user
+ * This service will report usage from aggregates kept up to date on every upload, 404 if the user has no uploads.
+ * 
+ * In cluster mode services 1, 2, 6 and 8 are handled by the node owning the user and forwarded there
+ * when received by another node, 6 without a user gathers results of every node while 8 lists users
+ * of the receiving node only. Services 4 and 7
+ * are redirected to the node holding the upload, see {@link ClusterController}.
+ * 
  * 
  * @author akadam
  * @since 1.0
@@ -53,6 +152,53 @@ public class FileHandlingController {
 	@Autowired
 	FileService fileService;
 	
+	@Autowired
+	AsyncIngestService asyncIngestService;
+	
+	@Autowired
+	BatchUploadService batchUploadService;
+	
+	@Autowired
+	ClusterRing clusterRing;
+	
+	@Autowired
+	ClusterClient clusterClient;
+	
+	@Autowired
+	UsageStats usageStats;
+	
+	/**Jackson mapper used for streamed metadata*/
+	@Autowired
+	ObjectMapper objectMapper;
+	
+	/**Largest page of metadata returned at once*/
+	@Value("${fileupload.metadata.max-page-size:1000}")
+	int maxPageSize;
+	
+	/**Response header carrying cursor of the next metadata page*/
+	static final String NEXT_CURSOR = "X-Next-Cursor";
+	
+	/**Streamed metadata formats*/
+	private static final String STREAM_JSON = "json";
+	private static final String STREAM_NDJSON = "ndjson";
+	private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+	
+	/**Streamed entries written between flushes, first entry is flushed right away*/
+	private static final int STREAM_FLUSH_INTERVAL = 256;
+	
+	/**Smallest download handed to container sendfile, smaller ones are cheaper to copy*/
+	@Value("${fileupload.download.sendfile-threshold:49152}")
+	long sendfileThreshold;
+	
+	/**Bytes decoded at a time when sending compressed payloads*/
+	private static final int DECODE_BUFFER_SIZE = 64 * 1024;
+	
+	/**Request attributes of Tomcat sendfile support*/
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+	
 	/**
 	 * Simple welcome service.
 	 * @return
@@ -67,35 +213,577 @@ public class FileHandlingController {
 	 * @param file File to be uploaded
 	 * @param fileCreationDate file creation date
 	 * @param user user who is trying to upload a file
-	 * @return returns message if file is uploaded successfully
+	 * @param async whether file is to be written in background
+	 * @param durability how durable file has to be before it is reported written
+	 * @return returns message if file is uploaded successfully, or upload status if accepted for background write
 	 */
 	@RequestMapping(value = "/upload", method = RequestMethod.POST)
-	public String uploadFile(@RequestParam(value="file", required=true) MultipartFile file ,
+	public ResponseEntity<?> uploadFile(@RequestParam(value="file", required=true) MultipartFile file ,
 			@RequestParam(value="fileCreationDate", required=true) @DateTimeFormat(pattern="yyyy-MM-dd") Date fileCreationDate,
-			@RequestParam(value="user", required=true) String user) {
+			@RequestParam(value="user", required=true) String user,
+			@RequestParam(value="async", required=false) Boolean async,
+			@RequestParam(value="durability", required=false) String durability) {
 	
+		Durability level = null;
+		if(durability != null) {
+			try {
+				level = Durability.parse(durability);
+			} catch (IllegalArgumentException e) {
+				return new ResponseEntity<String>("Unknown durability ["+durability+"]", HttpStatus.BAD_REQUEST);
+			}
+		}
+		if(async == null ? asyncIngestService.isAsyncByDefault() : async) {
+			//Contents are moved into staging area from where multipart request spooled them.
+			FileContainer continer = new FileContainer(user, (InputStream) null, file.getName(), fileCreationDate);
+			continer.setDurability(level);
+			return acceptUpload(continer, file);
+		}
 		try {
-			FileContainer continer = new FileContainer(user, file.getBytes(), file.getName(), fileCreationDate);
+			FileContainer continer = new FileContainer(user, file.getInputStream(), file.getName(), fileCreationDate);
+			continer.setContentLength(file.getSize());
+			continer.setDurability(level);
 			fileService.save(continer);
 		} catch (IOException e) {
 			logger.log(Level.SEVERE, "Failed while file uploading", e);
 			throw new RuntimeException(e);
 		}
 		
-		return "File successfully uploaded";
+		return new ResponseEntity<String>("File successfully uploaded", HttpStatus.OK);
+	}
+	
+	/**
+	 * Reports the status of an asynchronous upload.
+	 * @param uploadId upload id returned when upload was accepted
+	 * @return status of the upload
+	 */
+	@RequestMapping(value = "/upload/{uploadId}/status", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> getUploadStatus(@PathVariable("uploadId") String uploadId) {
+		IngestStatus status = asyncIngestService.getStatus(uploadId);
+		if(status == null) {
+			return new ResponseEntity<Map<String, Object>>(HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<Map<String, Object>>(status.toMap(), HttpStatus.OK);
+	}
+	
+	/**
+	 * Hands the upload over to background writers, rejects it if they are saturated.
+	 */
+	private ResponseEntity<Map<String, Object>> acceptUpload(FileContainer continer, MultipartFile file) {
+		try {
+			IngestStatus status = asyncIngestService.submit(continer, file);
+			HttpHeaders headers = new HttpHeaders();
+			headers.set(HttpHeaders.LOCATION, "/upload/" + status.getUploadId() + "/status");
+			return new ResponseEntity<Map<String, Object>>(status.toMap(), headers, HttpStatus.ACCEPTED);
+		} catch (RejectedExecutionException e) {
+			logger.warning("Rejecting upload, "+e.getMessage());
+			HttpHeaders headers = new HttpHeaders();
+			headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(asyncIngestService.getRetryAfterSeconds()));
+			return new ResponseEntity<Map<String, Object>>(headers, HttpStatus.SERVICE_UNAVAILABLE);
+		}
+	}
+	
+	/**
+	 * Uploads every file part of a multipart request in one go, parts are written in parallel.
+	 * A part sent under form field name N may override user and creation date with fields
+	 * N.user and N.fileCreationDate.
+	 * @param request multipart request holding the parts
+	 * @param user user of parts which don't override it
+	 * @param fileCreationDate creation date of parts which don't override it, yyyy-MM-dd
+	 * @param durability how durable every part has to be before it is reported written
+	 * @return per part results, 207 if any part failed
+	 */
+	@RequestMapping(value = "/upload/batch", method = RequestMethod.POST, consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+	public ResponseEntity<?> uploadBatch(MultipartHttpServletRequest request,
+			@RequestParam(value="user", required=false) String user,
+			@RequestParam(value="fileCreationDate", required=false) String fileCreationDate,
+			@RequestParam(value="durability", required=false) String durability) {
+		Durability level = null;
+		if(durability != null) {
+			try {
+				level = Durability.parse(durability);
+			} catch (IllegalArgumentException e) {
+				return new ResponseEntity<String>("Unknown durability ["+durability+"]", HttpStatus.BAD_REQUEST);
+			}
+		}
+		BatchUploadService.Batch batch = batchUploadService.newBatch();
+		try {
+			for(Map.Entry<String, List<MultipartFile>> part : request.getMultiFileMap().entrySet()) {
+				String partUser = override(request, part.getKey(), "user", user);
+				String partDate = override(request, part.getKey(), "fileCreationDate", fileCreationDate);
+				for(MultipartFile file : part.getValue()) {
+					String partName = file.getOriginalFilename() == null || file.getOriginalFilename().isEmpty() ? 
+							file.getName() : file.getOriginalFilename();
+					String fileName;
+					try {
+						fileName = FileContainer.toFileName(partName);
+					} catch (IllegalArgumentException e) {
+						batch.reject(partName, "Invalid file name");
+						continue;
+					}
+					if(partUser == null || partDate == null) {
+						batch.reject(fileName, "User and fileCreationDate are required");
+						continue;
+					}
+					Date date;
+					try {
+						date = DayFormat.parse(partDate);
+					} catch (IllegalArgumentException e) {
+						batch.reject(fileName, e.getMessage());
+						continue;
+					}
+					FileContainer continer = new FileContainer(partUser, file.getInputStream(), fileName, date);
+					continer.setContentLength(file.getSize());
+					continer.setDurability(level);
+					batch.submit(continer);
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Failed while reading batch upload", e);
+			return batchResult(batch, "Batch upload could not be read");
+		} catch (IllegalStateException e) {
+			return batchResult(batch, e.getMessage());
+		}
+		return batchResult(batch, null);
+	}
+	
+	/**
+	 * Uploads every file of a zip archive sent as request body, files are written in parallel
+	 * while the archive is still being received.
+	 * @param request request whose body is the archive
+	 * @param user user of every file
+	 * @param fileCreationDate creation date of every file
+	 * @param durability how durable every file has to be before it is reported written
+	 * @return per file results, 207 if any file failed, 400 if archive could not be read,
+	 * 413 if its files are too large once inflated
+	 */
+	@RequestMapping(value = "/upload/batch", method = RequestMethod.POST, consumes = {"application/zip", "application/x-zip-compressed"})
+	public ResponseEntity<?> uploadArchive(HttpServletRequest request,
+			@RequestParam(value="user", required=true) String user,
+			@RequestParam(value="fileCreationDate", required=true) @DateTimeFormat(pattern="yyyy-MM-dd") Date fileCreationDate,
+			@RequestParam(value="durability", required=false) String durability) {
+		Durability level = null;
+		if(durability != null) {
+			try {
+				level = Durability.parse(durability);
+			} catch (IllegalArgumentException e) {
+				return new ResponseEntity<String>("Unknown durability ["+durability+"]", HttpStatus.BAD_REQUEST);
+			}
+		}
+		BatchUploadService.Batch batch = batchUploadService.newBatch();
+		try {
+			batch.submitZip(request.getInputStream(), user, fileCreationDate, level);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed while reading archive", e);
+			return batchResult(batch, "Archive could not be read");
+		} catch (BatchUploadService.TooLargeException e) {
+			return batchResult(batch, e.getMessage(), HttpStatus.PAYLOAD_TOO_LARGE);
+		} catch (IllegalStateException e) {
+			return batchResult(batch, e.getMessage());
+		}
+		return batchResult(batch, null);
+	}
+	
+	/**
+	 * @return value of field prefixed with part name if sent, default value otherwise
+	 */
+	private String override(HttpServletRequest request, String partName, String field, String defaultValue) {
+		String value = request.getParameter(partName + "." + field);
+		return value != null ? value : defaultValue;
+	}
+	
+	/**
+	 * Waits for entries accepted so far and reports them, along with error that stopped the batch if any.
+	 */
+	private ResponseEntity<Map<String, Object>> batchResult(BatchUploadService.Batch batch, String error) {
+		return batchResult(batch, error, HttpStatus.BAD_REQUEST);
+	}
+	
+	/**
+	 * Waits for entries accepted so far and reports them, along with error that stopped the batch if any.
+	 * @param errorStatus status answered when batch was stopped
+	 */
+	private ResponseEntity<Map<String, Object>> batchResult(BatchUploadService.Batch batch, String error, HttpStatus errorStatus) {
+		Map<String, Object> summary = batch.await();
+		if(error != null) {
+			summary.put("Error", error);
+			return new ResponseEntity<Map<String, Object>>(summary, errorStatus);
+		}
+		return new ResponseEntity<Map<String, Object>>(summary, batch.hasFailures() ? HttpStatus.MULTI_STATUS : HttpStatus.OK);
+	}
+	
+	/**
+	 * Streams the stored file, or the requested byte range of it. Large files are handed to
+	 * container's sendfile when available, otherwise copied with {@link FileChannel#transferTo}.
+	 * Compressed files are decompressed on the fly, packed files are written from their segment.
+	 * @param uploadId upload id of the file
+	 * @param request request which may carry Range, If-Range and If-None-Match headers
+	 * @param response response the file is written to
+	 * @throws IOException if file can not be sent
+	 */
+	@RequestMapping(value = "/files/{uploadId}", method = {RequestMethod.GET, RequestMethod.HEAD})
+	public void downloadFile(@PathVariable("uploadId") String uploadId, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		FileMetaData metadata = fileService.findByUploadId(uploadId);
+		ByteBuffer packed = metadata == null ? null : fileService.findPackedFile(uploadId);
+		File file = metadata == null || packed != null ? null : fileService.findFile(uploadId);
+		if(file == null && packed == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		//Compressed payloads are served as uploaded, so length is the recorded raw size.
+		long length = packed != null ? packed.remaining() : 
+				metadata.getCodec() == Codec.NONE ? file.length() : metadata.getFileSize();
+		String etag = etag(uploadId, metadata, length);
+		if(new ServletWebRequest(request, response).checkNotModified(etag, file != null ? file.lastModified() : -1)) {
+			return;
+		}
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, contentDisposition(metadata.getFileName()));
+		response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+		
+		long start = 0;
+		long end = length - 1;
+		String range = request.getHeader(HttpHeaders.RANGE);
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if(range != null && (ifRange == null || ifRange.equals(etag))) {
+			List<HttpRange> ranges;
+			try {
+				ranges = HttpRange.parseRanges(range);
+			} catch (IllegalArgumentException e) {
+				ranges = null;
+			}
+			//Multiple ranges are not served, whole file is sent instead which is allowed.
+			if(ranges != null && ranges.size() == 1) {
+				HttpRange httpRange = ranges.get(0);
+				start = httpRange.getRangeStart(length);
+				end = Math.min(httpRange.getRangeEnd(length), length - 1);
+				if(start >= length || start > end) {
+					response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+					response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+					return;
+				}
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+			}
+		}
+		long count = end - start + 1;
+		response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(count));
+		if(RequestMethod.HEAD.name().equals(request.getMethod()) || count == 0) {
+			return;
+		}
+		
+		if(packed != null) {
+			packed.position((int) start).limit((int) end + 1);
+			WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+			while(packed.hasRemaining()) {
+				target.write(packed);
+			}
+			return;
+		}
+		if(metadata.getCodec() != Codec.NONE) {
+			sendDecoded(file, metadata.getCodec(), start, count, response.getOutputStream());
+			return;
+		}
+		if(count >= sendfileThreshold && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+			request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+			request.setAttribute(SENDFILE_START, start);
+			request.setAttribute(SENDFILE_END, end + 1);
+			return;
+		}
+		FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+			long position = start;
+			while(position <= end) {
+				long sent = source.transferTo(position, end + 1 - position, target);
+				if(sent <= 0) {
+					throw new EOFException("File ["+uploadId+"] ended at ["+position+"] of ["+(end + 1)+"] bytes");
+				}
+				position += sent;
+			}
+		} finally {
+			source.close();
+		}
+	}
+	
+	/**
+	 * Deletes an upload, its payload and its metadata.
+	 * @param uploadId upload id of the file
+	 * @return 204 when deleted, 404 if no such upload exists
+	 */
+	@RequestMapping(value = "/files/{uploadId}", method = RequestMethod.DELETE)
+	public ResponseEntity<Void> deleteFile(@PathVariable("uploadId") String uploadId) {
+		if(!fileService.delete(uploadId)) {
+			return new ResponseEntity<Void>(HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<Void>(HttpStatus.NO_CONTENT);
+	}
+	
+	/**
+	 * Decodes stored payload on the fly, a range start is reached by decoding everything before it.
+	 */
+	private void sendDecoded(File file, Codec codec, long start, long count, OutputStream output) throws IOException {
+		InputStream input = codec.decode(new FileInputStream(file));
+		try {
+			long skipped = 0;
+			while(skipped < start) {
+				long n = input.skip(start - skipped);
+				if(n <= 0) {
+					throw new EOFException("Stored payload shorter than recorded size ["+file+"]");
+				}
+				skipped += n;
+			}
+			byte[] buffer = new byte[DECODE_BUFFER_SIZE];
+			long remaining = count;
+			while(remaining > 0) {
+				int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if(read == -1) {
+					throw new EOFException("Stored payload shorter than recorded size ["+file+"]");
+				}
+				output.write(buffer, 0, read);
+				remaining -= read;
+			}
+		} finally {
+			input.close();
+		}
+	}
+	
+	/**
+	 * Attachment header for a file name, quoted ASCII fallback for old clients and the exact
+	 * name as RFC 5987 encoded filename* for the rest.
+	 */
+	private static String contentDisposition(String fileName) {
+		StringBuilder fallback = new StringBuilder(fileName.length());
+		StringBuilder encoded = new StringBuilder(fileName.length() * 3);
+		for(int i = 0; i < fileName.length(); i++) {
+			char c = fileName.charAt(i);
+			if(c == '"' || c == '\\') {
+				fallback.append('\\');
+			}
+			fallback.append(c >= 0x20 && c < 0x7f ? c : '_');
+		}
+		for(byte b : fileName.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xff);
+			if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "!#$&+-.^_`|~".indexOf(c) >= 0) {
+				encoded.append(c);
+			}else {
+				encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+						.append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+			}
+		}
+		return "attachment; filename=\"" + fallback + "\"; filename*=UTF-8''" + encoded;
+	}
+	
+	/**
+	 * Strong entity tag, uploads never change so id, size and digest when known identify the content.
+	 */
+	private String etag(String uploadId, FileMetaData metadata, long length) {
+		String digest = metadata.getContentDigest();
+		return "\"" + uploadId + "-" + length + (digest == null ? "" : "-" + digest) + "\"";
 	}
 	
 	/***
 	 * Finds the metadata for given request
 	 * @param user user who owned the document
 	 * @param fileCreationDate file creation date to filter out the results
+	 * @param limit optional page size, next page cursor is returned in {@value #NEXT_CURSOR} header
+	 * @param cursor optional cursor of the page to return
 	 * @return List of metadata
 	 */
 	@RequestMapping(value = "/metadata", method=RequestMethod.GET)
-	public HttpEntity<List<Map<String, String>>> getMetaData(@RequestParam(value="user", required=true) String user,
-			@RequestParam(value="fileCreationDate", required=false) @DateTimeFormat(pattern="yyyy-MM-dd") Date fileCreationDate) {
+	public ResponseEntity<?> getMetaData(@RequestParam(value="user", required=true) String user,
+			@RequestParam(value="fileCreationDate", required=false) @DateTimeFormat(pattern="yyyy-MM-dd") Date fileCreationDate,
+			@RequestParam(value="limit", required=false) Integer limit,
+			@RequestParam(value="cursor", required=false) String cursor) {
 		
-		List<Map<String, String>> data = fileService.findMetaData(user, fileCreationDate);
-		return new ResponseEntity<List<Map<String, String>>>(data, HttpStatus.OK);
+		if(limit == null && cursor == null) {
+			List<FileMetaData> data = fileService.findMetaData(user, fileCreationDate);
+			return new ResponseEntity<List<FileMetaData>>(data, HttpStatus.OK);
+		}
+		try {
+			int pageSize = limit == null ? maxPageSize : Math.max(1, Math.min(limit, maxPageSize));
+			MetaDataPage page = fileService.findMetaData(user, fileCreationDate, cursor, pageSize);
+			HttpHeaders headers = new HttpHeaders();
+			if(page.getNextCursor() != null) {
+				headers.set(NEXT_CURSOR, page.getNextCursor());
+			}
+			return new ResponseEntity<List<FileMetaData>>(page.getEntries(), headers, HttpStatus.OK);
+		} catch (IllegalArgumentException e) {
+			return new ResponseEntity<String>(e.getMessage(), HttpStatus.BAD_REQUEST);
+		}
+	}
+	
+	/***
+	 * Finds the metadata meeting every given criterion, all of them optional
+	 * @param user user who owned the document
+	 * @param createdFrom earliest file creation date
+	 * @param createdTo latest file creation date
+	 * @param uploadedFrom earliest upload date
+	 * @param uploadedTo latest upload date
+	 * @param namePrefix start of file name, case sensitive
+	 * @param minSize smallest file size in bytes
+	 * @param maxSize largest file size in bytes
+	 * @param sort creationDate, uploadedDate, fileName or fileSize
+	 * @param order asc or desc
+	 * @param limit most entries returned, capped by fileupload.metadata.max-page-size
+	 * @param request request whose query is sent on to other nodes
+	 * @return List of metadata
+	 */
+	@RequestMapping(value = "/metadata/query", method=RequestMethod.GET)
+	public ResponseEntity<?> queryMetaData(@RequestParam(value="user", required=false) String user,
+			@RequestParam(value="createdFrom", required=false) @DateTimeFormat(pattern="yyyy-MM-dd") Date createdFrom,
+			@RequestParam(value="createdTo", required=false) @DateTimeFormat(pattern="yyyy-MM-dd") Date createdTo,
+			@RequestParam(value="uploadedFrom", required=false) @DateTimeFormat(pattern="yyyy-MM-dd") Date uploadedFrom,
+			@RequestParam(value="uploadedTo", required=false) @DateTimeFormat(pattern="yyyy-MM-dd") Date uploadedTo,
+			@RequestParam(value="namePrefix", required=false) String namePrefix,
+			@RequestParam(value="minSize", required=false) Long minSize,
+			@RequestParam(value="maxSize", required=false) Long maxSize,
+			@RequestParam(value="sort", required=false) String sort,
+			@RequestParam(value="order", required=false) String order,
+			@RequestParam(value="limit", required=false) Integer limit,
+			HttpServletRequest request) {
+		
+		MetaDataQuery query = new MetaDataQuery();
+		query.setUser(user);
+		query.setCreationFrom(createdFrom == null ? null : DayFormat.toEpochDay(createdFrom));
+		query.setCreationTo(createdTo == null ? null : DayFormat.toEpochDay(createdTo));
+		query.setUploadedFrom(uploadedFrom == null ? null : DayFormat.toEpochDay(uploadedFrom));
+		query.setUploadedTo(uploadedTo == null ? null : DayFormat.toEpochDay(uploadedTo));
+		query.setFileNamePrefix(namePrefix == null || namePrefix.isEmpty() ? null : namePrefix);
+		query.setMinSize(minSize);
+		query.setMaxSize(maxSize);
+		query.setLimit(limit == null ? maxPageSize : Math.min(limit, maxPageSize));
+		try {
+			if(sort != null) {
+				query.setSort(MetaDataQuery.Sort.parse(sort));
+			}
+			if(order != null && !"asc".equalsIgnoreCase(order)) {
+				if(!"desc".equalsIgnoreCase(order)) {
+					throw new IllegalArgumentException("Unknown order ["+order+"]");
+				}
+				query.setDescending(true);
+			}
+		} catch (IllegalArgumentException e) {
+			return new ResponseEntity<String>(e.getMessage(), HttpStatus.BAD_REQUEST);
+		}
+		List<FileMetaData> metadata = fileService.queryMetaData(query);
+		if(user == null && clusterRing.isEnabled() && request.getHeader(ClusterClient.FORWARDED_BY) == null) {
+			//No user to route by, every node may hold matches. Each applies the limit, so best of all answers are the result.
+			try {
+				List<FileMetaData> gathered = clusterClient.gather(request.getRequestURI().substring(request.getContextPath().length()), 
+						request.getQueryString());
+				gathered.addAll(metadata);
+				metadata = query.select(gathered);
+			} catch (RestClientException e) {
+				logger.log(Level.WARNING, "Failed while gathering query results from cluster", e);
+				return new ResponseEntity<String>(e.getMessage(), HttpStatus.SERVICE_UNAVAILABLE);
+			}
+		}
+		return new ResponseEntity<List<FileMetaData>>(metadata, HttpStatus.OK);
+	}
+	
+	/***
+	 * Reports usage of one user, or of every user when none is given
+	 * @param user optional user, matched ignoring case
+	 * @param createdFrom earliest file creation date of per day usage
+	 * @param createdTo latest file creation date of per day usage
+	 * @return totals of the user with usage per creation date, or totals of every user
+	 */
+	@RequestMapping(value = "/stats/usage", method=RequestMethod.GET)
+	public ResponseEntity<?> getUsage(@RequestParam(value="user", required=false) String user,
+			@RequestParam(value="createdFrom", required=false) @DateTimeFormat(pattern="yyyy-MM-dd") Date createdFrom,
+			@RequestParam(value="createdTo", required=false) @DateTimeFormat(pattern="yyyy-MM-dd") Date createdTo) {
+		
+		if(user == null) {
+			List<Map<String, Object>> users = new ArrayList<Map<String, Object>>();
+			for(UsageStats.Usage usage : usageStats.getUsers()) {
+				users.add(usage.toMap(false, null, null));
+			}
+			return new ResponseEntity<List<Map<String, Object>>>(users, HttpStatus.OK);
+		}
+		UsageStats.Usage usage = usageStats.get(user);
+		if(usage == null) {
+			return new ResponseEntity<String>("No uploads of user ["+user+"]", HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<Map<String, Object>>(usage.toMap(true, epochDay(createdFrom), epochDay(createdTo)), HttpStatus.OK);
+	}
+	
+	/**
+	 * @return epoch day of given date, null when no date is given
+	 */
+	private Integer epochDay(Date date) {
+		return date == null ? null : DayFormat.toEpochDay(date);
+	}
+	
+	/***
+	 * Streams the metadata for given request
+	 * @param user user who owned the document
+	 * @param fileCreationDate file creation date to filter out the results
+	 * @param cursor optional cursor to start after
+	 * @param stream json or ndjson, entries are written to the response as they are found
+	 * @return metadata written while walking it
+	 */
+	@RequestMapping(value = "/metadata", method=RequestMethod.GET, params="stream")
+	public ResponseEntity<StreamingResponseBody> streamMetaData(@RequestParam(value="user", required=true) String user,
+			@RequestParam(value="fileCreationDate", required=false) @DateTimeFormat(pattern="yyyy-MM-dd") Date fileCreationDate,
+			@RequestParam(value="cursor", required=false) String cursor,
+			@RequestParam(value="stream", required=true) String stream) {
+		
+		final boolean ndjson;
+		if(STREAM_NDJSON.equalsIgnoreCase(stream)) {
+			ndjson = true;
+		}else if(STREAM_JSON.equalsIgnoreCase(stream)) {
+			ndjson = false;
+		}else {
+			return new ResponseEntity<StreamingResponseBody>(HttpStatus.BAD_REQUEST);
+		}
+		final Iterator<FileMetaData> metadata;
+		try {
+			metadata = fileService.iterateMetaData(user, fileCreationDate, cursor);
+		} catch (IllegalArgumentException e) {
+			return new ResponseEntity<StreamingResponseBody>(HttpStatus.BAD_REQUEST);
+		}
+		return new ResponseEntity<StreamingResponseBody>(writer(metadata, ndjson), 
+				headers(ndjson ? NDJSON : MediaType.APPLICATION_JSON_UTF8), HttpStatus.OK);
+	}
+	
+	/**
+	 * Writes metadata as JSON array or one JSON object per line while walking it,
+	 * so only entries in flight are held in memory.
+	 */
+	private StreamingResponseBody writer(final Iterator<FileMetaData> metadata, final boolean ndjson) {
+		return new StreamingResponseBody() {
+			@Override
+			public void writeTo(OutputStream outputStream) throws IOException {
+				JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+				generator.setRootValueSeparator(null);
+				try {
+					if(!ndjson) {
+						generator.writeStartArray();
+					}
+					int written = 0;
+					while(metadata.hasNext()) {
+						generator.writeObject(metadata.next());
+						if(ndjson) {
+							generator.writeRaw('\n');
+						}
+						if(++written % STREAM_FLUSH_INTERVAL == 1) {
+							generator.flush();
+						}
+					}
+					if(!ndjson) {
+						generator.writeEndArray();
+					}
+				} finally {
+					generator.close();
+				}
+			}
+		};
+	}
+	
+	private HttpHeaders headers(MediaType contentType) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(contentType);
+		return headers;
 	}
 }
@@ -0,0 +1,325 @@
+package com.finra.fileupload.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.multipart.MultipartFile;
+
+/**
+ * Accepts uploads into a bounded staging area and persists them on a dedicated writer pool,
+ * so request threads are not blocked by disk writes. When staging area is full uploads are
+ * rejected instead of queued without limit.
+ *
+ * Staged payloads and their metadata are kept under {@value #DIRECTORY} directory of storage
+ * root and are persisted after restart if the writer didn't get to them, unless they were
+ * saved but not yet removed from staging area. A payload is staged by moving the file the
+ * multipart request was spooled to, a rename when spool directory is on the same file system,
+ * so request threads don't copy it.
+ * @author akadam
+ * @since 1.0
+ */
+public class AsyncIngestService {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(AsyncIngestService.class.getCanonicalName());
+
+	/**Directory under storage root holding staged uploads*/
+	static final String DIRECTORY = FileManagerHelper.RESERVED_PREFIX + "staging";
+
+	/**Directory under first root multipart requests are spooled to, on same file system as staging area*/
+	public static final String SPOOL_DIRECTORY = FileManagerHelper.RESERVED_PREFIX + "spool";
+
+	/**Staged metadata file extension*/
+	private static final String PROPERTIES_EXTENSION = ".properties";
+
+	@Autowired
+	FileService fileService;
+
+	@Autowired
+	FileManagerHelper fileManagerHelper;
+
+	/**Staging area lives under first root*/
+	@Autowired
+	StorageVolumes storageVolumes;
+
+	/**Whether uploads are ingested asynchronously unless request says otherwise*/
+	@Value("${fileupload.ingest.async:false}")
+	boolean asyncByDefault;
+
+	/**Number of writer threads*/
+	@Value("${fileupload.ingest.writer-threads:4}")
+	int writerThreads;
+
+	/**Uploads that can be staged and waiting for a writer*/
+	@Value("${fileupload.ingest.queue-capacity:100}")
+	int queueCapacity;
+
+	/**How long status of finished uploads is kept, in seconds*/
+	@Value("${fileupload.ingest.status-retention-seconds:3600}")
+	long statusRetentionSeconds;
+
+	/**Seconds a rejected client is asked to wait before retrying*/
+	@Value("${fileupload.ingest.retry-after-seconds:5}")
+	int retryAfterSeconds;
+
+	/**Free slots in staging area*/
+	private Semaphore slots;
+
+	/**Writer pool*/
+	private ThreadPoolExecutor writers;
+
+	/**Purges statuses of finished uploads*/
+	private ScheduledExecutorService housekeeping;
+
+	/**Status of uploads accepted since start*/
+	private final ConcurrentMap<String, IngestStatus> statuses = new ConcurrentHashMap<String, IngestStatus>();
+
+	/**
+	 * Starts writer pool and resubmits uploads staged before restart.
+	 */
+	@PostConstruct
+	public void init() {
+		slots = new Semaphore(queueCapacity + writerThreads);
+		writers = new ThreadPoolExecutor(writerThreads, writerThreads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), threadFactory("ingest-writer"));
+		housekeeping = Executors.newSingleThreadScheduledExecutor(threadFactory("ingest-housekeeping"));
+		housekeeping.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				purgeStatuses();
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+		resubmitStaged();
+	}
+
+	/**
+	 * Stops writer pool, staged uploads not yet written are picked up after restart.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		housekeeping.shutdownNow();
+		writers.shutdown();
+	}
+
+	/**
+	 * @return true if uploads should be ingested asynchronously by default
+	 */
+	public boolean isAsyncByDefault() {
+		return asyncByDefault;
+	}
+
+	/**
+	 * @return seconds a rejected client should wait before retrying
+	 */
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	/**
+	 * Stages the upload and queues it for writing.
+	 * @param container metadata of the upload, contents are taken from file
+	 * @param file multipart file holding contents, moved into staging area
+	 * @return status of accepted upload
+	 * @throws RejectedExecutionException if staging area is full
+	 */
+	public IngestStatus submit(FileContainer container, MultipartFile file) {
+		if(!slots.tryAcquire()) {
+			throw new RejectedExecutionException("Staging area is full");
+		}
+		try {
+			String uploadId = fileManagerHelper.getUniqueId();
+			container.setUploadId(uploadId);
+			File staged = stage(container, file);
+			container.setFileContentFile(staged);
+			container.setFileContentStream(null);
+			return enqueue(container);
+		}catch(RuntimeException e) {
+			slots.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Finds status of an upload accepted since start, or completed before.
+	 * @param uploadId unique id of the upload
+	 * @return status, null if upload is not known
+	 */
+	public IngestStatus getStatus(String uploadId) {
+		IngestStatus status = statuses.get(uploadId);
+		if(status == null && fileService.findByUploadId(uploadId) != null) {
+			status = new IngestStatus(uploadId);
+			status.completed();
+		}
+		return status;
+	}
+
+	private IngestStatus enqueue(final FileContainer container) {
+		final IngestStatus status = new IngestStatus(container.getUploadId());
+		statuses.put(status.getUploadId(), status);
+		writers.execute(new Runnable() {
+			@Override
+			public void run() {
+				status.writing();
+				try {
+					fileService.save(container);
+					status.completed();
+				}catch(RuntimeException e) {
+					logger.log(Level.SEVERE, "Failed while writing upload ["+status.getUploadId()+"]", e);
+					status.failed("Upload could not be written");
+				}finally {
+					unstage(container.getFileContentFile());
+					slots.release();
+				}
+			}
+		});
+		return status;
+	}
+
+	/**
+	 * Moves contents into staging area, then writes metadata needed to write it later.
+	 * Metadata is written last, so only completely staged uploads are picked up after restart.
+	 */
+	private File stage(FileContainer container, MultipartFile file) {
+		File directory = new File(storageVolumes.getPrimaryRoot(), DIRECTORY);
+		directory.mkdirs();
+		File staged = new File(directory, container.getUploadId()).getAbsoluteFile();
+		OutputStream output = null;
+		try {
+			//Part.write renames the spooled file, or copies it if spooled on another file system.
+			file.transferTo(staged);
+
+			Properties prop = new Properties();
+			prop.put(FileManagerHelper.USER_NAME, container.getUserName());
+			prop.put(FileManagerHelper.FILE_NAME, container.getFileName());
+			prop.put(FileManagerHelper.CREATION_DATE, DayFormat.format(container.getFileDate()));
+			output = new FileOutputStream(new File(directory, container.getUploadId() + PROPERTIES_EXTENSION));
+			prop.store(output, "Staged upload");
+			return staged;
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while staging upload", e);
+			unstage(staged);
+			throw new RuntimeException(e);
+		}finally {
+			close(output);
+		}
+	}
+
+	/**
+	 * Removes staged payload and its metadata.
+	 */
+	private void unstage(File staged) {
+		try {
+			Files.deleteIfExists(new File(staged.getPath() + PROPERTIES_EXTENSION).toPath());
+			Files.deleteIfExists(staged.toPath());
+		}catch(IOException e) {
+			logger.log(Level.WARNING, "Failed while removing staged upload ["+staged+"]", e);
+		}
+	}
+
+	/**
+	 * Queues uploads left in staging area by previous run.
+	 */
+	private void resubmitStaged() {
+		File directory = new File(storageVolumes.getPrimaryRoot(), DIRECTORY);
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(PROPERTIES_EXTENSION);
+			}
+		});
+		if(names == null) {
+			return;
+		}
+		for(String name : names) {
+			String uploadId = name.substring(0, name.length() - PROPERTIES_EXTENSION.length());
+			File staged = new File(directory, uploadId);
+			if(fileService.findByUploadId(uploadId) != null) {
+				//Saved before restart but not removed from staging area yet.
+				logger.info("Staged upload ["+uploadId+"] is already saved, removing it");
+				unstage(staged);
+				continue;
+			}
+			Properties prop = new Properties();
+			InputStream input = null;
+			try {
+				input = new FileInputStream(new File(directory, name));
+				prop.load(input);
+				FileContainer container = new FileContainer(prop.getProperty(FileManagerHelper.USER_NAME), staged,
+						prop.getProperty(FileManagerHelper.FILE_NAME),
+						DayFormat.parse(prop.getProperty(FileManagerHelper.CREATION_DATE)));
+				container.setUploadId(uploadId);
+				slots.acquireUninterruptibly();
+				enqueue(container);
+				logger.info("Resubmitted staged upload ["+uploadId+"]");
+			}catch(IOException | IllegalArgumentException e) {
+				logger.log(Level.SEVERE, "Failed while resubmitting staged upload ["+uploadId+"]", e);
+			}finally {
+				close(input);
+			}
+		}
+	}
+
+	/**
+	 * Forgets status of uploads finished longer than retention ago.
+	 */
+	private void purgeStatuses() {
+		long cutoff = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(statusRetentionSeconds);
+		Iterator<Map.Entry<String, IngestStatus>> iterator = statuses.entrySet().iterator();
+		while(iterator.hasNext()) {
+			IngestStatus status = iterator.next().getValue();
+			if(status.getFinishedAt() != 0 && status.getFinishedAt() < cutoff) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private ThreadFactory threadFactory(final String name) {
+		final AtomicInteger counter = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private void close(Closeable closeable) {
+		if(closeable != null) {
+			try {
+				closeable.close();
+			}catch(IOException e) {
+				logger.log(Level.SEVERE, "Failed while closing stream", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package com.finra.fileupload.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Saves many files received in one request, either as multipart parts or as entries of a zip stream.
+ *
+ * Entries are handed to a writer pool as soon as they are read, so zip entries are written while
+ * the rest of the archive is still arriving and several entries are persisted in parallel through
+ * {@link FileService#save(FileContainer)}. Entries read but not yet written are bounded, reading
+ * waits when writers fall behind. Zip entries up to {@code memory-threshold} bytes are held in
+ * memory, larger ones are spooled to the staging area. Zip entries are limited in size each and
+ * in total as they are inflated, so a small archive can't fill the staging area.
+ * @author akadam
+ * @since 1.0
+ */
+public class BatchUploadService {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(BatchUploadService.class.getCanonicalName());
+
+	/**Prefix of spooled zip entries in staging area*/
+	private static final String SPOOL_PREFIX = "batch-";
+
+	@Autowired
+	FileService fileService;
+
+	@Autowired
+	FileManagerHelper fileManagerHelper;
+
+	/**Batch entries too large for memory are spooled under first root*/
+	@Autowired
+	StorageVolumes storageVolumes;
+
+	/**Number of writer threads*/
+	@Value("${fileupload.batch.writer-threads:4}")
+	int writerThreads;
+
+	/**Entries read and waiting for a writer, across all batches*/
+	@Value("${fileupload.batch.max-pending:16}")
+	int maxPending;
+
+	/**Largest zip entry held in memory, larger ones are spooled to disk*/
+	@Value("${fileupload.batch.memory-threshold:1048576}")
+	int memoryThreshold;
+
+	/**Most entries accepted in one batch*/
+	@Value("${fileupload.batch.max-entries:10000}")
+	int maxEntries;
+
+	/**Largest zip entry accepted, in bytes once inflated*/
+	@Value("${fileupload.batch.max-entry-size:1073741824}")
+	long maxEntrySize;
+
+	/**Largest total of zip entries accepted in one batch, in bytes once inflated*/
+	@Value("${fileupload.batch.max-batch-size:10737418240}")
+	long maxBatchSize;
+
+	/**Writer pool*/
+	private ThreadPoolExecutor writers;
+
+	/**Free slots for entries read but not yet written*/
+	private Semaphore pending;
+
+	/**
+	 * Starts writer pool and removes entries spooled by previous run.
+	 */
+	@PostConstruct
+	public void init() {
+		File[] spooled = new File(storageVolumes.getPrimaryRoot(), AsyncIngestService.DIRECTORY).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SPOOL_PREFIX);
+			}
+		});
+		if(spooled != null) {
+			for(File file : spooled) {
+				delete(file);
+			}
+		}
+		pending = new Semaphore(maxPending);
+		final AtomicInteger counter = new AtomicInteger();
+		writers = new ThreadPoolExecutor(writerThreads, writerThreads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "batch-writer-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Stops writer pool.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		writers.shutdown();
+	}
+
+	/**
+	 * @return new batch, entries are added to it and then awaited
+	 */
+	public Batch newBatch() {
+		return new Batch();
+	}
+
+	/**
+	 * Entries of one request and their outcome, used by the request thread only.
+	 */
+	public class Batch {
+
+		/**Result of each entry in the order entries were added*/
+		private final List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+
+		/**Status of each entry, same order as results*/
+		private final List<IngestStatus> statuses = new ArrayList<IngestStatus>();
+
+		/**Writes submitted*/
+		private final List<Future<?>> writes = new ArrayList<Future<?>>();
+
+		/**Bytes of zip entries read so far*/
+		private long inflated;
+
+		private Batch() {
+		}
+
+		/**
+		 * Queues one entry for writing, blocks while too many entries are pending.
+		 * @param container file contents and metadata, contents are consumed
+		 * @throws IllegalStateException if batch already has max entries
+		 */
+		public void submit(FileContainer container) {
+			submit(container, null);
+		}
+
+		/**
+		 * Records an entry which could not be accepted.
+		 * @param fileName name of the entry
+		 * @param reason why it was not accepted
+		 */
+		public void reject(String fileName, String reason) {
+			IngestStatus status = add(fileName, null);
+			status.failed(reason);
+		}
+
+		/**
+		 * Reads a zip stream and queues each file entry as it is read, directory entries are skipped.
+		 * Entry names are stripped of their directories.
+		 * @param zip zip stream, not closed
+		 * @param user user of every entry
+		 * @param fileCreationDate creation date of every entry
+		 * @param durability durability of every entry, null for default
+		 * @throws IOException if stream is not a readable zip
+		 * @throws TooLargeException if an entry or all entries together inflate past their limit
+		 */
+		public void submitZip(InputStream zip, String user, Date fileCreationDate, Durability durability) throws IOException {
+			ZipInputStream input = new ZipInputStream(zip);
+			ZipEntry entry;
+			while((entry = input.getNextEntry()) != null) {
+				if(entry.isDirectory()) {
+					continue;
+				}
+				String fileName;
+				try {
+					fileName = FileContainer.toFileName(entry.getName());
+				}catch(IllegalArgumentException e) {
+					reject(entry.getName(), "Invalid entry name");
+					continue;
+				}
+				checkCapacity();
+				pending.acquireUninterruptibly();
+				File spooled = null;
+				try {
+					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					long remaining = maxBatchSize - inflated;
+					spooled = remaining < maxEntrySize ?
+							read(input, buffer, remaining, "Zip entries are larger than ["+maxBatchSize+"] bytes in total") :
+							read(input, buffer, maxEntrySize, "Zip entry ["+fileName+"] is larger than ["+maxEntrySize+"] bytes");
+					inflated += spooled == null ? buffer.size() : spooled.length();
+					FileContainer container = spooled == null ? 
+							new FileContainer(user, buffer.toByteArray(), fileName, fileCreationDate) :
+							new FileContainer(user, spooled, fileName, fileCreationDate);
+					container.setDurability(durability);
+					submitAcquired(container, spooled);
+				}catch(IOException | RuntimeException e) {
+					pending.release();
+					delete(spooled);
+					throw e;
+				}
+			}
+		}
+
+		/**
+		 * Waits for every entry to be written.
+		 * @return per entry results with upload id and status, and counts of completed and failed entries
+		 */
+		public Map<String, Object> await() {
+			for(Future<?> write : writes) {
+				try {
+					write.get();
+				}catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}catch(ExecutionException e) {
+					//Failures are recorded in entry status by the writer.
+				}
+			}
+			int failed = 0;
+			for(int i = 0; i < statuses.size(); i++) {
+				IngestStatus status = statuses.get(i);
+				failed += status.getState() == IngestStatus.State.FAILED ? 1 : 0;
+				results.get(i).putAll(status.toMap());
+			}
+			Map<String, Object> summary = new LinkedHashMap<String, Object>();
+			summary.put("Completed", statuses.size() - failed);
+			summary.put("Failed", failed);
+			summary.put("Entries", results);
+			return summary;
+		}
+
+		/**
+		 * @return true if any entry was rejected or failed, valid after {@link #await()}
+		 */
+		public boolean hasFailures() {
+			for(IngestStatus status : statuses) {
+				if(status.getState() == IngestStatus.State.FAILED) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void submit(FileContainer container, File spooled) {
+			checkCapacity();
+			pending.acquireUninterruptibly();
+			submitAcquired(container, spooled);
+		}
+
+		/**
+		 * Queues an entry for which a pending slot is already held, the writer releases it.
+		 */
+		private void submitAcquired(final FileContainer container, final File spooled) {
+			String uploadId = fileManagerHelper.getUniqueId();
+			container.setUploadId(uploadId);
+			final IngestStatus status = add(container.getFileName(), uploadId);
+			writes.add(writers.submit(new Runnable() {
+				@Override
+				public void run() {
+					status.writing();
+					try {
+						fileService.save(container);
+						status.completed();
+					}catch(RuntimeException e) {
+						logger.log(Level.SEVERE, "Failed while writing batch entry ["+status.getUploadId()+"]", e);
+						status.failed("Entry could not be written");
+					}finally {
+						delete(spooled);
+						pending.release();
+					}
+				}
+			}));
+		}
+
+		private IngestStatus add(String fileName, String uploadId) {
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			result.put(FileManagerHelper.FILE_NAME, fileName);
+			IngestStatus status = new IngestStatus(uploadId);
+			results.add(result);
+			statuses.add(status);
+			return status;
+		}
+
+		private void checkCapacity() {
+			if(statuses.size() >= maxEntries) {
+				throw new IllegalStateException("Batch has more than ["+maxEntries+"] entries");
+			}
+		}
+	}
+
+	/**
+	 * Thrown when zip entries inflate past their limit, the batch is not read any further.
+	 */
+	public static class TooLargeException extends IllegalStateException {
+
+		private static final long serialVersionUID = 1L;
+
+		public TooLargeException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Reads current entry into buffer, moving it to a spool file once it grows past memory threshold.
+	 * @param limit most bytes the entry may have
+	 * @param tooLarge message of the exception thrown past limit
+	 * @return spool file holding the entry, null if it is held in buffer
+	 * @throws TooLargeException if entry has more than limit bytes
+	 */
+	private File read(InputStream input, ByteArrayOutputStream buffer, long limit, String tooLarge) throws IOException {
+		byte[] chunk = new byte[8192];
+		int count;
+		while((count = input.read(chunk)) != -1) {
+			if(buffer.size() + count > limit) {
+				throw new TooLargeException(tooLarge);
+			}
+			buffer.write(chunk, 0, count);
+			if(buffer.size() > memoryThreshold) {
+				return spool(input, buffer, chunk, limit, tooLarge);
+			}
+		}
+		return null;
+	}
+
+	private File spool(InputStream input, ByteArrayOutputStream buffer, byte[] chunk, long limit, String tooLarge) throws IOException {
+		File directory = new File(storageVolumes.getPrimaryRoot(), AsyncIngestService.DIRECTORY);
+		directory.mkdirs();
+		File spooled = File.createTempFile(SPOOL_PREFIX, null, directory);
+		OutputStream output = new FileOutputStream(spooled);
+		try {
+			long size = buffer.size();
+			buffer.writeTo(output);
+			buffer.reset();
+			int count;
+			while((count = input.read(chunk)) != -1) {
+				size += count;
+				if(size > limit) {
+					throw new TooLargeException(tooLarge);
+				}
+				output.write(chunk, 0, count);
+			}
+		}catch(IOException | RuntimeException e) {
+			output.close();
+			delete(spooled);
+			throw e;
+		}
+		output.close();
+		return spooled;
+	}
+
+	private void delete(File spooled) {
+		if(spooled == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(spooled.toPath());
+		}catch(IOException e) {
+			logger.log(Level.WARNING, "Failed while removing spooled entry ["+spooled+"]", e);
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package com.finra.fileupload.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Content addressed store for deduplicating uploaded payloads.
+ *
+ * When dedup is enabled every payload is saved once under {@value #DIRECTORY}/{prefix}/{sha-256}
+ * and each upload directory gets a hard link to it, so identical uploads share the same disk
+ * blocks while metadata is still saved per upload. The file system link count acts as
+ * the reference count of a blob, a blob is removed once the last upload linking it is
+ * deleted. Where hard links are not supported the payload is copied instead.
+ *
+ * Storing and releasing the same blob are serialized, so identical uploads racing each
+ * other store the blob once. Counters are in bytes as uploaded, compression is reported
+ * by {@link PayloadCompressor}.
+ * @author akadam
+ * @since 1.0
+ */
+public class BlobStore implements PublicMetrics {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(BlobStore.class.getCanonicalName());
+
+	/**Directory under storage root holding blobs*/
+	static final String DIRECTORY = FileManagerHelper.RESERVED_PREFIX + "blobs";
+
+	/**Directory under blob directory holding payloads being written*/
+	private static final String TEMP_DIRECTORY = "tmp";
+
+	/**Digest algorithm*/
+	static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/**Whether uploads are deduplicated*/
+	@Value("${fileupload.storage.dedup:false}")
+	boolean enabled;
+
+	/**Bytes of all uploads stored through the blob store*/
+	private final LongAdder logicalBytes = new LongAdder();
+
+	/**Bytes of distinct blobs*/
+	private final LongAdder physicalBytes = new LongAdder();
+
+	/**Uploads which were linked to an already stored blob*/
+	private final LongAdder dedupedUploads = new LongAdder();
+
+	/**Locks serializing store and release of blobs, picked by blob name*/
+	private final Object[] locks = new Object[64];
+
+	public BlobStore() {
+		for(int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return true if uploads are to be deduplicated
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Temporary file to stream a payload into while its digest is computed.
+	 * @param parentDirectoryPath storage root
+	 * @param uploadId unique id of the upload
+	 * @return temporary file on same file system as blobs
+	 */
+	public File newTempFile(String parentDirectoryPath, String uploadId) {
+		File directory = new File(new File(parentDirectoryPath, DIRECTORY), TEMP_DIRECTORY);
+		directory.mkdirs();
+		return new File(directory, uploadId);
+	}
+
+	/**
+	 * Moves written payload into blob store, unless same content is already there,
+	 * and links it to the upload location.
+	 * @param parentDirectoryPath storage root
+	 * @param tempFile payload written by {@link #newTempFile(String, String)}
+	 * @param digest hex digest of the payload, or {@link #blobName(String, Codec)} when stored compressed
+	 * @param size size of payload as uploaded
+	 * @param target location of the uploaded file
+	 * @return true if an already stored blob was reused
+	 * @throws IOException if blob can not be stored or linked
+	 */
+	public boolean store(String parentDirectoryPath, File tempFile, String digest, long size, File target) throws IOException {
+		File blob = blobFile(parentDirectoryPath, digest);
+		boolean deduplicated;
+		synchronized(lockFor(digest)) {
+			deduplicated = blob.exists();
+			if(deduplicated) {
+				Files.delete(tempFile.toPath());
+			}else {
+				blob.getParentFile().mkdirs();
+				Files.move(tempFile.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			try {
+				Files.createLink(target.toPath(), blob.toPath());
+			}catch(FileAlreadyExistsException e) {
+				throw e;
+			}catch(UnsupportedOperationException | IOException e) {
+				logger.log(Level.WARNING, "Hard link not supported, copying blob ["+digest+"]", e);
+				Files.copy(blob.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		logicalBytes.add(size);
+		if(deduplicated) {
+			dedupedUploads.increment();
+		}else {
+			physicalBytes.add(size);
+		}
+		logger.log(Level.FINE, "Stored blob [{0}] deduplicated [{1}]", new Object[] {digest, deduplicated});
+		return deduplicated;
+	}
+
+	/**
+	 * Releases the blob of a deleted upload, removing it when no other upload links it.
+	 * Must be called after the upload file itself was removed.
+	 * @param parentDirectoryPath storage root
+	 * @param metadata metadata of the deleted upload, nothing happens if it has no digest
+	 * @throws IOException if blob can not be removed
+	 */
+	public void release(String parentDirectoryPath, FileMetaData metadata) throws IOException {
+		if(metadata.getContentDigest() == null) {
+			return;
+		}
+		String digest = blobName(metadata.getContentDigest(), metadata.getCodec());
+		File blob = blobFile(parentDirectoryPath, digest);
+		boolean removed = false;
+		synchronized(lockFor(digest)) {
+			if(!blob.exists()) {
+				return;
+			}
+			int links;
+			try {
+				links = ((Number) Files.getAttribute(blob.toPath(), "unix:nlink")).intValue();
+			}catch(UnsupportedOperationException | IllegalArgumentException e) {
+				logger.log(Level.FINE, "Link count not supported, keeping blob [{0}]", digest);
+				return;
+			}
+			if(links <= 1) {
+				Files.deleteIfExists(blob.toPath());
+				removed = true;
+			}
+		}
+		long bytes = metadata.getFileSize();
+		if(bytes != FileMetaData.UNKNOWN_SIZE) {
+			logicalBytes.add(-bytes);
+			if(removed) {
+				physicalBytes.add(-bytes);
+			}
+		}
+		if(!removed) {
+			dedupedUploads.decrement();
+		}
+		logger.log(Level.FINE, "Released blob [{0}] removed [{1}]", new Object[] {digest, removed});
+	}
+
+	/**
+	 * Rebuilds dedup counters from metadata of stored uploads.
+	 * @param metadata metadata of all uploads
+	 */
+	public void rebuild(Collection<FileMetaData> metadata) {
+		logicalBytes.reset();
+		physicalBytes.reset();
+		dedupedUploads.reset();
+		Set<String> blobs = new HashSet<String>();
+		for(FileMetaData record : metadata) {
+			String digest = record.getContentDigest();
+			long bytes = record.getFileSize();
+			if(digest == null || bytes == FileMetaData.UNKNOWN_SIZE) {
+				continue;
+			}
+			logicalBytes.add(bytes);
+			if(blobs.add(blobName(digest, record.getCodec()))) {
+				physicalBytes.add(bytes);
+			}else {
+				dedupedUploads.increment();
+			}
+		}
+	}
+
+	/**
+	 * @return logical bytes stored per physical byte, 1 when nothing is deduplicated
+	 */
+	public double getDedupRatio() {
+		long physical = physicalBytes.sum();
+		return physical == 0 ? 1.0 : (double) logicalBytes.sum() / physical;
+	}
+
+	/** (non-Javadoc)
+	 * @see org.springframework.boot.actuate.endpoint.PublicMetrics#metrics()
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		if(enabled) {
+			metrics.add(new Metric<Double>("storage.dedup.ratio", getDedupRatio()));
+			metrics.add(new Metric<Long>("storage.dedup.logical.bytes", logicalBytes.sum()));
+			metrics.add(new Metric<Long>("storage.dedup.physical.bytes", physicalBytes.sum()));
+			metrics.add(new Metric<Long>("storage.dedup.uploads", dedupedUploads.sum()));
+		}
+		return metrics;
+	}
+
+	/**
+	 * Name of the blob holding a payload, same content stored with another codec is a different blob.
+	 * @param digest hex digest of the payload as uploaded
+	 * @param codec codec payload is stored with
+	 * @return blob name to pass to {@link #store(String, File, String, long, File)}
+	 */
+	public static String blobName(String digest, Codec codec) {
+		return codec == Codec.NONE ? digest : digest + "." + codec.getName();
+	}
+
+	private Object lockFor(String digest) {
+		return locks[(digest.hashCode() & Integer.MAX_VALUE) % locks.length];
+	}
+
+	private File blobFile(String parentDirectoryPath, String digest) {
+		return new File(new File(new File(parentDirectoryPath, DIRECTORY), digest.substring(0, 2)), digest);
+	}
+}
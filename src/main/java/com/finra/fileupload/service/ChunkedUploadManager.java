@@ -0,0 +1,334 @@
+package com.finra.fileupload.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.MultipartConfigElement;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Manages chunked upload sessions. A session is started with file size and chunk size,
+ * chunks are then uploaded in any order, possibly in parallel, and once all chunks are
+ * received the session is committed through {@link FileService#save(FileContainer)}
+ * so the finished upload looks same as a single request upload.
+ *
+ * Sessions are kept under {@value #DIRECTORY} directory of storage root and are picked up
+ * again after restart. Files are limited to multipart max file size, same as single request
+ * uploads, and sessions without a chunk received for session TTL are aborted in background.
+ * @author akadam
+ * @since 1.0
+ */
+public class ChunkedUploadManager {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(ChunkedUploadManager.class.getCanonicalName());
+
+	/**Directory under storage root holding upload sessions*/
+	static final String DIRECTORY = FileManagerHelper.RESERVED_PREFIX + "sessions";
+
+	/**Session description file name*/
+	private static final String SESSION_FILE = "session.properties";
+	
+	/**Chunk size constant*/
+	private static final String CHUNK_SIZE = "Chunk_Size";
+
+	/**For generating unique identifier*/
+	@Autowired
+	SecureRandom secureRandom;
+
+	@Autowired
+	FileService fileService;
+
+	/**Sessions live under first root*/
+	@Autowired
+	StorageVolumes storageVolumes;
+
+	/**Chunk size used when client doesn't ask for one*/
+	@Value("${fileupload.chunked.default-chunk-size:8388608}")
+	long defaultChunkSize;
+
+	/**Largest chunk size a client may ask for*/
+	@Value("${fileupload.chunked.max-chunk-size:134217728}")
+	long maxChunkSize;
+
+	/**Seconds a session is kept without receiving a chunk, 0 keeps sessions till committed or aborted*/
+	@Value("${fileupload.chunked.session-ttl-seconds:86400}")
+	long sessionTtlSeconds;
+
+	/**Largest file size is that of a single request upload*/
+	@Autowired
+	MultipartConfigElement multipartConfig;
+
+	/**Open sessions, loaded from disk on first access after restart*/
+	private final ConcurrentMap<String, UploadSession> sessions = new ConcurrentHashMap<String, UploadSession>();
+
+	/**Aborts expired sessions*/
+	private ScheduledExecutorService sweeper;
+
+	/**
+	 * Starts aborting expired sessions, including ones left from before restart.
+	 */
+	@PostConstruct
+	public void init() {
+		if(sessionTtlSeconds <= 0) {
+			return;
+		}
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "session-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long interval = Math.min(sessionTtlSeconds, 60);
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sweep();
+				}catch(RuntimeException e) {
+					logger.log(Level.SEVERE, "Failed while aborting expired upload sessions", e);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops aborting expired sessions.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		if(sweeper != null) {
+			sweeper.shutdownNow();
+		}
+	}
+
+	/**
+	 * Starts new upload session.
+	 * @param user user uploading the file
+	 * @param fileName name of the file, reduced to its last path segment
+	 * @param fileCreationDate file creation date
+	 * @param fileSize total size of the file in bytes
+	 * @param chunkSize size of every chunk except the last one, default used if null
+	 * @return the new session
+	 * @throws IllegalArgumentException if file name, file size or chunk size are invalid or file is too large
+	 */
+	public UploadSession start(String user, String fileName, Date fileCreationDate,
+			long fileSize, Long chunkSize) {
+		long size = chunkSize == null ? defaultChunkSize : chunkSize;
+		fileName = FileContainer.toFileName(fileName);
+		if(fileSize < 1) {
+			throw new IllegalArgumentException("File size must be positive");
+		}
+		long maxFileSize = multipartConfig.getMaxFileSize();
+		if(maxFileSize >= 0 && fileSize > maxFileSize) {
+			throw new IllegalArgumentException("File size must be at most ["+maxFileSize+"]");
+		}
+		if(size < 1 || size > maxChunkSize) {
+			throw new IllegalArgumentException("Chunk size must be between 1 and ["+maxChunkSize+"]");
+		}
+		if((fileSize - 1) / size + 1 > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Chunk size ["+size+"] is too small for file size ["+fileSize+"]");
+		}
+
+		String sessionId = new BigInteger(130, secureRandom).toString(32);
+		File directory = new File(new File(storageVolumes.getPrimaryRoot(), DIRECTORY), sessionId);
+		directory.mkdirs();
+
+		Properties prop = new Properties();
+		prop.put(FileManagerHelper.USER_NAME, user);
+		prop.put(FileManagerHelper.FILE_NAME, fileName);
+		prop.put(FileManagerHelper.CREATION_DATE, DayFormat.format(fileCreationDate));
+		prop.put(FileManagerHelper.FILE_SIZE, String.valueOf(fileSize));
+		prop.put(CHUNK_SIZE, String.valueOf(size));
+		OutputStream output = null;
+		try {
+			output = new FileOutputStream(new File(directory, SESSION_FILE));
+			prop.store(output, "Chunked upload session");
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while saving upload session", e);
+			throw new RuntimeException(e);
+		}finally {
+			closeQuietly(output);
+		}
+
+		UploadSession session = new UploadSession(sessionId, user, fileName, fileCreationDate, fileSize, size, directory);
+		open(session);
+		sessions.put(sessionId, session);
+		logger.info("Started upload session ["+sessionId+"] for ["+fileSize+"] bytes in ["+session.getChunkCount()+"] chunks");
+		return session;
+	}
+
+	/**
+	 * Finds an open session, loading it from disk if it was started before restart.
+	 * @param sessionId id of the session
+	 * @return session, null if it doesn't exist
+	 */
+	public UploadSession find(String sessionId) {
+		UploadSession session = sessions.get(sessionId);
+		if(session != null) {
+			return session;
+		}
+		if(!sessionId.matches("[0-9a-v]+")) {
+			return null;
+		}
+		File directory = new File(new File(storageVolumes.getPrimaryRoot(), DIRECTORY), sessionId);
+		File sessionFile = new File(directory, SESSION_FILE);
+		if(!sessionFile.isFile()) {
+			return null;
+		}
+		synchronized(sessions) {
+			session = sessions.get(sessionId);
+			if(session == null) {
+				session = load(sessionId, directory, sessionFile);
+				open(session);
+				sessions.put(sessionId, session);
+				logger.info("Resumed upload session ["+sessionId+"]");
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Saves assembled file through file service and removes the session.
+	 * @param session session with all chunks received
+	 * @throws IllegalStateException if chunks are missing or session is already committed
+	 */
+	public void commit(UploadSession session) throws IOException {
+		if(!session.markClosed()) {
+			throw new IllegalStateException("Upload session ["+session.getSessionId()+"] is already closed");
+		}
+		if(!session.getMissingChunks().isEmpty()) {
+			session.reopen();
+			throw new IllegalStateException("Upload session ["+session.getSessionId()+"] has missing chunks");
+		}
+		FileContainer container = new FileContainer(session.getUserName(), session.getDataFile(),
+				session.getFileName(), session.getFileDate());
+		try {
+			fileService.save(container);
+		}catch(RuntimeException e) {
+			session.reopen();
+			throw e;
+		}
+		remove(session);
+		logger.info("Committed upload session ["+session.getSessionId()+"]");
+	}
+
+	/**
+	 * Aborts the session and deletes received chunks.
+	 * @param session session to abort
+	 */
+	public void abort(UploadSession session) {
+		if(session.markClosed()) {
+			remove(session);
+			logger.info("Aborted upload session ["+session.getSessionId()+"]");
+		}
+	}
+
+	/**
+	 * Aborts sessions, open or left on disk, without a chunk received for session TTL.
+	 */
+	void sweep() {
+		File[] directories = new File(storageVolumes.getPrimaryRoot(), DIRECTORY).listFiles();
+		if(directories == null) {
+			return;
+		}
+		long expiry = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(sessionTtlSeconds);
+		for(File directory : directories) {
+			String sessionId = directory.getName();
+			UploadSession session = sessions.get(sessionId);
+			long lastModified = session != null ? session.getLastModified()
+					: Math.max(new File(directory, SESSION_FILE).lastModified(),
+							new File(directory, UploadSession.RECEIPTS_FILE).lastModified());
+			if(lastModified >= expiry) {
+				continue;
+			}
+			if(session == null && !new File(directory, SESSION_FILE).isFile()) {
+				//Left by a start that failed before its session was saved
+				FileSystemUtils.deleteRecursively(directory);
+				continue;
+			}
+			try {
+				session = find(sessionId);
+			}catch(RuntimeException e) {
+				logger.log(Level.WARNING, "Failed while loading expired upload session ["+sessionId+"], deleting it", e);
+				FileSystemUtils.deleteRecursively(directory);
+				continue;
+			}
+			if(session != null) {
+				logger.info("Upload session ["+sessionId+"] expired");
+				abort(session);
+			}
+		}
+	}
+
+	private void remove(UploadSession session) {
+		sessions.remove(session.getSessionId());
+		session.close();
+		FileSystemUtils.deleteRecursively(session.getDirectory());
+	}
+
+	private void open(UploadSession session) {
+		try {
+			session.open();
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while opening upload session ["+session.getSessionId()+"]", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	private UploadSession load(String sessionId, File directory, File sessionFile) {
+		Properties prop = new Properties();
+		InputStream input = null;
+		try {
+			input = new FileInputStream(sessionFile);
+			prop.load(input);
+			return new UploadSession(sessionId, prop.getProperty(FileManagerHelper.USER_NAME),
+					prop.getProperty(FileManagerHelper.FILE_NAME),
+					DayFormat.parse(prop.getProperty(FileManagerHelper.CREATION_DATE)),
+					Long.parseLong(prop.getProperty(FileManagerHelper.FILE_SIZE)),
+					Long.parseLong(prop.getProperty(CHUNK_SIZE)), directory);
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while loading upload session ["+sessionId+"]", e);
+			throw new RuntimeException(e);
+		}catch(IllegalArgumentException e) {
+			logger.log(Level.SEVERE, "Invalid creation date in upload session ["+sessionId+"]", e);
+			throw new RuntimeException(e);
+		}finally {
+			closeQuietly(input);
+		}
+	}
+
+	private void closeQuietly(Closeable closeable) {
+		if(closeable != null) {
+			try {
+				closeable.close();
+			}catch(IOException e) {
+				logger.log(Level.SEVERE, "Failed while closing stream", e);
+			}
+		}
+	}
+}
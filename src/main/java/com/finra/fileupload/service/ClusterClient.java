@@ -0,0 +1,304 @@
+package com.finra.fileupload.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Calls other nodes of the cluster, used to forward requests to the node owning a user,
+ * gather query results from every node, find which node holds an upload and move uploads
+ * to their owner.
+ *
+ * Request and response bodies are streamed, never buffered whole. Every call carries
+ * {@value #FORWARDED_BY} header naming this node, a node always handles such a call itself
+ * so requests are forwarded at most once even if nodes disagree on the ring. Answers other
+ * than 2xx are handed to the caller as they are, only failing to reach a node throws.
+ * @author akadam
+ * @since 1.0
+ */
+public class ClusterClient implements PublicMetrics {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(ClusterClient.class.getCanonicalName());
+
+	/**Header marking a request sent by another node, its value is base url of that node*/
+	public static final String FORWARDED_BY = "X-Forwarded-By-Node";
+
+	/**Header carrying the shared secret of the cluster, sent when one is configured*/
+	public static final String SECRET = "X-Cluster-Secret";
+
+	/**Metadata entries as written by every node*/
+	private static final TypeReference<List<Map<String, String>>> METADATA_LIST = new TypeReference<List<Map<String, String>>>() {
+	};
+
+	@Autowired
+	ClusterRing clusterRing;
+
+	@Autowired
+	ObjectMapper objectMapper;
+
+	/**Milliseconds to wait for connecting to a node*/
+	@Value("${fileupload.cluster.connect-timeout-ms:2000}")
+	int connectTimeoutMillis = 2000;
+
+	/**Milliseconds to wait for data from a node*/
+	@Value("${fileupload.cluster.read-timeout-ms:60000}")
+	int readTimeoutMillis = 60000;
+
+	private RestTemplate restTemplate;
+
+	/**Calls nodes in parallel for scatter gather queries*/
+	private ExecutorService gatherers;
+
+	private final LongAdder requests = new LongAdder();
+
+	private final LongAdder failures = new LongAdder();
+
+	private final LongAdder transferred = new LongAdder();
+
+	/**
+	 * Creates the http client.
+	 */
+	@PostConstruct
+	public void init() {
+		SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+		requestFactory.setBufferRequestBody(false);
+		requestFactory.setConnectTimeout(connectTimeoutMillis);
+		requestFactory.setReadTimeout(readTimeoutMillis);
+		restTemplate = new RestTemplate(requestFactory);
+		restTemplate.setErrorHandler(new DefaultResponseErrorHandler() {
+			@Override
+			public boolean hasError(ClientHttpResponse response) throws IOException {
+				return false;
+			}
+		});
+		final AtomicInteger counter = new AtomicInteger();
+		gatherers = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cluster-gather-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@PreDestroy
+	public void close() {
+		gatherers.shutdownNow();
+	}
+
+	/**
+	 * Sends a request to a node.
+	 * @param uri url on the node
+	 * @param method request method
+	 * @param callback writes headers and body of the request, can be null
+	 * @param extractor reads the answer, whatever its status
+	 * @return what extractor returned
+	 * @throws RestClientException if node could not be reached or extractor failed
+	 */
+	public <T> T execute(URI uri, HttpMethod method, final RequestCallback callback, ResponseExtractor<T> extractor) {
+		requests.increment();
+		try {
+			return restTemplate.execute(uri, method, new RequestCallback() {
+				@Override
+				public void doWithRequest(ClientHttpRequest request) throws IOException {
+					request.getHeaders().set(FORWARDED_BY, clusterRing.getSelf());
+					if(!clusterRing.getSecret().isEmpty()) {
+						request.getHeaders().set(SECRET, clusterRing.getSecret());
+					}
+					if(callback != null) {
+						callback.doWithRequest(request);
+					}
+				}
+			}, extractor);
+		}catch(RestClientException e) {
+			failures.increment();
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs a metadata query on every other node in parallel.
+	 * @param path path of the query
+	 * @param query query string as received, can be null
+	 * @return metadata found by all other nodes, in no particular order
+	 * @throws RestClientException if a node could not be reached or didn't answer the query
+	 */
+	public List<FileMetaData> gather(String path, String query) {
+		List<Future<List<FileMetaData>>> answers = new ArrayList<Future<List<FileMetaData>>>();
+		for(final String peer : clusterRing.getPeers()) {
+			final URI uri = URI.create(peer + path + (query == null ? "" : "?" + query));
+			answers.add(gatherers.submit(new Callable<List<FileMetaData>>() {
+				@Override
+				public List<FileMetaData> call() {
+					return execute(uri, HttpMethod.GET, null, new ResponseExtractor<List<FileMetaData>>() {
+						@Override
+						public List<FileMetaData> extractData(ClientHttpResponse response) throws IOException {
+							if(response.getRawStatusCode() != HttpStatus.OK.value()) {
+								throw new RestClientException("Node ["+peer+"] answered query with ["+response.getRawStatusCode()+"]");
+							}
+							List<FileMetaData> metadata = new ArrayList<FileMetaData>();
+							for(Map<String, String> entry : objectMapper.<List<Map<String, String>>>readValue(response.getBody(), METADATA_LIST)) {
+								metadata.add(FileMetaData.fromMap(entry, null));
+							}
+							return metadata;
+						}
+					});
+				}
+			}));
+		}
+		List<FileMetaData> metadata = new ArrayList<FileMetaData>();
+		try {
+			for(Future<List<FileMetaData>> answer : answers) {
+				metadata.addAll(answer.get());
+			}
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RestClientException("Interrupted while gathering query results", e);
+		}catch(ExecutionException e) {
+			if(e.getCause() instanceof RestClientException) {
+				throw (RestClientException) e.getCause();
+			}
+			throw new RestClientException("Failed while gathering query results", e.getCause());
+		}finally {
+			for(Future<List<FileMetaData>> answer : answers) {
+				answer.cancel(true);
+			}
+		}
+		return metadata;
+	}
+
+	/**
+	 * Asks every other node whether it holds an upload, unreachable nodes are passed over.
+	 * @param path path of the upload as received, /files/{uploadId}
+	 * @return base url of node holding the upload, null if none does
+	 */
+	public String locate(String path) {
+		for(String peer : clusterRing.getPeers()) {
+			try {
+				Integer status = execute(URI.create(peer + path), HttpMethod.HEAD, null, new ResponseExtractor<Integer>() {
+					@Override
+					public Integer extractData(ClientHttpResponse response) throws IOException {
+						return response.getRawStatusCode();
+					}
+				});
+				if(status == HttpStatus.OK.value()) {
+					return peer;
+				}
+			}catch(RestClientException e) {
+				logger.log(Level.FINE, "Node ["+peer+"] could not be asked for ["+path+"]", e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Copies an upload to another node under the same upload id, node keeps it as is
+	 * if it already has it so a transfer interrupted before local copy was deleted can be repeated.
+	 * @param node base url of receiving node
+	 * @param metadata metadata of the upload
+	 * @param payload raw contents of the upload, read till end but not closed
+	 * @param length length of contents, -1 if not known
+	 * @return true if node stored the upload or already had it
+	 * @throws RestClientException if node could not be reached
+	 */
+	public boolean transfer(String node, FileMetaData metadata, final InputStream payload, final long length) {
+		URI uri = URI.create(node + "/cluster/transfer?" + query("uploadId", metadata.getUploadId(), "user", metadata.getUserName(),
+				"fileName", metadata.getFileName(), "fileCreationDate", metadata.getCreationDate(), "uploadedDate", metadata.getUploadedDate()));
+		int status = execute(uri, HttpMethod.POST, new RequestCallback() {
+			@Override
+			public void doWithRequest(ClientHttpRequest request) throws IOException {
+				request.getHeaders().setContentType(MediaType.APPLICATION_OCTET_STREAM);
+				if(length >= 0) {
+					request.getHeaders().setContentLength(length);
+				}
+				StreamUtils.copy(payload, request.getBody());
+			}
+		}, new ResponseExtractor<Integer>() {
+			@Override
+			public Integer extractData(ClientHttpResponse response) throws IOException {
+				return response.getRawStatusCode();
+			}
+		});
+		if(status / 100 != 2) {
+			logger.warning("Node ["+node+"] refused upload ["+metadata.getUploadId()+"] with ["+status+"]");
+			return false;
+		}
+		transferred.increment();
+		return true;
+	}
+
+	/**
+	 * @return form encoded query string of name value pairs, pairs with null value are left out
+	 */
+	private static String query(String... pairs) {
+		StringBuilder query = new StringBuilder();
+		try {
+			for(int i = 0; i < pairs.length; i += 2) {
+				if(pairs[i + 1] == null) {
+					continue;
+				}
+				if(query.length() > 0) {
+					query.append('&');
+				}
+				query.append(pairs[i]).append('=').append(URLEncoder.encode(pairs[i + 1], "UTF-8"));
+			}
+		}catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return query.toString();
+	}
+
+	/** (non-Javadoc)
+	 * @see org.springframework.boot.actuate.endpoint.PublicMetrics#metrics()
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		metrics.add(new Metric<Integer>("cluster.nodes", clusterRing.getNodes().size()));
+		metrics.add(new Metric<Long>("cluster.requests", requests.sum()));
+		metrics.add(new Metric<Long>("cluster.failures", failures.sum()));
+		metrics.add(new Metric<Long>("cluster.transferred", transferred.sum()));
+		return metrics;
+	}
+}
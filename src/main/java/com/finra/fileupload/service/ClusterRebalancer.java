@@ -0,0 +1,154 @@
+package com.finra.fileupload.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Moves uploads of users this node doesn't own to their owner, e.g. after a node was
+ * added to the cluster and took over part of the users, or after uploads came in through
+ * batch and chunked uploads which are stored by whichever node receives them.
+ *
+ * Runs once rebalance-delay-seconds after startup, giving other nodes time to start, and
+ * whenever asked. Each upload is copied to its owner under the same upload id, creation and
+ * upload date and only then deleted here, so an upload is never lost and an interrupted
+ * rebalance is simply run again. Uploads are moved one at a time to keep serving unaffected.
+ * @author akadam
+ * @since 1.0
+ */
+public class ClusterRebalancer {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(ClusterRebalancer.class.getCanonicalName());
+
+	@Autowired
+	ClusterRing clusterRing;
+
+	@Autowired
+	ClusterClient clusterClient;
+
+	@Autowired
+	FileService fileService;
+
+	/**Seconds after startup at which uploads are rebalanced, negative to only rebalance when asked*/
+	@Value("${fileupload.cluster.rebalance-delay-seconds:30}")
+	long rebalanceDelaySeconds = 30;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Schedules rebalancing after startup when clustered.
+	 */
+	@PostConstruct
+	public void init() {
+		if(!clusterRing.isEnabled() || rebalanceDelaySeconds < 0) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "cluster-rebalancer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					rebalance();
+				}catch(RuntimeException e) {
+					logger.log(Level.SEVERE, "Failed while rebalancing uploads", e);
+				}
+			}
+		}, rebalanceDelaySeconds, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void close() {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Moves every upload of a user owned by another node to that node. Uploads whose owner
+	 * can't be reached or refuses them are left in place for the next run.
+	 * @return number of uploads moved
+	 */
+	public synchronized int rebalance() {
+		if(!clusterRing.isEnabled()) {
+			return 0;
+		}
+		int moved = 0;
+		int failed = 0;
+		for(FileMetaData metadata : fileService.queryMetaData(new MetaDataQuery())) {
+			String owner = clusterRing.ownerOf(metadata.getUserName());
+			if(owner.equals(clusterRing.getSelf())) {
+				continue;
+			}
+			if(move(metadata, owner)) {
+				moved++;
+			}else {
+				failed++;
+			}
+		}
+		logger.info("Rebalance moved ["+moved+"] uploads to their owners, ["+failed+"] were left in place");
+		return moved;
+	}
+
+	private boolean move(FileMetaData metadata, String owner) {
+		String uploadId = metadata.getUploadId();
+		try {
+			InputStream payload;
+			long length;
+			ByteBuffer packed = fileService.findPackedFile(uploadId);
+			File file = packed != null ? null : fileService.findFile(uploadId);
+			if(packed != null) {
+				byte[] bytes = new byte[packed.remaining()];
+				packed.get(bytes);
+				payload = new ByteArrayInputStream(bytes);
+				length = bytes.length;
+			}else if(file != null) {
+				//Owner stores payload the way it is configured to, so compressed payloads are sent as uploaded.
+				payload = metadata.getCodec().decode(new FileInputStream(file));
+				length = metadata.getCodec() == Codec.NONE ? file.length() : metadata.getFileSize();
+			}else {
+				logger.warning("Payload of upload ["+uploadId+"] not found, it is not moved");
+				return false;
+			}
+			try {
+				if(!clusterClient.transfer(owner, metadata, payload, length)) {
+					return false;
+				}
+			}finally {
+				payload.close();
+			}
+			fileService.delete(uploadId);
+			logger.log(Level.FINE, "Moved upload [{0}] to [{1}]", new Object[] {uploadId, owner});
+			return true;
+		}catch(IOException e) {
+			logger.log(Level.WARNING, "Failed while reading upload ["+uploadId+"] to move", e);
+			return false;
+		}catch(RestClientException e) {
+			logger.log(Level.WARNING, "Failed while moving upload ["+uploadId+"] to ["+owner+"]", e);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.finra.fileupload.service;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Consistent hash ring partitioning users across the nodes of a cluster.
+ *
+ * Nodes are listed in static config by base url, every node has to be given the same list.
+ * Each node is placed on the ring at virtual-nodes points and a user belongs to the node
+ * at the first point at or after hash of the user, so adding a node only takes over about
+ * 1/N of users from the others and leaves the rest where they are. Users are hashed ignoring
+ * case, same as they are matched by searches. With no nodes configured the cluster is
+ * disabled and every user is local.
+ *
+ * Calls only nodes make on each other, e.g. moving uploads, are accepted when they carry
+ * the shared secret, or when no secret is configured, when they come from an address
+ * the host of a node resolves to.
+ * @author akadam
+ * @since 1.0
+ */
+public class ClusterRing {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(ClusterRing.class.getCanonicalName());
+
+	/**Comma separated base urls of all nodes, e.g. http://localhost:8080, empty when not clustered*/
+	@Value("${fileupload.cluster.nodes:}")
+	String nodes = "";
+
+	/**Base url of this node as listed in nodes*/
+	@Value("${fileupload.cluster.self:}")
+	String self = "";
+
+	/**Points each node is placed at on the ring*/
+	@Value("${fileupload.cluster.virtual-nodes:128}")
+	int virtualNodes = 128;
+
+	/**Secret nodes present to each other, peers are told by address when empty*/
+	@Value("${fileupload.cluster.secret:}")
+	String secret = "";
+
+	/**Ring points to the node owning users hashed up to them*/
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+	/**All nodes in configured order*/
+	private final List<String> members = new ArrayList<String>();
+
+	/**Addresses hosts of nodes resolved to at startup*/
+	private final Set<InetAddress> addresses = new HashSet<InetAddress>();
+
+	/**
+	 * Places configured nodes on the ring.
+	 * @throws IllegalArgumentException if nodes are given but this node is not one of them
+	 */
+	@PostConstruct
+	public void init() {
+		for(String node : nodes.split(",")) {
+			node = normalize(node);
+			if(!node.isEmpty() && !members.contains(node)) {
+				members.add(node);
+			}
+		}
+		if(members.isEmpty()) {
+			return;
+		}
+		self = normalize(self);
+		if(!members.contains(self)) {
+			throw new IllegalArgumentException("This node ["+self+"] has to be one of cluster nodes "+members);
+		}
+		for(String node : members) {
+			for(int i = 0; i < virtualNodes; i++) {
+				ring.put(hash(node + "#" + i), node);
+			}
+			try {
+				Collections.addAll(addresses, InetAddress.getAllByName(URI.create(node).getHost()));
+			}catch(UnknownHostException | IllegalArgumentException e) {
+				logger.warning("Could not resolve cluster node ["+node+"], "+e.getMessage());
+			}
+		}
+		if(secret.isEmpty()) {
+			logger.warning("No fileupload.cluster.secret configured, calls between nodes are trusted by address");
+		}
+		logger.info("Cluster of "+members+" with ["+virtualNodes+"] virtual nodes each, this node is ["+self+"]");
+	}
+
+	/**
+	 * @return true when nodes are configured
+	 */
+	public boolean isEnabled() {
+		return !members.isEmpty();
+	}
+
+	/**
+	 * @return base url of this node, empty when not clustered
+	 */
+	public String getSelf() {
+		return self;
+	}
+
+	/**
+	 * @return base urls of all nodes in configured order
+	 */
+	public List<String> getNodes() {
+		return Collections.unmodifiableList(members);
+	}
+
+	/**
+	 * @return base urls of all nodes except this one
+	 */
+	public List<String> getPeers() {
+		List<String> peers = new ArrayList<String>(members);
+		peers.remove(self);
+		return peers;
+	}
+
+	/**
+	 * @param user user name, matched ignoring case
+	 * @return base url of node owning the user, this node when not clustered
+	 */
+	public String ownerOf(String user) {
+		if(ring.isEmpty()) {
+			return self;
+		}
+		Map.Entry<Long, String> point = ring.ceilingEntry(hash(user.toLowerCase(Locale.ROOT)));
+		return point != null ? point.getValue() : ring.firstEntry().getValue();
+	}
+
+	/**
+	 * @param user user name, matched ignoring case
+	 * @return true if this node owns the user
+	 */
+	public boolean isLocal(String user) {
+		return ring.isEmpty() || self.equals(ownerOf(user));
+	}
+
+	/**
+	 * @param presentedSecret secret sent along with the request, can be null
+	 * @param remoteAddress address the request came from
+	 * @return true if request comes from a node of this cluster, false when not clustered
+	 */
+	public boolean isPeer(String presentedSecret, String remoteAddress) {
+		if(!isEnabled()) {
+			return false;
+		}
+		if(!secret.isEmpty()) {
+			return presentedSecret != null && MessageDigest.isEqual(
+					secret.getBytes(StandardCharsets.UTF_8), presentedSecret.getBytes(StandardCharsets.UTF_8));
+		}
+		try {
+			//Remote address is a literal, nothing is looked up.
+			return addresses.contains(InetAddress.getByName(remoteAddress));
+		}catch(UnknownHostException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return secret this node presents to others, empty if none
+	 */
+	String getSecret() {
+		return secret;
+	}
+
+	/**
+	 * @return url without surrounding blanks and trailing slashes
+	 */
+	private static String normalize(String url) {
+		url = url.trim();
+		while(url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+		return url;
+	}
+
+	/**
+	 * FNV-1a of UTF-8 bytes, spread by Murmur3 finalizer as FNV alone clusters similar keys.
+	 */
+	static long hash(String key) {
+		long hash = 0xCBF29CE484222325L;
+		for(byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xFF;
+			hash *= 0x100000001B3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB93FE53E94D3L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
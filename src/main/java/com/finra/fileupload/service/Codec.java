@@ -0,0 +1,62 @@
+package com.finra.fileupload.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * How an upload's payload is encoded on disk, recorded in its metadata so it can be decoded on read.
+ * @author akadam
+ * @since 1.0
+ */
+public enum Codec {
+
+	/**Stored as uploaded*/
+	NONE,
+
+	/**Stored as a zlib stream*/
+	DEFLATE;
+
+	/**Bytes of stored payload handed to inflater at a time*/
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Parses codec ignoring case.
+	 * @param value codec name
+	 * @return codec
+	 * @throws IllegalArgumentException if value is not a codec
+	 */
+	public static Codec parse(String value) {
+		return valueOf(value.trim().toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * @return name of the codec as stored in metadata
+	 */
+	public String getName() {
+		return name().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @param stored stream of stored payload
+	 * @return stream of payload as uploaded
+	 */
+	public InputStream decode(InputStream stored) {
+		if(this != DEFLATE) {
+			return stored;
+		}
+		return new InflaterInputStream(stored, new Inflater(), BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				}finally {
+					//Inflater passed in is not ended by the stream itself.
+					inf.end();
+				}
+			}
+		};
+	}
+}
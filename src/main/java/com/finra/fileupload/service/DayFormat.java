@@ -0,0 +1,144 @@
+package com.finra.fileupload.service;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread safe yyyy-MM-dd formatting and parsing of the dates we store, files are
+ * organised by day so dates are handled as days since epoch in default time zone.
+ *
+ * Formatted strings of recently used days are cached, so formatting the same few days
+ * over and over for uploads and search results doesn't allocate.
+ * @author akadam
+ * @since 1.0
+ */
+public final class DayFormat {
+
+	/**Format of stored dates*/
+	private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE;
+
+	/**Time zone dates are interpreted in, same as request dates are parsed in*/
+	private static final ZoneId ZONE = ZoneId.systemDefault();
+
+	/**Number of cached days, power of two*/
+	private static final int CACHE_SIZE = 1024;
+
+	/**Recently formatted days, slot is epoch day modulo cache size*/
+	private static final AtomicReferenceArray<FormattedDay> CACHE = new AtomicReferenceArray<FormattedDay>(CACHE_SIZE);
+
+	private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+
+	private DayFormat() {
+	}
+
+	/**
+	 * @param date point in time
+	 * @return day of given date in default time zone as days since epoch
+	 */
+	public static int toEpochDay(Date date) {
+		long millis = date.getTime();
+		long offset = ZONE.getRules().getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds() * 1000L;
+		return (int) Math.floorDiv(millis + offset, MILLIS_PER_DAY);
+	}
+
+	/**
+	 * @param epochDay days since epoch
+	 * @return start of given day in default time zone
+	 */
+	public static Date toDate(int epochDay) {
+		return Date.from(LocalDate.ofEpochDay(epochDay).atStartOfDay(ZONE).toInstant());
+	}
+
+	/**
+	 * @param date point in time
+	 * @return day of given date formatted as yyyy-MM-dd
+	 */
+	public static String format(Date date) {
+		return format(toEpochDay(date));
+	}
+
+	/**
+	 * @param epochDay days since epoch
+	 * @return day formatted as yyyy-MM-dd
+	 */
+	public static String format(int epochDay) {
+		int slot = epochDay & (CACHE_SIZE - 1);
+		FormattedDay cached = CACHE.get(slot);
+		if(cached != null && cached.epochDay == epochDay) {
+			return cached.text;
+		}
+		String text = FORMATTER.format(LocalDate.ofEpochDay(epochDay));
+		CACHE.set(slot, new FormattedDay(epochDay, text));
+		return text;
+	}
+
+	/**
+	 * @param text day formatted as yyyy-MM-dd
+	 * @return days since epoch
+	 * @throws IllegalArgumentException if text is not a valid day
+	 */
+	public static int parseEpochDay(String text) {
+		if(text.length() == 10 && text.charAt(4) == '-' && text.charAt(7) == '-') {
+			int year = digits(text, 0, 4);
+			int month = digits(text, 5, 7);
+			int day = digits(text, 8, 10);
+			if(year >= 0 && month >= 0 && day >= 0) {
+				try {
+					return (int) LocalDate.of(year, month, day).toEpochDay();
+				}catch(RuntimeException e) {
+					throw new IllegalArgumentException("Malformed date ["+text+"]", e);
+				}
+			}
+		}
+		try {
+			return (int) LocalDate.parse(text, FORMATTER).toEpochDay();
+		}catch(DateTimeParseException e) {
+			throw new IllegalArgumentException("Malformed date ["+text+"]", e);
+		}
+	}
+
+	/**
+	 * @param text day formatted as yyyy-MM-dd
+	 * @return start of given day in default time zone
+	 * @throws IllegalArgumentException if text is not a valid day
+	 */
+	public static Date parse(String text) {
+		return toDate(parseEpochDay(text));
+	}
+
+	/**
+	 * @return decimal value of given characters, -1 if any of them is not a digit
+	 */
+	private static int digits(String text, int from, int to) {
+		int value = 0;
+		for(int i = from; i < to; i++) {
+			char c = text.charAt(i);
+			if(c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Cached formatted day, immutable so it can be shared between threads without locking.
+	 */
+	private static final class FormattedDay {
+
+		private final int epochDay;
+
+		private final String text;
+
+		FormattedDay(int epochDay, String text) {
+			this.epochDay = epochDay;
+			this.text = text;
+		}
+	}
+}
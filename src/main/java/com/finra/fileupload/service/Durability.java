@@ -0,0 +1,30 @@
+package com.finra.fileupload.service;
+
+import java.util.Locale;
+
+/**
+ * How durable an upload must be before it is acknowledged.
+ * @author akadam
+ * @since 1.0
+ */
+public enum Durability {
+
+	/**Acknowledged once written, left to the OS to flush*/
+	NONE,
+
+	/**Acknowledged once fsynced together with other concurrent uploads*/
+	BATCH,
+
+	/**Acknowledged once fsynced on its own*/
+	SYNC;
+
+	/**
+	 * Parses durability level ignoring case.
+	 * @param value durability name
+	 * @return durability level
+	 * @throws IllegalArgumentException if value is not a durability level
+	 */
+	public static Durability parse(String value) {
+		return valueOf(value.trim().toUpperCase(Locale.ROOT));
+	}
+}
@@ -1,11 +1,23 @@
 package com.finra.fileupload.service;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Date;
 import java.util.logging.Logger;
 
 /**
- * Value object for storing file bytes and file metadata. 
+ * Value object for storing file contents and file metadata. 
+ * Contents can be held as bytes, as an input stream (e.g. multipart upload)
+ * or as a file already on disk, stream and file variants are never
+ * loaded fully into memory.
  * @author akadam
  * @since 1.0
  */
@@ -23,11 +35,29 @@ public class FileContainer implements Serializable {
 	/**file contents*/
 	private byte[] fileContentBytes;
 	
+	/**file contents as stream, consumed once while persisting*/
+	private transient InputStream fileContentStream;
+	
+	/**file contents as file on disk*/
+	private File fileContentFile;
+	
+	/**Unique id of the upload, assigned when saved unless given upfront*/
+	private String uploadId;
+	
+	/**Durability asked for by the upload, default durability when null*/
+	private Durability durability;
+	
+	/**Length of stream contents when known upfront, e.g. from multipart size, -1 otherwise*/
+	private long contentLength = -1;
+	
 	/**Name of the file uploaded*/
 	private String fileName;
     
 	/**date on which file is uploaded*/
 	protected Date fileDate;
+	
+	/**Date recorded as upload date, e.g. when moved from another node, today when null*/
+	private Date uploadedDate;
 
 	
 	public FileContainer(String userName, byte[] fileContentBytes,
@@ -39,6 +69,85 @@ public class FileContainer implements Serializable {
 		this.fileDate = fileDate;
 	}
 
+	public FileContainer(String userName, InputStream fileContentStream,
+			String fileName, Date fileDate) {
+		super();
+		this.userName = userName;
+		this.fileContentStream = fileContentStream;
+		this.fileName = fileName;
+		this.fileDate = fileDate;
+	}
+
+	public FileContainer(String userName, File fileContentFile,
+			String fileName, Date fileDate) {
+		super();
+		this.userName = userName;
+		this.fileContentFile = fileContentFile;
+		this.fileName = fileName;
+		this.fileDate = fileDate;
+	}
+
+	/**
+	 * Reduces a client supplied file name to its last path segment, so it can't point
+	 * outside the upload directory.
+	 * @param name file name as sent, may carry / or \ separated directories
+	 * @return last segment of the name
+	 * @throws IllegalArgumentException if nothing usable is left, e.g. empty, . or ..
+	 */
+	public static String toFileName(String name) {
+		if(name == null) {
+			throw new IllegalArgumentException("File name is required");
+		}
+		String fileName = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+		if(fileName.isEmpty() || ".".equals(fileName) || "..".equals(fileName) || fileName.indexOf('\0') >= 0) {
+			throw new IllegalArgumentException("Invalid file name ["+name+"]");
+		}
+		return fileName;
+	}
+
+	/**
+	 * Opens channel over file contents, whichever form they are held in.
+	 * File backed contents are returned as {@link FileChannel} so that
+	 * callers can use zero copy transfers. Caller is responsible for closing it.
+	 * @return readable channel over file contents
+	 * @throws IOException if contents can not be opened
+	 */
+	public ReadableByteChannel openContentChannel() throws IOException {
+		if(fileContentFile != null) {
+			return FileChannel.open(fileContentFile.toPath(), StandardOpenOption.READ);
+		}
+		if(fileContentStream != null) {
+			InputStream stream = fileContentStream;
+			fileContentStream = null;
+			if(stream instanceof FileInputStream) {
+				logger.fine("Content stream is file backed, using its channel");
+				return ((FileInputStream) stream).getChannel();
+			}
+			return Channels.newChannel(stream);
+		}
+		if(fileContentBytes != null) {
+			return Channels.newChannel(new ByteArrayInputStream(fileContentBytes));
+		}
+		throw new IOException("No file contents available for ["+fileName+"]");
+	}
+
+	/**
+	 * @return length of file contents in bytes, -1 if not known before reading them
+	 */
+	public long getContentLength() {
+		if(fileContentFile != null) {
+			return fileContentFile.length();
+		}
+		if(fileContentBytes != null) {
+			return fileContentBytes.length;
+		}
+		return contentLength;
+	}
+
+	public void setContentLength(long contentLength) {
+		this.contentLength = contentLength;
+	}
+
 	public String getUserName() {
 		return userName;
 	}
@@ -55,6 +164,38 @@ public class FileContainer implements Serializable {
 		this.fileContentBytes = fileContentBytes;
 	}
 
+	public InputStream getFileContentStream() {
+		return fileContentStream;
+	}
+
+	public void setFileContentStream(InputStream fileContentStream) {
+		this.fileContentStream = fileContentStream;
+	}
+
+	public File getFileContentFile() {
+		return fileContentFile;
+	}
+
+	public void setFileContentFile(File fileContentFile) {
+		this.fileContentFile = fileContentFile;
+	}
+
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	public void setUploadId(String uploadId) {
+		this.uploadId = uploadId;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	public void setDurability(Durability durability) {
+		this.durability = durability;
+	}
+
 	public String getFileName() {
 		return fileName;
 	}
@@ -70,4 +211,12 @@ public class FileContainer implements Serializable {
 	public void setFileDate(Date fileDate) {
 		this.fileDate = fileDate;
 	}
+
+	public Date getUploadedDate() {
+		return uploadedDate;
+	}
+
+	public void setUploadedDate(Date uploadedDate) {
+		this.uploadedDate = uploadedDate;
+	}
 }
@@ -1,18 +1,21 @@
 package com.finra.fileupload.service;
 
-import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.math.BigInteger;
-import java.security.SecureRandom;
-import java.text.DateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -22,6 +25,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
 /**
  * Utility file handler for all file operations
@@ -33,25 +37,100 @@ public class FileManagerHelper {
 	/**Logger*/
 	private static final Logger logger = Logger.getLogger(FileManagerHelper.class.getCanonicalName());
 
-	/**For generating unique identifier*/
+	/**For generating unique, time ordered upload ids*/
 	@Autowired
-	SecureRandom secureRandom;
+	UploadIdGenerator uploadIdGenerator;
 	
-	/**Simple Date format*/
+	/**In memory metadata index, kept up to date with every stored file*/
 	@Autowired
-	DateFormat dateFormat;
+	FileMetaDataIndex metaDataIndex;
+	
+	/**Append only metadata journal, used when metadata store is journal*/
+	@Autowired
+	MetaDataJournal metaDataJournal;
+	
+	/**Decides where uploads are placed under storage root*/
+	@Autowired
+	StorageLayout storageLayout;
+	
+	/**Content addressed store used when dedup is enabled*/
+	@Autowired
+	BlobStore blobStore;
+	
+	/**Makes uploads durable, one fsync per batch of uploads*/
+	@Autowired
+	GroupCommitter groupCommitter;
+	
+	/**Compresses payloads when compression is enabled*/
+	@Autowired
+	PayloadCompressor payloadCompressor;
+	
+	/**Packs small payloads into segments when enabled*/
+	@Autowired
+	SegmentStore segmentStore;
+	
+	/**Reads properties files in parallel for searches and full scans*/
+	@Autowired
+	MetaDataScanner metaDataScanner;
+	
+	/**Write timings, ingested bytes and search costs*/
+	@Autowired
+	StorageMetrics storageMetrics;
+	
+	/**Per user usage, counted as uploads enter and leave the index*/
+	@Autowired
+	UsageStats usageStats;
+	
+	/**Where metadata is stored, properties file per upload or journal*/
+	@Value("${fileupload.metadata.store:properties}")
+	String metaDataStore;
 	
 	/**File name constant*/
-	private static final String FILE_NAME = "File_Name";
+	static final String FILE_NAME = "File_Name";
 	
 	/**User name constant*/
-	private static final String USER_NAME = "User_Name";
+	static final String USER_NAME = "User_Name";
 	
 	/**Uploaded date constant*/
-	private static final String UPLOADED_DATE = "Uploaded_Date";
+	static final String UPLOADED_DATE = "Uploaded_Date";
 	
 	/**Creation date constant*/
-	private static final String CREATION_DATE = "Creation_Date";
+	static final String CREATION_DATE = "Creation_Date";
+	
+	/**File size constant*/
+	static final String FILE_SIZE = "File_Size";
+	
+	/**Codec constant, recorded only for payloads stored compressed*/
+	static final String CODEC = "Codec";
+	
+	/**Upload id constant*/
+	static final String UPLOAD_ID = "Upload_Id";
+	
+	/**Content digest constant, hex SHA-256 of the payload, recorded when dedup is enabled*/
+	static final String CONTENT_DIGEST = "Content_Digest";
+	
+	/**Metadata file extension*/
+	private static final String PROPERTIES_EXTENSION = ".properties";
+	
+	/**Metadata store keeping records in journal*/
+	private static final String STORE_JOURNAL = "journal";
+	
+	/**Directories under storage root starting with this are for internal use, not uploads*/
+	static final String RESERVED_PREFIX = "_";
+	
+	/**Max bytes moved by a single channel transfer call*/
+	private static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+	
+	/**Per thread buffer for copies which need to look at the bytes, e.g. digest*/
+	private static final ThreadLocal<ByteBuffer> COPY_BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(64 * 1024);
+		}
+	};
+	
+	/**Hex digits for digest formatting*/
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
 
 	/**
 	 * Saves File and its metadata to unique location on disk
@@ -59,41 +138,247 @@ public class FileManagerHelper {
 	 * @param parentDirectoryPath parent/root path where files to be saved.
 	 */
 	public void storeFileToUniqueLocation(FileContainer container, String parentDirectoryPath) {
-		String directoryPath = getUniquePath(parentDirectoryPath);
-		createDirectory(directoryPath);
-		persistFile(container, directoryPath);
+		//Names come from clients, every ingest path ends up here.
+		container.setFileName(FileContainer.toFileName(container.getFileName()));
+		String uploadId = container.getUploadId() != null ? container.getUploadId() : getUniqueId();
+		if(!UploadIdGenerator.isWellFormed(uploadId)) {
+			throw new IllegalArgumentException("Invalid upload id ["+uploadId+"]");
+		}
+		container.setUploadId(uploadId);
+		Durability durability = container.getDurability() != null ? 
+				container.getDurability() : groupCommitter.getDefaultDurability();
+		FileMetaData metadata = null;
+		try {
+			if(isJournalStore() && segmentStore.accepts(container.getContentLength())) {
+				metadata = index(persistPacked(container, uploadId));
+				if(durability != Durability.NONE) {
+					List<Path> files = new ArrayList<Path>(1);
+					files.add(segmentStore.locate(uploadId));
+					List<Path> directories = new ArrayList<Path>(1);
+					directories.add(segmentStore.getDirectory());
+					groupCommitter.makeDurable(durability, files, directories, true);
+				}
+			}else {
+				String directoryPath = getUniquePath(parentDirectoryPath, container, uploadId);
+				createDirectory(directoryPath);
+				metadata = index(persistFile(container, parentDirectoryPath, directoryPath, uploadId));
+				if(durability != Durability.NONE) {
+					makeDurable(durability, container, parentDirectoryPath, directoryPath);
+				}
+			}
+		}catch(RuntimeException e) {
+			if(metadata != null) {
+				rollback(metadata, parentDirectoryPath, e);
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Removes whatever was stored of an upload which failed, e.g. when it could not be made
+	 * durable, so a client retrying it doesn't leave a duplicate behind.
+	 */
+	private void rollback(FileMetaData metadata, String parentDirectoryPath, RuntimeException cause) {
+		try {
+			deleteUpload(metadata, parentDirectoryPath);
+			logger.info("Rolled back upload ["+metadata.getUploadId()+"]");
+		}catch(RuntimeException e) {
+			cause.addSuppressed(e);
+		}
+	}
+	
+	/**
+	 * Indexes a stored upload as soon as it is written, before waiting for durability, so
+	 * metadata watcher finding its properties file meanwhile only replaces the same entry.
+	 * Usage is counted for what the index actually gained, and upload is rolled back if it
+	 * can't be made durable.
+	 * @return the metadata indexed
+	 */
+	private FileMetaData index(FileMetaData metadata) {
+		FileMetaData previous = metaDataIndex.add(metadata);
+		if(previous != null) {
+			usageStats.remove(previous);
+		}
+		usageStats.record(metadata);
+		return metadata;
+	}
+	
+	/**
+	 * Deletes an upload, its payload and its metadata. A dedup blob is removed along with the
+	 * last upload linking it.
+	 * @param metadata metadata of the upload
+	 * @param parentDirectoryPath parent/root path where files are saved.
+	 */
+	public void deleteUpload(FileMetaData metadata, String parentDirectoryPath) {
+		String uploadId = metadata.getUploadId();
+		if(isJournalStore()) {
+			metaDataJournal.remove(uploadId);
+		}
+		//Files go before index entry, a watcher which read them meanwhile finds them gone after adding it back
+		if(!segmentStore.delete(uploadId)) {
+			deleteDirectory(metadata, parentDirectoryPath);
+		}
+		FileMetaData removed = metaDataIndex.remove(metadata);
+		if(removed != null) {
+			usageStats.remove(removed);
+		}
 	}
 
 	/**
-	 * Finds file metadata saved on disk.
-	 * @param parentDirectoryPath parent directory to searched into, for file metadata
-	 * @param user user to which this metadata belongs to
-	 * @param fileCreationDate optional file creation date
-	 * @return List of all file metadata
+	 * Deletes payload and properties file of an upload, and its directory once empty.
 	 */
-	public List<Map<String, String>> searchFileMetaData(String parentDirectoryPath, String user, Date fileCreationDate) {
-		List<Map<String, String>> metadata = null;
-		File file = new File(parentDirectoryPath);
-		String[] directories = file.list(new FilenameFilter() {
-		  @Override
-		  public boolean accept(File current, String name) {
-		    return new File(current, name).isDirectory();
-		  }
-		});
-		
-		if(directories != null && directories.length > 0) {
-			metadata =  getMetaData(parentDirectoryPath, directories, user, fileCreationDate);
+	private void deleteDirectory(FileMetaData metadata, String parentDirectoryPath) {
+		String uploadId = metadata.getUploadId();
+		File directory = storageLayout.locate(parentDirectoryPath, metadata.getUserName(), metadata.getCreationDate(), uploadId);
+		if(directory == null) {
+			return;
+		}
+		try {
+			if(metadata.getFileName() != null) {
+				Files.deleteIfExists(new File(directory, metadata.getFileName()).toPath());
+				Files.deleteIfExists(new File(directory, metadata.getFileName() + PROPERTIES_EXTENSION).toPath());
+			}
+			blobStore.release(parentDirectoryPath, metadata);
+			String[] remaining = directory.list();
+			if(remaining != null && remaining.length == 0) {
+				Files.deleteIfExists(directory.toPath());
+			}
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while deleting upload ["+uploadId+"]", e);
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Hands over everything written for an upload to group committer and waits till it is on disk:
+	 * the payload, its properties file or the journal, and every directory from the upload
+	 * directory up to storage root as those may have been created for this upload.
+	 */
+	private void makeDurable(Durability durability, FileContainer container, String parentDirectoryPath, String directoryPath) {
+		List<Path> files = new ArrayList<Path>(2);
+		files.add(Paths.get(directoryPath, container.getFileName()));
+		if(!isJournalStore()) {
+			files.add(Paths.get(directoryPath, container.getFileName() + PROPERTIES_EXTENSION));
+		}
+		List<Path> directories = new ArrayList<Path>();
+		Path root = Paths.get(parentDirectoryPath).toAbsolutePath().normalize();
+		Path directory = Paths.get(directoryPath).toAbsolutePath().normalize();
+		while(directory != null && directory.startsWith(root)) {
+			directories.add(directory);
+			directory = directory.getParent();
+		}
+		groupCommitter.makeDurable(durability, files, directories, isJournalStore());
+	}
+	
+	/**
+	 * Builds the metadata index from the journal or from all properties files saved on disk,
+	 * depending on configured metadata store.
+	 * @param parentDirectoryPath parent/root path where files are saved.
+	 */
+	public void buildMetaDataIndex(String parentDirectoryPath) {
+		buildMetaDataIndex(Collections.singletonList(parentDirectoryPath));
+	}
+	
+	/**
+	 * Builds the metadata index from the journal, kept under first root, or from all properties
+	 * files saved under every root, depending on configured metadata store.
+	 * @param parentDirectoryPaths roots where files are saved, first one holds the journal
+	 */
+	public void buildMetaDataIndex(List<String> parentDirectoryPaths) {
+		String primary = parentDirectoryPaths.get(0);
+		Map<String, Map<String, String>> metadata;
+		if(isJournalStore()) {
+			metadata = metaDataJournal.open(primary);
 		}else {
-			metadata = new ArrayList<Map<String,String>>();
+			MetaDataScanner.Result result = scanPropertiesFiles(parentDirectoryPaths);
+			storageMetrics.scanned(result.getDirectories(), result.getPropertiesFiles());
+			metadata = byUploadId(result);
+		}
+		List<FileMetaData> records = toRecords(metadata);
+		metaDataIndex.rebuild(records);
+		blobStore.rebuild(records);
+		if(segmentStore.isEnabled()) {
+			if(isJournalStore()) {
+				segmentStore.open(primary);
+				segmentStore.retain(metadata.keySet());
+			}else {
+				logger.warning("Segment store needs journal metadata store, small files are stored one per directory");
+			}
+		}
+	}
+	
+	private List<FileMetaData> toRecords(Map<String, Map<String, String>> metadata) {
+		List<FileMetaData> records = new ArrayList<FileMetaData>(metadata.size());
+		for(Map.Entry<String, Map<String, String>> entry : metadata.entrySet()) {
+			FileMetaData record = toRecord(entry.getValue(), entry.getKey());
+			if(record != null) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+	
+	/**
+	 * Converts stored metadata to record, incomplete metadata is logged and skipped.
+	 * @return metadata record, null if metadata is incomplete
+	 */
+	private FileMetaData toRecord(Map<String, String> metadata, String defaultUploadId) {
+		try {
+			return FileMetaData.fromMap(metadata, defaultUploadId);
+		}catch(IllegalArgumentException e) {
+			logger.warning("Skipping incomplete metadata for upload ["+defaultUploadId+"], "+e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads metadata from all properties files saved on disk, in parallel.
+	 * @param parentDirectoryPath parent/root path where files are saved.
+	 * @return all metadata keyed by upload id
+	 */
+	public Map<String, Map<String, String>> readPropertiesMetaData(String parentDirectoryPath) {
+		return readPropertiesMetaData(Collections.singletonList(parentDirectoryPath));
+	}
+	
+	/**
+	 * Reads metadata from all properties files saved under every root, all roots are read in parallel.
+	 * @param parentDirectoryPaths roots where files are saved.
+	 * @return all metadata keyed by upload id
+	 */
+	public Map<String, Map<String, String>> readPropertiesMetaData(List<String> parentDirectoryPaths) {
+		return byUploadId(scanPropertiesFiles(parentDirectoryPaths));
+	}
+	
+	private MetaDataScanner.Result scanPropertiesFiles(List<String> parentDirectoryPaths) {
+		List<File> parents = new ArrayList<File>();
+		for(String parentDirectoryPath : parentDirectoryPaths) {
+			parents.addAll(storageLayout.allDirectories(parentDirectoryPath));
+		}
+		return metaDataScanner.scan(parents, null, null);
+	}
+	
+	private Map<String, Map<String, String>> byUploadId(MetaDataScanner.Result result) {
+		Map<String, Map<String, String>> metadata = new HashMap<String, Map<String, String>>(result.getMetaData().size() * 2);
+		for(Map<String, String> map : result.getMetaData()) {
+			metadata.put(map.get(UPLOAD_ID), map);
 		}
 		return metadata;
 	}
+
 	/**
-	 * Creates unique path on server where we will save file
+	 * Creates unique identifier for an upload, identifiers sort by the time they were created
 	 * @return
 	 */
-	private String getUniquePath(String parentDir) {
-		return new StringBuilder(parentDir).append(File.separator).append(new BigInteger(130, secureRandom).toString(32)).toString();
+	public String getUniqueId() {
+		return uploadIdGenerator.nextId();
+	}
+	
+	/**
+	 * Creates unique path on server where we will save file, as per configured storage layout
+	 * @return
+	 */
+	private String getUniquePath(String parentDir, FileContainer container, String uploadId) {
+		return storageLayout.resolve(parentDir, container.getUserName(), container.getFileDate(), uploadId);
 	}
 	
 	/**
@@ -107,154 +392,246 @@ public class FileManagerHelper {
 	
 	
 	/**
-	 * SAves file on server
+	 * SAves file on server, contents are streamed to disk through
+	 * channels so file is never held fully in memory.
+	 * When dedup is enabled contents are digested while written and then linked to the blob store.
 	 * @param container
+	 * @param parentDirectoryPath
 	 * @param directoryPath
+	 * @param uploadId
+	 * @return metadata saved along with the file
 	 */
-	private void persistFile(FileContainer container, String directoryPath){
+	private FileMetaData persistFile(FileContainer container, String parentDirectoryPath, String directoryPath, String uploadId){
 		File dir = new File(directoryPath);
 		File fileToStore = new File(dir, container.getFileName());
 		
-		FileOutputStream fStream = null;
+		ReadableByteChannel source = null;
+		FileChannel target = null;
 		FileOutputStream fos = null;
-		BufferedOutputStream bStream = null;
 		try {
-			fStream = new FileOutputStream(fileToStore);
-			bStream = new BufferedOutputStream(fStream);
-			bStream.write(container.getFileContentBytes());
+			source = container.openContentChannel();
+			long start = System.nanoTime();
+			long size;
+			Codec codec = Codec.NONE;
+			String digest = null;
+			if(blobStore.isEnabled()) {
+				File tempFile = blobStore.newTempFile(parentDirectoryPath, uploadId);
+				target = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, 
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				MessageDigest messageDigest = MessageDigest.getInstance(BlobStore.DIGEST_ALGORITHM);
+				if(payloadCompressor.isEnabled()) {
+					PayloadCompressor.Result result = payloadCompressor.write(source, target, messageDigest);
+					size = result.getSize();
+					codec = result.getCodec();
+				}else {
+					size = transfer(source, target, messageDigest);
+				}
+				target.close();
+				digest = toHex(messageDigest.digest());
+				blobStore.store(parentDirectoryPath, tempFile, BlobStore.blobName(digest, codec), size, fileToStore);
+			}else {
+				target = FileChannel.open(fileToStore.toPath(), StandardOpenOption.CREATE, 
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				if(payloadCompressor.isEnabled()) {
+					PayloadCompressor.Result result = payloadCompressor.write(source, target, null);
+					size = result.getSize();
+					codec = result.getCodec();
+				}else {
+					size = transfer(source, target);
+				}
+			}
+			storageMetrics.payloadWritten(start);
+			storageMetrics.bytesStored(size);
 			
-			Properties prop= new Properties();
-			prop.put(FILE_NAME, container.getFileName());
-			prop.put(USER_NAME, container.getUserName());
-			prop.put(CREATION_DATE, dateFormat.format(container.getFileDate()));
-			prop.put(UPLOADED_DATE, dateFormat.format(new Date()));
+			FileMetaData metadata = new FileMetaData(uploadId, container.getUserName(), container.getFileName(),
+					DayFormat.toEpochDay(container.getFileDate()), DayFormat.toEpochDay(uploadedDate(container)), size, digest, codec);
 			
-			String propertiesFileLocation = directoryPath+File.separator+container.getFileName()+".properties"; 
-			fos = new FileOutputStream(propertiesFileLocation);
-			prop.store(fos, "=============================File Metadata=============================");
+			start = System.nanoTime();
+			if(isJournalStore()) {
+				metaDataJournal.append(uploadId, metadata.toMap());
+			}else {
+				Properties prop= new Properties();
+				prop.putAll(metadata.toMap());
+				String propertiesFileLocation = directoryPath+File.separator+container.getFileName()+PROPERTIES_EXTENSION; 
+				fos = new FileOutputStream(propertiesFileLocation);
+				prop.store(fos, "=============================File Metadata=============================");
+			}
+			storageMetrics.metaDataWritten(start);
+			return metadata;
 		}catch(IOException e) {
 			logger.log(Level.SEVERE, "Failed while saving file on disk", e);
 			throw new RuntimeException(e);
+		}catch(NoSuchAlgorithmException e) {
+			logger.log(Level.SEVERE, "Digest algorithm not available", e);
+			throw new RuntimeException(e);
 		}finally {
-			if(bStream != null) {
-				try {
-					bStream.close();
-				} catch (IOException e) {
-					logger.log(Level.SEVERE, "Failed while closing stream [bStream] ", e);
-					throw new RuntimeException(e);
-				}
+			close(source, "source");
+			close(target, "target");
+			close(fos, "fos");
+		}
+	}
+	
+	/**
+	 * Saves a small file into segment store, contents are read into memory as a whole.
+	 * Packed payloads are neither compressed nor deduplicated.
+	 * @param container
+	 * @param uploadId
+	 * @return metadata saved along with the file
+	 */
+	private FileMetaData persistPacked(FileContainer container, String uploadId) {
+		ReadableByteChannel source = null;
+		try {
+			source = container.openContentChannel();
+			long start = System.nanoTime();
+			//One extra byte to detect contents longer than declared.
+			ByteBuffer buffer = ByteBuffer.allocate((int) container.getContentLength() + 1);
+			while(buffer.hasRemaining() && source.read(buffer) != -1) {
 			}
-			if(fStream != null) {
-				try {
-					fStream.close();
-				} catch (IOException e) {
-					logger.log(Level.SEVERE, "Failed while closing stream [fStream]", e);
-					throw new RuntimeException(e);
-				}
+			if(!buffer.hasRemaining()) {
+				throw new IOException("Contents of ["+container.getFileName()+"] are longer than ["+container.getContentLength()+"] bytes");
 			}
-			if(fos != null) {
-				try {
-					fos.close();
-				} catch (IOException e) {
-					logger.log(Level.SEVERE, "Failed while closing stream [fos]", e);
-					throw new RuntimeException(e);
+			int size = buffer.position();
+			segmentStore.append(uploadId, buffer.array(), size);
+			storageMetrics.payloadWritten(start);
+			storageMetrics.bytesStored(size);
+			
+			FileMetaData metadata = new FileMetaData(uploadId, container.getUserName(), container.getFileName(),
+					DayFormat.toEpochDay(container.getFileDate()), DayFormat.toEpochDay(uploadedDate(container)), size, null);
+			start = System.nanoTime();
+			metaDataJournal.append(uploadId, metadata.toMap());
+			storageMetrics.metaDataWritten(start);
+			return metadata;
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while saving file into segment", e);
+			throw new RuntimeException(e);
+		}finally {
+			close(source, "source");
+		}
+	}
+	
+	/**
+	 * @return true if metadata is kept in journal instead of properties file per upload
+	 */
+	boolean isJournalStore() {
+		return STORE_JOURNAL.equalsIgnoreCase(metaDataStore);
+	}
+	
+	/**
+	 * Copies all bytes from source to target channel. File sources are copied with
+	 * {@link FileChannel#transferTo} (zero copy where OS supports it), any other source
+	 * goes through {@link FileChannel#transferFrom} which uses small internal buffer.
+	 * @param source channel to read from
+	 * @param target channel to write to, positioned at start
+	 * @return number of bytes copied
+	 * @throws IOException if copy fails
+	 */
+	long transfer(ReadableByteChannel source, FileChannel target) throws IOException {
+		long position = 0;
+		if(source instanceof FileChannel) {
+			FileChannel fileSource = (FileChannel) source;
+			long size = fileSource.size();
+			while(position < size) {
+				long count = fileSource.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), target);
+				if(count <= 0) {
+					throw new EOFException("Source ended at ["+position+"] of ["+size+"] bytes");
 				}
+				position += count;
 			}
+		}else {
+			long count;
+			while((count = target.transferFrom(source, position, TRANSFER_CHUNK_SIZE)) > 0) {
+				position += count;
+			}
+		}
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Transferred ["+position+"] bytes");
 		}
+		return position;
 	}
-
+	
 	/**
-	 * Finds the file metadata from the list of directories under parent directory
-	 * @param parentDirectoryPath parent directory to searched into, for file metadata
-	 * @param directories list of directoties from which metadata needs to be searched
-	 * @param user user to which this metadata belongs to
-	 * @param fileCreationDate optional file creation date
-	 * @return List of all file metadata
+	 * Copies all bytes from source to target channel through a per thread buffer,
+	 * updating the digest with every byte copied.
+	 * @param source channel to read from
+	 * @param target channel to write to, positioned at start
+	 * @param digest digest to be updated
+	 * @return number of bytes copied
+	 * @throws IOException if copy fails
 	 */
-	public List<Map<String, String>> getMetaData(String parentDirectoryPath, String[] directories, String user, Date fileCreationDate) {
-		List<Map<String, String>> data = new ArrayList<Map<String, String>>();
-		
-		logger.fine("Total directories to scan ["+directories.length+"]");
-		for(String dir : directories) {
-			String path = parentDirectoryPath+File.separator+dir;
-			logger.fine("Checking properties files under ["+path+"]");
-			
-			String[] filesNames = new File(path).list(new FilenameFilter() {
-				  @Override
-				  public boolean accept(File current, String name) {
-					  logger.fine("File Name ["+name+"]");
-					  return name.endsWith(".properties");
-				  }
-				});
-			
-			if(filesNames == null || filesNames.length < 1) {
-				return new ArrayList<Map<String, String>>();
-			}
-			
-			for(String propFileName : filesNames) {
-				String propFilePath = path + File.separator + propFileName;
-				Map<String, String> map = getMetaDataFromPropertiesFiles(propFilePath, user, fileCreationDate);
-				if(map != null && !map.isEmpty()) {
-					data.add(map);
-				}
+	private long transfer(ReadableByteChannel source, FileChannel target, MessageDigest digest) throws IOException {
+		ByteBuffer buffer = COPY_BUFFER.get();
+		long position = 0;
+		buffer.clear();
+		while(source.read(buffer) != -1) {
+			buffer.flip();
+			digest.update(buffer.array(), buffer.arrayOffset(), buffer.limit());
+			while(buffer.hasRemaining()) {
+				position += target.write(buffer);
 			}
+			buffer.clear();
 		}
-		
-		return data;
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Transferred and digested ["+position+"] bytes");
+		}
+		return position;
 	}
 	
+	/**
+	 * Formats digest bytes as lower case hex
+	 */
+	private String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @return upload date carried by the container, e.g. of an upload moved from another node, today otherwise
+	 */
+	private Date uploadedDate(FileContainer container) {
+		return container.getUploadedDate() != null ? container.getUploadedDate() : new Date();
+	}
+
+	/**
+	 * Closes the given resource, failures are logged and rethrown.
+	 * @param closeable resource to close, can be null
+	 * @param name name of the resource for logging
+	 */
+	private void close(Closeable closeable, String name) {
+		if(closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Failed while closing stream ["+name+"]", e);
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
 	/**
 	 * Loads metadata from the given properties file
 	 * @param propFileName relative path of property file and name from which data needs to be loaded 
 	 * @param user user to which this metadata belongs to
 	 * @param fileCreationDate optional file creation date
-	 * @return key value pair from the file
+	 * @return key value pair from the file, empty if it belongs to other user or date
 	 */
 	public Map<String, String> getMetaDataFromPropertiesFiles(String propFileName, String user, Date fileCreationDate) {
-		Map<String, String> map = new HashMap<String, String>();
-		Properties prop = new Properties();
-		InputStream input = null;     
+		Map<String, String> map;
 		try {
-			input = new FileInputStream(new File(propFileName));
-			prop.load(input);
-			 
-			StringWriter writer = new StringWriter();
-			prop.list(new PrintWriter(writer));
-			logger.fine("Listing all properties ["+writer.getBuffer().toString()+"]");
-			
-			if(prop.getProperty(USER_NAME).equalsIgnoreCase(user)) {
-				if(fileCreationDate != null) {
-					String searchDate = dateFormat.format(fileCreationDate);
-					if(prop.getProperty(CREATION_DATE).equalsIgnoreCase(searchDate)) {
-						populate(prop, map);
-					}
-				}else {
-					populate(prop, map);
-				}
-			}
-			return map;
+			map = PropertiesReader.read(new File(propFileName));
 		}catch(IOException e) {
-			logger.log(Level.SEVERE, "Failed while opening stream to properties file", e);
+			logger.log(Level.SEVERE, "Failed while reading properties file", e);
 			throw new RuntimeException(e);
-		}finally {
-			if(input != null) {
-				try {
-					input.close();
-				} catch (IOException e) {
-					logger.log(Level.SEVERE, "Failed while closing stream [input]", e);
-				}
-			}
 		}
-	}
-	
-	/**
-	 * Populates the data from properties object to Map object
-	 * @param prop properties object which has all properties
-	 * @param map to be populated in this map
-	 */
-	private void populate(Properties prop, Map<String, String> map) {
-		for(String key : prop.stringPropertyNames()) {
-			map.put(key, prop.getProperty(key));
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Listing all properties ["+map+"]");
+		}
+		if(!MetaDataScanner.matches(map, user, fileCreationDate == null ? null : DayFormat.toEpochDay(fileCreationDate))) {
+			map.clear();
 		}
+		return map;
 	}
 }
@@ -0,0 +1,209 @@
+package com.finra.fileupload.service;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+/**
+ * Immutable metadata of one upload, as kept in the index and returned by searches.
+ *
+ * Dates are kept as epoch days and sizes as primitives, user names are shared through a
+ * dictionary so every upload of a user points to same string. On the wire it is written
+ * with the same keys and string values as the properties file, so clients see no change.
+ * @author akadam
+ * @since 1.0
+ */
+@JsonSerialize(using = FileMetaData.Serializer.class)
+public final class FileMetaData {
+
+	/**Marks a date that was not recorded*/
+	public static final int UNKNOWN_DAY = Integer.MIN_VALUE;
+
+	/**Marks a size that was not recorded*/
+	public static final long UNKNOWN_SIZE = -1;
+
+	/**Canonical instance of each user name*/
+	private static final ConcurrentMap<String, String> USER_NAMES = new ConcurrentHashMap<String, String>();
+
+	/**Unique id of the upload*/
+	private final String uploadId;
+
+	/**User who uploaded the file*/
+	private final String userName;
+
+	/**Name of the file uploaded*/
+	private final String fileName;
+
+	/**File creation date as days since epoch*/
+	private final int creationEpochDay;
+
+	/**Upload date as days since epoch*/
+	private final int uploadedEpochDay;
+
+	/**Size of the file in bytes*/
+	private final long fileSize;
+
+	/**Hex SHA-256 of the payload, null unless dedup was enabled*/
+	private final String contentDigest;
+
+	/**How payload is encoded on disk*/
+	private final Codec codec;
+
+	public FileMetaData(String uploadId, String userName, String fileName, int creationEpochDay,
+			int uploadedEpochDay, long fileSize, String contentDigest) {
+		this(uploadId, userName, fileName, creationEpochDay, uploadedEpochDay, fileSize, contentDigest, Codec.NONE);
+	}
+
+	public FileMetaData(String uploadId, String userName, String fileName, int creationEpochDay,
+			int uploadedEpochDay, long fileSize, String contentDigest, Codec codec) {
+		if(uploadId == null || userName == null || creationEpochDay == UNKNOWN_DAY) {
+			throw new IllegalArgumentException("Upload id, user name and creation date are required");
+		}
+		this.uploadId = uploadId;
+		this.userName = canonicalUserName(userName);
+		this.fileName = fileName;
+		this.creationEpochDay = creationEpochDay;
+		this.uploadedEpochDay = uploadedEpochDay;
+		this.fileSize = fileSize;
+		this.contentDigest = contentDigest;
+		this.codec = codec != null ? codec : Codec.NONE;
+	}
+
+	/**
+	 * Builds record from metadata as stored in properties file or journal.
+	 * @param metadata stored key value pairs
+	 * @param defaultUploadId upload id used when none was stored, e.g. name of upload directory
+	 * @return metadata record
+	 * @throws IllegalArgumentException if user name or creation date is missing or malformed, or codec is unknown
+	 */
+	public static FileMetaData fromMap(Map<String, String> metadata, String defaultUploadId) {
+		String uploadId = metadata.get(FileManagerHelper.UPLOAD_ID);
+		String creationDate = metadata.get(FileManagerHelper.CREATION_DATE);
+		String uploadedDate = metadata.get(FileManagerHelper.UPLOADED_DATE);
+		String fileSize = metadata.get(FileManagerHelper.FILE_SIZE);
+		String codec = metadata.get(FileManagerHelper.CODEC);
+		if(creationDate == null) {
+			throw new IllegalArgumentException("Creation date is required");
+		}
+		return new FileMetaData(uploadId != null ? uploadId : defaultUploadId,
+				metadata.get(FileManagerHelper.USER_NAME), metadata.get(FileManagerHelper.FILE_NAME),
+				DayFormat.parseEpochDay(creationDate), uploadedDate == null ? UNKNOWN_DAY : DayFormat.parseEpochDay(uploadedDate),
+				fileSize == null ? UNKNOWN_SIZE : Long.parseLong(fileSize), metadata.get(FileManagerHelper.CONTENT_DIGEST),
+				codec == null ? Codec.NONE : Codec.parse(codec));
+	}
+
+	/**
+	 * @return metadata as key value pairs, same as stored in properties file or journal
+	 */
+	public Map<String, String> toMap() {
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		if(fileName != null) {
+			map.put(FileManagerHelper.FILE_NAME, fileName);
+		}
+		map.put(FileManagerHelper.USER_NAME, userName);
+		map.put(FileManagerHelper.CREATION_DATE, getCreationDate());
+		if(uploadedEpochDay != UNKNOWN_DAY) {
+			map.put(FileManagerHelper.UPLOADED_DATE, getUploadedDate());
+		}
+		if(fileSize != UNKNOWN_SIZE) {
+			map.put(FileManagerHelper.FILE_SIZE, String.valueOf(fileSize));
+		}
+		map.put(FileManagerHelper.UPLOAD_ID, uploadId);
+		if(contentDigest != null) {
+			map.put(FileManagerHelper.CONTENT_DIGEST, contentDigest);
+		}
+		if(codec != Codec.NONE) {
+			map.put(FileManagerHelper.CODEC, codec.getName());
+		}
+		return map;
+	}
+
+	private static String canonicalUserName(String userName) {
+		String existing = USER_NAMES.putIfAbsent(userName, userName);
+		return existing != null ? existing : userName;
+	}
+
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public int getCreationEpochDay() {
+		return creationEpochDay;
+	}
+
+	public int getUploadedEpochDay() {
+		return uploadedEpochDay;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public String getContentDigest() {
+		return contentDigest;
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return creation date formatted as yyyy-MM-dd
+	 */
+	public String getCreationDate() {
+		return DayFormat.format(creationEpochDay);
+	}
+
+	/**
+	 * @return upload date formatted as yyyy-MM-dd, null if not recorded
+	 */
+	public String getUploadedDate() {
+		return uploadedEpochDay == UNKNOWN_DAY ? null : DayFormat.format(uploadedEpochDay);
+	}
+
+	/**
+	 * Writes the record with the keys and string values of the properties file,
+	 * without building an intermediate map.
+	 */
+	public static class Serializer extends JsonSerializer<FileMetaData> {
+
+		@Override
+		public void serialize(FileMetaData value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+			generator.writeStartObject();
+			if(value.fileName != null) {
+				generator.writeStringField(FileManagerHelper.FILE_NAME, value.fileName);
+			}
+			generator.writeStringField(FileManagerHelper.USER_NAME, value.userName);
+			generator.writeStringField(FileManagerHelper.CREATION_DATE, value.getCreationDate());
+			if(value.uploadedEpochDay != UNKNOWN_DAY) {
+				generator.writeStringField(FileManagerHelper.UPLOADED_DATE, value.getUploadedDate());
+			}
+			if(value.fileSize != UNKNOWN_SIZE) {
+				generator.writeStringField(FileManagerHelper.FILE_SIZE, String.valueOf(value.fileSize));
+			}
+			generator.writeStringField(FileManagerHelper.UPLOAD_ID, value.uploadId);
+			if(value.contentDigest != null) {
+				generator.writeStringField(FileManagerHelper.CONTENT_DIGEST, value.contentDigest);
+			}
+			if(value.codec != Codec.NONE) {
+				generator.writeStringField(FileManagerHelper.CODEC, value.codec.getName());
+			}
+			generator.writeEndObject();
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package com.finra.fileupload.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * In memory index of file metadata, keyed by user and then by file creation date.
+ * Each entry is keyed by upload id so re-indexing same upload is harmless.
+ * Lookups cost proportional to the result size instead of number of files on disk.
+ *
+ * Queries without a user are served by secondary indexes sorted by creation date,
+ * upload date and file name, prefixes of file names are ranges of the latter.
+ *
+ * Users, dates and names left without uploads are pruned. Adds share a lock which pruning
+ * takes exclusively, so an add never puts into an inner map being taken out of its index.
+ * @author akadam
+ * @since 1.0
+ */
+public class FileMetaDataIndex {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(FileMetaDataIndex.class.getCanonicalName());
+
+	/**Current contents, replaced as a whole when index is rebuilt*/
+	private volatile Tables tables = new Tables();
+
+	/**Shared by adds, held exclusively while emptied maps are pruned*/
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Adds the metadata of one upload to index, replacing what was indexed for the same upload id.
+	 * @param metadata metadata of the upload
+	 * @return metadata replaced, null if upload id was not indexed
+	 */
+	public FileMetaData add(FileMetaData metadata) {
+		Tables tables = this.tables;
+		FileMetaData previous;
+		lock.readLock().lock();
+		try {
+			previous = add(tables, metadata);
+		}finally {
+			lock.readLock().unlock();
+		}
+		if(previous != null) {
+			lock.writeLock().lock();
+			try {
+				prune(tables, previous);
+			}finally {
+				lock.writeLock().unlock();
+			}
+		}
+		return previous;
+	}
+
+	private FileMetaData add(Tables tables, FileMetaData metadata) {
+		FileMetaData previous = tables.byUploadId.put(metadata.getUploadId(), metadata);
+		if(previous != null) {
+			removeEntries(tables, previous);
+		}
+		String user = userKey(metadata.getUserName());
+		NavigableMap<Integer, NavigableMap<String, FileMetaData>> byDate = tables.index.get(user);
+		if(byDate == null) {
+			NavigableMap<Integer, NavigableMap<String, FileMetaData>> created =
+					new ConcurrentSkipListMap<Integer, NavigableMap<String, FileMetaData>>();
+			byDate = tables.index.putIfAbsent(user, created);
+			if(byDate == null) {
+				byDate = created;
+			}
+		}
+		NavigableMap<String, FileMetaData> uploads = byDate.get(metadata.getCreationEpochDay());
+		if(uploads == null) {
+			NavigableMap<String, FileMetaData> created = new ConcurrentSkipListMap<String, FileMetaData>();
+			uploads = byDate.putIfAbsent(metadata.getCreationEpochDay(), created);
+			if(uploads == null) {
+				uploads = created;
+			}
+		}
+		uploads.put(metadata.getUploadId(), metadata);
+		addTo(tables.byCreationDay, metadata.getCreationEpochDay(), metadata);
+		if(metadata.getUploadedEpochDay() != FileMetaData.UNKNOWN_DAY) {
+			addTo(tables.byUploadedDay, metadata.getUploadedEpochDay(), metadata);
+		}
+		if(metadata.getFileName() != null) {
+			addTo(tables.byFileName, metadata.getFileName(), metadata);
+		}
+		return previous;
+	}
+
+	private static <K> void addTo(ConcurrentNavigableMap<K, NavigableMap<String, FileMetaData>> map, K key, FileMetaData metadata) {
+		NavigableMap<String, FileMetaData> uploads = map.get(key);
+		if(uploads == null) {
+			NavigableMap<String, FileMetaData> created = new ConcurrentSkipListMap<String, FileMetaData>();
+			uploads = map.putIfAbsent(key, created);
+			if(uploads == null) {
+				uploads = created;
+			}
+		}
+		uploads.put(metadata.getUploadId(), metadata);
+	}
+
+	/**
+	 * Removes the metadata of one upload from index, along with users, dates and names left empty.
+	 * @param metadata metadata of the upload
+	 * @return metadata removed, null if upload id was not indexed
+	 */
+	public FileMetaData remove(FileMetaData metadata) {
+		Tables tables = this.tables;
+		lock.writeLock().lock();
+		try {
+			FileMetaData removed = tables.byUploadId.remove(metadata.getUploadId());
+			removeEntries(tables, removed != null ? removed : metadata);
+			prune(tables, removed != null ? removed : metadata);
+			return removed;
+		}finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes an upload from every index but the one by upload id.
+	 */
+	private void removeEntries(Tables tables, FileMetaData metadata) {
+		String uploadId = metadata.getUploadId();
+		NavigableMap<Integer, NavigableMap<String, FileMetaData>> byDate = tables.index.get(userKey(metadata.getUserName()));
+		if(byDate != null) {
+			removeFrom(byDate, metadata.getCreationEpochDay(), uploadId);
+		}
+		removeFrom(tables.byCreationDay, metadata.getCreationEpochDay(), uploadId);
+		removeFrom(tables.byUploadedDay, metadata.getUploadedEpochDay(), uploadId);
+		if(metadata.getFileName() != null) {
+			removeFrom(tables.byFileName, metadata.getFileName(), uploadId);
+		}
+	}
+
+	private static <K> void removeFrom(Map<K, NavigableMap<String, FileMetaData>> map, K key, String uploadId) {
+		NavigableMap<String, FileMetaData> uploads = map.get(key);
+		if(uploads != null) {
+			uploads.remove(uploadId);
+		}
+	}
+
+	/**
+	 * Takes maps under the keys of an upload out of every index once they are empty,
+	 * the write lock has to be held.
+	 */
+	private void prune(Tables tables, FileMetaData metadata) {
+		String user = userKey(metadata.getUserName());
+		NavigableMap<Integer, NavigableMap<String, FileMetaData>> byDate = tables.index.get(user);
+		if(byDate != null) {
+			pruneFrom(byDate, metadata.getCreationEpochDay());
+			if(byDate.isEmpty()) {
+				tables.index.remove(user, byDate);
+			}
+		}
+		pruneFrom(tables.byCreationDay, metadata.getCreationEpochDay());
+		pruneFrom(tables.byUploadedDay, metadata.getUploadedEpochDay());
+		if(metadata.getFileName() != null) {
+			pruneFrom(tables.byFileName, metadata.getFileName());
+		}
+	}
+
+	private static <K> void pruneFrom(Map<K, NavigableMap<String, FileMetaData>> map, K key) {
+		NavigableMap<String, FileMetaData> uploads = map.get(key);
+		if(uploads != null && uploads.isEmpty()) {
+			map.remove(key, uploads);
+		}
+	}
+
+	/**
+	 * @return number of users, dates and names held by the indexes
+	 */
+	int keyCount() {
+		Tables tables = this.tables;
+		int keys = tables.index.size() + tables.byCreationDay.size() + tables.byUploadedDay.size() + tables.byFileName.size();
+		for(NavigableMap<Integer, NavigableMap<String, FileMetaData>> byDate : tables.index.values()) {
+			keys += byDate.size();
+		}
+		return keys;
+	}
+
+	/**
+	 * Finds metadata of one upload.
+	 * @param uploadId unique id of the upload
+	 * @return metadata, null if upload is not indexed
+	 */
+	public FileMetaData get(String uploadId) {
+		return tables.byUploadId.get(uploadId);
+	}
+
+	/**
+	 * @return live unmodifiable view of all indexed metadata, until index is rebuilt
+	 */
+	public Collection<FileMetaData> getAll() {
+		return Collections.unmodifiableCollection(tables.byUploadId.values());
+	}
+
+	/**
+	 * Finds metadata for given user and optional creation date.
+	 * @param user user to whom files belong, matched ignoring case
+	 * @param creationEpochDay creation date as days since epoch, null for all dates
+	 * @return metadata ordered by creation date and upload id
+	 */
+	public List<FileMetaData> find(String user, Integer creationEpochDay) {
+		List<FileMetaData> result = new ArrayList<FileMetaData>();
+		NavigableMap<Integer, NavigableMap<String, FileMetaData>> byDate = tables.index.get(userKey(user));
+		if(byDate == null) {
+			return result;
+		}
+		if(creationEpochDay != null) {
+			NavigableMap<String, FileMetaData> uploads = byDate.get(creationEpochDay);
+			if(uploads != null) {
+				result.addAll(uploads.values());
+			}
+		}else {
+			for(NavigableMap<String, FileMetaData> uploads : byDate.values()) {
+				result.addAll(uploads.values());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Lazily walks metadata for given user and optional creation date, in the same order as
+	 * {@link #find(String, Integer)}, starting after given position. Nothing is copied so
+	 * callers can page or stream through large results with bounded memory. Entries added
+	 * while walking may or may not be seen.
+	 * @param user user to whom files belong, matched ignoring case
+	 * @param creationEpochDay creation date as days since epoch, null for all dates
+	 * @param afterEpochDay creation date of last entry already seen, null to start from beginning
+	 * @param afterId upload id of last entry already seen, null to start from beginning
+	 * @return iterator over metadata
+	 */
+	public Iterator<FileMetaData> iterator(String user, Integer creationEpochDay, final Integer afterEpochDay, final String afterId) {
+		NavigableMap<Integer, NavigableMap<String, FileMetaData>> byDate = tables.index.get(userKey(user));
+		if(byDate == null) {
+			return Collections.<FileMetaData>emptyList().iterator();
+		}
+		if(creationEpochDay != null) {
+			byDate = byDate.subMap(creationEpochDay, true, creationEpochDay, true);
+		}
+		if(afterEpochDay != null) {
+			byDate = byDate.tailMap(afterEpochDay, true);
+		}
+		final Iterator<Map.Entry<Integer, NavigableMap<String, FileMetaData>>> dates = byDate.entrySet().iterator();
+		return new Iterator<FileMetaData>() {
+			private Iterator<FileMetaData> uploads = Collections.<FileMetaData>emptyList().iterator();
+
+			@Override
+			public boolean hasNext() {
+				while(!uploads.hasNext() && dates.hasNext()) {
+					Map.Entry<Integer, NavigableMap<String, FileMetaData>> date = dates.next();
+					NavigableMap<String, FileMetaData> values = date.getValue();
+					if(afterId != null && date.getKey().equals(afterEpochDay)) {
+						values = values.tailMap(afterId, false);
+					}
+					uploads = values.values().iterator();
+				}
+				return uploads.hasNext();
+			}
+
+			@Override
+			public FileMetaData next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return uploads.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Finds metadata meeting every criterion of the query. Candidates are taken from the most
+	 * selective index the query allows, the user's dates when user is given, else file names
+	 * when a prefix is given, else creation or upload dates when ranges are given, and are then
+	 * filtered, sorted and limited by the query.
+	 * @param query criteria, sort order and limit
+	 * @return matching metadata in requested order
+	 */
+	public List<FileMetaData> query(MetaDataQuery query) {
+		return query.select(candidates(query));
+	}
+
+	private Iterable<FileMetaData> candidates(MetaDataQuery query) {
+		Tables tables = this.tables;
+		if(query.getUser() != null) {
+			NavigableMap<Integer, NavigableMap<String, FileMetaData>> byDate = tables.index.get(userKey(query.getUser()));
+			if(byDate == null) {
+				return Collections.<FileMetaData>emptyList();
+			}
+			return flatten(range(byDate, query.getCreationFrom(), query.getCreationTo()));
+		}
+		String prefix = query.getFileNamePrefix();
+		if(prefix != null) {
+			return flatten(tables.byFileName.subMap(prefix, true, prefix + Character.MAX_VALUE, true));
+		}
+		if(query.getCreationFrom() != null || query.getCreationTo() != null) {
+			return flatten(range(tables.byCreationDay, query.getCreationFrom(), query.getCreationTo()));
+		}
+		if(query.getUploadedFrom() != null || query.getUploadedTo() != null) {
+			return flatten(range(tables.byUploadedDay, query.getUploadedFrom(), query.getUploadedTo()));
+		}
+		return tables.byUploadId.values();
+	}
+
+	/**
+	 * @return part of map with keys between inclusive bounds, null bounds are open
+	 */
+	private static NavigableMap<Integer, NavigableMap<String, FileMetaData>> range(
+			NavigableMap<Integer, NavigableMap<String, FileMetaData>> map, Integer from, Integer to) {
+		if(from != null && to != null) {
+			return from <= to ? map.subMap(from, true, to, true) : Collections.<Integer, NavigableMap<String, FileMetaData>>emptyNavigableMap();
+		}
+		if(from != null) {
+			return map.tailMap(from, true);
+		}
+		return to != null ? map.headMap(to, true) : map;
+	}
+
+	/**
+	 * Lazy view of all uploads under a map's keys, in key order.
+	 */
+	private static Iterable<FileMetaData> flatten(final NavigableMap<?, NavigableMap<String, FileMetaData>> map) {
+		return new Iterable<FileMetaData>() {
+			@Override
+			public Iterator<FileMetaData> iterator() {
+				final Iterator<NavigableMap<String, FileMetaData>> keys = map.values().iterator();
+				return new Iterator<FileMetaData>() {
+					private Iterator<FileMetaData> uploads = Collections.<FileMetaData>emptyList().iterator();
+
+					@Override
+					public boolean hasNext() {
+						while(!uploads.hasNext() && keys.hasNext()) {
+							uploads = keys.next().values().iterator();
+						}
+						return uploads.hasNext();
+					}
+
+					@Override
+					public FileMetaData next() {
+						if(!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						return uploads.next();
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Replaces index contents with given metadata. New contents are built aside and swapped
+	 * in at once, searches running meanwhile see either the old or the new contents.
+	 * @param metadata all metadata
+	 */
+	public void rebuild(Collection<FileMetaData> metadata) {
+		Tables rebuilt = new Tables();
+		for(FileMetaData entry : metadata) {
+			add(rebuilt, entry);
+		}
+		tables = rebuilt;
+		logger.info("Metadata index built with ["+metadata.size()+"] entries");
+	}
+
+	/**
+	 * Users are matched ignoring case, same as disk search.
+	 */
+	private String userKey(String user) {
+		return user.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Maps making up the index.
+	 */
+	private static class Tables {
+
+		/**user -> creation epoch day -> upload id -> metadata*/
+		private final ConcurrentMap<String, NavigableMap<Integer, NavigableMap<String, FileMetaData>>> index =
+				new ConcurrentHashMap<String, NavigableMap<Integer, NavigableMap<String, FileMetaData>>>();
+
+		/**upload id -> metadata*/
+		private final ConcurrentMap<String, FileMetaData> byUploadId = new ConcurrentHashMap<String, FileMetaData>();
+
+		/**creation epoch day -> upload id -> metadata, across users*/
+		private final ConcurrentNavigableMap<Integer, NavigableMap<String, FileMetaData>> byCreationDay =
+				new ConcurrentSkipListMap<Integer, NavigableMap<String, FileMetaData>>();
+
+		/**upload epoch day -> upload id -> metadata, uploads with unknown upload date are left out*/
+		private final ConcurrentNavigableMap<Integer, NavigableMap<String, FileMetaData>> byUploadedDay =
+				new ConcurrentSkipListMap<Integer, NavigableMap<String, FileMetaData>>();
+
+		/**file name -> upload id -> metadata*/
+		private final ConcurrentNavigableMap<String, NavigableMap<String, FileMetaData>> byFileName =
+				new ConcurrentSkipListMap<String, NavigableMap<String, FileMetaData>>();
+	}
+}
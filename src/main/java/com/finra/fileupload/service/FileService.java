@@ -1,8 +1,10 @@
 package com.finra.fileupload.service;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Service to save the file on server.
@@ -23,8 +25,65 @@ public interface FileService {
 	 * Finds the metadata about the files uploaded by a given user.
 	 * @param user user to whom file belongs to
 	 * @param fileCreationDate the date on which file was created
-	 * @return list of metadata.
+	 * @return list of metadata, may be shared with other callers so it is not to be modified.
 	 */
-	public List<Map<String, String>> findMetaData(String user, Date fileCreationDate);
+	public List<FileMetaData> findMetaData(String user, Date fileCreationDate);
+	
+	/**
+	 * Finds one page of metadata about the files uploaded by a given user.
+	 * @param user user to whom file belongs to
+	 * @param fileCreationDate the date on which file was created, optional
+	 * @param cursor cursor returned with previous page, null for first page
+	 * @param limit most entries in the page
+	 * @return page of metadata along with cursor of next page
+	 * @throws IllegalArgumentException if cursor is malformed
+	 */
+	public MetaDataPage findMetaData(String user, Date fileCreationDate, String cursor, int limit);
+	
+	/**
+	 * Walks the metadata about the files uploaded by a given user without collecting it,
+	 * in the same order as pages.
+	 * @param user user to whom file belongs to
+	 * @param fileCreationDate the date on which file was created, optional
+	 * @param cursor cursor to start after, null to start from beginning
+	 * @return iterator over metadata
+	 * @throws IllegalArgumentException if cursor is malformed
+	 */
+	public Iterator<FileMetaData> iterateMetaData(String user, Date fileCreationDate, String cursor);
+	
+	/**
+	 * Finds metadata meeting every criterion of a query.
+	 * @param query criteria, sort order and limit
+	 * @return matching metadata in requested order
+	 */
+	public List<FileMetaData> queryMetaData(MetaDataQuery query);
+	
+	/**
+	 * Finds the metadata of a single upload.
+	 * @param uploadId unique id of the upload
+	 * @return metadata, null if no such upload exists
+	 */
+	public FileMetaData findByUploadId(String uploadId);
+	
+	/**
+	 * Finds the stored file of a single upload.
+	 * @param uploadId unique id of the upload
+	 * @return stored file, encoded with the codec in its metadata, null if no such upload exists or its file is missing
+	 */
+	public File findFile(String uploadId);
+	
+	/**
+	 * Finds the payload of a single upload packed into a segment.
+	 * @param uploadId unique id of the upload
+	 * @return read only view of the payload, null if upload is not packed, e.g. stored in a file of its own
+	 */
+	public ByteBuffer findPackedFile(String uploadId);
+	
+	/**
+	 * Deletes a single upload, its payload and its metadata.
+	 * @param uploadId unique id of the upload
+	 * @return false if no such upload exists
+	 */
+	public boolean delete(String uploadId);
 	
 }
@@ -1,9 +1,16 @@
 package com.finra.fileupload.service;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -21,18 +28,76 @@ public class FileServiceImpl implements FileService {
 	@Autowired
 	FileManagerHelper fileManagerHelper;
 	
-	/**Path under which files to be stored*/
-	private static final String PATH = "file_storage";
+	@Autowired
+	FileMetaDataIndex metaDataIndex;
+	
+	@Autowired
+	StorageLayout storageLayout;
+	
+	@Autowired
+	StorageMetrics storageMetrics;
+	
+	@Autowired
+	MetaDataQueryCache queryCache;
+	
+	@Autowired
+	SegmentStore segmentStore;
+	
+	@Autowired
+	StorageVolumes storageVolumes;
+	
+	@Autowired
+	MetaDataWatcher metaDataWatcher;
+	
+	@Autowired
+	UsageStats usageStats;
+	
+	/**Path under which files are stored unless other roots are configured*/
+	static final String PATH = "file_storage";
 	
+	/**
+	 * Loads metadata of already stored files into the index before the service is
+	 * used, searches are always answered by the index. Properties files changed afterwards
+	 * by anything else are picked up by the watcher. Usage stats are brought up to
+	 * date with the index.
+	 */
+	@PostConstruct
+	public void init() {
+		logger.info("Building metadata index from "+storageVolumes.getRoots());
+		fileManagerHelper.buildMetaDataIndex(storageVolumes.getRoots());
+		queryCache.invalidateAll();
+		usageStats.open(storageVolumes.getPrimaryRoot(), metaDataIndex.getAll());
+		if(!fileManagerHelper.isJournalStore()) {
+			metaDataWatcher.start(storageVolumes.getRoots());
+		}
+	}
 
 	/** (non-Javadoc)
 	 * @see com.finra.fileupload.service.FileService#save(com.finra.fileupload.service.FileContainer)
 	 */
 	@Override
-	public boolean save(FileContainer container) {
-		logger.info("File persisting started");
-		fileManagerHelper.storeFileToUniqueLocation(container, PATH);
-		logger.info("File persisting completed");
+	public boolean save(final FileContainer container) {
+		logger.fine("File persisting started");
+		long start = storageMetrics.uploadStarted();
+		boolean succeeded = false;
+		try {
+			if(container.getUploadId() == null) {
+				container.setUploadId(fileManagerHelper.getUniqueId());
+			}
+			final StorageVolumes.Volume volume = storageVolumes.place(container.getUploadId());
+			storageVolumes.write(volume, new Runnable() {
+				@Override
+				public void run() {
+					fileManagerHelper.storeFileToUniqueLocation(container, volume.getRoot());
+				}
+			});
+			succeeded = true;
+		}finally {
+			//Upload is indexed by now, or was indexed and rolled back, cached results of this user may be stale.
+			queryCache.invalidate(container.getUserName());
+			storageMetrics.uploadFinished(start, succeeded);
+		}
+		logger.fine("File persisting completed");
 		return true;
 	}
 
@@ -40,12 +105,125 @@ public class FileServiceImpl implements FileService {
 	 * @see com.finra.fileupload.service.FileService#findMetaData(java.lang.String, java.util.Date)
 	 */
 	@Override
-	public List<Map<String, String>> findMetaData(String user, Date fileCreationDate) {
-		logger.info("Started searching metadata for user["+user+"] and fileCreationDate["+fileCreationDate+"]");
-		List<Map<String, String>> metadata = fileManagerHelper.searchFileMetaData(PATH, user, fileCreationDate);
-		logger.info("Completed searching metadata for user["+user+"] and fileCreationDate["+fileCreationDate+"]");
+	public List<FileMetaData> findMetaData(String user, Date fileCreationDate) {
+		logger.log(Level.FINE, "Started searching metadata for user[{0}] and fileCreationDate[{1}]", new Object[] {user, fileCreationDate});
+		long start = System.nanoTime();
+		Integer epochDay = epochDay(fileCreationDate);
+		List<FileMetaData> metadata = queryCache.get(user, epochDay);
+		if(metadata == null) {
+			long generation = queryCache.generation(user);
+			metadata = metaDataIndex.find(user, epochDay);
+			metadata = queryCache.put(user, epochDay, generation, metadata);
+		}
+		storageMetrics.searched(start);
+		logger.log(Level.FINE, "Completed searching metadata for user[{0}] and fileCreationDate[{1}]", new Object[] {user, fileCreationDate});
 		return metadata;
 	}
-	
 
+	/** (non-Javadoc)
+	 * @see com.finra.fileupload.service.FileService#findMetaData(java.lang.String, java.util.Date, java.lang.String, int)
+	 */
+	@Override
+	public MetaDataPage findMetaData(String user, Date fileCreationDate, String cursor, int limit) {
+		long start = System.nanoTime();
+		Iterator<FileMetaData> iterator = iterateMetaData(user, fileCreationDate, cursor);
+		List<FileMetaData> entries = new ArrayList<FileMetaData>(Math.min(limit, 1024));
+		while(entries.size() < limit && iterator.hasNext()) {
+			entries.add(iterator.next());
+		}
+		String nextCursor = !entries.isEmpty() && iterator.hasNext() ? 
+				MetaDataPage.cursorAfter(entries.get(entries.size() - 1)) : null;
+		storageMetrics.searched(start);
+		return new MetaDataPage(entries, nextCursor);
+	}
+
+	/** (non-Javadoc)
+	 * @see com.finra.fileupload.service.FileService#iterateMetaData(java.lang.String, java.util.Date, java.lang.String)
+	 */
+	@Override
+	public Iterator<FileMetaData> iterateMetaData(String user, Date fileCreationDate, String cursor) {
+		MetaDataPage.Position after = cursor == null ? null : MetaDataPage.decodeCursor(cursor);
+		return metaDataIndex.iterator(user, epochDay(fileCreationDate), 
+				after == null ? null : after.getCreationEpochDay(), after == null ? null : after.getUploadId());
+	}
+
+	/** (non-Javadoc)
+	 * @see com.finra.fileupload.service.FileService#queryMetaData(com.finra.fileupload.service.MetaDataQuery)
+	 */
+	@Override
+	public List<FileMetaData> queryMetaData(MetaDataQuery query) {
+		long start = System.nanoTime();
+		List<FileMetaData> metadata = metaDataIndex.query(query);
+		storageMetrics.searched(start);
+		return metadata;
+	}
+
+	/** (non-Javadoc)
+	 * @see com.finra.fileupload.service.FileService#findByUploadId(java.lang.String)
+	 */
+	@Override
+	public FileMetaData findByUploadId(String uploadId) {
+		return metaDataIndex.get(uploadId);
+	}
+
+	/** (non-Javadoc)
+	 * @see com.finra.fileupload.service.FileService#findFile(java.lang.String)
+	 */
+	@Override
+	public File findFile(String uploadId) {
+		FileMetaData metadata = metaDataIndex.get(uploadId);
+		if(metadata == null || metadata.getFileName() == null) {
+			return null;
+		}
+		String root = rootOf(metadata);
+		if(root == null) {
+			return null;
+		}
+		File file = new File(storageLayout.locate(root, metadata.getUserName(), metadata.getCreationDate(), uploadId), metadata.getFileName());
+		return file.isFile() ? file : null;
+	}
+
+	/** (non-Javadoc)
+	 * @see com.finra.fileupload.service.FileService#findPackedFile(java.lang.String)
+	 */
+	@Override
+	public ByteBuffer findPackedFile(String uploadId) {
+		return segmentStore.read(uploadId);
+	}
+	
+	/** (non-Javadoc)
+	 * @see com.finra.fileupload.service.FileService#delete(java.lang.String)
+	 */
+	@Override
+	public boolean delete(String uploadId) {
+		FileMetaData metadata = metaDataIndex.get(uploadId);
+		if(metadata == null) {
+			return false;
+		}
+		String root = rootOf(metadata);
+		fileManagerHelper.deleteUpload(metadata, root != null ? root : storageVolumes.getPrimaryRoot());
+		queryCache.invalidate(metadata.getUserName());
+		logger.log(Level.FINE, "Deleted upload [{0}]", uploadId);
+		return true;
+	}
+	
+	/**
+	 * Finds root holding directory of an upload, uploads are never moved so every root is looked at.
+	 * @return root of the upload, null if it has no directory, e.g. packed into a segment
+	 */
+	private String rootOf(FileMetaData metadata) {
+		for(String root : storageVolumes.getRoots()) {
+			if(storageLayout.locate(root, metadata.getUserName(), metadata.getCreationDate(), metadata.getUploadId()) != null) {
+				return root;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return epoch day of given date, null when no date is given
+	 */
+	private Integer epochDay(Date date) {
+		return date == null ? null : DayFormat.toEpochDay(date);
+	}
 }
@@ -0,0 +1,272 @@
+package com.finra.fileupload.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Makes uploads durable in groups. Each uploading thread forces its own payload files,
+ * so payloads of concurrent uploads are fsynced in parallel. Uploads asking for batch
+ * durability are then collected over a short window or until batch is full, and every
+ * distinct directory of the batch and the metadata journal are fsynced once for the
+ * whole batch, after which every upload in the batch is acknowledged.
+ *
+ * Directories shared by uploads of a batch (same user, same day) and the journal are
+ * forced once per batch instead of once per upload. Uploads still waiting when the
+ * committer stops are failed rather than left blocked.
+ * @author akadam
+ * @since 1.0
+ */
+public class GroupCommitter {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(GroupCommitter.class.getCanonicalName());
+
+	@Autowired
+	MetaDataJournal metaDataJournal;
+
+	@Autowired
+	StorageMetrics storageMetrics;
+
+	/**Longest time an upload waits for others to join its batch, in milliseconds*/
+	@Value("${fileupload.durability.batch-window-ms:5}")
+	long batchWindowMillis;
+
+	/**Most uploads in one batch*/
+	@Value("${fileupload.durability.max-batch-size:64}")
+	int maxBatchSize;
+
+	/**Longest time an upload waits for its batch to be committed, in milliseconds*/
+	@Value("${fileupload.durability.commit-timeout-ms:30000}")
+	long commitTimeoutMillis = 30000;
+
+	/**Durability used when upload doesn't ask for one*/
+	@Value("${fileupload.durability.default:none}")
+	String defaultDurability;
+
+	/**Uploads waiting to be made durable*/
+	private final BlockingQueue<SyncRequest> queue = new LinkedBlockingQueue<SyncRequest>();
+
+	/**Thread forcing batches*/
+	private Thread committer;
+
+	/**Set once committer is stopping, no more requests are queued after that*/
+	private volatile boolean stopped;
+
+	/**
+	 * Starts the committer thread.
+	 */
+	@PostConstruct
+	public void init() {
+		committer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!Thread.currentThread().isInterrupted()) {
+					try {
+						commitBatch(nextBatch());
+					}catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}, "group-committer");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Stops the committer thread and fails uploads still waiting for it.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		stopped = true;
+		committer.interrupt();
+		try {
+			committer.join(batchWindowMillis + 1000);
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		List<SyncRequest> pending = new ArrayList<SyncRequest>();
+		queue.drainTo(pending);
+		for(SyncRequest request : pending) {
+			request.done.completeExceptionally(new IOException("Group committer stopped before upload was made durable"));
+		}
+		if(!pending.isEmpty()) {
+			logger.warning("Failed ["+pending.size()+"] uploads still waiting for group commit at shutdown");
+		}
+	}
+
+	/**
+	 * @return durability used when upload doesn't ask for one
+	 */
+	public Durability getDefaultDurability() {
+		return Durability.parse(defaultDurability);
+	}
+
+	/**
+	 * Makes given files, directories and optionally the journal durable, blocks until done.
+	 * Files are forced on the calling thread, directories and journal with the batch.
+	 * @param durability BATCH to join group commit, SYNC to force right away, NONE does nothing
+	 * @param files written files
+	 * @param directories directories whose entries changed
+	 * @param journal whether metadata journal has to be forced too
+	 * @throws RuntimeException if upload could not be made durable or commit timed out
+	 */
+	public void makeDurable(Durability durability, Collection<Path> files, Collection<Path> directories, boolean journal) {
+		if(durability == Durability.NONE) {
+			return;
+		}
+		long start = System.nanoTime();
+		Map<Path, IOException> failures = new HashMap<Path, IOException>();
+		for(Path file : files) {
+			force(file, StandardOpenOption.WRITE, failures);
+		}
+		if(!failures.isEmpty()) {
+			IOException failure = failures.values().iterator().next();
+			logger.log(Level.SEVERE, "Failed while making upload durable", failure);
+			throw new RuntimeException(failure);
+		}
+		SyncRequest request = new SyncRequest(directories, journal);
+		if(durability == Durability.SYNC) {
+			List<SyncRequest> single = new ArrayList<SyncRequest>(1);
+			single.add(request);
+			commitBatch(single);
+		}else if(stopped) {
+			throw new RuntimeException("Group committer is stopped");
+		}else {
+			queue.add(request);
+		}
+		try {
+			request.done.get(commitTimeoutMillis, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}catch(ExecutionException e) {
+			logger.log(Level.SEVERE, "Failed while making upload durable", e.getCause());
+			throw new RuntimeException(e.getCause());
+		}catch(TimeoutException e) {
+			logger.severe("Upload was not made durable within ["+commitTimeoutMillis+"] ms");
+			throw new RuntimeException(e);
+		}finally {
+			storageMetrics.commitWaited(start);
+		}
+	}
+
+	/**
+	 * Waits for first request, then collects more till window passes or batch is full.
+	 */
+	private List<SyncRequest> nextBatch() throws InterruptedException {
+		List<SyncRequest> batch = new ArrayList<SyncRequest>();
+		batch.add(queue.take());
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+		while(batch.size() < maxBatchSize) {
+			SyncRequest request = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			if(request == null) {
+				break;
+			}
+			batch.add(request);
+		}
+		return batch;
+	}
+
+	/**
+	 * Forces the journal and every distinct directory of the batch once, then completes
+	 * each request. A request fails if it needed the journal and journal could not be forced.
+	 */
+	private void commitBatch(List<SyncRequest> batch) {
+		Set<Path> directories = new LinkedHashSet<Path>();
+		boolean journal = false;
+		for(SyncRequest request : batch) {
+			directories.addAll(request.directories);
+			journal |= request.journal;
+		}
+
+		Map<Path, IOException> failures = new HashMap<Path, IOException>();
+		IOException journalFailure = null;
+		if(journal) {
+			try {
+				metaDataJournal.force();
+			}catch(IOException e) {
+				journalFailure = e;
+			}
+		}
+		for(Path directory : directories) {
+			force(directory, StandardOpenOption.READ, failures);
+		}
+
+		for(SyncRequest request : batch) {
+			IOException failure = request.journal ? journalFailure : null;
+			if(failure != null) {
+				request.done.completeExceptionally(failure);
+			}else {
+				request.done.complete(null);
+			}
+		}
+		storageMetrics.batchCommitted(batch.size());
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Committed batch of ["+batch.size()+"] uploads, forced ["+directories.size()+"] directories");
+		}
+	}
+
+	private void force(Path path, StandardOpenOption mode, Map<Path, IOException> failures) {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(path, mode);
+			channel.force(true);
+		}catch(IOException e) {
+			if(mode == StandardOpenOption.READ) {
+				//Some platforms can't open directories, their entries are flushed with the files.
+				logger.log(Level.FINE, "Could not force directory [{0}] {1}", new Object[] {path, e});
+			}else {
+				failures.put(path, e);
+			}
+		}finally {
+			if(channel != null) {
+				try {
+					channel.close();
+				}catch(IOException e) {
+					logger.log(Level.WARNING, "Failed while closing channel ["+path+"]", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Directories of one upload waiting to be made durable.
+	 */
+	private static class SyncRequest {
+
+		private final Collection<Path> directories;
+
+		private final boolean journal;
+
+		private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		SyncRequest(Collection<Path> directories, boolean journal) {
+			this.directories = directories;
+			this.journal = journal;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.finra.fileupload.service;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Histogram of non negative values with power of two buckets, cheap enough for hot paths:
+ * recording a value touches a few striped counters and allocates nothing. Percentiles are
+ * estimated when metrics are read, as upper bound of the bucket they fall in.
+ * @author akadam
+ * @since 1.0
+ */
+public class Histogram {
+
+	/**Bucket i holds values below 2^i and at least 2^(i-1), bucket 0 holds 0*/
+	private static final int BUCKETS = 64;
+
+	/**Prefix of reported metric names*/
+	private final String name;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+		@Override
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	}, 0);
+
+	public Histogram(String name) {
+		this.name = name;
+		for(int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records one value, negative values are recorded as 0.
+	 * @param value value to record
+	 */
+	public void record(long value) {
+		long v = Math.max(0, value);
+		buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v))].increment();
+		count.increment();
+		sum.add(v);
+		max.accumulate(v);
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Estimates a percentile.
+	 * @param quantile between 0 and 1
+	 * @return upper bound of bucket holding the percentile, 0 when nothing is recorded
+	 */
+	public long percentile(double quantile) {
+		long total = count.sum();
+		if(total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i].sum();
+			if(seen >= rank) {
+				return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Adds count, mean, p50, p95, p99 and max of this histogram.
+	 * @param metrics metrics to add to
+	 */
+	public void addTo(Collection<Metric<?>> metrics) {
+		long total = count.sum();
+		metrics.add(new Metric<Long>(name + ".count", total));
+		metrics.add(new Metric<Double>(name + ".mean", total == 0 ? 0.0 : (double) sum.sum() / total));
+		metrics.add(new Metric<Long>(name + ".p50", percentile(0.50)));
+		metrics.add(new Metric<Long>(name + ".p95", percentile(0.95)));
+		metrics.add(new Metric<Long>(name + ".p99", percentile(0.99)));
+		metrics.add(new Metric<Long>(name + ".max", max.get()));
+	}
+}
@@ -0,0 +1,90 @@
+package com.finra.fileupload.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Progress of one asynchronously ingested upload.
+ * @author akadam
+ * @since 1.0
+ */
+public class IngestStatus {
+
+	/**States an upload goes through*/
+	public enum State {
+		QUEUED, WRITING, COMPLETED, FAILED
+	}
+
+	/**Unique id of the upload*/
+	private final String uploadId;
+
+	/**Current state*/
+	private volatile State state = State.QUEUED;
+
+	/**Failure reason when failed*/
+	private volatile String error;
+
+	/**When upload was accepted*/
+	private final long acceptedAt;
+
+	/**When upload completed or failed, 0 till then*/
+	private volatile long finishedAt;
+
+	/**
+	 * @param uploadId unique id of the upload, null if upload was rejected before one was assigned
+	 */
+	public IngestStatus(String uploadId) {
+		this.uploadId = uploadId;
+		this.acceptedAt = System.currentTimeMillis();
+	}
+
+	void writing() {
+		state = State.WRITING;
+	}
+
+	void completed() {
+		finishedAt = System.currentTimeMillis();
+		state = State.COMPLETED;
+	}
+
+	void failed(String reason) {
+		error = reason;
+		finishedAt = System.currentTimeMillis();
+		state = State.FAILED;
+	}
+
+	/**
+	 * @return status as key value pairs for the status service
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		if(uploadId != null) {
+			map.put("Upload_Id", uploadId);
+		}
+		map.put("Status", state.name());
+		if(error != null) {
+			map.put("Error", error);
+		}
+		return map;
+	}
+
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public long getAcceptedAt() {
+		return acceptedAt;
+	}
+
+	public long getFinishedAt() {
+		return finishedAt;
+	}
+}
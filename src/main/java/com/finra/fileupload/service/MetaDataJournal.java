@@ -0,0 +1,523 @@
+package com.finra.fileupload.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Append only journal for file metadata, used when metadata store is set to journal.
+ *
+ * Every record is written as [length][crc32][payload] to the active journal file, a record
+ * either stores metadata of an upload or deletes it.
+ * Once enough records are appended the journal is rotated and compacted in background
+ * into a snapshot sorted by user, creation date and upload id. On startup the snapshot
+ * is loaded and journal tail is replayed. Only a torn tail of the active journal is
+ * truncated, a record whose checksum doesn't match is skipped and counted, and a snapshot
+ * or rotated journal that can't be read to its end fails startup. Compaction refuses to
+ * merge a journal holding skipped records so they stay on disk for recovery.
+ *
+ * All files live under {@value #DIRECTORY} directory of the storage root.
+ * @author akadam
+ * @since 1.0
+ */
+public class MetaDataJournal {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(MetaDataJournal.class.getCanonicalName());
+
+	/**Directory under storage root holding journal files*/
+	static final String DIRECTORY = "_journal";
+
+	/**Active journal file name*/
+	private static final String JOURNAL_FILE = "metadata.journal";
+
+	/**Snapshot file name*/
+	private static final String SNAPSHOT_FILE = "metadata.snapshot";
+
+	/**File header magic, "FUMJ"*/
+	private static final int MAGIC = 0x46554D4A;
+
+	/**File format version*/
+	private static final int VERSION = 1;
+
+	/**Header length in bytes*/
+	private static final int HEADER_LENGTH = 8;
+
+	/**Record length and checksum in bytes*/
+	private static final int RECORD_HEADER_LENGTH = 8;
+
+	/**Largest record we accept while reading, anything above is treated as corruption*/
+	private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+	/**Record type for stored metadata*/
+	private static final byte PUT = 1;
+
+	/**Record type for deleted upload*/
+	private static final byte DELETE = 2;
+
+	/**Number of appended records after which journal is compacted*/
+	@Value("${fileupload.metadata.journal.compaction-threshold:100000}")
+	int compactionThreshold = 100000;
+
+	/**Directory holding journal and snapshot*/
+	private File directory;
+
+	/**Active journal*/
+	private FileChannel journal;
+
+	/**Records appended to active journal*/
+	private int journalRecords;
+
+	/**Records skipped on open because their checksum didn't match*/
+	private int skippedRecords;
+
+	/**Background compaction, at most one runs at a time*/
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "metadata-journal-compactor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Opens the journal under given storage root, loading snapshot and replaying journal tail.
+	 * @param parentDirectoryPath parent/root path where files are saved.
+	 * @return all metadata keyed by upload id
+	 */
+	public synchronized Map<String, Map<String, String>> open(String parentDirectoryPath) {
+		directory = new File(parentDirectoryPath, DIRECTORY);
+		directory.mkdirs();
+		Map<String, Map<String, String>> metadata = new HashMap<String, Map<String, String>>();
+		skippedRecords = 0;
+		try {
+			File snapshot = new File(directory, SNAPSHOT_FILE);
+			if(snapshot.exists()) {
+				skippedRecords += read(snapshot, metadata, false).skipped;
+			}
+			for(File rotated : listRotated()) {
+				skippedRecords += read(rotated, metadata, false).skipped;
+			}
+			File active = new File(directory, JOURNAL_FILE);
+			long validLength = 0;
+			if(active.length() >= HEADER_LENGTH && !hasHeader(active)) {
+				File aside = new File(directory, "corrupt-" + System.currentTimeMillis() + "-" + JOURNAL_FILE);
+				logger.severe("Journal ["+active+"] has unknown header, moved aside to ["+aside+"]");
+				Files.move(active.toPath(), aside.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}else if(active.length() >= HEADER_LENGTH) {
+				Segment segment = read(active, metadata, true);
+				skippedRecords += segment.skipped;
+				validLength = segment.validLength;
+			}
+			journal = FileChannel.open(active.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			if(validLength < HEADER_LENGTH) {
+				//New journal, or one torn before its header was complete
+				journal.truncate(0);
+				writeHeader(journal);
+			}else if(validLength < journal.size()) {
+				logger.warning("Truncating torn journal tail at ["+validLength+"] of ["+journal.size()+"] bytes");
+				journal.truncate(validLength);
+			}
+			journal.position(journal.size());
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while opening metadata journal", e);
+			throw new RuntimeException(e);
+		}
+		if(skippedRecords > 0) {
+			logger.severe("Metadata journal skipped ["+skippedRecords+"] corrupted records, compaction is disabled till they are repaired");
+		}
+		logger.info("Metadata journal opened with ["+metadata.size()+"] records");
+		return metadata;
+	}
+
+	/**
+	 * @return records skipped on open because their checksum didn't match
+	 */
+	public synchronized int getSkippedRecords() {
+		return skippedRecords;
+	}
+
+	/**
+	 * Appends metadata of one upload to the journal.
+	 * @param uploadId unique id of the upload
+	 * @param metadata metadata of the upload
+	 */
+	public synchronized void append(String uploadId, Map<String, String> metadata) {
+		try {
+			ByteBuffer record = encode(uploadId, metadata);
+			while(record.hasRemaining()) {
+				journal.write(record);
+			}
+			if(++journalRecords >= compactionThreshold) {
+				scheduleCompaction(rotate());
+			}
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while appending to metadata journal", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Appends deletion of one upload to the journal.
+	 * @param uploadId unique id of the upload
+	 */
+	public void remove(String uploadId) {
+		append(uploadId, null);
+	}
+
+	/**
+	 * Flushes records appended so far to disk, records appended before a rotation
+	 * were already flushed by it.
+	 * @throws IOException if journal can not be flushed
+	 */
+	public synchronized void force() throws IOException {
+		if(journal != null && journal.isOpen()) {
+			journal.force(false);
+		}
+	}
+
+	/**
+	 * Rotates the active journal and compacts everything into snapshot, waits for compaction.
+	 */
+	public void compact() {
+		File rotated;
+		synchronized(this) {
+			try {
+				rotated = rotate();
+			}catch(IOException e) {
+				logger.log(Level.SEVERE, "Failed while rotating metadata journal", e);
+				throw new RuntimeException(e);
+			}
+		}
+		try {
+			scheduleCompaction(rotated).get();
+		}catch(Exception e) {
+			logger.log(Level.SEVERE, "Failed while compacting metadata journal", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Closes the active journal.
+	 */
+	public synchronized void close() {
+		if(journal != null) {
+			try {
+				journal.close();
+			}catch(IOException e) {
+				logger.log(Level.SEVERE, "Failed while closing stream [journal]", e);
+			}
+		}
+		compactor.shutdown();
+	}
+
+	/**
+	 * Renames the active journal to next rotated name and starts a new one.
+	 * @return the rotated journal file
+	 */
+	private File rotate() throws IOException {
+		journal.force(false);
+		journal.close();
+		List<File> rotated = listRotated();
+		long sequence = rotated.isEmpty() ? 1 : sequence(rotated.get(rotated.size() - 1)) + 1;
+		File target = new File(directory, JOURNAL_FILE + "." + sequence);
+		File active = new File(directory, JOURNAL_FILE);
+		Files.move(active.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		journal = FileChannel.open(active.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		writeHeader(journal);
+		journalRecords = 0;
+		return target;
+	}
+
+	/**
+	 * Merges snapshot and all rotated journals up to given one into a new snapshot.
+	 */
+	private Future<?> scheduleCompaction(final File upTo) {
+		return compactor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeSnapshot(upTo);
+				}catch(IOException e) {
+					logger.log(Level.SEVERE, "Failed while compacting metadata journal", e);
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes sorted snapshot of snapshot and rotated journals, then removes merged journals.
+	 * @param upTo last rotated journal to be merged
+	 */
+	private void writeSnapshot(File upTo) throws IOException {
+		long lastSequence = sequence(upTo);
+		File snapshot = new File(directory, SNAPSHOT_FILE);
+		Map<String, Map<String, String>> metadata = new HashMap<String, Map<String, String>>();
+		int skipped = 0;
+		if(snapshot.exists()) {
+			skipped += read(snapshot, metadata, false).skipped;
+		}
+		List<File> merged = new ArrayList<File>();
+		for(File rotated : listRotated()) {
+			if(sequence(rotated) <= lastSequence) {
+				skipped += read(rotated, metadata, false).skipped;
+				merged.add(rotated);
+			}
+		}
+		if(skipped > 0) {
+			throw new IOException("Refusing to compact over ["+skipped+"] corrupted records, journals are left in place");
+		}
+
+		List<Map.Entry<String, Map<String, String>>> entries =
+				new ArrayList<Map.Entry<String, Map<String, String>>>(metadata.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Map<String, String>>>() {
+			@Override
+			public int compare(Map.Entry<String, Map<String, String>> a, Map.Entry<String, Map<String, String>> b) {
+				int result = sortKey(a.getValue()).compareTo(sortKey(b.getValue()));
+				return result != 0 ? result : a.getKey().compareTo(b.getKey());
+			}
+		});
+
+		File temp = new File(directory, SNAPSHOT_FILE + ".tmp");
+		FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			writeHeader(channel);
+			for(Map.Entry<String, Map<String, String>> entry : entries) {
+				ByteBuffer record = encode(entry.getKey(), entry.getValue());
+				while(record.hasRemaining()) {
+					channel.write(record);
+				}
+			}
+			channel.force(true);
+		}finally {
+			channel.close();
+		}
+		Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		for(File file : merged) {
+			Files.delete(file.toPath());
+		}
+		logger.info("Metadata journal compacted into snapshot with ["+entries.size()+"] records");
+	}
+
+	/**
+	 * Snapshot ordering, user then creation date.
+	 */
+	private String sortKey(Map<String, String> metadata) {
+		String user = metadata.get(FileManagerHelper.USER_NAME);
+		String creationDate = metadata.get(FileManagerHelper.CREATION_DATE);
+		return (user == null ? "" : user.toLowerCase(Locale.ROOT)) + '\u0000' + (creationDate == null ? "" : creationDate);
+	}
+
+	/**
+	 * Reads all valid records from given file into metadata. A record whose checksum doesn't
+	 * match is skipped. A record running past the end of file or with an impossible length
+	 * ends the read when file is the active journal, its torn tail, and fails otherwise.
+	 * @param active whether file is the active journal
+	 * @return valid prefix length and skipped records of the file
+	 * @throws IOException if file has unknown header or a sealed file is cut short
+	 */
+	private Segment read(File file, Map<String, Map<String, String>> metadata, boolean active) throws IOException {
+		long fileLength = file.length();
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		Segment segment = new Segment();
+		try {
+			if(fileLength < HEADER_LENGTH || input.readInt() != MAGIC || input.readInt() != VERSION) {
+				throw new IOException("Unknown header in journal file ["+file+"]");
+			}
+			segment.validLength = HEADER_LENGTH;
+			long position = HEADER_LENGTH;
+			CRC32 crc = new CRC32();
+			byte[] payload = new byte[512];
+			while(position < fileLength) {
+				if(fileLength - position < RECORD_HEADER_LENGTH) {
+					return torn(file, position, "Truncated record header", active, segment);
+				}
+				int length = input.readInt();
+				int checksum = input.readInt();
+				if(length <= 0 || length > MAX_RECORD_LENGTH) {
+					return torn(file, position, "Invalid record length ["+length+"]", active, segment);
+				}
+				if(fileLength - position - RECORD_HEADER_LENGTH < length) {
+					return torn(file, position, "Truncated record", active, segment);
+				}
+				if(payload.length < length) {
+					payload = new byte[Math.max(length, payload.length * 2)];
+				}
+				input.readFully(payload, 0, length);
+				position += RECORD_HEADER_LENGTH + length;
+				crc.reset();
+				crc.update(payload, 0, length);
+				if((int) crc.getValue() != checksum) {
+					if(active && position == fileLength) {
+						return torn(file, position - RECORD_HEADER_LENGTH - length, "Checksum mismatch", true, segment);
+					}
+					logger.warning("Skipping record with checksum mismatch in ["+file+"] at ["+(position - RECORD_HEADER_LENGTH - length)+"]");
+					segment.skipped++;
+				}else {
+					decode(payload, length, metadata);
+				}
+				//Skipped records are kept on disk for recovery
+				segment.validLength = position;
+			}
+		}finally {
+			input.close();
+		}
+		return segment;
+	}
+
+	/**
+	 * Ends the read at a torn record, allowed only at the tail of the active journal.
+	 */
+	private Segment torn(File file, long position, String reason, boolean active, Segment segment) throws IOException {
+		if(!active) {
+			throw new IOException(reason+" in sealed journal file ["+file+"] at ["+position+"]");
+		}
+		logger.warning(reason+" at tail of ["+file+"] at ["+position+"]");
+		return segment;
+	}
+
+	/**
+	 * Encodes one record including its length and checksum, a deletion when metadata is null.
+	 */
+	private ByteBuffer encode(String uploadId, Map<String, String> metadata) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeInt(0);
+		output.writeInt(0);
+		output.writeByte(metadata == null ? DELETE : PUT);
+		output.writeUTF(uploadId);
+		if(metadata != null) {
+			output.writeShort(metadata.size());
+			for(Map.Entry<String, String> entry : metadata.entrySet()) {
+				output.writeUTF(entry.getKey());
+				output.writeUTF(entry.getValue());
+			}
+		}
+		output.flush();
+
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		int length = record.capacity() - RECORD_HEADER_LENGTH;
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_LENGTH, length);
+		record.putInt(0, length);
+		record.putInt(4, (int) crc.getValue());
+		return record;
+	}
+
+	/**
+	 * Decodes one record payload into metadata.
+	 */
+	private void decode(byte[] payload, int length, Map<String, Map<String, String>> metadata) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+		byte type = input.readByte();
+		String uploadId = input.readUTF();
+		if(type == DELETE) {
+			metadata.remove(uploadId);
+			return;
+		}
+		if(type != PUT) {
+			logger.warning("Skipping record of unknown type ["+type+"] for upload ["+uploadId+"]");
+			return;
+		}
+		int count = input.readUnsignedShort();
+		Map<String, String> map = new LinkedHashMap<String, String>(count * 2);
+		for(int i = 0; i < count; i++) {
+			map.put(input.readUTF(), input.readUTF());
+		}
+		metadata.put(uploadId, map);
+	}
+
+	/**
+	 * Writes file header to an empty file.
+	 */
+	private void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		while(header.hasRemaining()) {
+			channel.write(header);
+		}
+	}
+
+	/**
+	 * @return whether file starts with a known journal header
+	 */
+	private boolean hasHeader(File file) throws IOException {
+		DataInputStream input = new DataInputStream(new FileInputStream(file));
+		try {
+			return input.readInt() == MAGIC && input.readInt() == VERSION;
+		}finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @return rotated journals ordered by sequence
+	 */
+	private List<File> listRotated() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(JOURNAL_FILE + ".") && !name.endsWith(".tmp");
+			}
+		});
+		List<File> rotated = files == null ? new ArrayList<File>() : new ArrayList<File>(Arrays.asList(files));
+		Collections.sort(rotated, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(sequence(a), sequence(b));
+			}
+		});
+		return rotated;
+	}
+
+	/**
+	 * @return sequence number of rotated journal
+	 */
+	private long sequence(File rotated) {
+		return Long.parseLong(rotated.getName().substring(JOURNAL_FILE.length() + 1));
+	}
+
+	/**
+	 * Outcome of reading one journal file.
+	 */
+	private static class Segment {
+
+		/**Length of the file up to its torn tail*/
+		private long validLength;
+
+		/**Records skipped because their checksum didn't match*/
+		private int skipped;
+	}
+}
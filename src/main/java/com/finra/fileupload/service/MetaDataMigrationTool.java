@@ -0,0 +1,81 @@
+package com.finra.fileupload.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * One time tool to carry metadata of an existing storage tree, saved as properties
+ * file per upload, over to the metadata journal. Properties files are left in place.
+ * Run it while the application is stopped, then start the application with
+ * fileupload.metadata.store=journal
+ *
+ * Usage :- java -cp {classpath} com.finra.fileupload.service.MetaDataMigrationTool [storage roots]
+ * storage roots are comma separated in the order of fileupload.storage.roots and default to
+ * file_storage. Uploads of all roots go to the journal of the first root, where the application
+ * reads it from.
+ *
+ * @author akadam
+ * @since 1.0
+ */
+public class MetaDataMigrationTool {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(MetaDataMigrationTool.class.getCanonicalName());
+
+	/**Storage root used when none given*/
+	private static final String DEFAULT_PATH = "file_storage";
+
+	/**
+	 * Tool entry point.
+	 * @param args optional comma separated storage roots
+	 */
+	public static void main(String[] args) {
+		List<String> paths = new ArrayList<String>();
+		for(String path : (args.length > 0 ? args[0] : DEFAULT_PATH).split(",")) {
+			if(!path.trim().isEmpty()) {
+				paths.add(path.trim());
+			}
+		}
+		int migrated = migrate(paths);
+		logger.info("Migrated ["+migrated+"] metadata records under "+paths);
+	}
+
+	/**
+	 * Appends metadata of all properties files under storage roots to the journal of the first root,
+	 * uploads already present in journal are skipped so tool can be re-run safely.
+	 * @param parentDirectoryPaths roots where files are saved, first one holds the journal.
+	 * @return number of records migrated
+	 */
+	public static int migrate(List<String> parentDirectoryPaths) {
+		if(parentDirectoryPaths.isEmpty()) {
+			throw new IllegalArgumentException("No storage root given");
+		}
+		FileManagerHelper helper = new FileManagerHelper();
+		helper.storageLayout = new StorageLayout();
+		helper.metaDataScanner = new MetaDataScanner();
+		helper.metaDataScanner.init();
+		Map<String, Map<String, String>> metadata;
+		try {
+			metadata = helper.readPropertiesMetaData(parentDirectoryPaths);
+		}finally {
+			helper.metaDataScanner.close();
+		}
+		MetaDataJournal journal = new MetaDataJournal();
+		int migrated = 0;
+		try {
+			Map<String, Map<String, String>> existing = journal.open(parentDirectoryPaths.get(0));
+			for(Map.Entry<String, Map<String, String>> entry : metadata.entrySet()) {
+				if(!existing.containsKey(entry.getKey())) {
+					journal.append(entry.getKey(), entry.getValue());
+					migrated++;
+				}
+			}
+			journal.compact();
+		}finally {
+			journal.close();
+		}
+		return migrated;
+	}
+}
@@ -0,0 +1,88 @@
+package com.finra.fileupload.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One page of metadata search results along with the cursor to fetch the next page.
+ *
+ * Cursor is opaque to clients, it encodes creation epoch day and upload id of the last entry
+ * of the page which is the position results are ordered by.
+ * @author akadam
+ * @since 1.0
+ */
+public class MetaDataPage {
+
+	/**Separates creation date and upload id inside cursor*/
+	private static final char SEPARATOR = '\n';
+
+	/**Metadata of this page*/
+	private final List<FileMetaData> entries;
+
+	/**Cursor of next page, null when this is the last page*/
+	private final String nextCursor;
+
+	public MetaDataPage(List<FileMetaData> entries, String nextCursor) {
+		this.entries = entries;
+		this.nextCursor = nextCursor;
+	}
+
+	public List<FileMetaData> getEntries() {
+		return entries;
+	}
+
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * Builds cursor pointing right after given entry.
+	 * @param metadata last entry returned
+	 * @return opaque cursor
+	 */
+	public static String cursorAfter(FileMetaData metadata) {
+		String position = String.valueOf(metadata.getCreationEpochDay()) + SEPARATOR + metadata.getUploadId();
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Decodes a cursor built by {@link #cursorAfter(FileMetaData)}.
+	 * @param cursor opaque cursor
+	 * @return position of last entry seen
+	 * @throws IllegalArgumentException if cursor is malformed
+	 */
+	public static Position decodeCursor(String cursor) {
+		String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+		int separator = position.indexOf(SEPARATOR);
+		if(separator <= 0 || separator == position.length() - 1) {
+			throw new IllegalArgumentException("Malformed cursor");
+		}
+		return new Position(Integer.parseInt(position.substring(0, separator)), position.substring(separator + 1));
+	}
+
+	/**
+	 * Position of an entry in search results.
+	 */
+	public static class Position {
+
+		/**Creation date as days since epoch*/
+		private final int creationEpochDay;
+
+		/**Unique id of the upload*/
+		private final String uploadId;
+
+		Position(int creationEpochDay, String uploadId) {
+			this.creationEpochDay = creationEpochDay;
+			this.uploadId = uploadId;
+		}
+
+		public int getCreationEpochDay() {
+			return creationEpochDay;
+		}
+
+		public String getUploadId() {
+			return uploadId;
+		}
+	}
+}
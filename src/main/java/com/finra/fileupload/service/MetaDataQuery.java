@@ -0,0 +1,276 @@
+package com.finra.fileupload.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Criteria of a metadata query, every criterion is optional. Date ranges are inclusive days
+ * since epoch, size bounds are inclusive bytes, file names are matched by case sensitive prefix.
+ *
+ * Results are sorted by creation date unless another order is asked for, ties are broken by
+ * creation date and upload id so order is stable across calls.
+ * @author akadam
+ * @since 1.0
+ */
+public class MetaDataQuery {
+
+	/**Orders results can be sorted in*/
+	public enum Sort {
+
+		/**By file creation date*/
+		CREATION_DATE(new Comparator<FileMetaData>() {
+			@Override
+			public int compare(FileMetaData a, FileMetaData b) {
+				return Integer.compare(a.getCreationEpochDay(), b.getCreationEpochDay());
+			}
+		}),
+
+		/**By upload date*/
+		UPLOADED_DATE(new Comparator<FileMetaData>() {
+			@Override
+			public int compare(FileMetaData a, FileMetaData b) {
+				return Integer.compare(a.getUploadedEpochDay(), b.getUploadedEpochDay());
+			}
+		}),
+
+		/**By file name*/
+		FILE_NAME(new Comparator<FileMetaData>() {
+			@Override
+			public int compare(FileMetaData a, FileMetaData b) {
+				String left = a.getFileName() == null ? "" : a.getFileName();
+				String right = b.getFileName() == null ? "" : b.getFileName();
+				return left.compareTo(right);
+			}
+		}),
+
+		/**By file size*/
+		FILE_SIZE(new Comparator<FileMetaData>() {
+			@Override
+			public int compare(FileMetaData a, FileMetaData b) {
+				return Long.compare(a.getFileSize(), b.getFileSize());
+			}
+		});
+
+		private final Comparator<FileMetaData> comparator;
+
+		private Sort(Comparator<FileMetaData> comparator) {
+			this.comparator = comparator;
+		}
+
+		/**
+		 * Parses sort order ignoring case, camel case names such as fileName are accepted too.
+		 * @param value sort name
+		 * @return sort order
+		 * @throws IllegalArgumentException if value is not a sort order
+		 */
+		public static Sort parse(String value) {
+			return valueOf(value.trim().replaceAll("([a-z])([A-Z])", "$1_$2").replace('-', '_').toUpperCase(Locale.ROOT));
+		}
+	}
+
+	/**Tie breaker, creation date then upload id*/
+	private static final Comparator<FileMetaData> POSITION = new Comparator<FileMetaData>() {
+		@Override
+		public int compare(FileMetaData a, FileMetaData b) {
+			int byDay = Integer.compare(a.getCreationEpochDay(), b.getCreationEpochDay());
+			return byDay != 0 ? byDay : a.getUploadId().compareTo(b.getUploadId());
+		}
+	};
+
+	private String user;
+
+	private Integer creationFrom;
+
+	private Integer creationTo;
+
+	private Integer uploadedFrom;
+
+	private Integer uploadedTo;
+
+	private String fileNamePrefix;
+
+	private Long minSize;
+
+	private Long maxSize;
+
+	private Sort sort = Sort.CREATION_DATE;
+
+	private boolean descending;
+
+	private int limit = Integer.MAX_VALUE;
+
+	/**
+	 * @param metadata metadata of one upload
+	 * @return true if upload meets every criterion
+	 */
+	public boolean matches(FileMetaData metadata) {
+		if(user != null && !user.equalsIgnoreCase(metadata.getUserName())) {
+			return false;
+		}
+		if(!within(metadata.getCreationEpochDay(), creationFrom, creationTo)) {
+			return false;
+		}
+		if((uploadedFrom != null || uploadedTo != null) && (metadata.getUploadedEpochDay() == FileMetaData.UNKNOWN_DAY ||
+				!within(metadata.getUploadedEpochDay(), uploadedFrom, uploadedTo))) {
+			return false;
+		}
+		if(fileNamePrefix != null && (metadata.getFileName() == null || !metadata.getFileName().startsWith(fileNamePrefix))) {
+			return false;
+		}
+		if((minSize != null || maxSize != null) && (metadata.getFileSize() == FileMetaData.UNKNOWN_SIZE ||
+				(minSize != null && metadata.getFileSize() < minSize) || (maxSize != null && metadata.getFileSize() > maxSize))) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Filters, sorts and limits candidates. When limited only the best entries are kept while
+	 * filtering, so memory and sorting cost is bounded by the limit and not by candidate count.
+	 * @param candidates superset of matching uploads
+	 * @return matching uploads in requested order, at most limit of them
+	 */
+	public List<FileMetaData> select(Iterable<FileMetaData> candidates) {
+		Comparator<FileMetaData> order = order();
+		if(limit == Integer.MAX_VALUE) {
+			List<FileMetaData> result = new ArrayList<FileMetaData>();
+			for(FileMetaData candidate : candidates) {
+				if(matches(candidate)) {
+					result.add(candidate);
+				}
+			}
+			Collections.sort(result, order);
+			return result;
+		}
+		//Heap holds best entries so far with the worst on top.
+		PriorityQueue<FileMetaData> best = new PriorityQueue<FileMetaData>(Math.min(limit, 1024) + 1, Collections.reverseOrder(order));
+		for(FileMetaData candidate : candidates) {
+			if(!matches(candidate)) {
+				continue;
+			}
+			if(best.size() < limit) {
+				best.add(candidate);
+			}else if(order.compare(candidate, best.peek()) < 0) {
+				best.poll();
+				best.add(candidate);
+			}
+		}
+		List<FileMetaData> result = new ArrayList<FileMetaData>(best);
+		Collections.sort(result, order);
+		return result;
+	}
+
+	private Comparator<FileMetaData> order() {
+		final Comparator<FileMetaData> primary = sort.comparator;
+		final boolean reversed = descending;
+		return new Comparator<FileMetaData>() {
+			@Override
+			public int compare(FileMetaData a, FileMetaData b) {
+				int result = primary.compare(a, b);
+				if(result == 0) {
+					result = POSITION.compare(a, b);
+				}
+				return reversed ? -result : result;
+			}
+		};
+	}
+
+	private static boolean within(int day, Integer from, Integer to) {
+		return (from == null || day >= from) && (to == null || day <= to);
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public void setUser(String user) {
+		this.user = user;
+	}
+
+	public Integer getCreationFrom() {
+		return creationFrom;
+	}
+
+	public void setCreationFrom(Integer creationFrom) {
+		this.creationFrom = creationFrom;
+	}
+
+	public Integer getCreationTo() {
+		return creationTo;
+	}
+
+	public void setCreationTo(Integer creationTo) {
+		this.creationTo = creationTo;
+	}
+
+	public Integer getUploadedFrom() {
+		return uploadedFrom;
+	}
+
+	public void setUploadedFrom(Integer uploadedFrom) {
+		this.uploadedFrom = uploadedFrom;
+	}
+
+	public Integer getUploadedTo() {
+		return uploadedTo;
+	}
+
+	public void setUploadedTo(Integer uploadedTo) {
+		this.uploadedTo = uploadedTo;
+	}
+
+	public String getFileNamePrefix() {
+		return fileNamePrefix;
+	}
+
+	public void setFileNamePrefix(String fileNamePrefix) {
+		this.fileNamePrefix = fileNamePrefix;
+	}
+
+	public Long getMinSize() {
+		return minSize;
+	}
+
+	public void setMinSize(Long minSize) {
+		this.minSize = minSize;
+	}
+
+	public Long getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(Long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public Sort getSort() {
+		return sort;
+	}
+
+	public void setSort(Sort sort) {
+		this.sort = sort;
+	}
+
+	public boolean isDescending() {
+		return descending;
+	}
+
+	public void setDescending(boolean descending) {
+		this.descending = descending;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @param limit most results returned, at least 1
+	 */
+	public void setLimit(int limit) {
+		this.limit = Math.max(1, limit);
+	}
+}
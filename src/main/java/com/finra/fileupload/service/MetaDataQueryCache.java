@@ -0,0 +1,279 @@
+package com.finra.fileupload.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Bounded cache of metadata search results keyed by user and creation date, least recently
+ * used results are evicted first and results expire after a time to live.
+ *
+ * Every user has a generation which is bumped when one of their uploads is saved. Results
+ * remember the generation of their user as it was before the search started, so a result
+ * computed while an upload of the same user completed is never served, and saving an upload
+ * drops results of that user only. Generations are drawn from one sequence and never reused,
+ * so a user's generation is dropped along with their last cached result.
+ * @author akadam
+ * @since 1.0
+ */
+public class MetaDataQueryCache implements PublicMetrics {
+
+	/**Most results kept, 0 disables the cache*/
+	@Value("${fileupload.metadata.cache.max-entries:1000}")
+	int maxEntries;
+
+	/**How long a result is served, in seconds*/
+	@Value("${fileupload.metadata.cache.ttl-seconds:30}")
+	long ttlSeconds;
+
+	/**Cached results in access order, guarded by itself*/
+	private final Map<Key, Result> results = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+			if(size() > maxEntries) {
+				evictions.increment();
+				released(eldest.getKey().user);
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**Cached results of each user, guarded by results*/
+	private final Map<String, Integer> cachedPerUser = new HashMap<String, Integer>();
+
+	/**Generation of each user searched for, bumped on every saved upload*/
+	private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**Source of generations, every generation handed out is unique*/
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * @return true if results are cached
+	 */
+	public boolean isEnabled() {
+		return maxEntries > 0;
+	}
+
+	/**
+	 * Generation of a user, to be taken before searching and handed to {@link #put}.
+	 * @param user user searched for
+	 * @return current generation
+	 */
+	public long generation(String user) {
+		return isEnabled() ? generationOf(user).get() : 0;
+	}
+
+	/**
+	 * @param user user searched for
+	 * @param epochDay creation date searched for, null for any date
+	 * @return cached result, null if none is cached or it expired or was invalidated
+	 */
+	public List<FileMetaData> get(String user, Integer epochDay) {
+		if(!isEnabled()) {
+			return null;
+		}
+		Key key = new Key(normalize(user), epochDay);
+		Result result;
+		synchronized(results) {
+			result = results.get(key);
+		}
+		if(result == null) {
+			misses.increment();
+			return null;
+		}
+		boolean expired = System.nanoTime() - result.cachedAt > TimeUnit.SECONDS.toNanos(ttlSeconds);
+		AtomicLong current = generations.get(key.user);
+		if(expired || current == null || result.generation != current.get()) {
+			synchronized(results) {
+				if(results.remove(key) != null) {
+					released(key.user);
+				}
+			}
+			if(expired) {
+				expirations.increment();
+			}
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return result.metadata;
+	}
+
+	/**
+	 * Caches a result unless user's uploads changed since generation was taken.
+	 * @param user user searched for
+	 * @param epochDay creation date searched for, null for any date
+	 * @param generation generation of user taken before searching
+	 * @param metadata search result
+	 * @return unmodifiable view of the result, to be returned instead of it
+	 */
+	public List<FileMetaData> put(String user, Integer epochDay, long generation, List<FileMetaData> metadata) {
+		List<FileMetaData> unmodifiable = Collections.unmodifiableList(metadata);
+		if(!isEnabled()) {
+			return unmodifiable;
+		}
+		String key = normalize(user);
+		synchronized(results) {
+			AtomicLong current = generations.get(key);
+			if(current != null && current.get() == generation) {
+				if(results.put(new Key(key, epochDay), new Result(unmodifiable, generation)) == null) {
+					Integer cached = cachedPerUser.get(key);
+					cachedPerUser.put(key, cached == null ? 1 : cached + 1);
+				}
+			}else if(current != null && !cachedPerUser.containsKey(key)) {
+				generations.remove(key, current);
+			}
+		}
+		return unmodifiable;
+	}
+
+	/**
+	 * Drops results of one user, to be called once their upload is saved and indexed.
+	 * @param user user whose uploads changed
+	 */
+	public void invalidate(String user) {
+		//Users nobody searched for have no generation, a search starting later sees the upload.
+		AtomicLong generation = generations.get(normalize(user));
+		if(generation != null) {
+			generation.set(sequence.incrementAndGet());
+		}
+		invalidations.increment();
+	}
+
+	/**
+	 * Drops every result, to be called when the whole index is rebuilt or rescanned.
+	 */
+	public void invalidateAll() {
+		synchronized(results) {
+			results.clear();
+			cachedPerUser.clear();
+			generations.clear();
+		}
+		invalidations.increment();
+	}
+
+	/**
+	 * Forgets generation of a user once their last cached result is gone, guarded by results.
+	 */
+	private void released(String user) {
+		Integer cached = cachedPerUser.remove(user);
+		if(cached != null && cached > 1) {
+			cachedPerUser.put(user, cached - 1);
+		}else {
+			generations.remove(user);
+		}
+	}
+
+	private AtomicLong generationOf(String user) {
+		String key = normalize(user);
+		AtomicLong generation = generations.get(key);
+		if(generation == null) {
+			AtomicLong created = new AtomicLong(sequence.incrementAndGet());
+			generation = generations.putIfAbsent(key, created);
+			if(generation == null) {
+				generation = created;
+			}
+		}
+		return generation;
+	}
+
+	/**
+	 * Users are matched ignoring case, same as searches do.
+	 */
+	private static String normalize(String user) {
+		return user.toLowerCase(Locale.ROOT);
+	}
+
+	/** (non-Javadoc)
+	 * @see org.springframework.boot.actuate.endpoint.PublicMetrics#metrics()
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		if(isEnabled()) {
+			int size;
+			synchronized(results) {
+				size = results.size();
+			}
+			long hitCount = hits.sum();
+			long lookups = hitCount + misses.sum();
+			metrics.add(new Metric<Integer>("metadata.cache.size", size));
+			metrics.add(new Metric<Long>("metadata.cache.hits", hitCount));
+			metrics.add(new Metric<Long>("metadata.cache.misses", misses.sum()));
+			metrics.add(new Metric<Double>("metadata.cache.hit-ratio", lookups == 0 ? 0.0 : (double) hitCount / lookups));
+			metrics.add(new Metric<Long>("metadata.cache.evictions", evictions.sum()));
+			metrics.add(new Metric<Long>("metadata.cache.expirations", expirations.sum()));
+			metrics.add(new Metric<Long>("metadata.cache.invalidations", invalidations.sum()));
+		}
+		return metrics;
+	}
+
+	/**
+	 * Cache key, user in lower case and creation date.
+	 */
+	private static final class Key {
+
+		private final String user;
+
+		private final Integer epochDay;
+
+		Key(String user, Integer epochDay) {
+			this.user = user;
+			this.epochDay = epochDay;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return user.equals(other.user) && (epochDay == null ? other.epochDay == null : epochDay.equals(other.epochDay));
+		}
+
+		@Override
+		public int hashCode() {
+			return user.hashCode() * 31 + (epochDay == null ? 0 : epochDay);
+		}
+	}
+
+	/**
+	 * Cached search result with generation it was computed at.
+	 */
+	private static final class Result {
+
+		private final List<FileMetaData> metadata;
+
+		private final long generation;
+
+		private final long cachedAt = System.nanoTime();
+
+		Result(List<FileMetaData> metadata, long generation) {
+			this.metadata = metadata;
+			this.generation = generation;
+		}
+	}
+}
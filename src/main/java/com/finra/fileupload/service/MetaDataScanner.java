@@ -0,0 +1,285 @@
+package com.finra.fileupload.service;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Reads metadata properties files of many upload directories in parallel, for full scans
+ * such as building the index and migrating metadata to the journal.
+ *
+ * Parent directories and then their upload directories are split in halves until a work
+ * unit holds at most split-size upload directories, work units run on a dedicated fork join
+ * pool. Reading is mostly waiting on disk, so the pool defaults to more threads than cores
+ * to keep enough reads in flight. Every unit collects into a list of its own, lists are
+ * concatenated as units are joined so nothing is shared while scanning.
+ * @author akadam
+ * @since 1.0
+ */
+public class MetaDataScanner {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(MetaDataScanner.class.getCanonicalName());
+
+	/**Metadata file extension*/
+	private static final String PROPERTIES_EXTENSION = ".properties";
+
+	/**Threads reading metadata, 0 for twice the number of processors*/
+	@Value("${fileupload.metadata.scan.parallelism:0}")
+	int parallelism;
+
+	/**Most upload directories read by one work unit*/
+	@Value("${fileupload.metadata.scan.split-size:64}")
+	int splitSize = 64;
+
+	/**Runs work units*/
+	private ForkJoinPool pool;
+
+	/**
+	 * Starts the scan pool.
+	 */
+	@PostConstruct
+	public void init() {
+		int threads = parallelism > 0 ? parallelism : 2 * Runtime.getRuntime().availableProcessors();
+		pool = new ForkJoinPool(threads);
+		logger.info("Metadata scanner started with ["+threads+"] threads");
+	}
+
+	/**
+	 * Stops the scan pool.
+	 */
+	@PreDestroy
+	public void close() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Reads metadata of uploads whose directories are children of given directories.
+	 * @param parents directories whose children are upload directories
+	 * @param user only metadata of this user is returned, matched ignoring case, null for all users
+	 * @param creationEpochDay only metadata with this creation date is returned, null for all dates
+	 * @return matching metadata, with upload directory name as upload id where none was stored
+	 */
+	public Result scan(List<File> parents, String user, Integer creationEpochDay) {
+		return pool.invoke(new ParentsTask(parents.toArray(new File[parents.size()]), 0, parents.size(), user, creationEpochDay));
+	}
+
+	/**
+	 * @param metadata stored key value pairs
+	 * @param user user name to match ignoring case, null matches any
+	 * @param creationEpochDay creation date to match, null matches any
+	 * @return true if metadata belongs to given user and creation date
+	 */
+	static boolean matches(Map<String, String> metadata, String user, Integer creationEpochDay) {
+		if(user != null && !user.equalsIgnoreCase(metadata.get(FileManagerHelper.USER_NAME))) {
+			return false;
+		}
+		if(creationEpochDay != null) {
+			String creationDate = metadata.get(FileManagerHelper.CREATION_DATE);
+			try {
+				return creationDate != null && DayFormat.parseEpochDay(creationDate) == creationEpochDay;
+			}catch(IllegalArgumentException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Lists upload directories directly under given directory, reserved directories are skipped.
+	 * @param parent directory to list
+	 * @return names of upload directories, empty if parent doesn't exist
+	 */
+	private static String[] listUploadDirectories(File parent) {
+		String[] directories = parent.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File current, String name) {
+				return !name.startsWith(FileManagerHelper.RESERVED_PREFIX) && new File(current, name).isDirectory();
+			}
+		});
+		return directories == null ? new String[0] : directories;
+	}
+
+	/**
+	 * Metadata found by a scan and what it took to find it.
+	 */
+	public static final class Result {
+
+		private final List<Map<String, String>> metaData = new ArrayList<Map<String, String>>();
+
+		private int directories;
+
+		private int propertiesFiles;
+
+		private Result merge(Result other) {
+			metaData.addAll(other.metaData);
+			directories += other.directories;
+			propertiesFiles += other.propertiesFiles;
+			return this;
+		}
+
+		/**
+		 * @return matching metadata, each holding its upload id
+		 */
+		public List<Map<String, String>> getMetaData() {
+			return metaData;
+		}
+
+		/**
+		 * @return number of directories listed
+		 */
+		public int getDirectories() {
+			return directories;
+		}
+
+		/**
+		 * @return number of properties files read
+		 */
+		public int getPropertiesFiles() {
+			return propertiesFiles;
+		}
+	}
+
+	/**
+	 * Scans a range of parent directories, a single parent is listed and its upload
+	 * directories handed to {@link DirectoriesTask}.
+	 */
+	private final class ParentsTask extends RecursiveTask<Result> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File[] parents;
+
+		private final int from;
+
+		private final int to;
+
+		private final String user;
+
+		private final Integer creationEpochDay;
+
+		ParentsTask(File[] parents, int from, int to, String user, Integer creationEpochDay) {
+			this.parents = parents;
+			this.from = from;
+			this.to = to;
+			this.user = user;
+			this.creationEpochDay = creationEpochDay;
+		}
+
+		@Override
+		protected Result compute() {
+			if(to - from == 0) {
+				return new Result();
+			}
+			if(to - from == 1) {
+				String[] directories = listUploadDirectories(parents[from]);
+				Result result = new DirectoriesTask(parents[from], directories, 0, directories.length, user, creationEpochDay).compute();
+				result.directories += 1;
+				return result;
+			}
+			int middle = (from + to) >>> 1;
+			ParentsTask left = new ParentsTask(parents, from, middle, user, creationEpochDay);
+			left.fork();
+			Result right = new ParentsTask(parents, middle, to, user, creationEpochDay).compute();
+			return left.join().merge(right);
+		}
+	}
+
+	/**
+	 * Reads properties files of a range of upload directories under one parent.
+	 */
+	private final class DirectoriesTask extends RecursiveTask<Result> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File parent;
+
+		private final String[] directories;
+
+		private final int from;
+
+		private final int to;
+
+		private final String user;
+
+		private final Integer creationEpochDay;
+
+		DirectoriesTask(File parent, String[] directories, int from, int to, String user, Integer creationEpochDay) {
+			this.parent = parent;
+			this.directories = directories;
+			this.from = from;
+			this.to = to;
+			this.user = user;
+			this.creationEpochDay = creationEpochDay;
+		}
+
+		@Override
+		protected Result compute() {
+			if(to - from > Math.max(1, splitSize)) {
+				int middle = (from + to) >>> 1;
+				DirectoriesTask left = new DirectoriesTask(parent, directories, from, middle, user, creationEpochDay);
+				left.fork();
+				Result right = new DirectoriesTask(parent, directories, middle, to, user, creationEpochDay).compute();
+				return left.join().merge(right);
+			}
+			Result result = new Result();
+			for(int i = from; i < to; i++) {
+				File directory = new File(parent, directories[i]);
+				String[] fileNames = directory.list(new FilenameFilter() {
+					@Override
+					public boolean accept(File current, String name) {
+						return name.endsWith(PROPERTIES_EXTENSION);
+					}
+				});
+				result.directories++;
+				if(fileNames == null) {
+					//Deleted since parent was listed.
+					continue;
+				}
+				for(String fileName : fileNames) {
+					Map<String, String> metadata = read(new File(directory, fileName));
+					result.propertiesFiles++;
+					if(metadata != null && matches(metadata, user, creationEpochDay)) {
+						if(!metadata.containsKey(FileManagerHelper.UPLOAD_ID)) {
+							//Files stored before upload id was recorded, directory name is the id.
+							metadata.put(FileManagerHelper.UPLOAD_ID, directories[i]);
+						}
+						result.metaData.add(metadata);
+					}
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * @return metadata of the file, null if it is malformed or was deleted since listed
+		 */
+		private Map<String, String> read(File file) {
+			try {
+				return PropertiesReader.read(file);
+			}catch(FileNotFoundException e) {
+				logger.log(Level.FINE, "Properties file deleted while scanning [{0}]", file);
+				return null;
+			}catch(IllegalArgumentException e) {
+				logger.warning("Skipping malformed properties file ["+file+"], "+e.getMessage());
+				return null;
+			}catch(IOException e) {
+				logger.log(Level.SEVERE, "Failed while reading properties file ["+file+"]", e);
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
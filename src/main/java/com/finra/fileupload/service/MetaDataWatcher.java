@@ -0,0 +1,465 @@
+package com.finra.fileupload.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Keeps the metadata index in step with properties files created, changed or removed
+ * under storage roots by something other than this service, e.g. operators or batch tools.
+ *
+ * Directories of the storage tree and upload directories are registered with a
+ * {@link WatchService}, up to max-directories of them. Events are collected and applied
+ * in one batch once no event came for debounce-ms, at most max-delay-ms after the first
+ * one or as soon as max-batch-size paths are pending, so a tool dropping thousands of files
+ * costs one batch and not thousands of updates. Every reconcile-interval-seconds, and when
+ * the watch service overflows, roots are walked comparing modification time and size of
+ * every properties file with what was last seen, so changes in directories left unwatched
+ * are picked up too. Only new or changed files are parsed.
+ *
+ * Only applies to properties metadata store, the journal is the only source of metadata otherwise.
+ * Uploads saved or deleted through this service are already indexed, their events find the
+ * index up to date and change nothing.
+ * @author akadam
+ * @since 1.0
+ */
+public class MetaDataWatcher implements PublicMetrics {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(MetaDataWatcher.class.getCanonicalName());
+
+	private static final String PROPERTIES_EXTENSION = ".properties";
+
+	/**Whether properties files are watched*/
+	@Value("${fileupload.metadata.watch.enabled:true}")
+	boolean enabled = true;
+
+	/**Quiet period after which pending events are applied*/
+	@Value("${fileupload.metadata.watch.debounce-ms:500}")
+	long debounceMillis = 500;
+
+	/**Longest pending events wait for a quiet period*/
+	@Value("${fileupload.metadata.watch.max-delay-ms:5000}")
+	long maxDelayMillis = 5000;
+
+	/**Pending paths applied right away*/
+	@Value("${fileupload.metadata.watch.max-batch-size:1000}")
+	int maxBatchSize = 1000;
+
+	/**Most directories registered, beyond these changes are found by reconciliation*/
+	@Value("${fileupload.metadata.watch.max-directories:8192}")
+	int maxDirectories = 8192;
+
+	/**Seconds between walks of storage roots*/
+	@Value("${fileupload.metadata.watch.reconcile-interval-seconds:300}")
+	long reconcileIntervalSeconds = 300;
+
+	@Autowired
+	FileMetaDataIndex metaDataIndex;
+
+	@Autowired
+	MetaDataQueryCache queryCache;
+
+	@Autowired
+	UsageStats usageStats;
+
+	@Autowired
+	StorageMetrics storageMetrics;
+
+	private WatchService watchService;
+
+	private Thread thread;
+
+	private volatile boolean running;
+
+	/**Storage roots watched*/
+	private final Set<Path> roots = new HashSet<Path>();
+
+	/*State below is only touched by watcher thread.*/
+
+	/**Registered directories*/
+	private final Map<WatchKey, Path> watched = new HashMap<WatchKey, Path>();
+
+	private final Set<Path> watchedDirectories = new HashSet<Path>();
+
+	/**Properties file path to what was last seen of it, sorted so files under a directory are adjacent*/
+	private final TreeMap<String, Seen> seen = new TreeMap<String, Seen>();
+
+	/**Whether registration stopped at max-directories or the system limit*/
+	private boolean watchLimitReached;
+
+	/**Whether reaching the limit was logged, it is reached again on every walk*/
+	private boolean watchLimitLogged;
+
+	/**Directories listed by current walk of roots*/
+	private int walkedDirectories;
+
+	/**Properties files compared by current walk of roots*/
+	private int walkedPropertiesFiles;
+
+	private final LongAdder events = new LongAdder();
+
+	private final LongAdder batches = new LongAdder();
+
+	private final LongAdder reconciliations = new LongAdder();
+
+	private final LongAdder added = new LongAdder();
+
+	private final LongAdder updated = new LongAdder();
+
+	private final LongAdder removed = new LongAdder();
+
+	/**
+	 * Starts watching given roots, called once index is built from them. Files already
+	 * there are taken as indexed, watcher thread records them before handling events.
+	 * @param rootPaths storage roots
+	 */
+	public synchronized void start(List<String> rootPaths) {
+		if(!enabled || thread != null) {
+			return;
+		}
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		}catch(IOException e) {
+			logger.log(Level.WARNING, "Watch service not available, external metadata changes are not picked up", e);
+			return;
+		}
+		for(String root : rootPaths) {
+			roots.add(new File(root).toPath());
+		}
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "metadata-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@PreDestroy
+	public synchronized void close() {
+		running = false;
+		if(watchService != null) {
+			try {
+				watchService.close();
+			}catch(IOException e) {
+				logger.log(Level.WARNING, "Failed while closing watch service", e);
+			}
+		}
+	}
+
+	/**
+	 * Event loop of watcher thread.
+	 */
+	private void watch() {
+		try {
+			walk(false);
+		}catch(ClosedWatchServiceException e) {
+			return;
+		}
+		logger.info("Watching ["+watched.size()+"] directories and ["+seen.size()+"] properties files under "+roots);
+		Set<Path> pending = new LinkedHashSet<Path>();
+		long firstPendingAt = 0;
+		long lastEventAt = 0;
+		long nextReconcileAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(reconcileIntervalSeconds);
+		while(running) {
+			try {
+				long now = System.currentTimeMillis();
+				long wakeAt = pending.isEmpty() ? nextReconcileAt :
+						Math.min(nextReconcileAt, Math.min(lastEventAt + debounceMillis, firstPendingAt + maxDelayMillis));
+				WatchKey key = watchService.poll(Math.max(1, wakeAt - now), TimeUnit.MILLISECONDS);
+				boolean overflow = false;
+				if(key != null) {
+					Path directory = watched.get(key);
+					for(WatchEvent<?> event : key.pollEvents()) {
+						events.increment();
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							overflow = true;
+						}else if(directory != null) {
+							if(pending.isEmpty()) {
+								firstPendingAt = System.currentTimeMillis();
+							}
+							pending.add(directory.resolve((Path) event.context()));
+						}
+					}
+					lastEventAt = System.currentTimeMillis();
+					if(!key.reset()) {
+						watchedDirectories.remove(watched.remove(key));
+					}
+				}
+				now = System.currentTimeMillis();
+				if(!pending.isEmpty() && (pending.size() >= maxBatchSize || now >= lastEventAt + debounceMillis || now >= firstPendingAt + maxDelayMillis)) {
+					apply(pending);
+					pending.clear();
+				}
+				if(overflow || now >= nextReconcileAt) {
+					walk(true);
+					if(overflow) {
+						//Changes were lost, results of any user may be stale.
+						queryCache.invalidateAll();
+					}
+					reconciliations.increment();
+					nextReconcileAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(reconcileIntervalSeconds);
+				}
+			}catch(ClosedWatchServiceException e) {
+				break;
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}catch(RuntimeException e) {
+				logger.log(Level.SEVERE, "Failed while applying metadata changes", e);
+			}
+		}
+	}
+
+	/**
+	 * Applies a batch of changed paths, directories are walked and vanished paths
+	 * remove every properties file seen under them.
+	 */
+	private void apply(Set<Path> paths) {
+		batches.increment();
+		for(Path path : paths) {
+			File file = path.toFile();
+			if(file.isDirectory()) {
+				Path parent = path.getParent();
+				if(!isReserved(file, parent != null && roots.contains(parent))) {
+					walk(file, false, true, null);
+				}
+			}else if(file.isFile()) {
+				if(file.getName().endsWith(PROPERTIES_EXTENSION)) {
+					update(file);
+				}
+			}else {
+				forget(path.toString());
+			}
+		}
+	}
+
+	/**
+	 * Walks every root, registering directories not watched yet and comparing properties files
+	 * with what was seen, files seen before but gone now are removed from index.
+	 * @param parse false to only record files, when index was just built from them
+	 */
+	private void walk(boolean parse) {
+		//Directories may have been removed since, so registration is tried again.
+		watchLimitReached = false;
+		walkedDirectories = 0;
+		walkedPropertiesFiles = 0;
+		Set<String> found = new HashSet<String>(seen.size() * 2);
+		for(Path root : roots) {
+			walk(root.toFile(), true, parse, found);
+		}
+		storageMetrics.scanned(walkedDirectories, walkedPropertiesFiles);
+		List<String> gone = new ArrayList<String>();
+		for(String path : seen.keySet()) {
+			if(!found.contains(path)) {
+				gone.add(path);
+			}
+		}
+		for(String path : gone) {
+			forget(path);
+		}
+	}
+
+	/**
+	 * Registers directory and walks below it. Reserved directories under a root are skipped
+	 * except the hierarchical tree, properties files directly under a root are not uploads.
+	 */
+	private void walk(File directory, boolean isRoot, boolean parse, Set<String> found) {
+		register(directory.toPath());
+		File[] children = directory.listFiles();
+		if(children == null) {
+			return;
+		}
+		walkedDirectories++;
+		for(File child : children) {
+			if(child.isDirectory()) {
+				if(!isReserved(child, isRoot)) {
+					walk(child, false, parse, found);
+				}
+			}else if(!isRoot && child.getName().endsWith(PROPERTIES_EXTENSION)) {
+				walkedPropertiesFiles++;
+				if(found != null) {
+					found.add(child.getPath());
+				}
+				if(parse) {
+					update(child);
+				}else {
+					Seen previous = seen.get(child.getPath());
+					seen.put(child.getPath(), new Seen(child.lastModified(), child.length(),
+							previous != null ? previous.uploadId : child.getParentFile().getName()));
+				}
+			}
+		}
+	}
+
+	private boolean isReserved(File directory, boolean isRoot) {
+		return isRoot && directory.getName().startsWith(FileManagerHelper.RESERVED_PREFIX) &&
+				!directory.getName().equals(StorageLayout.TREE_DIRECTORY);
+	}
+
+	private void register(Path directory) {
+		if(watchLimitReached || watchedDirectories.contains(directory)) {
+			return;
+		}
+		if(watched.size() >= maxDirectories) {
+			watchLimitReached = true;
+			if(watchLimitLogged) {
+				return;
+			}
+			watchLimitLogged = true;
+			logger.warning("Watching at most ["+maxDirectories+"] directories, changes elsewhere are picked up every ["+reconcileIntervalSeconds+"] seconds");
+			return;
+		}
+		try {
+			watched.put(directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), directory);
+			watchedDirectories.add(directory);
+		}catch(IOException e) {
+			//Typically the system limit of watches, or directory removed meanwhile.
+			if(directory.toFile().isDirectory()) {
+				watchLimitReached = true;
+				if(watchLimitLogged) {
+					return;
+				}
+				watchLimitLogged = true;
+				logger.log(Level.WARNING, "Directory ["+directory+"] can not be watched, changes beyond are picked up every ["+reconcileIntervalSeconds+"] seconds", e);
+			}
+		}
+	}
+
+	/**
+	 * Indexes a properties file if it changed since last seen. Incomplete or malformed files,
+	 * e.g. still being written, leave index as it is till they change again.
+	 */
+	private void update(File file) {
+		String path = file.getPath();
+		Seen previous = seen.get(path);
+		long lastModified = file.lastModified();
+		long length = file.length();
+		if(previous != null && previous.lastModified == lastModified && previous.length == length) {
+			return;
+		}
+		FileMetaData record;
+		try {
+			record = FileMetaData.fromMap(PropertiesReader.read(file), file.getParentFile().getName());
+		}catch(IOException e) {
+			logger.log(Level.FINE, "Properties file ["+path+"] vanished while read", e);
+			return;
+		}catch(IllegalArgumentException e) {
+			logger.fine("Skipping incomplete properties file ["+path+"], "+e.getMessage());
+			seen.put(path, new Seen(lastModified, length, previous != null ? previous.uploadId : null));
+			return;
+		}
+		seen.put(path, new Seen(lastModified, length, record.getUploadId()));
+		if(previous != null && previous.uploadId != null && !previous.uploadId.equals(record.getUploadId())) {
+			remove(previous.uploadId);
+		}
+		FileMetaData existing = metaDataIndex.get(record.getUploadId());
+		if(existing != null && existing.toMap().equals(record.toMap())) {
+			return;
+		}
+		FileMetaData replaced = metaDataIndex.add(record);
+		if(replaced != null) {
+			queryCache.invalidate(replaced.getUserName());
+			usageStats.remove(replaced);
+			updated.increment();
+		}else {
+			added.increment();
+		}
+		queryCache.invalidate(record.getUserName());
+		usageStats.record(record);
+		if(!file.isFile()) {
+			//Deleted while read, e.g. by a delete request which already took it out of index
+			remove(record.getUploadId());
+		}
+	}
+
+	/**
+	 * Removes uploads of a vanished properties file, or of all files under a vanished directory.
+	 */
+	private void forget(String path) {
+		Seen file = seen.remove(path);
+		if(file != null) {
+			remove(file.uploadId);
+		}
+		String prefix = path + File.separator;
+		SortedMap<String, Seen> below = seen.subMap(prefix, prefix + Character.MAX_VALUE);
+		for(Seen entry : below.values()) {
+			remove(entry.uploadId);
+		}
+		below.clear();
+	}
+
+	private void remove(String uploadId) {
+		FileMetaData existing = uploadId == null ? null : metaDataIndex.get(uploadId);
+		if(existing != null && (existing = metaDataIndex.remove(existing)) != null) {
+			queryCache.invalidate(existing.getUserName());
+			usageStats.remove(existing);
+			removed.increment();
+		}
+	}
+
+	/** (non-Javadoc)
+	 * @see org.springframework.boot.actuate.endpoint.PublicMetrics#metrics()
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		metrics.add(new Metric<Long>("metadata.watch.events", events.sum()));
+		metrics.add(new Metric<Long>("metadata.watch.batches", batches.sum()));
+		metrics.add(new Metric<Long>("metadata.watch.reconciliations", reconciliations.sum()));
+		metrics.add(new Metric<Long>("metadata.watch.added", added.sum()));
+		metrics.add(new Metric<Long>("metadata.watch.updated", updated.sum()));
+		metrics.add(new Metric<Long>("metadata.watch.removed", removed.sum()));
+		return metrics;
+	}
+
+	/**
+	 * Modification time and size of a properties file when last read, and upload it held.
+	 */
+	private static final class Seen {
+
+		private final long lastModified;
+
+		private final long length;
+
+		/**Upload id, null if file never held complete metadata*/
+		private final String uploadId;
+
+		Seen(long lastModified, long length, String uploadId) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.uploadId = uploadId;
+		}
+	}
+}
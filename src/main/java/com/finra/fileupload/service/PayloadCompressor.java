@@ -0,0 +1,278 @@
+package com.finra.fileupload.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Compresses payloads as they are written to disk, decided per file.
+ *
+ * First block of each payload is compressed on trial, payloads which don't shrink enough
+ * (already compressed archives, images, ...) are stored as uploaded. Compression runs on
+ * the uploading thread, at most {@code max-concurrent} payloads are compressed at a time
+ * and payloads arriving while all permits are taken are stored as uploaded, so CPU spent
+ * on compression is capped. Time spent and bytes saved are reported on /metrics.
+ * @author akadam
+ * @since 1.0
+ */
+public class PayloadCompressor implements PublicMetrics {
+
+	/**Codec used for compressible payloads, none disables compression*/
+	@Value("${fileupload.storage.compression:none}")
+	String codec;
+
+	/**Deflate level, 1 is fastest*/
+	@Value("${fileupload.storage.compression.level:1}")
+	int level;
+
+	/**Bytes from start of payload compressed on trial*/
+	@Value("${fileupload.storage.compression.sample-size:65536}")
+	int sampleSize;
+
+	/**Largest compressed to raw size ratio of the sample for payload to be compressed*/
+	@Value("${fileupload.storage.compression.max-ratio:0.9}")
+	double maxRatio;
+
+	/**Most payloads compressed at a time, 0 for number of processors*/
+	@Value("${fileupload.storage.compression.max-concurrent:0}")
+	int maxConcurrent;
+
+	/**Configured codec, parsed once*/
+	private Codec configuredCodec;
+
+	/**Permits to compress*/
+	private Semaphore permits;
+
+	/**Per thread buffers, input sized to sample and output for trial compression*/
+	private ThreadLocal<ByteBuffer> inputBuffer;
+	private ThreadLocal<byte[]> trialBuffer;
+
+	/**Per thread deflater, reset between payloads*/
+	private ThreadLocal<Deflater> deflater;
+
+	/**Compression time of payloads which were compressed*/
+	private final Histogram latency = new Histogram("storage.compression.latency.micros");
+
+	/**Raw and stored bytes of compressed payloads*/
+	private final LongAdder rawBytes = new LongAdder();
+	private final LongAdder storedBytes = new LongAdder();
+
+	/**Payloads stored as uploaded because sample didn't shrink enough*/
+	private final LongAdder incompressible = new LongAdder();
+
+	/**Payloads stored as uploaded because all permits were taken*/
+	private final LongAdder busy = new LongAdder();
+
+	/**
+	 * Sizes permits and buffers from configuration.
+	 */
+	@PostConstruct
+	public void init() {
+		configuredCodec = Codec.parse(codec);
+		permits = new Semaphore(maxConcurrent > 0 ? maxConcurrent : Runtime.getRuntime().availableProcessors());
+		final int size = Math.max(1, sampleSize);
+		inputBuffer = new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate(size);
+			}
+		};
+		trialBuffer = new ThreadLocal<byte[]>() {
+			@Override
+			protected byte[] initialValue() {
+				return new byte[size];
+			}
+		};
+		deflater = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(level);
+			}
+		};
+	}
+
+	/**
+	 * @return true if payloads may be compressed
+	 */
+	public boolean isEnabled() {
+		return getCodec() != Codec.NONE;
+	}
+
+	/**
+	 * @return codec compressible payloads are stored with
+	 */
+	public Codec getCodec() {
+		return configuredCodec;
+	}
+
+	/**
+	 * Copies all bytes from source to target, compressed if the first block shows they compress well.
+	 * @param source channel to read payload from
+	 * @param target channel to write to, positioned at start
+	 * @param digest digest to be updated with payload as uploaded, can be null
+	 * @return codec payload was written with and its raw size
+	 * @throws IOException if copy fails
+	 */
+	public Result write(ReadableByteChannel source, FileChannel target, MessageDigest digest) throws IOException {
+		ByteBuffer buffer = inputBuffer.get();
+		buffer.clear();
+		boolean end = fill(source, buffer);
+		buffer.flip();
+		//Empty payloads and all payloads when compression is off are stored as uploaded
+		if(isEnabled() && buffer.hasRemaining()) {
+			if(!compressible(buffer)) {
+				incompressible.increment();
+			}else if(permits.tryAcquire()) {
+				try {
+					return compress(buffer, end, source, target, digest);
+				}finally {
+					permits.release();
+				}
+			}else {
+				busy.increment();
+			}
+		}
+		return new Result(Codec.NONE, copy(buffer, end, source, target, digest));
+	}
+
+	/**
+	 * Reads until buffer is full or source ends.
+	 * @return true if source ended
+	 */
+	private boolean fill(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(source.read(buffer) == -1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compresses the sample on trial, buffer position is left unchanged.
+	 */
+	private boolean compressible(ByteBuffer sample) {
+		Deflater trial = deflater.get();
+		trial.reset();
+		trial.setInput(sample.array(), sample.arrayOffset() + sample.position(), sample.remaining());
+		trial.finish();
+		byte[] output = trialBuffer.get();
+		long limit = (long) (sample.remaining() * maxRatio);
+		while(!trial.finished() && trial.getTotalOut() <= limit) {
+			trial.deflate(output);
+		}
+		return trial.finished() && trial.getTotalOut() <= limit;
+	}
+
+	private Result compress(ByteBuffer buffer, boolean end, ReadableByteChannel source, FileChannel target, 
+			MessageDigest digest) throws IOException {
+		long start = System.nanoTime();
+		Deflater compressor = deflater.get();
+		compressor.reset();
+		long written = target.position();
+		DeflaterOutputStream output = new DeflaterOutputStream(Channels.newOutputStream(target), compressor, buffer.capacity());
+		long size = 0;
+		while(true) {
+			int count = buffer.remaining();
+			if(digest != null) {
+				digest.update(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+			}
+			output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+			size += count;
+			if(end) {
+				break;
+			}
+			buffer.clear();
+			end = fill(source, buffer);
+			buffer.flip();
+		}
+		//Finish but don't close, target is closed by caller and deflater is reused.
+		output.finish();
+		written = target.position() - written;
+		rawBytes.add(size);
+		storedBytes.add(written);
+		latency.record((System.nanoTime() - start) / 1000);
+		return new Result(getCodec(), size);
+	}
+
+	private long copy(ByteBuffer buffer, boolean end, ReadableByteChannel source, FileChannel target, 
+			MessageDigest digest) throws IOException {
+		long size = 0;
+		while(true) {
+			if(digest != null) {
+				digest.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			}
+			while(buffer.hasRemaining()) {
+				size += target.write(buffer);
+			}
+			if(end) {
+				return size;
+			}
+			buffer.clear();
+			end = fill(source, buffer);
+			buffer.flip();
+		}
+	}
+
+	/** (non-Javadoc)
+	 * @see org.springframework.boot.actuate.endpoint.PublicMetrics#metrics()
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		if(isEnabled()) {
+			long raw = rawBytes.sum();
+			metrics.add(new Metric<Double>("storage.compression.ratio", raw == 0 ? 1.0 : (double) raw / Math.max(1, storedBytes.sum())));
+			metrics.add(new Metric<Long>("storage.compression.raw.bytes", raw));
+			metrics.add(new Metric<Long>("storage.compression.stored.bytes", storedBytes.sum()));
+			metrics.add(new Metric<Long>("storage.compression.skipped.incompressible", incompressible.sum()));
+			metrics.add(new Metric<Long>("storage.compression.skipped.busy", busy.sum()));
+			latency.addTo(metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Outcome of writing a payload.
+	 */
+	public static final class Result {
+
+		private final Codec codec;
+
+		private final long size;
+
+		Result(Codec codec, long size) {
+			this.codec = codec;
+			this.size = size;
+		}
+
+		/**
+		 * @return codec payload was stored with
+		 */
+		public Codec getCodec() {
+			return codec;
+		}
+
+		/**
+		 * @return size of payload as uploaded
+		 */
+		public long getSize() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package com.finra.fileupload.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads metadata properties files without {@link java.util.Properties}.
+ *
+ * Whole file is read into a per thread buffer and parsed in place, following the format
+ * {@link java.util.Properties#load(InputStream)} reads: ISO-8859-1 text, # and ! comments,
+ * =, : or whitespace separators, backslash escapes including unicode ones, and lines
+ * continued with a trailing backslash. Nothing is synchronized and no reader is created
+ * per file, so many files can be read in parallel cheaply.
+ * @author akadam
+ * @since 1.0
+ */
+public final class PropertiesReader {
+
+	/**Initial size of per thread buffers, metadata files are a few hundred bytes*/
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	/**Per thread buffer file is read into*/
+	private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[INITIAL_BUFFER_SIZE];
+		}
+	};
+
+	/**Per thread buffer logical lines are assembled in*/
+	private static final ThreadLocal<StringBuilder> LINE = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	private PropertiesReader() {
+	}
+
+	/**
+	 * Reads all key value pairs of a properties file.
+	 * @param file properties file
+	 * @return key value pairs
+	 * @throws IOException if file can not be read
+	 * @throws IllegalArgumentException if file has a malformed unicode escape
+	 */
+	public static Map<String, String> read(File file) throws IOException {
+		byte[] buffer = BUFFER.get();
+		int length = 0;
+		InputStream input = new FileInputStream(file);
+		try {
+			int read;
+			while((read = input.read(buffer, length, buffer.length - length)) != -1) {
+				length += read;
+				if(length == buffer.length) {
+					byte[] grown = new byte[buffer.length * 2];
+					System.arraycopy(buffer, 0, grown, 0, length);
+					buffer = grown;
+					BUFFER.set(buffer);
+				}
+			}
+		}finally {
+			input.close();
+		}
+		return parse(buffer, length);
+	}
+
+	/**
+	 * Parses properties held as ISO-8859-1 bytes.
+	 * @param bytes buffer holding the properties
+	 * @param length number of bytes to parse
+	 * @return key value pairs
+	 * @throws IllegalArgumentException if bytes have a malformed unicode escape
+	 */
+	public static Map<String, String> parse(byte[] bytes, int length) {
+		Map<String, String> map = new HashMap<String, String>();
+		StringBuilder line = LINE.get();
+		line.setLength(0);
+		boolean newLine = true;
+		boolean comment = false;
+		boolean skipWhitespace = true;
+		boolean continued = false;
+		boolean escaped = false;
+		boolean skipLineFeed = false;
+		for(int i = 0; i < length; i++) {
+			char c = (char) (bytes[i] & 0xFF);
+			if(skipLineFeed) {
+				skipLineFeed = false;
+				if(c == '\n') {
+					continue;
+				}
+			}
+			if(skipWhitespace) {
+				if(isWhitespace(c) || (!continued && (c == '\r' || c == '\n'))) {
+					continue;
+				}
+				skipWhitespace = false;
+				continued = false;
+			}
+			if(newLine) {
+				newLine = false;
+				if(c == '#' || c == '!') {
+					comment = true;
+					continue;
+				}
+			}
+			if(c != '\n' && c != '\r') {
+				line.append(c);
+				escaped = c == '\\' && !escaped;
+				continue;
+			}
+			if(comment || line.length() == 0) {
+				//Blank or comment line, next one starts afresh.
+				comment = false;
+				newLine = true;
+				skipWhitespace = true;
+				escaped = false;
+				line.setLength(0);
+				continue;
+			}
+			if(escaped && i == length - 1) {
+				line.setLength(line.length() - 1);
+			}else if(escaped) {
+				//Line continues on the next one, its leading whitespace is dropped.
+				line.setLength(line.length() - 1);
+				skipWhitespace = true;
+				continued = true;
+				escaped = false;
+				skipLineFeed = c == '\r';
+				continue;
+			}
+			put(line, map);
+			line.setLength(0);
+			newLine = true;
+			skipWhitespace = true;
+		}
+		if(line.length() > 0 && !comment) {
+			if(escaped) {
+				line.setLength(line.length() - 1);
+			}
+			put(line, map);
+		}
+		return map;
+	}
+
+	/**
+	 * Splits a logical line into key and value.
+	 */
+	private static void put(StringBuilder line, Map<String, String> map) {
+		int length = line.length();
+		int keyEnd = 0;
+		boolean escaped = false;
+		while(keyEnd < length) {
+			char c = line.charAt(keyEnd);
+			if(escaped) {
+				escaped = false;
+			}else if(c == '\\') {
+				escaped = true;
+			}else if(c == '=' || c == ':' || isWhitespace(c)) {
+				break;
+			}
+			keyEnd++;
+		}
+		int valueStart = keyEnd;
+		while(valueStart < length && isWhitespace(line.charAt(valueStart))) {
+			valueStart++;
+		}
+		if(valueStart < length && (line.charAt(valueStart) == '=' || line.charAt(valueStart) == ':')) {
+			valueStart++;
+			while(valueStart < length && isWhitespace(line.charAt(valueStart))) {
+				valueStart++;
+			}
+		}
+		map.put(unescape(line, 0, keyEnd), unescape(line, valueStart, length));
+	}
+
+	/**
+	 * @return text with backslash escapes resolved
+	 */
+	private static String unescape(StringBuilder line, int from, int to) {
+		int escape = line.indexOf("\\", from);
+		if(escape < 0 || escape >= to) {
+			return line.substring(from, to);
+		}
+		StringBuilder text = new StringBuilder(to - from);
+		int i = from;
+		while(i < to) {
+			char c = line.charAt(i++);
+			if(c != '\\' || i >= to) {
+				text.append(c);
+				continue;
+			}
+			c = line.charAt(i++);
+			switch(c) {
+				case 'u':
+					if(i + 4 > to) {
+						throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+					}
+					int value = 0;
+					for(int j = 0; j < 4; j++) {
+						int digit = Character.digit(line.charAt(i++), 16);
+						if(digit < 0) {
+							throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+						}
+						value = (value << 4) | digit;
+					}
+					text.append((char) value);
+					break;
+				case 't':
+					text.append('\t');
+					break;
+				case 'r':
+					text.append('\r');
+					break;
+				case 'n':
+					text.append('\n');
+					break;
+				case 'f':
+					text.append('\f');
+					break;
+				default:
+					text.append(c);
+			}
+		}
+		return text.toString();
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\f';
+	}
+}
@@ -0,0 +1,586 @@
+package com.finra.fileupload.service;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Packs small payloads into large segment files instead of a directory and file per upload.
+ *
+ * Payloads are appended to the active segment, which is preallocated to segment size, as
+ * [status][id length][id][payload length][crc32][payload]. An in memory index maps upload id
+ * to the payload's segment and offset, it is rebuilt on startup by scanning the segments, a
+ * torn record at the end of a segment ends the scan. Reads are served as slices of read only
+ * memory mapped segments. Deleting a payload flips its status, background compaction copies
+ * live payloads out of segments with enough deleted bytes and removes those segments.
+ *
+ * Segments live under {@value #DIRECTORY} directory of the storage root.
+ * @author akadam
+ * @since 1.0
+ */
+public class SegmentStore implements PublicMetrics {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(SegmentStore.class.getCanonicalName());
+
+	/**Directory under storage root holding segments*/
+	static final String DIRECTORY = FileManagerHelper.RESERVED_PREFIX + "segments";
+
+	/**Segment file extension*/
+	private static final String EXTENSION = ".seg";
+
+	/**File header magic, "FUSG"*/
+	private static final int MAGIC = 0x46555347;
+
+	/**File format version*/
+	private static final int VERSION = 1;
+
+	/**Header length in bytes*/
+	private static final int HEADER_LENGTH = 8;
+
+	/**Record status, free space follows*/
+	private static final byte FREE = 0;
+
+	/**Record status, payload is live*/
+	private static final byte LIVE = 1;
+
+	/**Record status, payload was deleted*/
+	private static final byte DELETED = 2;
+
+	/**Bytes of a record besides id and payload, status, id length, payload length and checksum*/
+	private static final int RECORD_OVERHEAD = 1 + 2 + 4 + 4;
+
+	/**Whether small payloads are packed into segments*/
+	@Value("${fileupload.storage.segments.enabled:false}")
+	boolean enabled;
+
+	/**Largest payload packed into segments, larger ones get a file of their own*/
+	@Value("${fileupload.storage.segments.threshold:65536}")
+	int threshold = 65536;
+
+	/**Size segments are preallocated to*/
+	@Value("${fileupload.storage.segments.segment-size:268435456}")
+	int segmentSize = 268435456;
+
+	/**Share of deleted bytes at which a segment is compacted*/
+	@Value("${fileupload.storage.segments.compaction-ratio:0.5}")
+	double compactionRatio = 0.5;
+
+	/**Seconds between compaction runs*/
+	@Value("${fileupload.storage.segments.compaction-interval-seconds:60}")
+	long compactionIntervalSeconds = 60;
+
+	/**Directory holding segments*/
+	private File directory;
+
+	/**Segments by id, last one is active*/
+	private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+
+	/**Segment appended to, guarded by this*/
+	private Segment active;
+
+	/**Upload id -> location of its payload*/
+	private final ConcurrentMap<String, Location> locations = new ConcurrentHashMap<String, Location>();
+
+	/**Runs compaction*/
+	private ScheduledExecutorService compactor;
+
+	private final LongAdder compactions = new LongAdder();
+
+	private final LongAdder reclaimedBytes = new LongAdder();
+
+	/**
+	 * @return true if small payloads are packed into segments
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param contentLength length of a payload, negative if not known
+	 * @return true if payload of given length is to be packed
+	 */
+	public boolean accepts(long contentLength) {
+		return enabled && contentLength >= 0 && contentLength <= Math.min(threshold, segmentSize / 4);
+	}
+
+	/**
+	 * Opens segments under given storage root, rebuilding the offset index, and starts compaction.
+	 * @param parentDirectoryPath parent/root path where files are saved.
+	 */
+	public synchronized void open(String parentDirectoryPath) {
+		directory = new File(parentDirectoryPath, DIRECTORY);
+		directory.mkdirs();
+		segments.clear();
+		locations.clear();
+		active = null;
+		try {
+			for(File file : listSegments()) {
+				Segment segment = openSegment(file, false);
+				segments.put(segment.id, segment);
+				scan(segment);
+			}
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while opening segments", e);
+			throw new RuntimeException(e);
+		}
+		if(!segments.isEmpty()) {
+			active = segments.lastEntry().getValue();
+		}
+		if(compactor == null) {
+			compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "segment-compactor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			compactor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compact();
+					}catch(RuntimeException e) {
+						logger.log(Level.SEVERE, "Failed while compacting segments", e);
+					}
+				}
+			}, compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+		}
+		logger.info("Segment store opened with ["+segments.size()+"] segments and ["+locations.size()+"] payloads");
+	}
+
+	/**
+	 * Stops compaction and closes segments.
+	 */
+	@PreDestroy
+	public synchronized void close() {
+		if(compactor != null) {
+			compactor.shutdownNow();
+		}
+		for(Segment segment : segments.values()) {
+			close(segment);
+		}
+	}
+
+	/**
+	 * Appends a payload.
+	 * @param uploadId unique id of the upload
+	 * @param payload buffer holding the payload
+	 * @param length length of the payload
+	 * @throws IOException if payload can not be written
+	 */
+	public synchronized void append(String uploadId, byte[] payload, int length) throws IOException {
+		locations.put(uploadId, write(uploadId, payload, length));
+	}
+
+	/**
+	 * @param uploadId unique id of the upload
+	 * @return true if payload of upload is in a segment
+	 */
+	public boolean contains(String uploadId) {
+		return locations.containsKey(uploadId);
+	}
+
+	/**
+	 * @param uploadId unique id of the upload
+	 * @return segment file holding the payload, null if upload is not in a segment
+	 */
+	public Path locate(String uploadId) {
+		Location location = locations.get(uploadId);
+		return location == null ? null : location.segment.file.toPath();
+	}
+
+	/**
+	 * @return directory holding segments
+	 */
+	public Path getDirectory() {
+		return directory.toPath();
+	}
+
+	/**
+	 * Reads a payload without copying it.
+	 * @param uploadId unique id of the upload
+	 * @return read only view of the payload, null if upload is not in a segment
+	 */
+	public ByteBuffer read(String uploadId) {
+		Location location = locations.get(uploadId);
+		if(location == null) {
+			return null;
+		}
+		//Mapping stays valid even after compaction removed the segment file.
+		ByteBuffer view = location.segment.map.duplicate();
+		view.limit(location.payloadOffset + location.length).position(location.payloadOffset);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Marks payload of an upload deleted, space is reclaimed by compaction.
+	 * @param uploadId unique id of the upload
+	 * @return false if upload was not in a segment
+	 */
+	public synchronized boolean delete(String uploadId) {
+		Location location = locations.remove(uploadId);
+		if(location == null) {
+			return false;
+		}
+		try {
+			markDeleted(location);
+		}catch(IOException e) {
+			logger.log(Level.SEVERE, "Failed while deleting payload ["+uploadId+"]", e);
+			throw new RuntimeException(e);
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes payloads of uploads which have no metadata, e.g. written just before a crash.
+	 * @param uploadIds ids of all uploads with metadata
+	 */
+	public void retain(Set<String> uploadIds) {
+		for(String uploadId : new ArrayList<String>(locations.keySet())) {
+			if(!uploadIds.contains(uploadId)) {
+				logger.warning("Deleting payload without metadata ["+uploadId+"]");
+				delete(uploadId);
+			}
+		}
+	}
+
+	/**
+	 * Copies live payloads out of sealed segments whose share of deleted bytes reached
+	 * compaction ratio, then removes those segments.
+	 */
+	public void compact() {
+		for(Segment segment : new ArrayList<Segment>(segments.values())) {
+			long used = segment.liveBytes + segment.deadBytes;
+			if(segment == active || used == 0 || segment.deadBytes < compactionRatio * used) {
+				continue;
+			}
+			try {
+				compact(segment);
+			}catch(IOException e) {
+				logger.log(Level.SEVERE, "Failed while compacting segment ["+segment.file+"]", e);
+			}
+		}
+	}
+
+	/**
+	 * Copies live records of a sealed segment up to where its scan or writes ended, records
+	 * past that point, such as a torn one, are not indexed and not read.
+	 */
+	private void compact(Segment segment) throws IOException {
+		ByteBuffer map = segment.map.duplicate();
+		long reclaimed = segment.deadBytes;
+		int end;
+		synchronized(this) {
+			end = segment.writePosition;
+		}
+		int position = HEADER_LENGTH;
+		byte[] payload = new byte[0];
+		while(position < end) {
+			int recordLength = recordLength(map, position, end);
+			if(recordLength < 0) {
+				throw new IOException("Unreadable record at ["+position+"], keeping segment");
+			}
+			int idLength = map.getShort(position + 1) & 0xFFFF;
+			byte[] id = new byte[idLength];
+			map.position(position + 3);
+			map.get(id);
+			int length = map.getInt(position + 3 + idLength);
+			String uploadId = new String(id, StandardCharsets.UTF_8);
+			synchronized(this) {
+				Location location = locations.get(uploadId);
+				if(location != null && location.segment == segment && location.recordOffset == position) {
+					if(payload.length < length) {
+						payload = new byte[Math.max(length, payload.length * 2)];
+					}
+					map.position(location.payloadOffset);
+					map.get(payload, 0, length);
+					locations.put(uploadId, write(uploadId, payload, length));
+				}
+			}
+			position += recordLength;
+		}
+		synchronized(this) {
+			if(active != null) {
+				active.channel.force(false);
+			}
+			segments.remove(segment.id);
+			close(segment);
+			Files.deleteIfExists(segment.file.toPath());
+		}
+		compactions.increment();
+		reclaimedBytes.add(reclaimed);
+		logger.info("Compacted segment ["+segment.file.getName()+"] reclaiming ["+reclaimed+"] bytes");
+	}
+
+	/**
+	 * Writes a record to the active segment, rolling to a new one when it doesn't fit.
+	 * @return location of written payload
+	 */
+	private Location write(String uploadId, byte[] payload, int length) throws IOException {
+		byte[] id = uploadId.getBytes(StandardCharsets.UTF_8);
+		int recordLength = RECORD_OVERHEAD + id.length + length;
+		if(active == null || active.writePosition + recordLength > active.map.capacity()) {
+			roll();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, length);
+		ByteBuffer header = ByteBuffer.allocate(RECORD_OVERHEAD + id.length);
+		header.put(LIVE).putShort((short) id.length).put(id).putInt(length).putInt((int) crc.getValue()).flip();
+		long position = active.writePosition;
+		active.channel.position(position);
+		ByteBuffer[] record = new ByteBuffer[] {header, ByteBuffer.wrap(payload, 0, length)};
+		//Header is checked too, an empty payload would otherwise leave it unwritten
+		while(record[0].hasRemaining() || record[1].hasRemaining()) {
+			active.channel.write(record);
+		}
+		active.writePosition += recordLength;
+		active.liveBytes += recordLength;
+		return new Location(active, (int) position, (int) position + RECORD_OVERHEAD + id.length, length);
+	}
+
+	/**
+	 * Starts a new preallocated segment.
+	 */
+	private void roll() throws IOException {
+		int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		File file = new File(directory, String.format("%08d", id) + EXTENSION);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(segmentSize);
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+		}finally {
+			raf.close();
+		}
+		Segment segment = openSegment(file, true);
+		segment.writePosition = HEADER_LENGTH;
+		segments.put(segment.id, segment);
+		active = segment;
+	}
+
+	private Segment openSegment(File file, boolean created) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+		int id = Integer.parseInt(file.getName().substring(0, file.getName().length() - EXTENSION.length()));
+		return new Segment(id, file, channel, map);
+	}
+
+	/**
+	 * Reads every valid record of a segment into the offset index.
+	 */
+	private void scan(Segment segment) {
+		ByteBuffer map = segment.map.duplicate();
+		if(map.capacity() < HEADER_LENGTH || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+			logger.warning("Ignoring segment with unknown header ["+segment.file+"]");
+			segment.writePosition = map.capacity();
+			return;
+		}
+		int position = HEADER_LENGTH;
+		CRC32 crc = new CRC32();
+		while(true) {
+			int recordLength = recordLength(map, position, map.capacity());
+			if(recordLength < 0) {
+				break;
+			}
+			int idLength = map.getShort(position + 1) & 0xFFFF;
+			int length = map.getInt(position + 3 + idLength);
+			int checksum = map.getInt(position + 7 + idLength);
+			int payloadOffset = position + RECORD_OVERHEAD + idLength;
+			if(map.get(position) == DELETED) {
+				segment.deadBytes += recordLength;
+				position += recordLength;
+				continue;
+			}
+			byte[] id = new byte[idLength];
+			map.position(position + 3);
+			map.get(id);
+			ByteBuffer payload = map.duplicate();
+			payload.limit(payloadOffset + length).position(payloadOffset);
+			crc.reset();
+			crc.update(payload);
+			if((int) crc.getValue() != checksum) {
+				logger.warning("Checksum mismatch in ["+segment.file+"] at ["+position+"], ignoring rest of segment");
+				break;
+			}
+			segment.liveBytes += recordLength;
+			Location previous = locations.put(new String(id, StandardCharsets.UTF_8),
+					new Location(segment, position, payloadOffset, length));
+			if(previous != null) {
+				//Copied by a compaction which didn't get to remove the old segment.
+				previous.segment.liveBytes -= previous.recordLength();
+				previous.segment.deadBytes += previous.recordLength();
+			}
+			position += recordLength;
+		}
+		segment.writePosition = position;
+	}
+
+	/**
+	 * Checks status and lengths of the record at given position, without its checksum.
+	 * @param limit offset the whole record has to end by
+	 * @return length of the record, -1 if no live or deleted record fits there
+	 */
+	private static int recordLength(ByteBuffer map, int position, int limit) {
+		if(position + RECORD_OVERHEAD > limit) {
+			return -1;
+		}
+		byte status = map.get(position);
+		if(status != LIVE && status != DELETED) {
+			return -1;
+		}
+		int idLength = map.getShort(position + 1) & 0xFFFF;
+		if(position + RECORD_OVERHEAD + idLength > limit) {
+			return -1;
+		}
+		int length = map.getInt(position + 3 + idLength);
+		if(length < 0 || length > limit - (position + RECORD_OVERHEAD + idLength)) {
+			return -1;
+		}
+		return RECORD_OVERHEAD + idLength + length;
+	}
+
+	private void markDeleted(Location location) throws IOException {
+		ByteBuffer status = ByteBuffer.wrap(new byte[] {DELETED});
+		location.segment.channel.write(status, location.recordOffset);
+		location.segment.liveBytes -= location.recordLength();
+		location.segment.deadBytes += location.recordLength();
+	}
+
+	private void close(Segment segment) {
+		try {
+			segment.channel.close();
+		}catch(IOException e) {
+			logger.log(Level.WARNING, "Failed while closing segment ["+segment.file+"]", e);
+		}
+	}
+
+	/**
+	 * @return segment files ordered by id
+	 */
+	private List<File> listSegments() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(EXTENSION);
+			}
+		});
+		List<File> list = files == null ? new ArrayList<File>() : new ArrayList<File>(Arrays.asList(files));
+		Collections.sort(list, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return list;
+	}
+
+	/** (non-Javadoc)
+	 * @see org.springframework.boot.actuate.endpoint.PublicMetrics#metrics()
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		if(enabled) {
+			long live = 0;
+			long dead = 0;
+			for(Map.Entry<Integer, Segment> entry : segments.entrySet()) {
+				live += entry.getValue().liveBytes;
+				dead += entry.getValue().deadBytes;
+			}
+			metrics.add(new Metric<Integer>("storage.segments.count", segments.size()));
+			metrics.add(new Metric<Integer>("storage.segments.uploads", locations.size()));
+			metrics.add(new Metric<Long>("storage.segments.live.bytes", live));
+			metrics.add(new Metric<Long>("storage.segments.deleted.bytes", dead));
+			metrics.add(new Metric<Long>("storage.segments.compactions", compactions.sum()));
+			metrics.add(new Metric<Long>("storage.segments.reclaimed.bytes", reclaimedBytes.sum()));
+		}
+		return metrics;
+	}
+
+	/**
+	 * One segment file, counters and write position are guarded by the store.
+	 */
+	private static final class Segment {
+
+		private final int id;
+
+		private final File file;
+
+		private final FileChannel channel;
+
+		private final MappedByteBuffer map;
+
+		private int writePosition;
+
+		private volatile long liveBytes;
+
+		private volatile long deadBytes;
+
+		Segment(int id, File file, FileChannel channel, MappedByteBuffer map) {
+			this.id = id;
+			this.file = file;
+			this.channel = channel;
+			this.map = map;
+		}
+	}
+
+	/**
+	 * Where a payload is stored.
+	 */
+	private static final class Location {
+
+		private final Segment segment;
+
+		private final int recordOffset;
+
+		private final int payloadOffset;
+
+		private final int length;
+
+		Location(Segment segment, int recordOffset, int payloadOffset, int length) {
+			this.segment = segment;
+			this.recordOffset = recordOffset;
+			this.payloadOffset = payloadOffset;
+			this.length = length;
+		}
+
+		int recordLength() {
+			return payloadOffset - recordOffset + length;
+		}
+	}
+}
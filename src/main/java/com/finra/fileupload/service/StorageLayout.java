@@ -0,0 +1,289 @@
+package com.finra.fileupload.service;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Decides where uploads are placed under the storage root.
+ *
+ * flat :- {root}/{uploadId}, layout used by earliest versions, one directory per upload
+ * straight under root.
+ *
+ * hierarchical :- {root}/_tree/{user hash prefix}/{user hash}/{yyyy-MM}/{dd}/{bucket}/{uploadId},
+ * every level has bounded fan-out and a search for one user and creation date only touches
+ * directories of that user and date.
+ *
+ * Uploads saved with either layout are always readable, new uploads go to configured layout.
+ * The fan-out a tree was created with is recorded in {@value #LAYOUT_FILE} under the tree
+ * directory and used for the life of that tree, so changing the setting only affects new
+ * roots. Uploads not found in their bucket are looked up in every bucket of their day.
+ * @author akadam
+ * @since 1.0
+ */
+public class StorageLayout {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(StorageLayout.class.getCanonicalName());
+
+	/**Directory under storage root holding hierarchical tree*/
+	static final String TREE_DIRECTORY = FileManagerHelper.RESERVED_PREFIX + "tree";
+
+	/**Hierarchical layout name*/
+	private static final String HIERARCHICAL = "hierarchical";
+
+	/**File under tree directory recording the fan-out it was created with*/
+	static final String LAYOUT_FILE = ".layout";
+
+	/**Fan-out property of layout file*/
+	private static final String FANOUT = "fanout";
+
+	/**Levels between tree directory and upload directories*/
+	private static final int TREE_DEPTH = 5;
+
+	/**Layout used for new uploads, flat or hierarchical*/
+	@Value("${fileupload.storage.layout:hierarchical}")
+	String layout = HIERARCHICAL;
+
+	/**Number of buckets uploads of one user and day are spread over*/
+	@Value("${fileupload.storage.layout.fanout:64}")
+	int fanout = 64;
+
+	/**Fan-out of the tree under each storage root*/
+	private final Map<String, Integer> fanouts = new ConcurrentHashMap<String, Integer>();
+
+	/**Storage roots known to hold uploads saved with flat layout*/
+	private final Map<String, Boolean> flatRoots = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * Path of directory where new upload is to be saved.
+	 * @param parentDir storage root
+	 * @param user user uploading the file
+	 * @param creationDate file creation date
+	 * @param uploadId unique id of the upload
+	 * @return directory path for the upload
+	 */
+	public String resolve(String parentDir, String user, Date creationDate, String uploadId) {
+		if(!HIERARCHICAL.equalsIgnoreCase(layout)) {
+			flatRoots.put(parentDir, Boolean.TRUE);
+			return flatPath(parentDir, uploadId);
+		}
+		return new StringBuilder(dayPath(parentDir, user, DayFormat.format(creationDate)))
+				.append(File.separator).append(bucket(uploadId, fanoutOf(parentDir, true)))
+				.append(File.separator).append(uploadId).toString();
+	}
+
+	/**
+	 * Finds the directory of an existing upload, whichever layout it was saved with.
+	 * @param parentDir storage root
+	 * @param user user who uploaded the file
+	 * @param creationDate formatted file creation date
+	 * @param uploadId unique id of the upload
+	 * @return directory of the upload, null if it does not exist
+	 */
+	public File locate(String parentDir, String user, String creationDate, String uploadId) {
+		File day = new File(dayPath(parentDir, user, creationDate));
+		File hierarchical = new File(new File(day, bucket(uploadId, fanoutOf(parentDir, false))), uploadId);
+		if(hierarchical.isDirectory()) {
+			return hierarchical;
+		}
+		File flat = new File(flatPath(parentDir, uploadId));
+		if(flat.isDirectory()) {
+			return flat;
+		}
+		List<File> buckets = new ArrayList<File>();
+		collectBuckets(day, 1, buckets);
+		for(File bucket : buckets) {
+			File candidate = new File(bucket, uploadId);
+			if(candidate.isDirectory()) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Directories whose children are upload directories that may hold metadata of
+	 * given user and date. Root is included only when it holds flat uploads.
+	 * @param parentDir storage root
+	 * @param user user to search for
+	 * @param creationDate optional file creation date
+	 * @return parent directories of candidate upload directories
+	 */
+	public List<File> searchDirectories(String parentDir, String user, Date creationDate) {
+		List<File> directories = new ArrayList<File>();
+		if(hasFlatUploads(parentDir)) {
+			directories.add(new File(parentDir));
+		}
+		if(creationDate != null) {
+			collectBuckets(new File(dayPath(parentDir, user, DayFormat.format(creationDate))), 1, directories);
+		}else {
+			collectBuckets(new File(userPath(parentDir, user)), 3, directories);
+		}
+		return directories;
+	}
+
+	/**
+	 * All directories whose children are upload directories, for full scans.
+	 * @param parentDir storage root
+	 * @return parent directories of all upload directories
+	 */
+	public List<File> allDirectories(String parentDir) {
+		List<File> directories = new ArrayList<File>();
+		directories.add(new File(parentDir));
+		collectBuckets(new File(parentDir, TREE_DIRECTORY), TREE_DEPTH, directories);
+		return directories;
+	}
+
+	/**
+	 * Whether root holds any upload saved with flat layout. Once found the root is remembered,
+	 * until then only its own entries, a few reserved directories, are listed.
+	 */
+	private boolean hasFlatUploads(String parentDir) {
+		if(flatRoots.containsKey(parentDir)) {
+			return true;
+		}
+		File[] uploads = new File(parentDir).listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return !file.getName().startsWith(FileManagerHelper.RESERVED_PREFIX) && file.isDirectory();
+			}
+		});
+		if(uploads != null && uploads.length > 0) {
+			flatRoots.put(parentDir, Boolean.TRUE);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Fan-out recorded for the tree of a root, the configured one for a new tree.
+	 * @param create whether to record configured fan-out when tree has none yet
+	 */
+	private int fanoutOf(String parentDir, boolean create) {
+		Integer recorded = fanouts.get(parentDir);
+		if(recorded != null) {
+			return recorded;
+		}
+		synchronized(fanouts) {
+			recorded = fanouts.get(parentDir);
+			if(recorded != null) {
+				return recorded;
+			}
+			File layoutFile = new File(new File(parentDir, TREE_DIRECTORY), LAYOUT_FILE);
+			Properties properties = new Properties();
+			try {
+				if(layoutFile.isFile()) {
+					InputStream input = new FileInputStream(layoutFile);
+					try {
+						properties.load(input);
+					}finally {
+						input.close();
+					}
+					recorded = Integer.valueOf(properties.getProperty(FANOUT).trim());
+				}else if(create) {
+					recorded = Math.max(1, fanout);
+					properties.setProperty(FANOUT, String.valueOf(recorded));
+					layoutFile.getParentFile().mkdirs();
+					File temp = new File(layoutFile.getParentFile(), LAYOUT_FILE + ".tmp");
+					OutputStream output = new FileOutputStream(temp);
+					try {
+						properties.store(output, "Storage layout of this tree, do not edit");
+					}finally {
+						output.close();
+					}
+					Files.move(temp.toPath(), layoutFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				}else {
+					return Math.max(1, fanout);
+				}
+			}catch(IOException | RuntimeException e) {
+				logger.log(Level.SEVERE, "Failed while reading storage layout ["+layoutFile+"]", e);
+				throw new RuntimeException(e);
+			}
+			if(recorded != Math.max(1, fanout)) {
+				logger.warning("Tree under ["+parentDir+"] keeps fan-out ["+recorded+"], configured ["+fanout+"] is ignored");
+			}
+			fanouts.put(parentDir, recorded);
+			return recorded;
+		}
+	}
+
+	/**
+	 * Walks given number of levels down and collects directories found there.
+	 */
+	private void collectBuckets(File directory, int depth, List<File> directories) {
+		if(depth == 0) {
+			directories.add(directory);
+			return;
+		}
+		File[] children = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory();
+			}
+		});
+		if(children != null) {
+			for(File child : children) {
+				collectBuckets(child, depth - 1, directories);
+			}
+		}
+	}
+
+	private String flatPath(String parentDir, String uploadId) {
+		return new StringBuilder(parentDir).append(File.separator).append(uploadId).toString();
+	}
+
+	private String userPath(String parentDir, String user) {
+		String hash = userHash(user);
+		return new StringBuilder(parentDir).append(File.separator).append(TREE_DIRECTORY)
+				.append(File.separator).append(hash.substring(0, 2))
+				.append(File.separator).append(hash).toString();
+	}
+
+	/**
+	 * @param creationDate formatted as yyyy-MM-dd
+	 */
+	private String dayPath(String parentDir, String user, String creationDate) {
+		return new StringBuilder(userPath(parentDir, user))
+				.append(File.separator).append(creationDate.substring(0, 7))
+				.append(File.separator).append(creationDate.substring(8)).toString();
+	}
+
+	/**
+	 * Bucket of an upload within a day, spreads uploads evenly. String hash code is
+	 * fixed by the language specification so an upload always maps to same bucket.
+	 */
+	private String bucket(String uploadId, int fanout) {
+		return String.format("%02x", (uploadId.hashCode() & Integer.MAX_VALUE) % fanout);
+	}
+
+	/**
+	 * Stable 64 bit FNV-1a hash of user name, users are matched ignoring case.
+	 */
+	private String userHash(String user) {
+		long hash = 0xcbf29ce484222325L;
+		String key = user.toLowerCase(Locale.ROOT);
+		for(int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return String.format("%016x", hash);
+	}
+}
@@ -0,0 +1,170 @@
+package com.finra.fileupload.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Upload, search and storage I/O metrics, reported on /metrics.
+ *
+ * Hot paths only add to striped counters and histograms, everything derived (rates, means,
+ * percentiles) is computed when metrics are read. Latencies are in microseconds.
+ * @author akadam
+ * @since 1.0
+ */
+public class StorageMetrics implements PublicMetrics {
+
+	/**Time from start of save till upload is stored and indexed*/
+	private final Histogram uploadLatency = new Histogram("upload.latency.micros");
+
+	/**Time taken by a metadata search*/
+	private final Histogram searchLatency = new Histogram("search.latency.micros");
+
+	/**Directories listed by a full scan of properties files, building the index or reconciling it with disk*/
+	private final Histogram scanDirectories = new Histogram("metadata.scan.directories");
+
+	/**Properties files read or compared by a full scan*/
+	private final Histogram scanPropertiesFiles = new Histogram("metadata.scan.properties.files");
+
+	/**Time taken to write a payload to disk*/
+	private final Histogram payloadWriteLatency = new Histogram("storage.write.latency.micros");
+
+	/**Time taken to write metadata of an upload, properties file or journal record*/
+	private final Histogram metaDataWriteLatency = new Histogram("storage.metadata.write.latency.micros");
+
+	/**Time an upload waited to be made durable, forcing its files and waiting for its batch to be committed*/
+	private final Histogram commitWait = new Histogram("storage.commit.wait.micros");
+
+	/**Uploads made durable by one commit, count is the number of commits*/
+	private final Histogram commitBatchSize = new Histogram("storage.commit.batch.size");
+
+	/**Uploads being saved right now*/
+	private final LongAdder uploadsInFlight = new LongAdder();
+
+	/**Uploads which failed*/
+	private final LongAdder uploadsFailed = new LongAdder();
+
+	/**Payload bytes stored*/
+	private final LongAdder uploadedBytes = new LongAdder();
+
+	/**Bytes and time of previous read, to report ingest rate since then*/
+	private long lastReadBytes;
+	private long lastReadNanos = System.nanoTime();
+
+	/**
+	 * Marks an upload as started.
+	 * @return start time to hand to {@link #uploadFinished(long, boolean)}
+	 */
+	public long uploadStarted() {
+		uploadsInFlight.increment();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Marks an upload as finished.
+	 * @param startNanos value returned by {@link #uploadStarted()}
+	 * @param succeeded false if upload failed
+	 */
+	public void uploadFinished(long startNanos, boolean succeeded) {
+		uploadsInFlight.decrement();
+		if(succeeded) {
+			uploadLatency.record(micros(startNanos));
+		}else {
+			uploadsFailed.increment();
+		}
+	}
+
+	/**
+	 * @param bytes payload bytes stored by an upload
+	 */
+	public void bytesStored(long bytes) {
+		uploadedBytes.add(bytes);
+	}
+
+	/**
+	 * @param startNanos {@link System#nanoTime()} when payload write started
+	 */
+	public void payloadWritten(long startNanos) {
+		payloadWriteLatency.record(micros(startNanos));
+	}
+
+	/**
+	 * @param startNanos {@link System#nanoTime()} when metadata write started
+	 */
+	public void metaDataWritten(long startNanos) {
+		metaDataWriteLatency.record(micros(startNanos));
+	}
+
+	/**
+	 * @param startNanos {@link System#nanoTime()} when upload started to be made durable
+	 */
+	public void commitWaited(long startNanos) {
+		commitWait.record(micros(startNanos));
+	}
+
+	/**
+	 * @param uploads uploads made durable by one forcing of their directories and the journal
+	 */
+	public void batchCommitted(int uploads) {
+		commitBatchSize.record(uploads);
+	}
+
+	/**
+	 * @param startNanos {@link System#nanoTime()} when search started
+	 */
+	public void searched(long startNanos) {
+		searchLatency.record(micros(startNanos));
+	}
+
+	/**
+	 * Records how much of the disk a full scan of properties files had to touch.
+	 * @param directories directories listed
+	 * @param propertiesFiles properties files read or compared
+	 */
+	public void scanned(int directories, int propertiesFiles) {
+		scanDirectories.record(directories);
+		scanPropertiesFiles.record(propertiesFiles);
+	}
+
+	/**
+	 * @return bytes stored per second since metrics were read last time
+	 */
+	private synchronized double ingestRate() {
+		long now = System.nanoTime();
+		long bytes = uploadedBytes.sum();
+		double seconds = (now - lastReadNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+		double rate = seconds <= 0 ? 0.0 : (bytes - lastReadBytes) / seconds;
+		lastReadNanos = now;
+		lastReadBytes = bytes;
+		return rate;
+	}
+
+	private static long micros(long startNanos) {
+		return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+	}
+
+	/** (non-Javadoc)
+	 * @see org.springframework.boot.actuate.endpoint.PublicMetrics#metrics()
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		metrics.add(new Metric<Long>("upload.inflight", uploadsInFlight.sum()));
+		metrics.add(new Metric<Long>("upload.failed", uploadsFailed.sum()));
+		metrics.add(new Metric<Long>("upload.bytes", uploadedBytes.sum()));
+		metrics.add(new Metric<Double>("upload.bytes.per-second", ingestRate()));
+		uploadLatency.addTo(metrics);
+		searchLatency.addTo(metrics);
+		scanDirectories.addTo(metrics);
+		scanPropertiesFiles.addTo(metrics);
+		payloadWriteLatency.addTo(metrics);
+		metaDataWriteLatency.addTo(metrics);
+		commitWait.addTo(metrics);
+		commitBatchSize.addTo(metrics);
+		return metrics;
+	}
+}
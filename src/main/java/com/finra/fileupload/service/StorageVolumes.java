@@ -0,0 +1,310 @@
+package com.finra.fileupload.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Storage roots uploads are striped across, typically one per disk or volume.
+ *
+ * Each new upload is placed on one root, either by weighted rendezvous hashing of its
+ * upload id or on the root with most usable space scaled by its weight. Uploads are written
+ * on the request thread, at most writer-threads-per-volume of them to a root at a time, so
+ * writes to different disks proceed in parallel and a slow disk doesn't hold every request
+ * thread. Roots with too many uploads waiting are passed over while others have room. A
+ * root whose write fails and which then fails a probe write is degraded, no uploads are
+ * placed on it till it is probed again after degraded-retry-seconds, others carry on meanwhile.
+ *
+ * Existing uploads are never moved, they are found by looking under every root, so roots
+ * can be added at any time. First root also holds journal, staging area, sessions and segments.
+ * @author akadam
+ * @since 1.0
+ */
+public class StorageVolumes implements PublicMetrics {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(StorageVolumes.class.getCanonicalName());
+
+	/**Placement by weighted rendezvous hashing of upload id*/
+	private static final String WEIGHTED_HASH = "weighted-hash";
+
+	/**Placement on root with most usable space*/
+	private static final String LEAST_USED = "least-used";
+
+	/**Comma separated storage roots*/
+	@Value("${fileupload.storage.roots:file_storage}")
+	String roots = FileServiceImpl.PATH;
+
+	/**Comma separated weights of roots in same order, missing weights are 1*/
+	@Value("${fileupload.storage.weights:}")
+	String weights = "";
+
+	/**How new uploads are placed, weighted-hash or least-used*/
+	@Value("${fileupload.storage.placement:weighted-hash}")
+	String placement = WEIGHTED_HASH;
+
+	/**Uploads written to each root at a time*/
+	@Value("${fileupload.storage.writer-threads-per-volume:4}")
+	int writerThreads = 4;
+
+	/**Uploads waiting to write to a root beyond which it is passed over*/
+	@Value("${fileupload.storage.max-queued-per-volume:64}")
+	int maxQueued = 64;
+
+	/**Seconds a degraded root is left out before it is probed again*/
+	@Value("${fileupload.storage.degraded-retry-seconds:30}")
+	long degradedRetrySeconds = 30;
+
+	/**Configured roots in order*/
+	private final List<Volume> volumes = new ArrayList<Volume>();
+
+	/**
+	 * Creates roots.
+	 */
+	@PostConstruct
+	public void init() {
+		String[] paths = roots.split(",");
+		String[] weightValues = weights.trim().isEmpty() ? new String[0] : weights.split(",");
+		for(int i = 0; i < paths.length; i++) {
+			String path = paths[i].trim();
+			if(path.isEmpty()) {
+				continue;
+			}
+			int weight = i < weightValues.length ? Integer.parseInt(weightValues[i].trim()) : 1;
+			if(weight <= 0) {
+				throw new IllegalArgumentException("Weight of storage root ["+path+"] has to be positive");
+			}
+			Volume volume = new Volume(volumes.size(), path, weight, new Semaphore(Math.max(1, writerThreads)));
+			new File(path).mkdirs();
+			probe(volume);
+			volumes.add(volume);
+		}
+		if(volumes.isEmpty()) {
+			throw new IllegalArgumentException("At least one storage root is required");
+		}
+		logger.info("Storing uploads under "+getRoots()+" placed by ["+placement+"]");
+	}
+
+	/**
+	 * @return paths of all roots in configured order
+	 */
+	public List<String> getRoots() {
+		List<String> paths = new ArrayList<String>(volumes.size());
+		for(Volume volume : volumes) {
+			paths.add(volume.root);
+		}
+		return Collections.unmodifiableList(paths);
+	}
+
+	/**
+	 * @return path of first root, which holds journal, staging area, sessions and segments
+	 */
+	public String getPrimaryRoot() {
+		return volumes.get(0).root;
+	}
+
+	/**
+	 * Picks root for a new upload among healthy roots without too many uploads waiting, or among
+	 * healthy roots when all are busy, or among all roots when all are degraded.
+	 * @param uploadId unique id of the upload
+	 * @return root the upload is to be written to
+	 */
+	public Volume place(String uploadId) {
+		if(volumes.size() == 1) {
+			return volumes.get(0);
+		}
+		List<Volume> candidates = new ArrayList<Volume>(volumes.size());
+		for(Volume volume : volumes) {
+			if(isHealthy(volume) && volume.writers.getQueueLength() < maxQueued) {
+				candidates.add(volume);
+			}
+		}
+		if(candidates.isEmpty()) {
+			for(Volume volume : volumes) {
+				if(isHealthy(volume)) {
+					candidates.add(volume);
+				}
+			}
+		}
+		if(candidates.isEmpty()) {
+			candidates.addAll(volumes);
+		}
+		Volume chosen = null;
+		double best = Double.NEGATIVE_INFINITY;
+		for(Volume volume : candidates) {
+			double score = LEAST_USED.equalsIgnoreCase(placement) ? 
+					(double) new File(volume.root).getUsableSpace() * volume.weight : score(uploadId, volume);
+			if(chosen == null || score > best) {
+				chosen = volume;
+				best = score;
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * Runs a write to given root on calling thread, waiting while the root has as many writes
+	 * running as it allows. A failed write has the root probed, so a failing disk is degraded
+	 * while e.g. a client disconnecting is not held against it. With a single root, or when too
+	 * many writes are waiting since placement, the write runs right away.
+	 * @param volume root the write goes to
+	 * @param write write to run
+	 */
+	public void write(Volume volume, Runnable write) {
+		boolean acquired = false;
+		try {
+			if(volumes.size() > 1) {
+				if(volume.writers.getQueueLength() < maxQueued) {
+					volume.writers.acquire();
+					acquired = true;
+				}else {
+					logger.fine("Too many writes waiting for ["+volume.root+"], writing right away");
+				}
+			}
+			write.run();
+			volume.uploads.increment();
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}catch(RuntimeException e) {
+			failed(volume);
+			throw e;
+		}finally {
+			if(acquired) {
+				volume.writers.release();
+			}
+		}
+	}
+
+	private void failed(Volume volume) {
+		volume.failures.increment();
+		probe(volume);
+	}
+
+	/**
+	 * Writes and deletes a file under root, degrading the root if that fails.
+	 */
+	private void probe(Volume volume) {
+		File probe = new File(volume.root, ".probe-" + Thread.currentThread().getId());
+		try {
+			if(!probe.createNewFile() && !probe.isFile()) {
+				throw new IOException("Probe file could not be created");
+			}
+			if(!probe.delete()) {
+				throw new IOException("Probe file could not be deleted");
+			}
+			volume.degradedUntil = 0;
+		}catch(IOException e) {
+			volume.degradedUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(degradedRetrySeconds);
+			logger.log(Level.WARNING, "Storage root ["+volume.root+"] is degraded for ["+degradedRetrySeconds+"] seconds", e);
+		}
+	}
+
+	private boolean isHealthy(Volume volume) {
+		long degradedUntil = volume.degradedUntil;
+		if(degradedUntil == 0) {
+			return true;
+		}
+		if(System.currentTimeMillis() < degradedUntil) {
+			return false;
+		}
+		probe(volume);
+		return volume.degradedUntil == 0;
+	}
+
+	/**
+	 * Rendezvous score, upload goes to root with highest score. Adding a root only moves
+	 * placement of new uploads onto it, in proportion to its weight.
+	 */
+	private double score(String uploadId, Volume volume) {
+		long hash = mix(uploadId.hashCode() * 0x9E3779B97F4A7C15L ^ volume.seed);
+		//Uniform in (0, 1] from top 53 bits.
+		double uniform = ((hash >>> 11) + 1) / (double) (1L << 53);
+		return -volume.weight / Math.log(uniform);
+	}
+
+	/**
+	 * Murmur3 finalizer.
+	 */
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xFF51AFD7ED558CCDL;
+		value ^= value >>> 33;
+		value *= 0xC4CEB93FE53E94D3L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	/** (non-Javadoc)
+	 * @see org.springframework.boot.actuate.endpoint.PublicMetrics#metrics()
+	 */
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		metrics.add(new Metric<Integer>("storage.volumes.count", volumes.size()));
+		for(Volume volume : volumes) {
+			String prefix = "storage.volume." + volume.index + ".";
+			metrics.add(new Metric<Long>(prefix + "usable.bytes", new File(volume.root).getUsableSpace()));
+			metrics.add(new Metric<Integer>(prefix + "writing", writerThreads - volume.writers.availablePermits()));
+			metrics.add(new Metric<Integer>(prefix + "queued", volume.writers.getQueueLength()));
+			metrics.add(new Metric<Long>(prefix + "uploads", volume.uploads.sum()));
+			metrics.add(new Metric<Long>(prefix + "failures", volume.failures.sum()));
+			metrics.add(new Metric<Integer>(prefix + "degraded", volume.degradedUntil == 0 ? 0 : 1));
+		}
+		return metrics;
+	}
+
+	/**
+	 * One storage root and its write permits.
+	 */
+	public static final class Volume {
+
+		private final int index;
+
+		private final String root;
+
+		private final int weight;
+
+		/**Hash seed, from root path so placement doesn't depend on order of roots*/
+		private final long seed;
+
+		/**A permit per write running*/
+		private final Semaphore writers;
+
+		private final LongAdder uploads = new LongAdder();
+
+		private final LongAdder failures = new LongAdder();
+
+		/**Millis till which root is left out, 0 when healthy*/
+		private volatile long degradedUntil;
+
+		Volume(int index, String root, int weight, Semaphore writers) {
+			this.index = index;
+			this.root = root;
+			this.weight = weight;
+			this.seed = mix(root.hashCode());
+			this.writers = writers;
+		}
+
+		/**
+		 * @return path of the root
+		 */
+		public String getRoot() {
+			return root;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.finra.fileupload.service;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates unique upload ids which sort lexicographically by upload time, in the spirit of ULID.
+ *
+ * An id is 26 characters of lower case Crockford base32: 48 bits of milliseconds since epoch
+ * followed by 80 random bits. Each thread keeps its own state, so ids are generated without
+ * locks or blocking on entropy. Within a thread ids generated in the same millisecond increment
+ * the random part, so they stay strictly increasing even if the clock steps back.
+ *
+ * Random part comes from {@link ThreadLocalRandom}, ids are unique but not meant to be secrets.
+ * @author akadam
+ * @since 1.0
+ */
+public class UploadIdGenerator {
+
+	/**Length of generated ids*/
+	public static final int LENGTH = 26;
+
+	/**Characters holding the timestamp*/
+	private static final int TIMESTAMP_LENGTH = 10;
+
+	/**Crockford base32 in lower case, in ascending ASCII order so ids sort as numbers*/
+	private static final char[] ALPHABET = "0123456789abcdefghjkmnpqrstvwxyz".toCharArray();
+
+	/**Character to value, -1 for characters outside alphabet*/
+	private static final byte[] VALUES = new byte[128];
+
+	static {
+		Arrays.fill(VALUES, (byte) -1);
+		for(int i = 0; i < ALPHABET.length; i++) {
+			VALUES[ALPHABET[i]] = (byte) i;
+		}
+	}
+
+	/**Largest timestamp that fits in 48 bits*/
+	private static final long MAX_TIMESTAMP = (1L << 48) - 1;
+
+	/**Last id generated by each thread*/
+	private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	/**
+	 * @return new unique id, greater than every id this thread generated before
+	 */
+	public String nextId() {
+		State state = STATE.get();
+		long now = System.currentTimeMillis();
+		if(now > state.timestamp) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			state.timestamp = now;
+			state.randomHigh = random.nextInt(1 << 16);
+			state.randomLow = random.nextLong();
+		}else if(++state.randomLow == 0 && (state.randomHigh = (state.randomHigh + 1) & 0xFFFF) == 0) {
+			//Random part wrapped around, borrow the next millisecond.
+			state.timestamp++;
+		}
+		return encode(state.timestamp, state.randomHigh, state.randomLow);
+	}
+
+	/**
+	 * Smallest id that can be generated at given time, so ids of uploads from a time on
+	 * can be found by seeking to it in any structure ordered by upload id.
+	 * @param epochMillis milliseconds since epoch
+	 * @return lower bound of ids generated at or after given time
+	 */
+	public static String lowerBound(long epochMillis) {
+		return encode(Math.max(0, Math.min(epochMillis, MAX_TIMESTAMP)), 0, 0);
+	}
+
+	/**
+	 * Extracts the time an id was generated at.
+	 * @param id id generated by this class
+	 * @return milliseconds since epoch, -1 if id is not in this format
+	 */
+	public static long timestampOf(String id) {
+		if(id == null || id.length() != LENGTH) {
+			return -1;
+		}
+		long timestamp = 0;
+		for(int i = 0; i < LENGTH; i++) {
+			char c = id.charAt(i);
+			int value = c < VALUES.length ? VALUES[c] : -1;
+			if(value < 0) {
+				return -1;
+			}
+			if(i < TIMESTAMP_LENGTH) {
+				timestamp = (timestamp << 5) | value;
+			}
+		}
+		return timestamp <= MAX_TIMESTAMP ? timestamp : -1;
+	}
+
+	/**
+	 * Checks an id received from outside, e.g. from another node, before it is used as directory name.
+	 * @param id id to check
+	 * @return true for ids in this format, or in format of random ids used before it, lower case
+	 * base32 of 130 random bits. Either way only letters and digits.
+	 */
+	public static boolean isWellFormed(String id) {
+		if(timestampOf(id) >= 0) {
+			return true;
+		}
+		if(id == null || id.isEmpty() || id.length() > LENGTH) {
+			return false;
+		}
+		for(int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if(!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'v')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String encode(long timestamp, int randomHigh, long randomLow) {
+		char[] chars = new char[LENGTH];
+		long bits = randomLow;
+		for(int i = LENGTH - 1; i >= TIMESTAMP_LENGTH + 4; i--) {
+			chars[i] = ALPHABET[(int) (bits & 31)];
+			bits >>>= 5;
+		}
+		//4 bits left of low part and 16 bits of high part make last 4 random characters.
+		bits |= ((long) randomHigh) << 4;
+		for(int i = TIMESTAMP_LENGTH + 3; i >= TIMESTAMP_LENGTH; i--) {
+			chars[i] = ALPHABET[(int) (bits & 31)];
+			bits >>>= 5;
+		}
+		bits = timestamp;
+		for(int i = TIMESTAMP_LENGTH - 1; i >= 0; i--) {
+			chars[i] = ALPHABET[(int) (bits & 31)];
+			bits >>>= 5;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Last id generated by a thread.
+	 */
+	private static final class State {
+
+		private long timestamp = -1;
+
+		private int randomHigh;
+
+		private long randomLow;
+	}
+}
@@ -0,0 +1,257 @@
+package com.finra.fileupload.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * State of one chunked upload. Chunks are written at their offset into a preallocated
+ * data file with positional writes, so chunks can arrive in any order and in parallel.
+ * Each received chunk is marked by one byte at its position in the receipts file,
+ * marked only after chunk data is forced to disk, so session can be resumed after restart.
+ * Chunks are written under read lock of the session and it is closed under write lock, so
+ * commit and abort wait for chunks being written and no chunk is written after them.
+ * @author akadam
+ * @since 1.0
+ */
+public class UploadSession {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(UploadSession.class.getCanonicalName());
+
+	/**Data file name*/
+	static final String DATA_FILE = "data";
+
+	/**Receipts file name*/
+	static final String RECEIPTS_FILE = "receipts";
+
+	/**Receipt marker of a received chunk*/
+	private static final byte RECEIVED = 1;
+
+	/**Unique id of the session*/
+	private final String sessionId;
+
+	/**User uploading the file*/
+	private final String userName;
+
+	/**Name of the file uploaded*/
+	private final String fileName;
+
+	/**File creation date*/
+	private final Date fileDate;
+
+	/**Total file size in bytes*/
+	private final long fileSize;
+
+	/**Size of every chunk except the last one*/
+	private final long chunkSize;
+
+	/**Session directory*/
+	private final File directory;
+
+	/**Preallocated data file*/
+	private FileChannel data;
+
+	/**One byte per chunk, set once chunk is on disk*/
+	private FileChannel receipts;
+
+	/**Set once session is being committed or aborted, no more chunks are accepted*/
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/**Held shared by chunk writes and exclusively while closing*/
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**When a chunk was last received, or session opened*/
+	private volatile long lastModified = System.currentTimeMillis();
+
+	public UploadSession(String sessionId, String userName, String fileName, Date fileDate,
+			long fileSize, long chunkSize, File directory) {
+		this.sessionId = sessionId;
+		this.userName = userName;
+		this.fileName = fileName;
+		this.fileDate = fileDate;
+		this.fileSize = fileSize;
+		this.chunkSize = chunkSize;
+		this.directory = directory;
+	}
+
+	/**
+	 * Opens data and receipts files, creating and preallocating them if needed.
+	 * @throws IOException if files can not be opened
+	 */
+	synchronized void open() throws IOException {
+		data = FileChannel.open(new File(directory, DATA_FILE).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if(data.size() < fileSize) {
+			//Writing last byte extends file to full size, sparse where supported.
+			data.write(ByteBuffer.wrap(new byte[1]), fileSize - 1);
+		}
+		receipts = FileChannel.open(new File(directory, RECEIPTS_FILE).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if(receipts.size() < getChunkCount()) {
+			receipts.write(ByteBuffer.wrap(new byte[1]), getChunkCount() - 1);
+		}
+	}
+
+	/**
+	 * Writes one chunk at its offset. Safe to call concurrently for different chunks.
+	 * @param chunkNumber zero based chunk number
+	 * @param source chunk contents
+	 * @throws IOException if chunk could not be written
+	 * @throws IllegalArgumentException if chunk number or chunk length is invalid
+	 * @throws IllegalStateException if session is already committed or aborted
+	 */
+	public void writeChunk(int chunkNumber, ReadableByteChannel source) throws IOException {
+		if(chunkNumber < 0 || chunkNumber >= getChunkCount()) {
+			throw new IllegalArgumentException("Invalid chunk number ["+chunkNumber+"], session has ["+getChunkCount()+"] chunks");
+		}
+		lock.readLock().lock();
+		try {
+			if(closed.get()) {
+				throw new IllegalStateException("Upload session ["+sessionId+"] is closed");
+			}
+			lastModified = System.currentTimeMillis();
+			long offset = chunkNumber * chunkSize;
+			long expected = Math.min(chunkSize, fileSize - offset);
+			long written = 0;
+			long count;
+			while(written < expected && (count = data.transferFrom(source, offset + written, expected - written)) > 0) {
+				written += count;
+			}
+			if(written != expected || source.read(ByteBuffer.allocate(1)) != -1) {
+				throw new IllegalArgumentException("Chunk ["+chunkNumber+"] must be ["+expected+"] bytes");
+			}
+			data.force(false);
+			receipts.write(ByteBuffer.wrap(new byte[] {RECEIVED}), chunkNumber);
+			lastModified = System.currentTimeMillis();
+		}finally {
+			lock.readLock().unlock();
+		}
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Received chunk ["+chunkNumber+"] of session ["+sessionId+"]");
+		}
+	}
+
+	/**
+	 * @return numbers of chunks not yet received
+	 * @throws IOException if receipts can not be read
+	 */
+	public List<Integer> getMissingChunks() throws IOException {
+		List<Integer> missing = new ArrayList<Integer>();
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(getChunkCount(), 64 * 1024));
+		int chunk = 0;
+		while(chunk < getChunkCount()) {
+			buffer.clear();
+			int read = receipts.read(buffer, chunk);
+			if(read <= 0) {
+				break;
+			}
+			for(int i = 0; i < read; i++) {
+				if(buffer.get(i) != RECEIVED) {
+					missing.add(chunk + i);
+				}
+			}
+			chunk += read;
+		}
+		for(; chunk < getChunkCount(); chunk++) {
+			missing.add(chunk);
+		}
+		return missing;
+	}
+
+	/**
+	 * Marks session closed, only first caller succeeds. Waits for chunks being written.
+	 * @return true if this call closed the session
+	 */
+	boolean markClosed() {
+		lock.writeLock().lock();
+		try {
+			return closed.compareAndSet(false, true);
+		}finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Reopens session for chunks, used when commit could not complete.
+	 */
+	void reopen() {
+		closed.set(false);
+	}
+
+	/**
+	 * Closes data and receipts files.
+	 */
+	synchronized void close() {
+		try {
+			if(data != null) {
+				data.close();
+			}
+			if(receipts != null) {
+				receipts.close();
+			}
+		}catch(IOException e) {
+			logger.warning("Failed while closing session files ["+sessionId+"] "+e);
+		}
+	}
+
+	/**
+	 * @return number of chunks in this session
+	 */
+	public int getChunkCount() {
+		return (int) Math.max(1, (fileSize - 1) / chunkSize + 1);
+	}
+
+	/**
+	 * @return time a chunk was last received, or session opened if none was since
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the data file holding assembled chunks
+	 */
+	public File getDataFile() {
+		return new File(directory, DATA_FILE);
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public Date getFileDate() {
+		return fileDate;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+}
@@ -0,0 +1,539 @@
+package com.finra.fileupload.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongBinaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Per user and per creation day usage: number of files, total bytes and time of first and
+ * last upload, kept up to date as uploads enter and leave the metadata index. Callers count
+ * what the index actually gained or lost, so an upload indexed twice, e.g. by the save and
+ * by the metadata watcher, is counted once.
+ *
+ * Counters are {@link LongAdder}s and times {@link LongAccumulator}s, so concurrent uploads
+ * of the same user don't contend. Upload time is taken from the upload id, or start of upload
+ * date for ids not generated by {@link UploadIdGenerator}. Deleting an upload takes it out of
+ * counts and bytes, first and last upload times stay as they were till the next recount.
+ *
+ * Aggregates are written to _stats/usage.dat under the first root every persist-interval-seconds
+ * when changed and on shutdown, along with a watermark, the greatest upload id counted. On
+ * startup the snapshot is loaded and indexed uploads past the watermark are added. If totals
+ * then don't match the index, e.g. uploads were deleted after the last snapshot or files
+ * changed while stopped, aggregates are recounted from the index instead. Either way
+ * storage is not scanned.
+ * @author akadam
+ * @since 1.0
+ */
+public class UsageStats {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(UsageStats.class.getCanonicalName());
+
+	/**Directory under first root holding the snapshot*/
+	private static final String STATS_DIRECTORY = FileManagerHelper.RESERVED_PREFIX + "stats";
+
+	private static final String SNAPSHOT_FILE = "usage.dat";
+
+	/**"FUUS"*/
+	private static final int MAGIC = 0x46555553;
+
+	private static final int VERSION = 1;
+
+	/**Marks a time that was not recorded*/
+	private static final long NO_TIME = -1;
+
+	private static final LongBinaryOperator MIN = new LongBinaryOperator() {
+		@Override
+		public long applyAsLong(long left, long right) {
+			return Math.min(left, right);
+		}
+	};
+
+	private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+		@Override
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	};
+
+	/**Seconds between snapshots, 0 to only write one on shutdown*/
+	@Value("${fileupload.stats.persist-interval-seconds:60}")
+	long persistIntervalSeconds = 60;
+
+	/**Lower cased user name to usage*/
+	private final ConcurrentMap<String, Usage> users = new ConcurrentHashMap<String, Usage>();
+
+	/**Updates hold read lock so they run concurrently, snapshot and recount hold write lock*/
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**Greatest upload id counted, empty when none*/
+	private final AtomicReference<String> watermark = new AtomicReference<String>("");
+
+	/**Whether aggregates changed since last snapshot*/
+	private final AtomicBoolean dirty = new AtomicBoolean();
+
+	private File snapshot;
+
+	private ScheduledExecutorService persister;
+
+	/**
+	 * Loads aggregates from snapshot and brings them up to date with the index, or recounts
+	 * them from the index, then starts writing snapshots.
+	 * @param primaryRoot first storage root
+	 * @param indexed metadata of all indexed uploads
+	 */
+	public synchronized void open(String primaryRoot, Collection<FileMetaData> indexed) {
+		snapshot = new File(new File(primaryRoot, STATS_DIRECTORY), SNAPSHOT_FILE);
+		if(load()) {
+			String mark = watermark.get();
+			long files = 0;
+			long bytes = 0;
+			List<FileMetaData> newer = new ArrayList<FileMetaData>();
+			for(FileMetaData metadata : indexed) {
+				files++;
+				bytes += bytes(metadata);
+				if(UploadIdGenerator.timestampOf(metadata.getUploadId()) >= 0 && metadata.getUploadId().compareTo(mark) > 0) {
+					newer.add(metadata);
+				}
+			}
+			for(FileMetaData metadata : newer) {
+				record(metadata);
+			}
+			if(totalFiles() == files && totalBytes() == bytes) {
+				logger.info("Usage stats of ["+users.size()+"] users loaded, ["+newer.size()+"] newer uploads added");
+			}else {
+				logger.info("Usage stats snapshot doesn't match the index, recounting");
+				recount(indexed);
+			}
+		}else {
+			recount(indexed);
+		}
+		if(persistIntervalSeconds > 0 && persister == null) {
+			persister = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "usage-stats-persister");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			persister.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					persist();
+				}
+			}, persistIntervalSeconds, persistIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Writes last snapshot.
+	 */
+	@PreDestroy
+	public void close() {
+		if(persister != null) {
+			persister.shutdownNow();
+		}
+		persist();
+	}
+
+	/**
+	 * Counts a saved upload.
+	 * @param metadata metadata of the upload
+	 */
+	public void record(FileMetaData metadata) {
+		long bytes = bytes(metadata);
+		long time = uploadTime(metadata);
+		lock.readLock().lock();
+		try {
+			Usage user = usageOf(metadata.getUserName());
+			user.add(1, bytes, time);
+			user.dayOf(metadata.getCreationEpochDay()).add(1, bytes, time);
+			advanceWatermark(metadata.getUploadId());
+			dirty.set(true);
+		}finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Takes a deleted upload out of counts and bytes.
+	 * @param metadata metadata of the upload
+	 */
+	public void remove(FileMetaData metadata) {
+		long bytes = bytes(metadata);
+		lock.readLock().lock();
+		try {
+			Usage user = usageOf(metadata.getUserName());
+			user.add(-1, -bytes, NO_TIME);
+			user.dayOf(metadata.getCreationEpochDay()).add(-1, -bytes, NO_TIME);
+			dirty.set(true);
+		}finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param user user name, matched ignoring case
+	 * @return usage of the user, null if user has no uploads
+	 */
+	public Usage get(String user) {
+		Usage usage = users.get(user.toLowerCase(Locale.ROOT));
+		return usage == null || usage.getFileCount() <= 0 ? null : usage;
+	}
+
+	/**
+	 * @return usage of every user with uploads, ordered by user
+	 */
+	public List<Usage> getUsers() {
+		Map<String, Usage> sorted = new TreeMap<String, Usage>(users);
+		List<Usage> result = new ArrayList<Usage>(sorted.size());
+		for(Usage usage : sorted.values()) {
+			if(usage.getFileCount() > 0) {
+				result.add(usage);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes aggregates to snapshot if they changed. Aggregates are copied under write lock
+	 * and written after, a failed write is retried by the next one.
+	 */
+	public synchronized void persist() {
+		if(snapshot == null || !dirty.getAndSet(false)) {
+			return;
+		}
+		try {
+			byte[] body;
+			lock.writeLock().lock();
+			try {
+				body = encode();
+			}finally {
+				lock.writeLock().unlock();
+			}
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, body.length);
+			ByteBuffer buffer = ByteBuffer.allocate(body.length + 12);
+			buffer.putInt(MAGIC).putInt(VERSION).put(body).putInt((int) crc.getValue()).flip();
+
+			snapshot.getParentFile().mkdirs();
+			File temp = new File(snapshot.getParentFile(), SNAPSHOT_FILE + ".tmp");
+			FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try {
+				while(buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			}finally {
+				channel.close();
+			}
+			Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e) {
+			dirty.set(true);
+			logger.log(Level.WARNING, "Failed while writing usage stats snapshot", e);
+		}
+	}
+
+	/**
+	 * Replaces aggregates with counts of given uploads.
+	 */
+	private void recount(Collection<FileMetaData> indexed) {
+		lock.writeLock().lock();
+		try {
+			users.clear();
+			watermark.set("");
+			for(FileMetaData metadata : indexed) {
+				record(metadata);
+			}
+		}finally {
+			lock.writeLock().unlock();
+		}
+		logger.info("Usage stats of ["+users.size()+"] users counted from ["+indexed.size()+"] uploads");
+	}
+
+	/**
+	 * Watermark, then per user name, counters and days with their counters.
+	 */
+	private byte[] encode() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeUTF(watermark.get());
+		output.writeInt(users.size());
+		for(Usage user : users.values()) {
+			output.writeUTF(user.userName);
+			user.write(output);
+			output.writeInt(user.days.size());
+			for(Map.Entry<Integer, Usage> day : user.days.entrySet()) {
+				output.writeInt(day.getKey());
+				day.getValue().write(output);
+			}
+		}
+		output.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return true if a valid snapshot was loaded
+	 */
+	private boolean load() {
+		if(!snapshot.isFile()) {
+			return false;
+		}
+		try {
+			byte[] file = Files.readAllBytes(snapshot.toPath());
+			ByteBuffer buffer = ByteBuffer.wrap(file);
+			if(file.length < 12 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				logger.warning("Ignoring usage stats snapshot with unknown header ["+snapshot+"]");
+				return false;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(file, 8, file.length - 12);
+			if((int) crc.getValue() != buffer.getInt(file.length - 4)) {
+				logger.warning("Ignoring usage stats snapshot with checksum mismatch ["+snapshot+"]");
+				return false;
+			}
+			DataInputStream input = new DataInputStream(new ByteArrayInputStream(file, 8, file.length - 12));
+			watermark.set(input.readUTF());
+			int userCount = input.readInt();
+			for(int i = 0; i < userCount; i++) {
+				Usage user = usageOf(input.readUTF());
+				user.read(input);
+				int dayCount = input.readInt();
+				for(int j = 0; j < dayCount; j++) {
+					user.dayOf(input.readInt()).read(input);
+				}
+			}
+			return true;
+		}catch(IOException e) {
+			logger.log(Level.WARNING, "Failed while reading usage stats snapshot ["+snapshot+"]", e);
+			users.clear();
+			watermark.set("");
+			return false;
+		}
+	}
+
+	private Usage usageOf(String userName) {
+		String key = userName.toLowerCase(Locale.ROOT);
+		Usage usage = users.get(key);
+		if(usage == null) {
+			Usage created = new Usage(userName, new ConcurrentSkipListMap<Integer, Usage>());
+			usage = users.putIfAbsent(key, created);
+			if(usage == null) {
+				usage = created;
+			}
+		}
+		return usage;
+	}
+
+	private void advanceWatermark(String uploadId) {
+		if(UploadIdGenerator.timestampOf(uploadId) < 0) {
+			return;
+		}
+		String current;
+		do {
+			current = watermark.get();
+			if(uploadId.compareTo(current) <= 0) {
+				return;
+			}
+		}while(!watermark.compareAndSet(current, uploadId));
+	}
+
+	private long totalFiles() {
+		long files = 0;
+		for(Usage user : users.values()) {
+			files += user.getFileCount();
+		}
+		return files;
+	}
+
+	private long totalBytes() {
+		long bytes = 0;
+		for(Usage user : users.values()) {
+			bytes += user.getTotalBytes();
+		}
+		return bytes;
+	}
+
+	private static long bytes(FileMetaData metadata) {
+		return metadata.getFileSize() == FileMetaData.UNKNOWN_SIZE ? 0 : metadata.getFileSize();
+	}
+
+	/**
+	 * @return upload time from upload id, else start of upload date, {@value #NO_TIME} if neither is known
+	 */
+	private static long uploadTime(FileMetaData metadata) {
+		long timestamp = UploadIdGenerator.timestampOf(metadata.getUploadId());
+		if(timestamp >= 0) {
+			return timestamp;
+		}
+		return metadata.getUploadedEpochDay() == FileMetaData.UNKNOWN_DAY ? NO_TIME :
+				DayFormat.toDate(metadata.getUploadedEpochDay()).getTime();
+	}
+
+	/**
+	 * Usage of one user, or of one creation day of a user.
+	 */
+	public static final class Usage {
+
+		/**User name as first seen, null for a day*/
+		private final String userName;
+
+		/**Creation epoch day to usage of that day, null for a day*/
+		private final ConcurrentNavigableMap<Integer, Usage> days;
+
+		private final LongAdder files = new LongAdder();
+
+		private final LongAdder bytes = new LongAdder();
+
+		private final LongAccumulator firstUpload = new LongAccumulator(MIN, Long.MAX_VALUE);
+
+		private final LongAccumulator lastUpload = new LongAccumulator(MAX, Long.MIN_VALUE);
+
+		Usage(String userName, ConcurrentNavigableMap<Integer, Usage> days) {
+			this.userName = userName;
+			this.days = days;
+		}
+
+		private Usage dayOf(int epochDay) {
+			Usage usage = days.get(epochDay);
+			if(usage == null) {
+				Usage created = new Usage(null, null);
+				usage = days.putIfAbsent(epochDay, created);
+				if(usage == null) {
+					usage = created;
+				}
+			}
+			return usage;
+		}
+
+		private void add(long fileCount, long byteCount, long time) {
+			files.add(fileCount);
+			bytes.add(byteCount);
+			if(time != NO_TIME) {
+				firstUpload.accumulate(time);
+				lastUpload.accumulate(time);
+			}
+		}
+
+		private void write(DataOutputStream output) throws IOException {
+			output.writeLong(files.sum());
+			output.writeLong(bytes.sum());
+			output.writeLong(getFirstUpload());
+			output.writeLong(getLastUpload());
+		}
+
+		private void read(DataInputStream input) throws IOException {
+			files.add(input.readLong());
+			bytes.add(input.readLong());
+			long first = input.readLong();
+			long last = input.readLong();
+			if(first != NO_TIME) {
+				firstUpload.accumulate(first);
+			}
+			if(last != NO_TIME) {
+				lastUpload.accumulate(last);
+			}
+		}
+
+		public String getUserName() {
+			return userName;
+		}
+
+		public long getFileCount() {
+			return files.sum();
+		}
+
+		public long getTotalBytes() {
+			return bytes.sum();
+		}
+
+		/**
+		 * @return milliseconds since epoch of first upload, -1 if not known
+		 */
+		public long getFirstUpload() {
+			long first = firstUpload.get();
+			return first == Long.MAX_VALUE ? NO_TIME : first;
+		}
+
+		/**
+		 * @return milliseconds since epoch of last upload, -1 if not known
+		 */
+		public long getLastUpload() {
+			long last = lastUpload.get();
+			return last == Long.MIN_VALUE ? NO_TIME : last;
+		}
+
+		/**
+		 * @return counters with upload times as ISO-8601 instants, along with days within given
+		 * inclusive creation day range when withDays is true, null bounds are open
+		 */
+		public Map<String, Object> toMap(boolean withDays, Integer fromDay, Integer toDay) {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			if(userName != null) {
+				map.put("User_Name", userName);
+			}
+			map.put("File_Count", getFileCount());
+			map.put("Total_Bytes", getTotalBytes());
+			if(getFirstUpload() != NO_TIME) {
+				map.put("First_Upload", Instant.ofEpochMilli(getFirstUpload()).toString());
+				map.put("Last_Upload", Instant.ofEpochMilli(getLastUpload()).toString());
+			}
+			if(withDays && days != null) {
+				List<Map<String, Object>> perDay = new ArrayList<Map<String, Object>>();
+				int from = fromDay == null ? Integer.MIN_VALUE : fromDay;
+				int to = toDay == null ? Integer.MAX_VALUE : toDay;
+				for(Map.Entry<Integer, Usage> day : days.subMap(from, true, Math.max(from, to), true).entrySet()) {
+					if(day.getValue().getFileCount() <= 0 || day.getKey() > to) {
+						continue;
+					}
+					Map<String, Object> dayMap = new LinkedHashMap<String, Object>();
+					dayMap.put("Creation_Date", DayFormat.format(day.getKey()));
+					dayMap.putAll(day.getValue().toMap(false, null, null));
+					perDay.add(dayMap);
+				}
+				map.put("Days", perDay);
+			}
+			return map;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package com.finra.fileupload;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.util.FileSystemUtils;
+import com.finra.fileupload.service.ClusterClient;
+import com.finra.fileupload.service.ClusterRing;
+import com.finra.fileupload.service.UploadIdGenerator;
+
+/**
+ * Test case for a node of a two node cluster, whose peer is not running
+ * @author akadam
+ * @since 1.0
+ */
+@TestPropertySource(properties = {"fileupload.storage.roots=" + ClusterModeTest.ROOT,
+		"fileupload.cluster.nodes=" + ClusterModeTest.SELF + "," + ClusterModeTest.PEER,
+		"fileupload.cluster.self=" + ClusterModeTest.SELF,
+		"fileupload.cluster.secret=" + ClusterModeTest.SECRET,
+		"fileupload.cluster.rebalance-delay-seconds=-1"})
+public class ClusterModeTest extends StorageModeTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(ClusterModeTest.class.getCanonicalName());
+
+	static final String ROOT = "target/test-storage/cluster";
+
+	/**This node, only its name, requests reach it on the random port*/
+	static final String SELF = "http://127.0.0.1:1";
+
+	/**Peer which is not running*/
+	static final String PEER = "http://127.0.0.1:2";
+
+	static final String SECRET = "cluster-test-secret";
+
+	@Autowired
+	private ClusterRing clusterRing;
+
+	@BeforeClass
+	public static void clearStorage() {
+		FileSystemUtils.deleteRecursively(new File(ROOT));
+	}
+
+    @Test
+    public void testDescribe() throws Exception {
+    	logger.info("Testing cluster description names this node and owner of a user.");
+    	String user = ownedBy(PEER, "Cluster-User-");
+    	Map<String, Object> cluster = template.getForObject(url("/cluster?user={user}"), Map.class, user);
+    	Assert.assertEquals(Boolean.TRUE, cluster.get("Enabled"));
+    	Assert.assertEquals(SELF, cluster.get("Self"));
+    	Assert.assertEquals(2, ((List<?>) cluster.get("Nodes")).size());
+    	Assert.assertEquals(PEER, cluster.get("Owner"));
+    }
+
+    @Test
+    public void testUploadsRoutedByOwner() throws Exception {
+    	logger.info("Testing uploads of local users are stored and ones of unreachable owner answered 503.");
+    	byte[] content = "routed upload".getBytes(StandardCharsets.UTF_8);
+    	String local = ownedBy(SELF, "Cluster-User-");
+    	Assert.assertEquals(200, upload(local, "2017-01-01", content, "").getStatusCodeValue());
+    	Assert.assertEquals(1, metadata(local).size());
+    	Assert.assertEquals(503, upload(ownedBy(PEER, "Cluster-User-"), "2017-01-01", content, "").getStatusCodeValue());
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+    	logger.info("Testing uploads moved from other nodes are checked and stored once.");
+    	byte[] content = "transferred upload".getBytes(StandardCharsets.UTF_8);
+    	String local = ownedBy(SELF, "Transfer-User-");
+    	String uploadId = new UploadIdGenerator().nextId();
+
+    	Assert.assertEquals(403, transfer(uploadId, local, "file.txt", content, null));
+    	Assert.assertEquals(403, transfer(uploadId, local, "file.txt", content, "wrong-secret"));
+    	Assert.assertEquals(400, transfer("../" + uploadId, local, "file.txt", content, SECRET));
+    	Assert.assertEquals(400, transfer(uploadId, local, "..", content, SECRET));
+    	Assert.assertEquals(409, transfer(uploadId, ownedBy(PEER, "Cluster-User-"), "file.txt", content, SECRET));
+    	Assert.assertEquals(201, transfer(uploadId, local, "file.txt", content, SECRET));
+    	Assert.assertEquals(200, transfer(uploadId, local, "file.txt", content, SECRET));
+
+    	List<Map<String,String>> list = metadata(local);
+    	Assert.assertEquals(1, list.size());
+    	Assert.assertEquals(uploadId, list.get(0).get("Upload_Id"));
+    	Assert.assertEquals("2017-01-01", list.get(0).get("Uploaded_Date"));
+    	Assert.assertArrayEquals(content, download(uploadId));
+    }
+
+    @Test
+    public void testRebalanceOnlyByNodes() throws Exception {
+    	logger.info("Testing rebalance is refused unless asked by a cluster node.");
+    	Assert.assertEquals(403, template.postForEntity(url("/cluster/rebalance"), null, String.class).getStatusCodeValue());
+    	HttpHeaders headers = new HttpHeaders();
+    	headers.set(ClusterClient.SECRET, "wrong-secret");
+    	Assert.assertEquals(403, template.postForEntity(url("/cluster/rebalance"), new HttpEntity<Void>(headers), String.class)
+    			.getStatusCodeValue());
+    	headers.set(ClusterClient.SECRET, SECRET);
+    	Map<String, Object> rebalanced = template.postForObject(url("/cluster/rebalance"), new HttpEntity<Void>(headers), Map.class);
+    	Assert.assertEquals(0, ((Number) rebalanced.get("Moved")).intValue());
+    }
+
+    /**
+     * @return status of moving an upload to this node
+     */
+    private int transfer(String uploadId, String user, String fileName, byte[] content, String secret) {
+    	HttpHeaders headers = new HttpHeaders();
+    	headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+    	if(secret != null) {
+    		headers.set(ClusterClient.SECRET, secret);
+    	}
+    	return template.postForEntity(url("/cluster/transfer?uploadId={uploadId}&user={user}&fileName={fileName}"
+    			+ "&fileCreationDate=2017-01-01&uploadedDate=2017-01-01"), new HttpEntity<byte[]>(content, headers),
+    			String.class, uploadId, user, fileName).getStatusCodeValue();
+    }
+
+    /**
+     * @return first user named with given prefix and a number owned by given node
+     */
+    private String ownedBy(String node, String prefix) {
+    	for(int i = 0; ; i++) {
+    		String user = prefix + i;
+    		if(clusterRing.ownerOf(user).equals(node)) {
+    			return user;
+    		}
+    	}
+    }
+}
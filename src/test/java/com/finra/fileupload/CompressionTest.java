@@ -0,0 +1,65 @@
+package com.finra.fileupload;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Test case for uploads compressed at rest
+ * @author akadam
+ * @since 1.0
+ */
+@TestPropertySource(properties = {"fileupload.storage.roots=" + CompressionTest.ROOT,
+		"fileupload.storage.compression=deflate"})
+public class CompressionTest extends StorageModeTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(CompressionTest.class.getCanonicalName());
+
+	static final String ROOT = "target/test-storage/compression";
+
+	@BeforeClass
+	public static void clearStorage() {
+		FileSystemUtils.deleteRecursively(new File(ROOT));
+	}
+
+    @Test
+    public void testCompressedUploadsDownloadAsUploaded() throws Exception {
+    	logger.info("Testing compressible uploads are stored deflated and downloaded as uploaded.");
+    	String user = "Compression-User";
+    	StringBuilder text = new StringBuilder();
+    	for(int i = 0; text.length() < 200000; i++) {
+    		text.append("record ").append(i).append(",compressible,payload\n");
+    	}
+    	byte[] compressible = text.toString().getBytes(StandardCharsets.UTF_8);
+    	byte[] random = new byte[50000];
+    	new Random(11).nextBytes(random);
+    	Assert.assertEquals(200, upload(user, "2017-01-01", compressible, "").getStatusCodeValue());
+    	Assert.assertEquals(200, upload(user, "2017-01-02", random, "").getStatusCodeValue());
+
+    	List<Map<String,String>> list = metadata(user);
+    	Assert.assertEquals(2, list.size());
+    	for(Map<String,String> record : list) {
+    		if(record.get("Creation_Date").equals("2017-01-01")) {
+    			Assert.assertEquals("deflate", record.get("Codec"));
+    			Assert.assertEquals(String.valueOf(compressible.length), record.get("File_Size"));
+    			Assert.assertArrayEquals(compressible, download(record.get("Upload_Id")));
+    		}else {
+    			Assert.assertNull(record.get("Codec"));
+    			Assert.assertArrayEquals(random, download(record.get("Upload_Id")));
+    		}
+    	}
+
+    	Map<String, Object> metrics = metrics();
+    	Assert.assertEquals(compressible.length, ((Number) metrics.get("storage.compression.raw.bytes")).longValue());
+    	Assert.assertTrue(((Number) metrics.get("storage.compression.ratio")).doubleValue() > 2);
+    	Assert.assertEquals(1, ((Number) metrics.get("storage.compression.skipped.incompressible")).intValue());
+    }
+}
@@ -0,0 +1,60 @@
+package com.finra.fileupload;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Test case for uploads with content addressed dedup
+ * @author akadam
+ * @since 1.0
+ */
+@TestPropertySource(properties = {"fileupload.storage.roots=" + DedupTest.ROOT,
+		"fileupload.storage.dedup=true"})
+public class DedupTest extends StorageModeTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(DedupTest.class.getCanonicalName());
+
+	static final String ROOT = "target/test-storage/dedup";
+
+	@BeforeClass
+	public static void clearStorage() {
+		FileSystemUtils.deleteRecursively(new File(ROOT));
+	}
+
+    @Test
+    public void testSameContentIsStoredOnce() throws Exception {
+    	logger.info("Testing identical uploads share one blob which is removed with the last of them.");
+    	String user = "Dedup-User";
+    	byte[] content = "same content uploaded twice".getBytes(StandardCharsets.UTF_8);
+    	Assert.assertEquals(200, upload(user, "2017-01-01", content, "").getStatusCodeValue());
+    	Assert.assertEquals(200, upload(user, "2017-01-02", content, "").getStatusCodeValue());
+
+    	List<Map<String,String>> list = metadata(user);
+    	Assert.assertEquals(2, list.size());
+    	String digest = list.get(0).get("Content_Digest");
+    	Assert.assertNotNull(digest);
+    	Assert.assertEquals(digest, list.get(1).get("Content_Digest"));
+    	File blob = new File(new File(new File(ROOT, "_blobs"), digest.substring(0, 2)), digest);
+    	Assert.assertTrue(blob.exists());
+
+    	Map<String, Object> metrics = metrics();
+    	Assert.assertEquals(1, ((Number) metrics.get("storage.dedup.uploads")).intValue());
+    	Assert.assertEquals(2.0, ((Number) metrics.get("storage.dedup.ratio")).doubleValue(), 0.001);
+
+    	Assert.assertArrayEquals(content, download(list.get(0).get("Upload_Id")));
+    	Assert.assertEquals(204, delete(list.get(0).get("Upload_Id")));
+    	Assert.assertTrue(blob.exists());
+    	Assert.assertArrayEquals(content, download(list.get(1).get("Upload_Id")));
+    	Assert.assertEquals(204, delete(list.get(1).get("Upload_Id")));
+    	Assert.assertFalse(blob.exists());
+    	Assert.assertEquals(0, ((Number) metrics().get("storage.dedup.uploads")).intValue());
+    }
+}
@@ -0,0 +1,124 @@
+package com.finra.fileupload;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.util.FileSystemUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.finra.fileupload.service.Durability;
+import com.finra.fileupload.service.GroupCommitter;
+
+/**
+ * Test case for durable uploads, batch durability by default and sync asked per upload
+ * @author akadam
+ * @since 1.0
+ */
+@TestPropertySource(properties = {"fileupload.storage.roots=" + DurabilityTest.ROOT,
+		"fileupload.durability.default=batch", "fileupload.durability.batch-window-ms=50"})
+public class DurabilityTest extends StorageModeTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(DurabilityTest.class.getCanonicalName());
+
+	static final String ROOT = "target/test-storage/durability";
+
+	/**Metric counting uploads made durable*/
+	private static final String COMMITTED_COUNT = "storage.commit.wait.micros.count";
+
+	/**Metric counting group commits*/
+	private static final String BATCH_COUNT = "storage.commit.batch.size.count";
+
+	@SpyBean
+	private GroupCommitter groupCommitter;
+
+	@BeforeClass
+	public static void clearStorage() {
+		FileSystemUtils.deleteRecursively(new File(ROOT));
+	}
+
+    @Test
+    public void testConcurrentBatchUploads() throws Exception {
+    	logger.info("Testing concurrent uploads committed in batches.");
+    	final String user = "Batch-User";
+    	long synced = count(COMMITTED_COUNT);
+    	long batches = count(BATCH_COUNT);
+    	ExecutorService executor = Executors.newFixedThreadPool(8);
+    	try {
+    		List<Future<Integer>> statuses = new ArrayList<Future<Integer>>();
+    		for(int i = 0; i < 16; i++) {
+    			final byte[] content = ("batch upload " + i).getBytes(StandardCharsets.UTF_8);
+    			statuses.add(executor.submit(new Callable<Integer>() {
+    				@Override
+    				public Integer call() {
+    					return upload(user, "2017-01-01", content, "").getStatusCodeValue();
+    				}
+    			}));
+    		}
+    		for(Future<Integer> status : statuses) {
+    			Assert.assertEquals(200, status.get().intValue());
+    		}
+    	}finally {
+    		executor.shutdown();
+    	}
+    	Assert.assertEquals(16, metadata(user).size());
+    	Assert.assertEquals(synced + 16, count(COMMITTED_COUNT));
+    	long committed = count(BATCH_COUNT) - batches;
+    	Assert.assertTrue("Committed [" + committed + "] batches", committed >= 1 && committed < 16);
+    }
+
+    @Test
+    public void testDurabilityAskedPerUpload() throws Exception {
+    	logger.info("Testing sync and none durability asked with upload.");
+    	String user = "Sync-User";
+    	byte[] content = "sync upload".getBytes(StandardCharsets.UTF_8);
+    	long synced = count(COMMITTED_COUNT);
+    	Assert.assertEquals(200, upload(user, "2017-01-01", content, "&durability=sync").getStatusCodeValue());
+    	Assert.assertEquals(synced + 1, count(COMMITTED_COUNT));
+    	Assert.assertEquals(200, upload(user, "2017-01-02", content, "&durability=none").getStatusCodeValue());
+    	Assert.assertEquals(synced + 1, count(COMMITTED_COUNT));
+    	Assert.assertEquals(400, upload(user, "2017-01-03", content, "&durability=eventually").getStatusCodeValue());
+    	Assert.assertEquals(2, metadata(user).size());
+    }
+
+    @Test
+    public void testFailedCommitRolledBack() throws Exception {
+    	logger.info("Testing upload which could not be made durable is not kept and its failure reported without details.");
+    	String user = "Failed-Sync-User";
+    	Mockito.doThrow(new RuntimeException("Simulated fsync failure")).when(groupCommitter).makeDurable(
+    			Matchers.eq(Durability.SYNC), Matchers.anyCollection(), Matchers.anyCollection(), Matchers.anyBoolean());
+    	byte[] content = "failed upload".getBytes(StandardCharsets.UTF_8);
+    	Assert.assertEquals(500, upload(user, "2017-01-01", content, "&durability=sync").getStatusCodeValue());
+    	Assert.assertEquals(0, metadata(user).size());
+    	Assert.assertEquals(404, template.getForEntity(url("/stats/usage?user={user}"), String.class, user).getStatusCodeValue());
+
+    	String accepted = upload(user, "2017-01-01", content, "&durability=sync&async=true").getBody();
+    	String uploadId = (String) new ObjectMapper().readValue(accepted, Map.class).get("Upload_Id");
+    	Map<String, Object> status = null;
+    	for(int i = 0; i < 50 && (status == null || !"FAILED".equals(status.get("Status"))); i++) {
+    		Thread.sleep(100);
+    		status = template.getForObject(url("/upload/{uploadId}/status"), Map.class, uploadId);
+    	}
+    	Assert.assertEquals("FAILED", status.get("Status"));
+    	Assert.assertEquals("Upload could not be written", status.get("Error"));
+    	Assert.assertEquals(0, metadata(user).size());
+    	Assert.assertEquals(200, upload(user, "2017-01-01", content, "&durability=batch").getStatusCodeValue());
+    	Assert.assertEquals(1, metadata(user).size());
+    }
+
+    private long count(String metric) {
+    	return ((Number) metrics().get(metric)).longValue();
+    }
+}
@@ -1,21 +1,34 @@
 package com.finra.fileupload;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.embedded.LocalServerPort;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileSystemUtils;
 import org.springframework.util.MultiValueMap;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.util.LinkedMultiValueMap;
 
@@ -26,10 +39,21 @@ import org.springframework.util.LinkedMultiValueMap;
  */
 @RunWith(SpringRunner.class)
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@TestPropertySource(properties = {"fileupload.storage.roots=" + FileControllerTest.ROOT,
+		"fileupload.batch.max-entry-size=1048576", "fileupload.batch.max-batch-size=4194304"})
 public class FileControllerTest {
 	
 	/**Logger*/
 	private static final Logger logger = Logger.getLogger(FileControllerTest.class.getCanonicalName());
+	
+	/**Storage root of these tests, emptied before they run so counts don't depend on earlier runs*/
+	static final String ROOT = "target/test-storage/controller";
+	
+	@BeforeClass
+	public static void clearStorage() {
+		FileSystemUtils.deleteRecursively(new File(ROOT));
+	}
+	
 	@LocalServerPort
     private int port;
 
@@ -56,6 +80,11 @@ public class FileControllerTest {
     	
         String response = template.postForObject(url.toString(), fileParams, String.class, user, fileCreationDate);
         assertThat(response, equalTo("File successfully uploaded"));
+        
+        Map<?, ?> metrics = template.getForObject("http://localhost:" + port + "/metrics", Map.class);
+        Assert.assertTrue(((Number) metrics.get("upload.latency.micros.count")).longValue() > 0);
+        Assert.assertTrue(((Number) metrics.get("upload.bytes")).longValue() > 0);
+        Assert.assertEquals(0, ((Number) metrics.get("upload.inflight")).longValue());
     }
     
     @Test
@@ -112,6 +141,10 @@ public class FileControllerTest {
     	
     	assertThat(searchedUser, equalTo(user));
     	assertThat(searchedDate, equalTo(date));
+    	
+    	//Cached result must not hide an upload completed after it was cached.
+    	uploadFilesForTesting(user, date);
+    	Assert.assertEquals(list.size() + 1, template.getForObject(url.toString(), List.class, user).size());
     }
 
     @Test
@@ -139,6 +172,288 @@ public class FileControllerTest {
     	assertThat(searchedDate, equalTo(date));
     }
     
+    @Test
+    public void testAsyncUpload() throws Exception {
+    	logger.info("Testing upload accepted for background write.");
+    	String base = "http://localhost:" + port;
+    	ResponseEntity<Map> accepted = template.postForEntity(base + "/upload?user={user}&fileCreationDate={fileCreationDate}&async=true",
+    			createFileParam(), Map.class, "Test-User-4", "2017-01-04");
+    	Assert.assertEquals(202, accepted.getStatusCodeValue());
+    	String uploadId = (String) accepted.getBody().get("Upload_Id");
+    	Assert.assertNotNull(uploadId);
+    	
+    	String status = null;
+    	for(int i = 0; i < 50 && !"COMPLETED".equals(status); i++) {
+    		Thread.sleep(100);
+    		status = (String) template.getForObject(base + "/upload/{uploadId}/status", Map.class, uploadId).get("Status");
+    	}
+    	assertThat(status, equalTo("COMPLETED"));
+    	
+    	List<Map<String,String>> list = template.getForObject(base + "/metadata?user={user}", List.class, "Test-User-4");
+    	Assert.assertEquals(1, list.size());
+    	assertThat(list.get(0).get("Upload_Id"), equalTo(uploadId));
+    }
+    
+    @Test
+    public void testChunkedUpload() throws Exception {
+    	logger.info("Testing chunked upload with chunks sent out of order.");
+    	String user = "Test-User-3";
+    	String date = "2017-01-03";
+    	byte[] content = "0123456789abcdefghij-chunked".getBytes("UTF-8");
+    	String base = "http://localhost:" + port + "/uploads";
+    	
+    	Map<String, Object> session = template.postForObject(base + "?user={user}&fileCreationDate={fileCreationDate}&fileName={fileName}&fileSize={fileSize}&chunkSize={chunkSize}",
+    			null, Map.class, user, date, "chunked.txt", content.length, 10);
+    	String sessionId = (String) session.get("Session_Id");
+    	assertThat(session.get("Chunk_Count"), equalTo((Object) 3));
+    	
+    	template.put(base + "/" + sessionId + "/chunks/2", Arrays.copyOfRange(content, 20, content.length));
+    	template.put(base + "/" + sessionId + "/chunks/0", Arrays.copyOfRange(content, 0, 10));
+    	ResponseEntity<String> incomplete = template.postForEntity(base + "/" + sessionId + "/commit", null, String.class);
+    	Assert.assertEquals(409, incomplete.getStatusCodeValue());
+    	
+    	template.put(base + "/" + sessionId + "/chunks/1", Arrays.copyOfRange(content, 10, 20));
+    	ResponseEntity<String> committed = template.postForEntity(base + "/" + sessionId + "/commit", null, String.class);
+    	Assert.assertEquals(200, committed.getStatusCodeValue());
+    	
+    	List<Map<String,String>> list = template.getForObject("http://localhost:" + port + "/metadata?user={user}&fileCreationDate={fileCreationDate}", List.class, user, date);
+    	Assert.assertEquals(1, list.size());
+    	assertThat(list.get(0).get("File_Name"), equalTo("chunked.txt"));
+    	assertThat(list.get(0).get("File_Size"), equalTo(String.valueOf(content.length)));
+    	
+    	ResponseEntity<String> traversal = template.postForEntity(base + "?user={user}&fileCreationDate={fileCreationDate}&fileName={fileName}&fileSize={fileSize}",
+    			null, String.class, user, date, "../..", content.length);
+    	Assert.assertEquals(400, traversal.getStatusCodeValue());
+    	
+    	ResponseEntity<String> tooLarge = template.postForEntity(base + "?user={user}&fileCreationDate={fileCreationDate}&fileName={fileName}&fileSize={fileSize}",
+    			null, String.class, user, date, "chunked.txt", Long.MAX_VALUE);
+    	Assert.assertEquals(400, tooLarge.getStatusCodeValue());
+    }
+    
+    @Test
+    public void testDownloadFile() throws Exception {
+    	logger.info("Testing download of whole file, a range of it and a conditional request.");
+    	String user = "Test-User-5";
+    	uploadFilesForTesting(user, "2017-01-05");
+    	List<Map<String,String>> list = template.getForObject("http://localhost:" + port + "/metadata?user={user}", List.class, user);
+    	String url = "http://localhost:" + port + "/files/" + list.get(0).get("Upload_Id");
+    	byte[] content = Files.readAllBytes(Paths.get("src", "test", "resources", "test.txt"));
+    	
+    	ResponseEntity<byte[]> whole = template.getForEntity(url, byte[].class);
+    	Assert.assertEquals(200, whole.getStatusCodeValue());
+    	Assert.assertArrayEquals(content, whole.getBody());
+    	String fileName = list.get(0).get("File_Name");
+    	assertThat(whole.getHeaders().getFirst(HttpHeaders.CONTENT_DISPOSITION),
+    			equalTo("attachment; filename=\"" + fileName + "\"; filename*=UTF-8''" + fileName));
+    	String etag = whole.getHeaders().getETag();
+    	
+    	HttpHeaders headers = new HttpHeaders();
+    	headers.set(HttpHeaders.RANGE, "bytes=2-5");
+    	ResponseEntity<byte[]> partial = template.exchange(url, HttpMethod.GET, new HttpEntity<Void>(headers), byte[].class);
+    	Assert.assertEquals(206, partial.getStatusCodeValue());
+    	Assert.assertArrayEquals(Arrays.copyOfRange(content, 2, 6), partial.getBody());
+    	
+    	headers = new HttpHeaders();
+    	headers.setIfNoneMatch(etag);
+    	ResponseEntity<byte[]> notModified = template.exchange(url, HttpMethod.GET, new HttpEntity<Void>(headers), byte[].class);
+    	Assert.assertEquals(304, notModified.getStatusCodeValue());
+    	
+    	Assert.assertEquals(404, template.getForEntity(url + "0", byte[].class).getStatusCodeValue());
+    }
+    
+    @Test
+    public void testMetaDataPagingAndStreaming() throws Exception {
+    	logger.info("Testing metadata pages with cursor and streamed metadata.");
+    	String user = "Test-User-6";
+    	for(int i = 0; i < 3; i++) {
+    		uploadFilesForTesting(user, "2017-01-06");
+    	}
+    	String url = "http://localhost:" + port + "/metadata?user={user}&limit={limit}";
+    	ResponseEntity<List> first = template.getForEntity(url, List.class, user, 2);
+    	Assert.assertEquals(2, first.getBody().size());
+    	String cursor = first.getHeaders().getFirst("X-Next-Cursor");
+    	Assert.assertNotNull(cursor);
+    	
+    	ResponseEntity<List> second = template.getForEntity(url + "&cursor={cursor}", List.class, user, 2, cursor);
+    	Assert.assertEquals(1, second.getBody().size());
+    	Assert.assertNull(second.getHeaders().getFirst("X-Next-Cursor"));
+    	
+    	String ndjson = template.getForObject("http://localhost:" + port + "/metadata?user={user}&stream=ndjson", String.class, user);
+    	Assert.assertEquals(3, ndjson.trim().split("\n").length);
+    	List<Map<String,String>> streamed = template.getForObject("http://localhost:" + port + "/metadata?user={user}&stream=json", List.class, user);
+    	Assert.assertEquals(3, streamed.size());
+    	
+    	Assert.assertEquals(400, template.getForEntity(url + "&cursor={cursor}", String.class, user, 2, "bad").getStatusCodeValue());
+    }
+    
+    @Test
+    public void testBatchUpload() throws Exception {
+    	logger.info("Testing batch upload of multipart parts and of a zip archive.");
+    	String user = "Test-User-7";
+    	String url = "http://localhost:" + port + "/upload/batch?user={user}&fileCreationDate={fileCreationDate}";
+    	MultiValueMap<String, Object> parts = createFileParam();
+    	parts.add("other", new FileSystemResource("src" + File.separator + "test" + File.separator + "resources" + File.separator + "test.txt"));
+    	parts.add("other.fileCreationDate", "2017-02-08");
+    	ResponseEntity<Map> multipart = template.postForEntity(url, parts, Map.class, user, "2017-01-07");
+    	Assert.assertEquals(200, multipart.getStatusCodeValue());
+    	Assert.assertEquals(2, multipart.getBody().get("Completed"));
+    	
+    	ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    	ZipOutputStream zip = new ZipOutputStream(archive);
+    	for(String name : new String[] {"a.csv", "nested/b.csv"}) {
+    		zip.putNextEntry(new ZipEntry(name));
+    		zip.write(("name,size\n" + name + ",1\n").getBytes("UTF-8"));
+    		zip.closeEntry();
+    	}
+    	zip.close();
+    	HttpHeaders headers = new HttpHeaders();
+    	headers.set(HttpHeaders.CONTENT_TYPE, "application/zip");
+    	ResponseEntity<Map> zipped = template.postForEntity(url, new HttpEntity<byte[]>(archive.toByteArray(), headers), 
+    			Map.class, user, "2017-01-07");
+    	Assert.assertEquals(200, zipped.getStatusCodeValue());
+    	Assert.assertEquals(2, zipped.getBody().get("Completed"));
+    	
+    	Assert.assertEquals(413, postZip(url, user, 1048577, 1).getStatusCodeValue());
+    	ResponseEntity<Map> inflated = postZip(url, user, 1000000, 5);
+    	Assert.assertEquals(413, inflated.getStatusCodeValue());
+    	Assert.assertEquals(4, inflated.getBody().get("Completed"));
+    	
+    	List<Map<String,String>> list = template.getForObject("http://localhost:" + port + "/metadata?user={user}&fileCreationDate={fileCreationDate}", 
+    			List.class, user, "2017-01-07");
+    	Assert.assertEquals(3, list.size());
+    	list = template.getForObject("http://localhost:" + port + "/metadata?user={user}&fileCreationDate={fileCreationDate}", 
+    			List.class, user, "2017-02-08");
+    	Assert.assertEquals(1, list.size());
+    	
+    	parts = new LinkedMultiValueMap<String, Object>();
+    	parts.add("escaping", namedPart("../../escaping.txt"));
+    	parts.add("dots", namedPart(".."));
+    	ResponseEntity<Map> traversal = template.postForEntity(url, parts, Map.class, user, "2017-02-09");
+    	Assert.assertEquals(207, traversal.getStatusCodeValue());
+    	Assert.assertEquals(1, traversal.getBody().get("Failed"));
+    	list = template.getForObject("http://localhost:" + port + "/metadata?user={user}&fileCreationDate={fileCreationDate}", 
+    			List.class, user, "2017-02-09");
+    	Assert.assertEquals(1, list.size());
+    	assertThat(list.get(0).get("File_Name"), equalTo("escaping.txt"));
+    }
+    
+    /**
+     * Builds multipart file part sent under given file name
+     */
+    private ByteArrayResource namedPart(final String fileName) {
+    	return new ByteArrayResource("name,size\n".getBytes()) {
+    		@Override
+    		public String getFilename() {
+    			return fileName;
+    		}
+    	};
+    }
+    
+    /**
+     * Posts zip archive of count entries of given size, each of them zeros so they deflate to little.
+     */
+    private ResponseEntity<Map> postZip(String url, String user, int size, int count) throws Exception {
+    	ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    	ZipOutputStream zip = new ZipOutputStream(archive);
+    	for(int i = 0; i < count; i++) {
+    		zip.putNextEntry(new ZipEntry("zeros-" + i + ".bin"));
+    		zip.write(new byte[size]);
+    		zip.closeEntry();
+    	}
+    	zip.close();
+    	HttpHeaders headers = new HttpHeaders();
+    	headers.set(HttpHeaders.CONTENT_TYPE, "application/zip");
+    	return template.postForEntity(url, new HttpEntity<byte[]>(archive.toByteArray(), headers), Map.class, user, "2017-03-07");
+    }
+    
+    @Test
+    public void testMetaDataQuery() throws Exception {
+    	logger.info("Testing metadata query by date range, name prefix, size, sort and limit.");
+    	String user = "Test-User-8";
+    	for(String date : new String[] {"2017-03-01", "2017-03-15", "2017-04-01"}) {
+    		uploadFilesForTesting(user, date);
+    	}
+    	String url = "http://localhost:" + port + "/metadata/query?";
+    	List<Map<String,String>> list = template.getForObject(url + "user={user}&createdFrom=2017-03-01&createdTo=2017-03-31", List.class, user);
+    	Assert.assertEquals(2, list.size());
+    	list = template.getForObject(url + "user={user}&sort=creationDate&order=desc&limit=1", List.class, user);
+    	Assert.assertEquals(1, list.size());
+    	Assert.assertEquals("2017-04-01", list.get(0).get("Creation_Date"));
+    	list = template.getForObject(url + "createdFrom=2017-03-01&createdTo=2017-04-01&namePrefix=fi&minSize=1", List.class);
+    	Assert.assertEquals(3, list.size());
+    	list = template.getForObject(url + "user={user}&minSize=1000000", List.class, user);
+    	Assert.assertEquals(0, list.size());
+    	Assert.assertEquals(400, template.getForEntity(url + "sort=bogus", String.class).getStatusCodeValue());
+    }
+    
+    @Test
+    public void testDeleteFile() throws Exception {
+    	logger.info("Testing deletion of an upload.");
+    	String user = "Test-User-9";
+    	uploadFilesForTesting(user, "2017-05-01");
+    	List<Map<String,String>> list = template.getForObject("http://localhost:" + port + "/metadata?user={user}", List.class, user);
+    	Assert.assertEquals(1, list.size());
+    	String url = "http://localhost:" + port + "/files/" + list.get(0).get("Upload_Id");
+    	Assert.assertEquals(200, template.getForEntity(url, byte[].class).getStatusCodeValue());
+    	
+    	Assert.assertEquals(204, template.exchange(url, HttpMethod.DELETE, null, Void.class).getStatusCodeValue());
+    	Assert.assertEquals(404, template.getForEntity(url, byte[].class).getStatusCodeValue());
+    	Assert.assertEquals(404, template.exchange(url, HttpMethod.DELETE, null, Void.class).getStatusCodeValue());
+    	list = template.getForObject("http://localhost:" + port + "/metadata?user={user}", List.class, user);
+    	Assert.assertEquals(0, list.size());
+    }
+    
+    @Test
+    public void testExternalMetaDataChanges() throws Exception {
+    	logger.info("Testing metadata files added and removed outside the service.");
+    	String user = "Test-User-10";
+    	File directory = new File(ROOT, "external-upload-1");
+    	directory.mkdirs();
+    	File properties = new File(directory, "external.txt.properties");
+    	Files.write(properties.toPath(), Arrays.asList("File_Name=external.txt", "User_Name=" + user,
+    			"Creation_Date=2017-06-01", "Upload_Id=external-upload-1"));
+    	Assert.assertEquals(1, awaitMetaData(user, 1).size());
+
+    	Files.delete(properties.toPath());
+    	Files.delete(directory.toPath());
+    	Assert.assertEquals(0, awaitMetaData(user, 0).size());
+    }
+
+    @Test
+    public void testUsageStats() throws Exception {
+    	logger.info("Testing usage stats per user and creation date.");
+    	String user = "Test-User-11";
+    	uploadFilesForTesting(user, "2017-07-01");
+    	uploadFilesForTesting(user, "2017-07-02");
+    	String url = "http://localhost:" + port + "/stats/usage?user={user}";
+    	Map<String,Object> usage = template.getForObject(url, Map.class, user);
+    	Assert.assertEquals(2, ((Number) usage.get("File_Count")).intValue());
+    	Assert.assertEquals(2, ((List<?>) usage.get("Days")).size());
+    	usage = template.getForObject(url + "&createdFrom=2017-07-02", Map.class, user);
+    	Assert.assertEquals(1, ((List<?>) usage.get("Days")).size());
+
+    	List<Map<String,String>> list = template.getForObject("http://localhost:" + port + "/metadata?user={user}", List.class, user);
+    	template.delete("http://localhost:" + port + "/files/" + list.get(0).get("Upload_Id"));
+    	usage = template.getForObject(url, Map.class, user);
+    	Assert.assertEquals(1, ((Number) usage.get("File_Count")).intValue());
+    	Assert.assertEquals(404, template.getForEntity(url, String.class, "Test-User-Unknown").getStatusCodeValue());
+    }
+
+    /**
+     * Polls metadata of a user till expected number of entries shows up or a while passed.
+     */
+    private List<Map<String,String>> awaitMetaData(String user, int expected) throws InterruptedException {
+    	List<Map<String,String>> list = null;
+    	for(int i = 0; i < 100; i++) {
+    		list = template.getForObject("http://localhost:" + port + "/metadata?user={user}", List.class, user);
+    		if(list.size() == expected) {
+    			break;
+    		}
+    		Thread.sleep(100);
+    	}
+    	return list;
+    }
+
     /**
      * Builds multipart file to be loaded on Request
      * @return
@@ -0,0 +1,63 @@
+package com.finra.fileupload;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Test case for uploads with metadata kept in the journal
+ * @author akadam
+ * @since 1.0
+ */
+@TestPropertySource(properties = {"fileupload.storage.roots=" + JournalStoreTest.ROOT,
+		"fileupload.metadata.store=journal"})
+public class JournalStoreTest extends StorageModeTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(JournalStoreTest.class.getCanonicalName());
+
+	static final String ROOT = "target/test-storage/journal";
+
+	@BeforeClass
+	public static void clearStorage() {
+		FileSystemUtils.deleteRecursively(new File(ROOT));
+	}
+
+    @Test
+    public void testUploadSearchAndDelete() throws Exception {
+    	logger.info("Testing upload, search and delete with journal metadata store.");
+    	String user = "Journal-User";
+    	byte[] first = "first journal upload".getBytes(StandardCharsets.UTF_8);
+    	Assert.assertEquals(200, upload(user, "2017-01-01", first, "").getStatusCodeValue());
+    	Assert.assertEquals(200, upload(user, "2017-01-02", "second".getBytes(StandardCharsets.UTF_8), "").getStatusCodeValue());
+
+    	List<Map<String,String>> list = metadata(user);
+    	Assert.assertEquals(2, list.size());
+    	Assert.assertTrue(new File(ROOT, "_journal/metadata.journal").length() > 8);
+    	Assert.assertEquals(0, countProperties(new File(ROOT)));
+
+    	Map<String,String> record = list.get(0).get("Creation_Date").equals("2017-01-01") ? list.get(0) : list.get(1);
+    	Assert.assertArrayEquals(first, download(record.get("Upload_Id")));
+    	Assert.assertEquals(204, delete(record.get("Upload_Id")));
+    	Assert.assertEquals(1, metadata(user).size());
+    }
+
+    private int countProperties(File directory) {
+    	int count = 0;
+    	File[] files = directory.listFiles();
+    	for(File file : files == null ? new File[0] : files) {
+    		if(file.isDirectory()) {
+    			count += countProperties(file);
+    		}else if(file.getName().endsWith(".properties")) {
+    			count++;
+    		}
+    	}
+    	return count;
+    }
+}
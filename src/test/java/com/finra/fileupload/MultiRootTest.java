@@ -0,0 +1,61 @@
+package com.finra.fileupload;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Test case for uploads striped over two storage roots
+ * @author akadam
+ * @since 1.0
+ */
+@TestPropertySource(properties = "fileupload.storage.roots=" + MultiRootTest.ROOT + "/a," + MultiRootTest.ROOT + "/b")
+public class MultiRootTest extends StorageModeTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(MultiRootTest.class.getCanonicalName());
+
+	static final String ROOT = "target/test-storage/multi-root";
+
+	@BeforeClass
+	public static void clearStorage() {
+		FileSystemUtils.deleteRecursively(new File(ROOT));
+	}
+
+    @Test
+    public void testUploadsStripedOverRoots() throws Exception {
+    	logger.info("Testing uploads are spread over both roots and found on either.");
+    	String user = "Multi-Root-User";
+    	Map<String, byte[]> contents = new HashMap<String, byte[]>();
+    	for(int i = 1; i <= 24; i++) {
+    		String date = String.format("2017-01-%02d", i);
+    		byte[] content = ("upload of " + date).getBytes(StandardCharsets.UTF_8);
+    		contents.put(date, content);
+    		Assert.assertEquals(200, upload(user, date, content, "").getStatusCodeValue());
+    	}
+
+    	Map<String, Object> metrics = metrics();
+    	Assert.assertEquals(2, ((Number) metrics.get("storage.volumes.count")).intValue());
+    	long first = ((Number) metrics.get("storage.volume.0.uploads")).longValue();
+    	long second = ((Number) metrics.get("storage.volume.1.uploads")).longValue();
+    	Assert.assertEquals(24, first + second);
+    	Assert.assertTrue(first > 0 && second > 0);
+    	Assert.assertTrue(new File(ROOT, "a/_tree").isDirectory());
+    	Assert.assertTrue(new File(ROOT, "b/_tree").isDirectory());
+
+    	List<Map<String,String>> list = metadata(user);
+    	Assert.assertEquals(24, list.size());
+    	for(Map<String,String> record : list) {
+    		Assert.assertArrayEquals(contents.get(record.get("Creation_Date")), download(record.get("Upload_Id")));
+    	}
+    	Assert.assertEquals(204, delete(list.get(0).get("Upload_Id")));
+    	Assert.assertEquals(23, metadata(user).size());
+    }
+}
@@ -0,0 +1,59 @@
+package com.finra.fileupload;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Test case for small uploads packed into segments, along with larger ones kept in directories
+ * @author akadam
+ * @since 1.0
+ */
+@TestPropertySource(properties = {"fileupload.storage.roots=" + SegmentStoreModeTest.ROOT,
+		"fileupload.metadata.store=journal", "fileupload.storage.segments.enabled=true"})
+public class SegmentStoreModeTest extends StorageModeTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(SegmentStoreModeTest.class.getCanonicalName());
+
+	static final String ROOT = "target/test-storage/segments";
+
+	@BeforeClass
+	public static void clearStorage() {
+		FileSystemUtils.deleteRecursively(new File(ROOT));
+	}
+
+    @Test
+    public void testSmallUploadsPacked() throws Exception {
+    	logger.info("Testing small uploads are packed into segments and larger ones are not.");
+    	String user = "Segment-User";
+    	byte[] small = "small payload packed into a segment".getBytes(StandardCharsets.UTF_8);
+    	byte[] empty = new byte[0];
+    	byte[] large = new byte[200000];
+    	Arrays.fill(large, (byte) 'x');
+    	Assert.assertEquals(200, upload(user, "2017-01-01", small, "").getStatusCodeValue());
+    	Assert.assertEquals(200, upload(user, "2017-01-02", empty, "").getStatusCodeValue());
+    	Assert.assertEquals(200, upload(user, "2017-01-03", large, "").getStatusCodeValue());
+    	Assert.assertEquals(2, ((Number) metrics().get("storage.segments.uploads")).intValue());
+    	Assert.assertEquals(1, new File(ROOT, "_segments").list().length);
+
+    	List<Map<String,String>> list = metadata(user);
+    	Assert.assertEquals(3, list.size());
+    	for(Map<String,String> record : list) {
+    		String date = record.get("Creation_Date");
+    		byte[] expected = date.equals("2017-01-01") ? small : date.equals("2017-01-02") ? empty : large;
+    		byte[] downloaded = download(record.get("Upload_Id"));
+    		Assert.assertArrayEquals(expected, downloaded == null ? new byte[0] : downloaded);
+    		Assert.assertEquals(204, delete(record.get("Upload_Id")));
+    	}
+    	Assert.assertEquals(0, ((Number) metrics().get("storage.segments.uploads")).intValue());
+    	Assert.assertTrue(metadata(user).isEmpty());
+    }
+}
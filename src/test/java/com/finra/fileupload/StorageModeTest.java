@@ -0,0 +1,80 @@
+package com.finra.fileupload;
+import java.util.List;
+import java.util.Map;
+import org.junit.runner.RunWith;
+import org.springframework.boot.context.embedded.LocalServerPort;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * Base of tests running the service with one storage mode enabled through
+ * {@link org.springframework.test.context.TestPropertySource}, each against a storage root of its own.
+ * @author akadam
+ * @since 1.0
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public abstract class StorageModeTest {
+
+	@LocalServerPort
+    protected int port;
+
+    @Autowired
+    protected TestRestTemplate template;
+
+    /**
+     * Uploads given content for a user
+     * @param query extra request params, e.g. "&durability=sync"
+     * @return response of upload service
+     */
+    protected ResponseEntity<String> upload(String user, String date, byte[] content, String query) {
+    	MultiValueMap<String, Object> param = new LinkedMultiValueMap<String, Object>();
+    	param.add("file", new ByteArrayResource(content) {
+    		@Override
+    		public String getFilename() {
+    			return "content.txt";
+    		}
+    	});
+    	return template.postForEntity(url("/upload?user={user}&fileCreationDate={fileCreationDate}" + query),
+    			param, String.class, user, date);
+    }
+
+    /**
+     * @return metadata of every upload of a user
+     */
+    protected List<Map<String,String>> metadata(String user) {
+    	return template.getForObject(url("/metadata?user={user}"), List.class, user);
+    }
+
+    /**
+     * @return downloaded content of an upload
+     */
+    protected byte[] download(String uploadId) {
+    	return template.getForObject(url("/files/" + uploadId), byte[].class);
+    }
+
+    /**
+     * @return status of deleting an upload
+     */
+    protected int delete(String uploadId) {
+    	return template.exchange(url("/files/" + uploadId), HttpMethod.DELETE, null, Void.class).getStatusCodeValue();
+    }
+
+    /**
+     * @return metrics reported on /metrics
+     */
+    protected Map<String, Object> metrics() {
+    	return template.getForObject(url("/metrics"), Map.class);
+    }
+
+    protected String url(String path) {
+    	return "http://localhost:" + port + path;
+    }
+}
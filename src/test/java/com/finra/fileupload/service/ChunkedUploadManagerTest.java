@@ -0,0 +1,98 @@
+package com.finra.fileupload.service;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.logging.Logger;
+import javax.servlet.MultipartConfigElement;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test case for chunked upload session limits, expiry and closing
+ * @author akadam
+ * @since 1.0
+ */
+public class ChunkedUploadManagerTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(ChunkedUploadManagerTest.class.getCanonicalName());
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ChunkedUploadManager manager;
+
+	@Before
+	public void createManager() {
+		StorageVolumes volumes = new StorageVolumes();
+		volumes.roots = folder.getRoot().getPath();
+		volumes.weights = "";
+		volumes.init();
+		manager = new ChunkedUploadManager();
+		manager.secureRandom = new SecureRandom();
+		manager.storageVolumes = volumes;
+		manager.defaultChunkSize = 10;
+		manager.maxChunkSize = 100;
+		manager.sessionTtlSeconds = 60;
+		manager.multipartConfig = new MultipartConfigElement(null, 1000, 1000, 0);
+	}
+
+    @Test
+    public void testFileSizeLimited() throws Exception {
+    	logger.info("Testing files larger than multipart max file size are rejected.");
+    	manager.start("user", "file.txt", new Date(), 1000, null);
+    	for(long fileSize : new long[] {1001, Long.MAX_VALUE}) {
+    		try {
+    			manager.start("user", "file.txt", new Date(), fileSize, 1L);
+    			Assert.fail("File size [" + fileSize + "] accepted");
+    		}catch(IllegalArgumentException e) {
+    			Assert.assertTrue(e.getMessage().contains("1000"));
+    		}
+    	}
+    }
+
+    @Test
+    public void testExpiredSessionsSwept() throws Exception {
+    	logger.info("Testing sessions without chunks received for TTL are aborted, open or on disk only.");
+    	UploadSession idle = manager.start("user", "idle.txt", new Date(), 20, null);
+    	UploadSession active = manager.start("user", "active.txt", new Date(), 20, null);
+    	File leftOver = manager.start("user", "left.txt", new Date(), 20, null).getDirectory();
+    	File expired = new File(leftOver.getParentFile(), "0");
+    	Assert.assertTrue(leftOver.renameTo(expired));
+    	long past = System.currentTimeMillis() - 120000;
+    	for(File file : expired.listFiles()) {
+    		Assert.assertTrue(file.setLastModified(past));
+    	}
+
+    	manager.sweep();
+    	Assert.assertTrue(idle.getDirectory().isDirectory());
+    	Assert.assertFalse(expired.exists());
+
+    	manager.sessionTtlSeconds = 1;
+    	Thread.sleep(1100);
+    	active.writeChunk(0, Channels.newChannel(new ByteArrayInputStream(new byte[10])));
+    	manager.sweep();
+    	Assert.assertFalse(idle.getDirectory().exists());
+    	Assert.assertNull(manager.find(idle.getSessionId()));
+    	Assert.assertNotNull(manager.find(active.getSessionId()));
+    }
+
+    @Test
+    public void testNoChunkWrittenAfterAbort() throws Exception {
+    	logger.info("Testing chunks are rejected once session is aborted.");
+    	UploadSession session = manager.start("user", "file.txt", new Date(), 20, null);
+    	session.writeChunk(0, Channels.newChannel(new ByteArrayInputStream(new byte[10])));
+    	manager.abort(session);
+    	try {
+    		session.writeChunk(1, Channels.newChannel(new ByteArrayInputStream(new byte[10])));
+    		Assert.fail("Chunk written after abort");
+    	}catch(IllegalStateException e) {
+    		Assert.assertFalse(session.getDirectory().exists());
+    	}
+    }
+}
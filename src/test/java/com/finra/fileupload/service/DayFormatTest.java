@@ -0,0 +1,59 @@
+package com.finra.fileupload.service;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test case for day formatting and parsing against java.time and SimpleDateFormat
+ * @author akadam
+ * @since 1.0
+ */
+public class DayFormatTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(DayFormatTest.class.getCanonicalName());
+
+    @Test
+    public void testRoundTrip() throws Exception {
+    	logger.info("Testing days round trip through text and dates.");
+    	SimpleDateFormat reference = new SimpleDateFormat("yyyy-MM-dd");
+    	for(int epochDay = (int) LocalDate.of(1969, 12, 1).toEpochDay(); epochDay < LocalDate.of(2031, 1, 1).toEpochDay(); epochDay += 7) {
+    		String text = DayFormat.format(epochDay);
+    		Assert.assertEquals(LocalDate.ofEpochDay(epochDay).toString(), text);
+    		Assert.assertEquals(epochDay, DayFormat.parseEpochDay(text));
+
+    		Date date = DayFormat.toDate(epochDay);
+    		Assert.assertEquals(reference.parse(text), date);
+    		Assert.assertEquals(epochDay, DayFormat.toEpochDay(date));
+    		Assert.assertEquals(epochDay, DayFormat.toEpochDay(new Date(date.getTime() + 12 * 3600 * 1000L)));
+    		Assert.assertEquals(text, DayFormat.format(date));
+    		Assert.assertEquals(date, DayFormat.parse(text));
+    	}
+    }
+
+    @Test
+    public void testCachedDaysDontCollide() throws Exception {
+    	logger.info("Testing days sharing a cache slot are formatted each on its own.");
+    	int epochDay = (int) LocalDate.of(2017, 1, 1).toEpochDay();
+    	Assert.assertEquals("2017-01-01", DayFormat.format(epochDay));
+    	Assert.assertEquals(LocalDate.ofEpochDay(epochDay + 1024).toString(), DayFormat.format(epochDay + 1024));
+    	Assert.assertEquals("2017-01-01", DayFormat.format(epochDay));
+    }
+
+    @Test
+    public void testMalformedDays() throws Exception {
+    	logger.info("Testing malformed days are rejected.");
+    	String[] malformed = {"", "2017-1-1", "2017-13-01", "2017-02-30", "2017/01/01", "20a7-01-01", "2017-01-01T00:00"};
+    	for(String text : malformed) {
+    		try {
+    			DayFormat.parseEpochDay(text);
+    			Assert.fail("Expected ["+text+"] to be rejected");
+    		}catch(IllegalArgumentException e) {
+    			//expected
+    		}
+    	}
+    }
+}
@@ -0,0 +1,82 @@
+package com.finra.fileupload.service;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test case for index keys being pruned once their uploads are removed or replaced
+ * @author akadam
+ * @since 1.0
+ */
+public class FileMetaDataIndexTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(FileMetaDataIndexTest.class.getCanonicalName());
+
+	private final FileMetaDataIndex index = new FileMetaDataIndex();
+
+    @Test
+    public void testEmptiedKeysPruned() throws Exception {
+    	logger.info("Testing users, dates and names without uploads are taken out of the index.");
+    	index.add(metadata("a", "user-1", "first.txt", 100));
+    	index.add(metadata("b", "user-1", "second.txt", 100));
+    	index.add(metadata("c", "user-2", "first.txt", 101));
+    	int keys = index.keyCount();
+
+    	//Replaced upload moves to day 100, leaving day 101 without uploads by creation and by upload date
+    	index.add(metadata("c", "user-2", "second.txt", 100));
+    	Assert.assertEquals(keys - 2, index.keyCount());
+    	Assert.assertEquals(1, index.find("user-2", 100).size());
+    	Assert.assertEquals(0, index.find("user-2", 101).size());
+
+    	index.remove(metadata("b", "user-1", "second.txt", 100));
+    	index.remove(metadata("a", "user-1", "first.txt", 100));
+    	index.remove(metadata("c", "user-2", "second.txt", 100));
+    	Assert.assertEquals(0, index.keyCount());
+    	Assert.assertEquals(0, index.find("user-1", null).size());
+    }
+
+    @Test
+    public void testConcurrentAddsAndRemoves() throws Exception {
+    	logger.info("Testing uploads added while others of same keys are removed are kept.");
+    	ExecutorService executor = Executors.newFixedThreadPool(8);
+    	try {
+    		List<Future<Void>> done = new ArrayList<Future<Void>>();
+    		for(int t = 0; t < 8; t++) {
+    			final int thread = t;
+    			done.add(executor.submit(new Callable<Void>() {
+    				@Override
+    				public Void call() {
+    					for(int i = 0; i < 2000; i++) {
+    						FileMetaData metadata = metadata(thread + "-" + i, "user", "file.txt", i % 4);
+    						index.add(metadata);
+    						if(i % 2 == 0) {
+    							index.remove(metadata);
+    						}
+    					}
+    					return null;
+    				}
+    			}));
+    		}
+    		for(Future<Void> future : done) {
+    			future.get();
+    		}
+    	}finally {
+    		executor.shutdown();
+    	}
+    	Assert.assertEquals(8000, index.find("user", null).size());
+    	MetaDataQuery query = new MetaDataQuery();
+    	query.setFileNamePrefix("file");
+    	Assert.assertEquals(8000, index.query(query).size());
+    }
+
+    private FileMetaData metadata(String uploadId, String user, String fileName, int creationEpochDay) {
+    	return new FileMetaData(uploadId, user, fileName, creationEpochDay, creationEpochDay, 10, null);
+    }
+}
@@ -0,0 +1,82 @@
+package com.finra.fileupload.service;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test case for metadata records round tripping through stored key value pairs
+ * @author akadam
+ * @since 1.0
+ */
+public class FileMetaDataTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(FileMetaDataTest.class.getCanonicalName());
+
+    @Test
+    public void testRoundTrip() throws Exception {
+    	logger.info("Testing record with every field round trips through stored map.");
+    	FileMetaData record = new FileMetaData("upload-1", "user", "file.txt", DayFormat.parseEpochDay("2017-01-01"),
+    			DayFormat.parseEpochDay("2017-02-01"), 1234, "ab12", Codec.DEFLATE);
+    	Map<String, String> map = record.toMap();
+    	Assert.assertEquals("2017-01-01", map.get(FileManagerHelper.CREATION_DATE));
+    	Assert.assertEquals("2017-02-01", map.get(FileManagerHelper.UPLOADED_DATE));
+    	Assert.assertEquals("1234", map.get(FileManagerHelper.FILE_SIZE));
+    	Assert.assertEquals("deflate", map.get(FileManagerHelper.CODEC));
+
+    	FileMetaData parsed = FileMetaData.fromMap(map, "ignored");
+    	Assert.assertEquals(map, parsed.toMap());
+    	Assert.assertEquals("upload-1", parsed.getUploadId());
+    	Assert.assertEquals(record.getCreationEpochDay(), parsed.getCreationEpochDay());
+    	Assert.assertEquals(1234, parsed.getFileSize());
+    	Assert.assertEquals(Codec.DEFLATE, parsed.getCodec());
+    }
+
+    @Test
+    public void testOptionalFieldsLeftOut() throws Exception {
+    	logger.info("Testing fields that were not recorded stay out of stored map.");
+    	Map<String, String> map = new HashMap<String, String>();
+    	map.put(FileManagerHelper.USER_NAME, "user");
+    	map.put(FileManagerHelper.CREATION_DATE, "2017-01-01");
+
+    	FileMetaData parsed = FileMetaData.fromMap(map, "directory-name");
+    	Assert.assertEquals("directory-name", parsed.getUploadId());
+    	Assert.assertEquals(FileMetaData.UNKNOWN_DAY, parsed.getUploadedEpochDay());
+    	Assert.assertEquals(FileMetaData.UNKNOWN_SIZE, parsed.getFileSize());
+    	Assert.assertEquals(Codec.NONE, parsed.getCodec());
+
+    	Map<String, String> stored = parsed.toMap();
+    	Assert.assertEquals(3, stored.size());
+    	Assert.assertEquals("directory-name", stored.get(FileManagerHelper.UPLOAD_ID));
+    	Assert.assertFalse(stored.containsKey(FileManagerHelper.UPLOADED_DATE));
+    	Assert.assertFalse(stored.containsKey(FileManagerHelper.CODEC));
+    }
+
+    @Test
+    public void testUserNamesShared() throws Exception {
+    	logger.info("Testing records of one user share its name.");
+    	FileMetaData first = new FileMetaData("upload-1", new String("shared-user"), null, 0, 0, 1, null);
+    	FileMetaData second = new FileMetaData("upload-2", new String("shared-user"), null, 0, 0, 1, null);
+    	Assert.assertSame(first.getUserName(), second.getUserName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingCreationDate() throws Exception {
+    	logger.info("Testing record without creation date is rejected.");
+    	Map<String, String> map = new HashMap<String, String>();
+    	map.put(FileManagerHelper.USER_NAME, "user");
+    	FileMetaData.fromMap(map, "upload-1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownCodec() throws Exception {
+    	logger.info("Testing record with unknown codec is rejected.");
+    	Map<String, String> map = new HashMap<String, String>();
+    	map.put(FileManagerHelper.USER_NAME, "user");
+    	map.put(FileManagerHelper.CREATION_DATE, "2017-01-01");
+    	map.put(FileManagerHelper.CODEC, "lz4");
+    	FileMetaData.fromMap(map, "upload-1");
+    }
+}
@@ -0,0 +1,225 @@
+package com.finra.fileupload.service;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test case for journal record format, replay, compaction and recovery of torn or corrupted journals
+ * @author akadam
+ * @since 1.0
+ */
+public class MetaDataJournalTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(MetaDataJournalTest.class.getCanonicalName());
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String root;
+
+	private MetaDataJournal journal;
+
+	@Before
+	public void openJournal() {
+		root = folder.getRoot().getPath();
+		journal = new MetaDataJournal();
+		journal.open(root);
+	}
+
+	@After
+	public void closeJournal() {
+		journal.close();
+	}
+
+    @Test
+    public void testRecordsReplayedOnOpen() throws Exception {
+    	logger.info("Testing records appended to journal are replayed on open.");
+    	journal.append("a", metadata("user-a", "2017-01-01"));
+    	journal.append("b", metadata("user-b", "2017-01-02"));
+    	journal.append("c", metadata("user-c", "2017-01-03"));
+    	journal.remove("b");
+    	journal.append("a", metadata("user-a", "2017-02-01"));
+
+    	Map<String, Map<String, String>> replayed = reopen();
+    	Assert.assertEquals(2, replayed.size());
+    	Assert.assertEquals(metadata("user-a", "2017-02-01"), replayed.get("a"));
+    	Assert.assertEquals(metadata("user-c", "2017-01-03"), replayed.get("c"));
+    	Assert.assertEquals(0, journal.getSkippedRecords());
+    }
+
+    @Test
+    public void testCompactionKeepsRecords() throws Exception {
+    	logger.info("Testing compaction into snapshot keeps every record.");
+    	for(int i = 0; i < 50; i++) {
+    		journal.append("id-" + i, metadata("user-" + (i % 5), "2017-01-0" + (1 + i % 9)));
+    	}
+    	journal.remove("id-7");
+    	journal.compact();
+    	journal.append("id-50", metadata("user-0", "2017-03-01"));
+
+    	Map<String, Map<String, String>> replayed = reopen();
+    	Assert.assertEquals(50, replayed.size());
+    	Assert.assertNull(replayed.get("id-7"));
+    	Assert.assertEquals(metadata("user-3", "2017-01-09"), replayed.get("id-8"));
+    	Assert.assertEquals(metadata("user-0", "2017-03-01"), replayed.get("id-50"));
+    	Assert.assertTrue(new File(journalDirectory(), "metadata.snapshot").exists());
+    	Assert.assertFalse(new File(journalDirectory(), "metadata.journal.1").exists());
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws Exception {
+    	logger.info("Testing torn record at tail of active journal is truncated.");
+    	journal.append("a", metadata("user-a", "2017-01-01"));
+    	journal.append("b", metadata("user-b", "2017-01-02"));
+    	journal.close();
+    	File active = new File(journalDirectory(), "metadata.journal");
+    	long length = active.length();
+    	truncate(active, length - 3);
+
+    	Map<String, Map<String, String>> replayed = reopen();
+    	Assert.assertEquals(1, replayed.size());
+    	Assert.assertNotNull(replayed.get("a"));
+    	Assert.assertEquals(0, journal.getSkippedRecords());
+    	Assert.assertTrue(active.length() < length - 3);
+
+    	journal.append("c", metadata("user-c", "2017-01-03"));
+    	replayed = reopen();
+    	Assert.assertEquals(2, replayed.size());
+    	Assert.assertNotNull(replayed.get("c"));
+    }
+
+    @Test
+    public void testCorruptedRecordIsSkipped() throws Exception {
+    	logger.info("Testing record with checksum mismatch is skipped and blocks compaction.");
+    	journal.append("a", metadata("user-a", "2017-01-01"));
+    	journal.append("b", metadata("user-b", "2017-01-02"));
+    	journal.close();
+    	//Flips a byte inside payload of first record, past journal and record headers
+    	File active = new File(journalDirectory(), "metadata.journal");
+    	RandomAccessFile file = new RandomAccessFile(active, "rw");
+    	try {
+    		file.seek(8 + 8 + 4);
+    		int value = file.read();
+    		file.seek(8 + 8 + 4);
+    		file.write(value ^ 0xFF);
+    	}finally {
+    		file.close();
+    	}
+
+    	Map<String, Map<String, String>> replayed = reopen();
+    	Assert.assertEquals(1, replayed.size());
+    	Assert.assertNotNull(replayed.get("b"));
+    	Assert.assertEquals(1, journal.getSkippedRecords());
+    	try {
+    		journal.compact();
+    		Assert.fail("Compaction over corrupted records should fail");
+    	}catch(RuntimeException e) {
+    		Assert.assertTrue(new File(journalDirectory(), "metadata.journal.1").exists());
+    	}
+    }
+
+    @Test
+    public void testUnknownHeaderIsMovedAside() throws Exception {
+    	logger.info("Testing active journal with unknown header is moved aside.");
+    	journal.append("a", metadata("user-a", "2017-01-01"));
+    	journal.close();
+    	File active = new File(journalDirectory(), "metadata.journal");
+    	RandomAccessFile file = new RandomAccessFile(active, "rw");
+    	try {
+    		file.writeInt(0);
+    	}finally {
+    		file.close();
+    	}
+
+    	Map<String, Map<String, String>> replayed = reopen();
+    	Assert.assertTrue(replayed.isEmpty());
+    	String[] names = journalDirectory().list();
+    	Assert.assertEquals(2, names.length);
+    	Assert.assertTrue(names[0].startsWith("corrupt-") || names[1].startsWith("corrupt-"));
+    	journal.append("b", metadata("user-b", "2017-01-02"));
+    	Assert.assertEquals(1, reopen().size());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testTruncatedSnapshotFailsOpen() throws Exception {
+    	logger.info("Testing truncated snapshot fails open rather than losing records.");
+    	journal.append("a", metadata("user-a", "2017-01-01"));
+    	journal.append("b", metadata("user-b", "2017-01-02"));
+    	journal.compact();
+    	journal.close();
+    	File snapshot = new File(journalDirectory(), "metadata.snapshot");
+    	truncate(snapshot, snapshot.length() - 3);
+    	reopen();
+    }
+
+    @Test
+    public void testMigrationCoversAllRoots() throws Exception {
+    	logger.info("Testing migration carries properties files of every root to journal of first root.");
+    	String first = folder.newFolder("first").getPath();
+    	String second = folder.newFolder("second").getPath();
+    	writeProperties(new File(first, "upload-a"), metadata("user-a", "2017-01-01"));
+    	writeProperties(new File(second, "upload-b"), metadata("user-b", "2017-01-02"));
+
+    	Assert.assertEquals(2, MetaDataMigrationTool.migrate(Arrays.asList(first, second)));
+    	Assert.assertEquals(0, MetaDataMigrationTool.migrate(Arrays.asList(first, second)));
+    	Assert.assertFalse(new File(second, MetaDataJournal.DIRECTORY).exists());
+    	journal.close();
+    	journal = new MetaDataJournal();
+    	Map<String, Map<String, String>> migrated = journal.open(first);
+    	Assert.assertEquals(2, migrated.size());
+    	Assert.assertEquals("user-b", migrated.get("upload-b").get(FileManagerHelper.USER_NAME));
+    }
+
+    private void writeProperties(File directory, Map<String, String> metadata) throws IOException {
+    	Assert.assertTrue(directory.mkdirs());
+    	Properties properties = new Properties();
+    	properties.putAll(metadata);
+    	OutputStream output = new FileOutputStream(new File(directory, "file.properties"));
+    	try {
+    		properties.store(output, null);
+    	}finally {
+    		output.close();
+    	}
+    }
+
+    private Map<String, Map<String, String>> reopen() {
+    	journal.close();
+    	journal = new MetaDataJournal();
+    	return journal.open(root);
+    }
+
+    private File journalDirectory() {
+    	return new File(root, MetaDataJournal.DIRECTORY);
+    }
+
+    private void truncate(File target, long length) throws IOException {
+    	RandomAccessFile file = new RandomAccessFile(target, "rw");
+    	try {
+    		file.setLength(length);
+    	}finally {
+    		file.close();
+    	}
+    }
+
+    private Map<String, String> metadata(String user, String creationDate) {
+    	Map<String, String> metadata = new LinkedHashMap<String, String>();
+    	metadata.put(FileManagerHelper.FILE_NAME, "file");
+    	metadata.put(FileManagerHelper.USER_NAME, user);
+    	metadata.put(FileManagerHelper.CREATION_DATE, creationDate);
+    	return metadata;
+    }
+}
@@ -0,0 +1,112 @@
+package com.finra.fileupload.service;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test case for payloads round tripping through compression at rest and decoding on download
+ * @author akadam
+ * @since 1.0
+ */
+public class PayloadCompressorTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(PayloadCompressorTest.class.getCanonicalName());
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCompressiblePayloads() throws Exception {
+    	logger.info("Testing compressible payloads are deflated and decoded back.");
+    	PayloadCompressor compressor = compressor("deflate");
+    	StringBuilder text = new StringBuilder();
+    	for(int i = 0; text.length() < 300000; i++) {
+    		text.append("line ").append(i).append(" of a compressible payload\n");
+    	}
+    	byte[] large = text.toString().getBytes(StandardCharsets.UTF_8);
+    	File stored = roundTrip(compressor, large, Codec.DEFLATE);
+    	Assert.assertTrue(stored.length() < large.length / 2);
+
+    	byte[] small = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa".getBytes(StandardCharsets.UTF_8);
+    	roundTrip(compressor, small, Codec.DEFLATE);
+    }
+
+    @Test
+    public void testIncompressiblePayloadsStoredAsUploaded() throws Exception {
+    	logger.info("Testing payloads that don't shrink are stored as uploaded.");
+    	PayloadCompressor compressor = compressor("deflate");
+    	byte[] random = new byte[100000];
+    	new Random(7).nextBytes(random);
+    	File stored = roundTrip(compressor, random, Codec.NONE);
+    	Assert.assertEquals(random.length, stored.length());
+    	roundTrip(compressor, new byte[0], Codec.NONE);
+    }
+
+    @Test
+    public void testNoCodec() throws Exception {
+    	logger.info("Testing payloads are stored as uploaded when compression is off.");
+    	PayloadCompressor compressor = compressor("none");
+    	Assert.assertFalse(compressor.isEnabled());
+    	byte[] zeros = new byte[100000];
+    	File stored = roundTrip(compressor, zeros, Codec.NONE);
+    	Assert.assertEquals(zeros.length, stored.length());
+    }
+
+    private PayloadCompressor compressor(String codec) {
+    	PayloadCompressor compressor = new PayloadCompressor();
+    	compressor.codec = codec;
+    	compressor.level = 1;
+    	compressor.sampleSize = 65536;
+    	compressor.maxRatio = 0.9;
+    	compressor.init();
+    	return compressor;
+    }
+
+    /**
+     * Writes payload through compressor, checks codec, size and digest of the result and that
+     * decoding stored file gives payload back.
+     * @return stored file
+     */
+    private File roundTrip(PayloadCompressor compressor, byte[] payload, Codec expected) throws Exception {
+    	File stored = folder.newFile();
+    	MessageDigest digest = MessageDigest.getInstance(BlobStore.DIGEST_ALGORITHM);
+    	PayloadCompressor.Result result;
+    	FileChannel target = FileChannel.open(stored.toPath(), StandardOpenOption.WRITE);
+    	try {
+    		result = compressor.write(Channels.newChannel(new ByteArrayInputStream(payload)), target, digest);
+    	}finally {
+    		target.close();
+    	}
+    	Assert.assertEquals(expected, result.getCodec());
+    	Assert.assertEquals(payload.length, result.getSize());
+    	Assert.assertArrayEquals(MessageDigest.getInstance(BlobStore.DIGEST_ALGORITHM).digest(payload), digest.digest());
+
+    	InputStream input = result.getCodec().decode(new FileInputStream(stored));
+    	ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+    	try {
+    		byte[] buffer = new byte[8192];
+    		int read;
+    		while((read = input.read(buffer)) != -1) {
+    			decoded.write(buffer, 0, read);
+    		}
+    	}finally {
+    		input.close();
+    	}
+    	Assert.assertArrayEquals(payload, decoded.toByteArray());
+    	return stored;
+    }
+}
@@ -0,0 +1,207 @@
+package com.finra.fileupload.service;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test case for properties parsing, compared against {@link Properties#load(java.io.InputStream)}
+ * @author akadam
+ * @since 1.0
+ */
+public class PropertiesReaderTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(PropertiesReaderTest.class.getCanonicalName());
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStoredMetadataRoundTrip() throws Exception {
+    	logger.info("Testing properties written by Properties.store are read back.");
+    	Properties properties = new Properties();
+    	properties.setProperty(FileManagerHelper.FILE_NAME, "report = final: v2.txt");
+    	properties.setProperty(FileManagerHelper.USER_NAME, "Service-Account-User");
+    	properties.setProperty(FileManagerHelper.CREATION_DATE, "2017-01-01");
+    	properties.setProperty("key with spaces", " leading and trailing ");
+    	properties.setProperty("unicode", "caf\u00e9 \u65e5\u672c \ud83d\ude00");
+    	properties.setProperty("specials", "#!=:\\\t\n\r\f");
+    	properties.setProperty("empty", "");
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    	properties.store(bytes, "Metadata");
+
+    	Map<String, String> parsed = parse(bytes.toByteArray());
+    	Assert.assertEquals(properties.size(), parsed.size());
+    	for(String key : properties.stringPropertyNames()) {
+    		Assert.assertEquals(key, properties.getProperty(key), parsed.get(key));
+    	}
+    }
+
+    @Test
+    public void testFormatCases() throws Exception {
+    	logger.info("Testing separators, comments, escapes and continuations match Properties.load.");
+    	String[] cases = {
+    		"a=1\nb:2\nc 3\nd\t=\t4\n",
+    		"# comment\n! comment\n  # indented comment\nkey=value\n",
+    		"key = value with trailing space   \n",
+    		"multi = one \\\n    two \\\n    three\n",
+    		"crlf = one \\\r\n  two\r\nnext=line\r\n",
+    		"cr = one \\\r  two\rnext=line\r",
+    		"escaped\\ key\\=still\\:key = v\\\\\n",
+    		"unicode = \\u0041\\u00e9\n",
+    		"tabs = \\t\\n\\r\\f\\x\n",
+    		"only-key\n\n\nother\n",
+    		"ends-with-escape = value\\",
+    		"no-newline = value",
+    		"\\\n",
+    		"#comment \\\nnot-continued = yes\n",
+    		"empty=\n=no-key\n:also-no-key\n",
+    		"dup=1\ndup=2\n",
+    		"   \n\t\f\n",
+    		"odd = \\\\\nnext = line\n",
+    		"continued-blank = a\\\n\nafter=blank\n",
+    	};
+    	for(String text : cases) {
+    		assertSameAsProperties(text.getBytes(StandardCharsets.ISO_8859_1));
+    	}
+    }
+
+    @Test
+    public void testExpectedMaps() throws Exception {
+    	logger.info("Testing inputs Properties.load reads differently between Java versions against fixed results.");
+    	//A lone backslash continues into "#:", which is no comment, Properties.load of Java 9 onwards drops it
+    	assertParsed("#\r:\f\t:#!:?\f:#?\r\r\n:\f#a\n!=t?\n\r:\n\\\n#:\r0?", "", "", "#", "", "0?", "");
+    	assertParsed("a = 1 \\\n  # not a comment\n", "a", "1 # not a comment");
+    	assertParsed("#comment \\\nkey = value\n", "key", "value");
+    	assertParsed("k\\u0041 = \\u00e9\n", "kA", "\u00e9");
+    }
+
+    @Test
+    public void testRandomInputs() throws Exception {
+    	logger.info("Testing random inputs over format characters match Properties.load.");
+    	//Parsing quirks handled below are those of Java 8, later versions read some inputs differently
+    	Assume.assumeTrue("1.8".equals(System.getProperty("java.specification.version")));
+    	//No 'u', Java 8 reads digits of a unicode escape cut short by line end from its buffer's stale content
+    	char[] alphabet = {'a', 'b', ' ', '\t', '\f', '=', ':', '#', '!', '\\', '\n', '\r', 't', '0', '\u00e9'};
+    	Random random = new Random(42);
+    	for(int i = 0; i < 20000; i++) {
+    		byte[] bytes = new byte[random.nextInt(40)];
+    		for(int j = 0; j < bytes.length; j++) {
+    			bytes[j] = (byte) alphabet[random.nextInt(alphabet.length)];
+    		}
+    		if(!commentEndsWithBackslash(bytes)) {
+    			assertSameAsProperties(bytes);
+    		}
+    	}
+    }
+
+    @Test
+    public void testReadLargeFile() throws Exception {
+    	logger.info("Testing files larger than initial buffer are read whole.");
+    	Properties properties = new Properties();
+    	for(int i = 0; i < 1000; i++) {
+    		properties.setProperty("key-" + i, "value-" + i);
+    	}
+    	File file = folder.newFile("large.properties");
+    	OutputStream output = new FileOutputStream(file);
+    	try {
+    		properties.store(output, null);
+    	}finally {
+    		output.close();
+    	}
+    	Map<String, String> read = PropertiesReader.read(file);
+    	Assert.assertEquals(1000, read.size());
+    	Assert.assertEquals("value-999", read.get("key-999"));
+    }
+
+    /**
+     * Parses text and compares with given keys each followed by its value.
+     */
+    private void assertParsed(String text, String... keysAndValues) {
+    	Map<String, String> expected = new HashMap<String, String>();
+    	for(int i = 0; i < keysAndValues.length; i += 2) {
+    		expected.put(keysAndValues[i], keysAndValues[i + 1]);
+    	}
+    	byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+    	Assert.assertEquals(printable(bytes), expected, parse(bytes));
+    }
+
+    /**
+     * Parses bytes with both readers, inputs Properties rejects have to be rejected too.
+     */
+    private void assertSameAsProperties(byte[] bytes) throws Exception {
+    	Map<String, String> expected = new HashMap<String, String>();
+    	boolean rejected = false;
+    	try {
+    		Properties properties = new Properties();
+    		properties.load(new ByteArrayInputStream(bytes));
+    		for(String key : properties.stringPropertyNames()) {
+    			expected.put(key, properties.getProperty(key));
+    		}
+    	}catch(IllegalArgumentException e) {
+    		rejected = true;
+    	}
+    	String input = printable(bytes);
+    	try {
+    		Map<String, String> parsed = parse(bytes);
+    		Assert.assertFalse("Expected [" + input + "] to be rejected", rejected);
+    		Assert.assertEquals(input, expected, parsed);
+    	}catch(IllegalArgumentException e) {
+    		Assert.assertTrue("Expected [" + input + "] to be parsed", rejected);
+    	}
+    }
+
+    /**
+     * Properties.load of Java 8 carries a backslash ending a comment line over into the next line,
+     * and then reads past that line's end. Comments don't continue, so such inputs aren't compared.
+     */
+    private boolean commentEndsWithBackslash(byte[] bytes) {
+    	boolean lineStart = true;
+    	boolean comment = false;
+    	boolean escaped = false;
+    	for(byte b : bytes) {
+    		char c = (char) (b & 0xFF);
+    		if(c == '\n' || c == '\r') {
+    			if(comment && escaped) {
+    				return true;
+    			}
+    			lineStart = true;
+    			comment = false;
+    			escaped = false;
+    		}else if(lineStart && (c == '#' || c == '!')) {
+    			lineStart = false;
+    			comment = true;
+    		}else if(c != ' ' && c != '\t' && c != '\f' || !lineStart) {
+    			lineStart = false;
+    			escaped = c == '\\' && !escaped;
+    		}
+    	}
+    	return false;
+    }
+
+    private Map<String, String> parse(byte[] bytes) {
+    	//Parsed out of a larger buffer, bytes past length are not to be read
+    	byte[] buffer = new byte[bytes.length + 8];
+    	System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+    	buffer[bytes.length] = 'x';
+    	return PropertiesReader.parse(buffer, bytes.length);
+    }
+
+    private String printable(byte[] bytes) {
+    	return new String(bytes, StandardCharsets.ISO_8859_1).replace("\\", "\\\\").replace("\n", "\\n")
+    			.replace("\r", "\\r").replace("\t", "\\t").replace("\f", "\\f");
+    }
+}
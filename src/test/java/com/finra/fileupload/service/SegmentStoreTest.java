@@ -0,0 +1,210 @@
+package com.finra.fileupload.service;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test case for segment record format, scan on open, compaction and torn records
+ * @author akadam
+ * @since 1.0
+ */
+public class SegmentStoreTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(SegmentStoreTest.class.getCanonicalName());
+
+	/**Status, id length, payload length and checksum preceding id and payload of each record*/
+	private static final int RECORD_OVERHEAD = 1 + 2 + 4 + 4;
+
+	/**Segment file header*/
+	private static final int HEADER_LENGTH = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String root;
+
+	private SegmentStore store;
+
+	@Before
+	public void openStore() {
+		root = folder.getRoot().getPath();
+		store = newStore();
+		store.open(root);
+	}
+
+	@After
+	public void closeStore() {
+		store.close();
+	}
+
+    @Test
+    public void testRecordsScannedOnOpen() throws Exception {
+    	logger.info("Testing appended payloads are found again on open.");
+    	append("a", payload("first", 100));
+    	append("b", payload("second", 200));
+    	append("c", new byte[0]);
+    	append("d", payload("fourth", 30));
+    	Assert.assertTrue(store.delete("b"));
+    	Assert.assertFalse(store.delete("b"));
+    	Assert.assertArrayEquals(payload("first", 100), read("a"));
+
+    	reopen();
+    	Assert.assertArrayEquals(payload("first", 100), read("a"));
+    	Assert.assertFalse(store.contains("b"));
+    	Assert.assertNull(store.read("b"));
+    	Assert.assertArrayEquals(new byte[0], read("c"));
+    	Assert.assertArrayEquals(payload("fourth", 30), read("d"));
+    }
+
+    @Test
+    public void testRollsAndCompacts() throws Exception {
+    	logger.info("Testing full segments roll over and deleted payloads are compacted away.");
+    	for(int i = 0; i < 20; i++) {
+    		append("id-" + i, payload("payload-" + i, 500));
+    	}
+    	Assert.assertTrue(segmentFiles().length > 2);
+    	File first = new File(new File(root, SegmentStore.DIRECTORY), "00000001.seg");
+    	Assert.assertTrue(first.exists());
+    	for(int i = 0; i < 20; i += 2) {
+    		store.delete("id-" + i);
+    	}
+    	store.compact();
+    	Assert.assertFalse(first.exists());
+    	for(int i = 1; i < 20; i += 2) {
+    		Assert.assertArrayEquals(payload("payload-" + i, 500), read("id-" + i));
+    	}
+
+    	reopen();
+    	for(int i = 0; i < 20; i++) {
+    		Assert.assertEquals(i % 2 == 1, store.contains("id-" + i));
+    	}
+    	Assert.assertArrayEquals(payload("payload-19", 500), read("id-19"));
+    }
+
+    @Test
+    public void testTornRecordEndsScan() throws Exception {
+    	logger.info("Testing scan stops at a record whose checksum doesn't match and appends over it.");
+    	append("a", payload("first", 100));
+    	append("b", payload("second", 100));
+    	store.close();
+    	//Flips first payload byte of second record
+    	long offset = HEADER_LENGTH + RECORD_OVERHEAD + 1 + 100 + RECORD_OVERHEAD + 1;
+    	RandomAccessFile file = new RandomAccessFile(segmentFiles()[0], "rw");
+    	try {
+    		file.seek(offset);
+    		int value = file.read();
+    		file.seek(offset);
+    		file.write(value ^ 0xFF);
+    	}finally {
+    		file.close();
+    	}
+
+    	reopen();
+    	Assert.assertArrayEquals(payload("first", 100), read("a"));
+    	Assert.assertFalse(store.contains("b"));
+    	append("c", payload("third", 50));
+
+    	reopen();
+    	Assert.assertArrayEquals(payload("first", 100), read("a"));
+    	Assert.assertArrayEquals(payload("third", 50), read("c"));
+    	Assert.assertFalse(store.contains("b"));
+    }
+
+    @Test
+    public void testTornRecordNotCompacted() throws Exception {
+    	logger.info("Testing compaction of a sealed segment stops where its scan stopped, before a torn record.");
+    	append("a", payload("first", 1000));
+    	append("b", payload("second", 1000));
+    	append("c", payload("third", 1000));
+    	store.close();
+    	//Length of third record running past segment end
+    	RandomAccessFile file = new RandomAccessFile(segmentFiles()[0], "rw");
+    	try {
+    		file.seek(HEADER_LENGTH + 2 * (RECORD_OVERHEAD + 1 + 1000) + 3 + 1);
+    		file.writeInt(Integer.MAX_VALUE);
+    	}finally {
+    		file.close();
+    	}
+
+    	reopen();
+    	Assert.assertFalse(store.contains("c"));
+    	//Doesn't fit after second record, so first segment is sealed with torn record left in it
+    	append("d", payload("fourth", 2500));
+    	Assert.assertEquals(2, segmentFiles().length);
+    	store.delete("a");
+    	store.compact();
+    	Assert.assertEquals(1, segmentFiles().length);
+    	Assert.assertArrayEquals(payload("second", 1000), read("b"));
+
+    	reopen();
+    	Assert.assertFalse(store.contains("a"));
+    	Assert.assertArrayEquals(payload("second", 1000), read("b"));
+    	Assert.assertArrayEquals(payload("fourth", 2500), read("d"));
+    }
+
+    @Test
+    public void testRetainDropsPayloadsWithoutMetadata() throws Exception {
+    	logger.info("Testing payloads without metadata are deleted.");
+    	append("a", payload("first", 10));
+    	append("b", payload("second", 10));
+    	store.retain(new HashSet<String>(Arrays.asList("a")));
+    	reopen();
+    	Assert.assertTrue(store.contains("a"));
+    	Assert.assertFalse(store.contains("b"));
+    }
+
+    private SegmentStore newStore() {
+    	SegmentStore segmentStore = new SegmentStore();
+    	segmentStore.enabled = true;
+    	segmentStore.threshold = 1024;
+    	segmentStore.segmentSize = 4096;
+    	segmentStore.compactionIntervalSeconds = 3600;
+    	return segmentStore;
+    }
+
+    private void reopen() {
+    	store.close();
+    	store = newStore();
+    	store.open(root);
+    }
+
+    private void append(String uploadId, byte[] payload) throws Exception {
+    	store.append(uploadId, payload, payload.length);
+    }
+
+    private byte[] read(String uploadId) {
+    	ByteBuffer view = store.read(uploadId);
+    	byte[] bytes = new byte[view.remaining()];
+    	view.get(bytes);
+    	return bytes;
+    }
+
+    private File[] segmentFiles() {
+    	File[] files = new File(root, SegmentStore.DIRECTORY).listFiles();
+    	Arrays.sort(files);
+    	return files;
+    }
+
+    /**
+     * @return text repeated up to given length
+     */
+    private byte[] payload(String text, int length) {
+    	byte[] source = text.getBytes(StandardCharsets.UTF_8);
+    	byte[] payload = new byte[length];
+    	for(int i = 0; i < length; i++) {
+    		payload[i] = source[i % source.length];
+    	}
+    	return payload;
+    }
+}
@@ -0,0 +1,81 @@
+package com.finra.fileupload.service;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test case for placement of uploads over storage roots
+ * @author akadam
+ * @since 1.0
+ */
+public class StorageVolumesTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(StorageVolumesTest.class.getCanonicalName());
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final UploadIdGenerator generator = new UploadIdGenerator();
+
+    @Test
+    public void testPlacementFollowsWeights() throws Exception {
+    	logger.info("Testing uploads are spread over roots in proportion to their weights.");
+    	StorageVolumes volumes = volumes("a,b", "1,3");
+    	int[] counts = new int[2];
+    	for(int i = 0; i < 20000; i++) {
+    		String uploadId = generator.nextId();
+    		StorageVolumes.Volume volume = volumes.place(uploadId);
+    		Assert.assertSame(volume, volumes.place(uploadId));
+    		counts[volume.getRoot().endsWith("a") ? 0 : 1]++;
+    	}
+    	Assert.assertEquals(0.25, counts[0] / 20000.0, 0.03);
+    }
+
+    @Test
+    public void testAddedRootOnlyTakesUploads() throws Exception {
+    	logger.info("Testing a root added later only takes uploads, none move between existing roots.");
+    	StorageVolumes two = volumes("a,b", "");
+    	StorageVolumes three = volumes("a,b,c", "");
+    	Map<String, String> placed = new HashMap<String, String>();
+    	for(int i = 0; i < 5000; i++) {
+    		String uploadId = generator.nextId();
+    		placed.put(uploadId, two.place(uploadId).getRoot());
+    	}
+    	int moved = 0;
+    	for(Map.Entry<String, String> entry : placed.entrySet()) {
+    		String root = three.place(entry.getKey()).getRoot();
+    		if(!root.equals(entry.getValue())) {
+    			Assert.assertTrue(root.endsWith("c"));
+    			moved++;
+    		}
+    	}
+    	Assert.assertEquals(1 / 3.0, moved / 5000.0, 0.04);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWeightHasToBePositive() throws Exception {
+    	logger.info("Testing roots with non positive weight are rejected.");
+    	volumes("a,b", "1,0");
+    }
+
+    private StorageVolumes volumes(String names, String weights) {
+    	StringBuilder roots = new StringBuilder();
+    	for(String name : names.split(",")) {
+    		if(roots.length() > 0) {
+    			roots.append(',');
+    		}
+    		roots.append(new File(folder.getRoot(), name).getPath());
+    	}
+    	StorageVolumes volumes = new StorageVolumes();
+    	volumes.roots = roots.toString();
+    	volumes.weights = weights;
+    	volumes.init();
+    	return volumes;
+    }
+}
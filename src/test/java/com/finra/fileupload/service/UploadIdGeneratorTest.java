@@ -0,0 +1,72 @@
+package com.finra.fileupload.service;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test case for time ordered upload ids
+ * @author akadam
+ * @since 1.0
+ */
+public class UploadIdGeneratorTest {
+
+	/**Logger*/
+	private static final Logger logger = Logger.getLogger(UploadIdGeneratorTest.class.getCanonicalName());
+
+	private final UploadIdGenerator generator = new UploadIdGenerator();
+
+    @Test
+    public void testIdsAreOrderedAndUnique() throws Exception {
+    	logger.info("Testing ids of a thread are unique and ordered.");
+    	Set<String> ids = new HashSet<String>();
+    	String previous = generator.nextId();
+    	for(int i = 0; i < 100000; i++) {
+    		String id = generator.nextId();
+    		Assert.assertEquals(UploadIdGenerator.LENGTH, id.length());
+    		Assert.assertTrue(previous + " < " + id, previous.compareTo(id) < 0);
+    		Assert.assertTrue(ids.add(id));
+    		previous = id;
+    	}
+    }
+
+    @Test
+    public void testTimestampRoundTrip() throws Exception {
+    	logger.info("Testing time of generation is read back from id.");
+    	long before = System.currentTimeMillis();
+    	String id = generator.nextId();
+    	long after = System.currentTimeMillis();
+    	long timestamp = UploadIdGenerator.timestampOf(id);
+    	Assert.assertTrue(timestamp >= before && timestamp <= after + 1);
+
+    	Assert.assertEquals(0, UploadIdGenerator.timestampOf(UploadIdGenerator.lowerBound(-5)));
+    	Assert.assertEquals(1483228800000L, UploadIdGenerator.timestampOf(UploadIdGenerator.lowerBound(1483228800000L)));
+    }
+
+    @Test
+    public void testLowerBound() throws Exception {
+    	logger.info("Testing lower bound orders before ids generated from its time on.");
+    	long now = System.currentTimeMillis();
+    	String id = generator.nextId();
+    	Assert.assertTrue(UploadIdGenerator.lowerBound(now).compareTo(id) <= 0);
+    	Assert.assertTrue(UploadIdGenerator.lowerBound(now + 1000).compareTo(id) > 0);
+    	Assert.assertTrue(UploadIdGenerator.lowerBound(now - 1000).compareTo(UploadIdGenerator.lowerBound(now)) < 0);
+    }
+
+    @Test
+    public void testWellFormedIds() throws Exception {
+    	logger.info("Testing ids received from outside are checked.");
+    	Assert.assertTrue(UploadIdGenerator.isWellFormed(generator.nextId()));
+    	//Random base32 ids used before time ordered ones
+    	Assert.assertTrue(UploadIdGenerator.isWellFormed("0123456789abcdefghijklmnuv"));
+    	Assert.assertTrue(UploadIdGenerator.isWellFormed("abc"));
+
+    	Assert.assertFalse(UploadIdGenerator.isWellFormed(null));
+    	Assert.assertFalse(UploadIdGenerator.isWellFormed(""));
+    	Assert.assertFalse(UploadIdGenerator.isWellFormed("../etc"));
+    	Assert.assertFalse(UploadIdGenerator.isWellFormed("ABC"));
+    	Assert.assertFalse(UploadIdGenerator.isWellFormed(generator.nextId() + "0"));
+    	Assert.assertEquals(-1, UploadIdGenerator.timestampOf("0123456789abcdefghijklm-uv"));
+    }
+}